@@ -0,0 +1,111 @@
+/**
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * builds tree from json events. objects are built as LinkedHashMap,
+ * arrays as ArrayList and values as String, Number, Boolean or null
+ *
+ * @author Santhosh Kumar T
+ */
+public class JSONBuilder implements JSONHandler{
+    private final List<Object> containers = new ArrayList<Object>();
+    private final List<String> keys = new ArrayList<String>();
+    private String key;
+    private Object result;
+
+    public Object getResult(){
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(Object value){
+        if(containers.isEmpty())
+            result = value;
+        else{
+            Object container = containers.get(containers.size()-1);
+            if(container instanceof Map)
+                ((Map<String, Object>)container).put(key, value);
+            else
+                ((List<Object>)container).add(value);
+        }
+    }
+
+    private void start(Object container){
+        keys.add(key);
+        containers.add(container);
+    }
+
+    private void end(){
+        Object container = containers.remove(containers.size()-1);
+        key = keys.remove(keys.size()-1);
+        add(container);
+    }
+
+    @Override
+    public void startObject(){
+        start(new LinkedHashMap<String, Object>());
+    }
+
+    @Override
+    public void key(String name){
+        key = name;
+    }
+
+    @Override
+    public void endObject(){
+        end();
+    }
+
+    @Override
+    public void startArray(){
+        start(new ArrayList<Object>());
+    }
+
+    @Override
+    public void endArray(){
+        end();
+    }
+
+    @Override
+    public void stringValue(String value){
+        add(value);
+    }
+
+    @Override
+    public void numberValue(Number value){
+        add(value);
+    }
+
+    @Override
+    public void booleanValue(boolean value){
+        add(value);
+    }
+
+    @Override
+    public void nullValue(){
+        add(null);
+    }
+
+    @Override
+    public void endDocument(){}
+}
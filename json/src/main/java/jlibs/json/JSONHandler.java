@@ -0,0 +1,49 @@
+/**
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json;
+
+/**
+ * receives events from {@link jlibs.json.parser.JSONParser}
+ * in document order, like SAX ContentHandler
+ *
+ * @author Santhosh Kumar T
+ */
+public interface JSONHandler{
+    public void startObject() throws Exception;
+
+    /** reported before value of each member of object */
+    public void key(String name) throws Exception;
+
+    public void endObject() throws Exception;
+
+    public void startArray() throws Exception;
+    public void endArray() throws Exception;
+
+    public void stringValue(String value) throws Exception;
+
+    /**
+     * integers are reported as Long or BigInteger if they don't fit in long,
+     * numbers with fraction or exponent are reported as Double
+     */
+    public void numberValue(Number value) throws Exception;
+
+    public void booleanValue(boolean value) throws Exception;
+    public void nullValue() throws Exception;
+
+    /** called after the top level value is parsed */
+    public void endDocument() throws Exception;
+}
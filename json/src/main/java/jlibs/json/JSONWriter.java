@@ -0,0 +1,185 @@
+/**
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * writes json events as text. can also be used to
+ * serialize tree built by {@link JSONBuilder}
+ *
+ * @author Santhosh Kumar T
+ */
+public class JSONWriter implements JSONHandler{
+    private final Appendable out;
+    private boolean comma;
+
+    public JSONWriter(Appendable out){
+        this.out = out;
+    }
+
+    /**
+     * writes given tree, which can contain Map, Collection, array of Object,
+     * String, Number, Boolean or null
+     */
+    public void write(Object value) throws IOException{
+        if(value==null)
+            nullValue();
+        else if(value instanceof String)
+            stringValue((String)value);
+        else if(value instanceof Number)
+            numberValue((Number)value);
+        else if(value instanceof Boolean)
+            booleanValue((Boolean)value);
+        else if(value instanceof Map){
+            startObject();
+            for(Map.Entry<?, ?> entry: ((Map<?, ?>)value).entrySet()){
+                key(String.valueOf(entry.getKey()));
+                write(entry.getValue());
+            }
+            endObject();
+        }else if(value instanceof Collection){
+            startArray();
+            for(Object item: (Collection<?>)value)
+                write(item);
+            endArray();
+        }else if(value instanceof Object[]){
+            startArray();
+            for(Object item: (Object[])value)
+                write(item);
+            endArray();
+        }else
+            stringValue(value.toString());
+    }
+
+    private void separate() throws IOException{
+        if(comma)
+            out.append(',');
+    }
+
+    @Override
+    public void startObject() throws IOException{
+        separate();
+        out.append('{');
+        comma = false;
+    }
+
+    @Override
+    public void key(String name) throws IOException{
+        separate();
+        quote(name);
+        out.append(':');
+        comma = false;
+    }
+
+    @Override
+    public void endObject() throws IOException{
+        out.append('}');
+        comma = true;
+    }
+
+    @Override
+    public void startArray() throws IOException{
+        separate();
+        out.append('[');
+        comma = false;
+    }
+
+    @Override
+    public void endArray() throws IOException{
+        out.append(']');
+        comma = true;
+    }
+
+    @Override
+    public void stringValue(String value) throws IOException{
+        separate();
+        quote(value);
+        comma = true;
+    }
+
+    @Override
+    public void numberValue(Number value) throws IOException{
+        if(value instanceof Double || value instanceof Float){
+            double d = value.doubleValue();
+            if(Double.isNaN(d) || Double.isInfinite(d))
+                throw new IllegalArgumentException("json doesn't support number: "+value);
+        }
+        separate();
+        out.append(value.toString());
+        comma = true;
+    }
+
+    @Override
+    public void booleanValue(boolean value) throws IOException{
+        separate();
+        out.append(value ? "true" : "false");
+        comma = true;
+    }
+
+    @Override
+    public void nullValue() throws IOException{
+        separate();
+        out.append("null");
+        comma = true;
+    }
+
+    @Override
+    public void endDocument(){}
+
+    private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+    private void quote(String str) throws IOException{
+        out.append('"');
+        int from = 0;
+        int len = str.length();
+        for(int i=0; i<len; i++){
+            char ch = str.charAt(i);
+            String escape;
+            switch(ch){
+                case '"':
+                    escape = "\\\"";
+                    break;
+                case '\\':
+                    escape = "\\\\";
+                    break;
+                case '\n':
+                    escape = "\\n";
+                    break;
+                case '\r':
+                    escape = "\\r";
+                    break;
+                case '\t':
+                    escape = "\\t";
+                    break;
+                default:
+                    if(ch>=0x20)
+                        continue;
+                    escape = null;
+            }
+            out.append(str, from, i);
+            from = i+1;
+            if(escape!=null)
+                out.append(escape);
+            else
+                out.append("\\u00").append(HEX_DIGITS[ch>>4]).append(HEX_DIGITS[ch&0xF]);
+        }
+        out.append(str, from, len);
+        out.append('"');
+    }
+}
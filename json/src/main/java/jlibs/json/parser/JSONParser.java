@@ -0,0 +1,236 @@
+/**
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json.parser;
+
+import jlibs.json.JSONHandler;
+import jlibs.nbp.Chars;
+import jlibs.nbp.Feeder;
+import jlibs.nbp.NBChannel;
+import jlibs.nbp.NBHandler;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Non-Blocking JSON Parser.
+ * translates events from generated {@link JSONScanner} into
+ * {@link JSONHandler} events
+ *
+ * @author Santhosh Kumar T
+ */
+public final class JSONParser implements NBHandler<IOException>{
+    private final JSONScanner scanner = new JSONScanner(this, JSONScanner.RULE_JSON);
+    private final JSONHandler handler;
+
+    public JSONParser(JSONHandler handler){
+        this.handler = handler;
+    }
+
+    public JSONHandler getHandler(){
+        return handler;
+    }
+
+    /**
+     * returns feeder which reads json document from given channel.
+     * if encoding is null, it is detected from BOM, defaulting to UTF-8
+     */
+    public Feeder createFeeder(ReadableByteChannel channel, String encoding){
+        reset();
+        NBChannel nbChannel = new NBChannel(channel);
+        nbChannel.setEncoding("UTF-8", true);
+        if(encoding!=null)
+            nbChannel.setEncoding(encoding, false);
+        return new Feeder(scanner, nbChannel);
+    }
+
+    /** consumes given chars. eof should be true for last chunk */
+    public void consume(char chars[], int offset, int length, boolean eof) throws IOException{
+        int limit = offset+length;
+        int position = scanner.consume(chars, offset, limit, eof);
+        if(position!=limit)
+            throw new IOException("NotImplemented: remaining "+(limit-position));
+    }
+
+    public void reset(){
+        scanner.reset();
+        text.setLength(0);
+        depth = 0;
+        scalar = decimal = false;
+    }
+
+    public int getLineNumber(){
+        return scanner.getLineNumber();
+    }
+
+    public int getColumnNumber(){
+        return scanner.getColumnNumber();
+    }
+
+    /*-------------------------------------------------[ Scanner Events ]---------------------------------------------------*/
+
+    private final StringBuilder text = new StringBuilder();
+
+    // objects[i] tells whether container at depth i is object or array
+    private boolean objects[] = new boolean[16];
+    private int depth;
+
+    // true from valueStart till the value turns out to be non-string
+    private boolean scalar;
+    private boolean decimal;
+
+    void valueStart() throws Exception{
+        if(depth>0 && objects[depth-1]){
+            handler.key(text.toString());
+            text.setLength(0);
+        }
+        scalar = true;
+    }
+
+    void valueEnd() throws Exception{
+        if(scalar){
+            scalar = false;
+            handler.stringValue(text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private void push(boolean object){
+        scalar = false;
+        if(depth==objects.length)
+            objects = Arrays.copyOf(objects, depth<<1);
+        objects[depth++] = object;
+    }
+
+    void objectStart() throws Exception{
+        push(true);
+        handler.startObject();
+    }
+
+    void objectEnd() throws Exception{
+        --depth;
+        handler.endObject();
+    }
+
+    void arrayStart() throws Exception{
+        push(false);
+        handler.startArray();
+    }
+
+    void arrayEnd() throws Exception{
+        --depth;
+        handler.endArray();
+    }
+
+    void rawString(Chars data){
+        text.append(data.array(), data.offset(), data.length());
+    }
+
+    void escapeChar(Chars data){
+        char ch = data.charAt(0);
+        switch(ch){
+            case 'b':
+                ch = '\b';
+                break;
+            case 'f':
+                ch = '\f';
+                break;
+            case 'n':
+                ch = '\n';
+                break;
+            case 'r':
+                ch = '\r';
+                break;
+            case 't':
+                ch = '\t';
+                break;
+        }
+        text.append(ch);
+    }
+
+    void hexString(Chars data){
+        int ch = 0;
+        for(int i=0; i<4; i++)
+            ch = (ch<<4) | Character.digit(data.charAt(i), 16);
+        text.append((char)ch);
+    }
+
+    void decimal(){
+        decimal = true;
+    }
+
+    void number(Chars data) throws Exception{
+        scalar = false;
+        Number number;
+        if(decimal){
+            decimal = false;
+            number = Double.valueOf(data.toString());
+        }else{
+            int len = data.length();
+            if(len<19){
+                char chars[] = data.array();
+                int i = data.offset();
+                int end = i+len;
+                boolean negative = chars[i]=='-';
+                if(negative)
+                    ++i;
+                long value = 0;
+                while(i<end)
+                    value = value*10 + (chars[i++]-'0');
+                number = negative ? -value : value;
+            }else{
+                BigInteger value = new BigInteger(data.toString());
+                number = value.bitLength()<64 ? Long.valueOf(value.longValue()) : value;
+            }
+        }
+        handler.numberValue(number);
+    }
+
+    void trueValue() throws Exception{
+        scalar = false;
+        handler.booleanValue(true);
+    }
+
+    void falseValue() throws Exception{
+        scalar = false;
+        handler.booleanValue(false);
+    }
+
+    void nullValue() throws Exception{
+        scalar = false;
+        handler.nullValue();
+    }
+
+    /*-------------------------------------------------[ NBHandler ]---------------------------------------------------*/
+
+    @Override
+    public void onSuccessful() throws IOException{
+        try{
+            handler.endDocument();
+        }catch(IOException ex){
+            throw ex;
+        }catch(Exception ex){
+            throw new IOException(ex);
+        }
+    }
+
+    @Override
+    public IOException fatalError(String message){
+        return new IOException(message+" at line "+getLineNumber()+", column "+getColumnNumber());
+    }
+}
@@ -0,0 +1,170 @@
+/**
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.json.parser;
+
+import jlibs.json.JSONHandler;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+/**
+ * @author Santhosh Kumar T
+ */
+public class JSONParserTest{
+    /** records events as space separated tokens */
+    private static class Events implements JSONHandler{
+        private final StringBuilder buffer = new StringBuilder();
+
+        private void add(String event){
+            if(buffer.length()>0)
+                buffer.append(' ');
+            buffer.append(event);
+        }
+
+        @Override public void startObject(){ add("{"); }
+        @Override public void key(String name){ add(name+":"); }
+        @Override public void endObject(){ add("}"); }
+        @Override public void startArray(){ add("["); }
+        @Override public void endArray(){ add("]"); }
+        @Override public void stringValue(String value){ add('"'+value+'"'); }
+        @Override public void numberValue(Number value){ add(value.getClass().getSimpleName()+'('+value+')'); }
+        @Override public void booleanValue(boolean value){ add(String.valueOf(value)); }
+        @Override public void nullValue(){ add("null"); }
+        @Override public void endDocument(){ add("EOD"); }
+
+        @Override
+        public String toString(){
+            return buffer.toString();
+        }
+    }
+
+    /** parses json given in chunks, split at given offsets */
+    private static String parse(String json, int... splits) throws IOException{
+        Events events = new Events();
+        JSONParser parser = new JSONParser(events);
+        char chars[] = json.toCharArray();
+        int from = 0;
+        for(int i=0; i<=splits.length; i++){
+            int to = i==splits.length ? chars.length : splits[i];
+            parser.consume(chars, from, to-from, i==splits.length);
+            from = to;
+        }
+        return events.toString();
+    }
+
+    /** checks events of given json, when fed at once, split at every offset and char by char */
+    private static void assertEvents(String json, String expected) throws IOException{
+        Assert.assertEquals(parse(json), expected, json);
+        for(int i=0; i<=json.length(); i++)
+            Assert.assertEquals(parse(json, i), expected, json+" split at "+i);
+        int splits[] = new int[json.length()];
+        for(int i=0; i<splits.length; i++)
+            splits[i] = i;
+        Assert.assertEquals(parse(json, splits), expected, json+" char by char");
+    }
+
+    private static void assertMalformed(String json){
+        try{
+            Assert.fail(json+" parsed as: "+parse(json));
+        }catch(IOException ex){
+            // expected
+        }
+        for(int i=1; i<json.length(); i++){
+            try{
+                Assert.fail(json+" split at "+i+" parsed as: "+parse(json, i));
+            }catch(IOException ex){
+                // expected
+            }
+        }
+    }
+
+    @Test(description="numbers with single digit")
+    public void singleDigits() throws IOException{
+        assertEvents("0", "Long(0) EOD");
+        assertEvents("7", "Long(7) EOD");
+        assertEvents("-3", "Long(-3) EOD");
+        assertEvents("[1,2,3]", "[ Long(1) Long(2) Long(3) ] EOD");
+        assertEvents("{\"a\":5}", "{ a: Long(5) } EOD");
+        assertEvents("[0.5,5e2,0E1]", "[ Double(0.5) Double(500.0) Double(0.0) ] EOD");
+    }
+
+    @Test(description="numbers with leading zeros are rejected")
+    public void leadingZeros(){
+        for(String json: new String[]{ "01", "-01", "00", "[00]", "{\"a\":012}", "[1,007]", "00.5" })
+            assertMalformed(json);
+    }
+
+    @Test(description="zero followed by fraction or exponent is not a leading zero")
+    public void zeroWithFraction() throws IOException{
+        assertEvents("0.25", "Double(0.25) EOD");
+        assertEvents("-0.0", "Double(-0.0) EOD");
+        assertEvents("0e-2", "Double(0.0) EOD");
+        assertEvents("10", "Long(10) EOD");
+    }
+
+    @Test(description="empty arrays and objects")
+    public void emptyContainers() throws IOException{
+        assertEvents("[]", "[ ] EOD");
+        assertEvents("{}", "{ } EOD");
+        assertEvents(" [ ] ", "[ ] EOD");
+        assertEvents("{ }", "{ } EOD");
+        assertEvents("[[],{}]", "[ [ ] { } ] EOD");
+        assertEvents("{\"a\":[],\"b\":{}}", "{ a: [ ] b: { } } EOD");
+    }
+
+    @Test(description="objectStart and arrayStart are reported once, even if input ends after bracket")
+    public void noDuplicateStartEvents() throws IOException{
+        // assertEvents splits input right after each bracket
+        assertEvents("[[1]]", "[ [ Long(1) ] ] EOD");
+        assertEvents("{\"a\":{\"b\":[true]}}", "{ a: { b: [ true ] } } EOD");
+        assertEvents("[{},[{}]]", "[ { } [ { } ] ] EOD");
+        Assert.assertEquals(parse("[[\"x\"]]", 1, 2), "[ [ \"x\" ] ] EOD");
+        Assert.assertEquals(parse("{\"k\":{}}", 1, 6), "{ k: { } } EOD");
+    }
+
+    @Test(description="any value is allowed at top level, as in rfc7159")
+    public void topLevelScalars() throws IOException{
+        assertEvents("\"str\"", "\"str\" EOD");
+        assertEvents("\"\"", "\"\" EOD");
+        assertEvents("12", "Long(12) EOD");
+        assertEvents("-1.5e-3", "Double(-0.0015) EOD");
+        assertEvents("true", "true EOD");
+        assertEvents("false", "false EOD");
+        assertEvents("null", "null EOD");
+        assertEvents(" 42 ", "Long(42) EOD");
+        assertEvents("123456789012345678901234", "BigInteger(123456789012345678901234) EOD");
+    }
+
+    @Test(description="string escapes")
+    public void escapes() throws IOException{
+        assertEvents("\"a\\\"b\\\\c\\/d\\n\\t\\u0041\\u00e9\"", "\"a\"b\\c/d\n\tA\u00e9\" EOD");
+        assertEvents("{\"\\u0041\":\"\"}", "{ A: \"\" } EOD");
+    }
+
+    @Test(description="malformed documents")
+    public void malformed(){
+        String documents[] = {
+            "", " ", "[", "]", "{", "}", "[1", "[1,", "[1,]", "[,1]", "[1]]", "[1 2]",
+            "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{\"a\" 1}", "{1:2}", "{'a':1}", "{\"a\":1",
+            "tru", "nul", "fals", "True", "1 2", "\"unterminated", "\"\\x\"", "\"\\u12\"",
+            "-", "+1", ".5", "1.", "1e", "1e+", "--1", "[-]",
+        };
+        for(String json: documents)
+            assertMalformed(json);
+    }
+}
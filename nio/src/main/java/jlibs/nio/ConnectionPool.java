@@ -15,13 +15,27 @@
 
 package jlibs.nio;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static jlibs.nio.Debugger.DEBUG;
 import static jlibs.nio.Debugger.println;
 
 /**
+ * Per reactor pool of idle connections, keyed by endpoint.
+ * <p>
+ * Connections obtained through {@link #getConnection(TCPEndpoint, Proxy, Consumer)}
+ * are counted against their key until closed, so that {@link Limits}
+ * can cap idle, total and pending connections per key.
+ *
  * @author Santhosh Kumar Tekuri
  */
 public class ConnectionPool{
@@ -38,6 +52,13 @@ public class ConnectionPool{
         return count;
     }
 
+    public Entry entry(String key){
+        Entry entry = entries.get(key);
+        if(entry==null)
+            entries.put(key, entry=new Entry(key));
+        return entry;
+    }
+
     public void add(String key, Connection connection){
         add(key, connection, timeout);
     }
@@ -52,10 +73,7 @@ public class ConnectionPool{
                 timeout = 60*1000;
         }
 
-        Entry entry = entries.get(key);
-        if(entry==null)
-            entries.put(key, entry=new Entry(key));
-        entry.add(connection, timeout);
+        entry(key).add(connection, timeout);
     }
 
     public Connection remove(String key){
@@ -68,22 +86,291 @@ public class ConnectionPool{
             entries.get(connection.poolKey).remove(connection);
     }
 
+    /** checks whether idle connection is closed by peer */
+    private boolean isBroken(Connection con){
+        ByteBuffer buffer = reactor.allocator.allocate(1);
+        int read = -1;
+        try{
+            read = con.in().read(buffer);
+        }catch(Throwable ignore){
+            // ignore.printStackTrace();
+        }
+        reactor.allocator.free(buffer);
+        assert read<=0;
+        if(read==-1){
+            if(DEBUG)
+                println(con+".isBroken=true");
+            return true;
+        }
+        return false;
+    }
+
+    /** removes and closes idle connection, because of idle timeout or maxIdle limit */
+    void evict(Connection connection){
+        remove(connection);
+        ++evictions;
+        connection.close();
+    }
+
+    /** called when a connection counted against its key is closed */
+    void closed(Connection connection){
+        Entry entry = entries.get(connection.poolKey);
+        if(entry!=null){
+            --entry.total;
+            entry.serve();
+            entry.prewarm();
+        }
+    }
+
+    /**
+     * Gets idle connection to given endpoint if available, otherwise
+     * creates new connection. If maxTotal connections are already open,
+     * listener is queued until some connection is released or closed.
+     * Fails with IOException if maxPending listeners are already queued,
+     * and with SocketTimeoutException if queued longer than maxWait.
+     */
+    public void getConnection(TCPEndpoint endpoint, Proxy proxy, Consumer<Result<Connection>> listener){
+        Entry entry = entry(endpoint.toString());
+        entry.endpoint = endpoint;
+        entry.proxy = proxy;
+
+        if(entry.waiters.isEmpty()){
+            Connection con = entry.borrow();
+            if(con!=null){
+                ++hits;
+                listener.accept(new Result<>(con));
+                entry.prewarm();
+                return;
+            }
+            if(entry.limits().shared && sharedIdle(entry.key)>0){
+                new Steal(entry, listener).next();
+                return;
+            }
+        }
+        acquire(entry, listener);
+    }
+
+    private void acquire(Entry entry, Consumer<Result<Connection>> listener){
+        ++misses;
+        if(entry.waiters.isEmpty() && entry.total<entry.limits().maxTotal){
+            entry.connect(listener);
+            return;
+        }
+        if(entry.waiters.size()>=entry.limits().maxPending){
+            ++rejected;
+            listener.accept(new Result<>(new IOException("too many pending connections to "+entry.key)));
+            return;
+        }
+        if(DEBUG)
+            println("connectionPool.wait("+entry.key+")");
+        Waiter waiter = new Waiter(entry, listener);
+        entry.waiters.add(waiter);
+        reactor.startTimer(waiter, entry.limits().maxWait);
+    }
+
+    /** opens connections to given endpoint until its prewarm limit is reached */
+    public void prewarm(TCPEndpoint endpoint, Proxy proxy){
+        Entry entry = entry(endpoint.toString());
+        entry.endpoint = endpoint;
+        entry.proxy = proxy;
+        entry.prewarm();
+    }
+
+    /** {@link #prewarm(TCPEndpoint, Proxy)} in all reactors */
+    public static void prewarmAll(TCPEndpoint endpoint, Proxy proxy){
+        for(Reactor reactor: Reactors.get())
+            reactor.invokeLater(() -> reactor.connectionPool.prewarm(endpoint, proxy));
+    }
+
+    /*-------------------------------------------------[ Sharing ]---------------------------------------------------*/
+
+    /** number of idle connections per key, that can be migrated to other reactors */
+    private static final Map<String, AtomicInteger> SHARED_IDLE = new ConcurrentHashMap<>();
+
+    private static int sharedIdle(String key){
+        AtomicInteger idle = SHARED_IDLE.get(key);
+        return idle==null ? 0 : idle.get();
+    }
+
+    private static AtomicInteger sharedIdleCounter(String key){
+        AtomicInteger idle = SHARED_IDLE.get(key);
+        if(idle==null){
+            AtomicInteger prev = SHARED_IDLE.putIfAbsent(key, idle=new AtomicInteger());
+            if(prev!=null)
+                idle = prev;
+        }
+        return idle;
+    }
+
+    /**
+     * only plain client connections are migrated. ssl connections hold
+     * buffers from their reactor's allocator, so they stay in their reactor
+     */
+    private static boolean isMigratable(Connection con){
+        return con instanceof TCPConnection && ((TCPConnection)con).server==null
+                && con.in()==con.transport && con.out()==con.transport;
+    }
+
+    /**
+     * called in donor reactor. removes migratable idle connection
+     * and detaches it from this reactor
+     */
+    private TCPConnection donate(String key){
+        Entry entry = entries.get(key);
+        if(entry==null || entry.head==null)
+            return null;
+        Connection con = entry.head;
+        do{
+            if(con.poolShared){
+                entry.remove(con);
+                --entry.total;
+                ((TCPConnection)con).detach();
+                ++donated;
+                if(DEBUG)
+                    println("connectionPool.donate("+con+")");
+                return (TCPConnection)con;
+            }
+            con = con.poolNext;
+        }while(con!=entry.head);
+        return null;
+    }
+
+    /** tries to migrate idle connection from other reactors, before creating new connection */
+    private class Steal{
+        private final Entry entry;
+        private final Consumer<Result<Connection>> listener;
+        private int next;
+
+        Steal(Entry entry, Consumer<Result<Connection>> listener){
+            this.entry = entry;
+            this.listener = listener;
+        }
+
+        void next(){
+            List<Reactor> reactors = Reactors.get();
+            while(next<reactors.size() && sharedIdle(entry.key)>0){
+                Reactor donor = reactors.get(next++);
+                if(donor==reactor)
+                    continue;
+                donor.invokeLater(() -> {
+                    TCPConnection con = donor.connectionPool.donate(entry.key);
+                    reactor.invokeLater(() -> received(con));
+                });
+                return;
+            }
+            acquire(entry, listener);
+        }
+
+        private void received(TCPConnection con){
+            if(con==null){
+                next();
+                return;
+            }
+            try{
+                con.attach();
+            }catch(Throwable thr){
+                if(DEBUG)
+                    println(con+".attach failed: "+thr);
+                // not counted by any reactor or pool after donate, so close() would undercount
+                try{
+                    con.selectable.close();
+                }catch(IOException ignore){
+                    // ignore
+                }
+                next();
+                return;
+            }
+            ++entry.total;
+            if(isBroken(con)){
+                con.close();
+                next();
+            }else{
+                ++stolen;
+                if(DEBUG)
+                    println("connectionPool.steal("+con+")");
+                listener.accept(new Result<>(con));
+            }
+        }
+    }
+
+    /** listener waiting for connection. its maxWait is tracked by reactor's timer */
+    private class Waiter extends NBChannel{
+        final Entry entry;
+        final Consumer<Result<Connection>> listener;
+        final long since = System.currentTimeMillis();
+
+        Waiter(Entry entry, Consumer<Result<Connection>> listener){
+            super(ConnectionPool.this.reactor);
+            this.entry = entry;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void process(boolean timeout){
+            entry.waiters.remove(this);
+            ++waitTimeouts;
+            waitTime += System.currentTimeMillis()-since;
+            if(DEBUG)
+                println("connectionPool.waitTimeout("+entry.key+")");
+            listener.accept(new Result<>(new SocketTimeoutException("timed out waiting for connection to "+entry.key)));
+        }
+    }
+
     public class Entry{
         public final String key;
         int count;
+        int total;
+        int connecting;
+        TCPEndpoint endpoint;
+        Proxy proxy;
+        private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+        private boolean serveScheduled;
 
         public Entry(String key){
             this.key = key;
         }
 
+        public Limits limits(){
+            Limits limits = LIMITS.get(key);
+            return limits==null ? DEFAULT_LIMITS : limits;
+        }
+
+        /** number of idle connections */
+        public int idle(){
+            return count;
+        }
+
+        /** number of open connections, including idle and connecting */
+        public int total(){
+            return total;
+        }
+
+        /** number of listeners waiting for connection */
+        public int pending(){
+            return waiters.size();
+        }
+
         private Connection head;
 
         public void add(Connection con, long timeout){
             if(con.poolPrev==null && con.poolNext==null){
                 if(DEBUG)
                     println("connectionPool.add("+con+", "+timeout+")");
-                con.poolKey = key;
+                if(con.poolKey==null){
+                    con.poolKey = key;
+                    ++total;
+                }
 //                con.addingToPool();
+                if(waiters.isEmpty()){
+                    int maxIdle = limits().maxIdle;
+                    if(maxIdle<=0){
+                        ++evictions;
+                        con.close();
+                        return;
+                    }
+                    if(count>=maxIdle)
+                        evict(head.poolPrev);
+                }
                 if(head==null){
                     con.poolPrev = con;
                     con.poolNext = con;
@@ -95,27 +382,33 @@ public class ConnectionPool{
                     tail.poolNext = con;
                 }
                 head = con;
+                if(limits().shared && isMigratable(con)){
+                    con.poolShared = true;
+                    sharedIdleCounter(key).incrementAndGet();
+                }
                 reactor.startTimer(con, timeout);
                 ++count;
                 ++ConnectionPool.this.count;
                 con.workingFor = con;
                 con.executionID = null;
+                serve();
             }
         }
 
+        /** head is most recently added connection, tail is the oldest */
         public Connection remove(){
             if(head==null)
                 return null;
 
-            Connection connection = head;
-            remove(head);
+            Connection connection = limits().policy==Policy.FIFO ? head.poolPrev : head;
+            remove(connection);
             return connection;
         }
 
         void remove(Connection con){
             if(DEBUG)
                 println("connectionPool.remove("+con+")");
-            if(con.heapIndex!=-1)
+            if(con.timerIndex!=-1)
                 reactor.stopTimer(con);
 //            con.initWorkingFor();
             if(con==head){
@@ -136,6 +429,10 @@ public class ConnectionPool{
 
             con.poolPrev = null;
             con.poolNext = null;
+            if(con.poolShared){
+                con.poolShared = false;
+                sharedIdleCounter(key).decrementAndGet();
+            }
             --count;
             --ConnectionPool.this.count;
             con.taskCompleted();
@@ -144,5 +441,145 @@ public class ConnectionPool{
                 con.workingFor = con;
             con.makeActive();
         }
+
+        /** removes idle connection, skipping those closed by peer */
+        Connection borrow(){
+            while(true){
+                Connection con = remove();
+                if(con==null)
+                    return null;
+                if(isBroken(con))
+                    con.close();
+                else
+                    return con;
+            }
+        }
+
+        void connect(Consumer<Result<Connection>> listener){
+            ++total;
+            ++connecting;
+            endpoint.newConnection(result -> {
+                --connecting;
+                try{
+                    result.get().poolKey = key;
+                }catch(Throwable thr){
+                    --total;
+                    serve();
+                }
+                listener.accept(result);
+            }, proxy);
+        }
+
+        /** hands released connections and free slots to waiting listeners */
+        void serve(){
+            if(!waiters.isEmpty() && !serveScheduled){
+                // listeners are notified later, as we might be in the middle of other exchange
+                serveScheduled = true;
+                reactor.invokeLater(() -> {
+                    serveScheduled = false;
+                    while(!waiters.isEmpty()){
+                        Connection con = borrow();
+                        if(con==null && total>=limits().maxTotal)
+                            break;
+                        Waiter waiter = waiters.poll();
+                        if(waiter.timerIndex!=-1)
+                            reactor.stopTimer(waiter);
+                        ++waits;
+                        waitTime += System.currentTimeMillis()-waiter.since;
+                        if(con==null)
+                            connect(waiter.listener);
+                        else
+                            waiter.listener.accept(new Result<>(con));
+                    }
+                });
+            }
+        }
+
+        /** failed prewarm connections are not retried until next borrow or close */
+        void prewarm(){
+            int prewarm = limits().prewarm;
+            if(endpoint==null || reactor.isShutdown())
+                return;
+            while(count+connecting<prewarm && total<limits().maxTotal){
+                if(DEBUG)
+                    println("connectionPool.prewarm("+key+")");
+                connect(result -> {
+                    try{
+                        ConnectionPool.this.add(key, result.get());
+                    }catch(Throwable thr){
+                        reactor.handleException(thr);
+                    }
+                });
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ Metrics ]---------------------------------------------------*/
+
+    long hits, misses, evictions, rejected, waits, waitTimeouts, waitTime, stolen, donated;
+
+    /** number of times idle connection was reused */
+    public long getHits(){ return hits; }
+
+    /** number of times no idle connection was available */
+    public long getMisses(){ return misses; }
+
+    /** number of idle connections closed due to idle timeout or maxIdle limit */
+    public long getEvictions(){ return evictions; }
+
+    /** number of requests failed because maxPending limit reached */
+    public long getRejected(){ return rejected; }
+
+    /** number of requests that waited for connection because maxTotal limit reached */
+    public long getWaits(){ return waits; }
+
+    /** number of requests failed because they waited longer than maxWait */
+    public long getWaitTimeouts(){ return waitTimeouts; }
+
+    /** total time in milliseconds spent waiting for connection */
+    public long getWaitTime(){ return waitTime; }
+
+    /** number of idle connections migrated from other reactors */
+    public long getStolen(){ return stolen; }
+
+    /** number of idle connections migrated to other reactors */
+    public long getDonated(){ return donated; }
+
+    public int getPending(){
+        int pending = 0;
+        for(Entry entry: entries.values())
+            pending += entry.waiters.size();
+        return pending;
     }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public enum Policy{
+        /** reuse most recently released connection, keeping fewer sockets warm */
+        LIFO,
+        /** reuse least recently released connection, spreading load across sockets */
+        FIFO
+    }
+
+    public static class Limits{
+        public int maxIdle = Integer.MAX_VALUE;
+        public int maxTotal = Integer.MAX_VALUE;
+        public int maxPending = Integer.MAX_VALUE;
+        /** milliseconds a listener can wait, when maxTotal connections are open. 0 means forever */
+        public long maxWait = 0;
+        /** minimum number of idle connections to keep open, once the key is used */
+        public int prewarm = 0;
+        public Policy policy = Policy.LIFO;
+        /**
+         * when true and local pool has no idle connection, idle connection
+         * is migrated from other reactor instead of opening new connection
+         */
+        public boolean shared = false;
+    }
+
+    /** limits for keys not found in LIMITS */
+    public static Limits DEFAULT_LIMITS = new Limits();
+
+    /** limits per key, where key is TCPEndpoint.toString(). limits apply per reactor */
+    public static final Map<String, Limits> LIMITS = new ConcurrentHashMap<>();
 }
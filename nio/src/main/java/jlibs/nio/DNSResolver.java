@@ -0,0 +1,173 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static jlibs.nio.Debugger.DEBUG;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * Non-blocking host name resolution.
+ * <p>
+ * Lookups are done by small pool of daemon threads, and the result
+ * is delivered back on the calling reactor through {@link Reactor#invokeLater(Runnable)}.
+ * Concurrent lookups of same host share single lookup.
+ * <p>
+ * Resolved addresses are cached for {@link #TTL} millis, and failed lookups
+ * are cached for {@link #NEGATIVE_TTL} millis.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class DNSResolver{
+    private DNSResolver(){}
+
+    private static final ConcurrentMap<String, Entry> cache = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, CompletableFuture<InetAddress[]>> pending = new ConcurrentHashMap<>();
+
+    private static class Entry{
+        final InetAddress addresses[];
+        final UnknownHostException error;
+        final long expiresAt;
+
+        Entry(InetAddress addresses[], UnknownHostException error, long ttl){
+            this.addresses = addresses;
+            this.error = error;
+            expiresAt = System.currentTimeMillis()+ttl;
+        }
+    }
+
+    private static ExecutorService executor;
+    private static synchronized ExecutorService executor(){
+        if(executor==null){
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+                Thread thread = new Thread(runnable, "DNSResolver"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * returns cached addresses of given host, or null if not cached.
+     * throws UnknownHostException if failure is cached
+     */
+    public static InetAddress[] cached(String host) throws UnknownHostException{
+        if(isLiteral(host))
+            return new InetAddress[]{ InetAddress.getByName(host) };
+        Entry entry = cache.get(host);
+        if(entry==null)
+            return null;
+        if(entry.expiresAt<System.currentTimeMillis()){
+            cache.remove(host, entry);
+            return null;
+        }
+        if(entry.error!=null)
+            throw entry.error;
+        return entry.addresses;
+    }
+
+    /** blocking lookup, which also populates cache */
+    public static InetAddress[] resolve(String host) throws UnknownHostException{
+        InetAddress addresses[] = cached(host);
+        if(addresses==null)
+            addresses = lookup(host);
+        return addresses;
+    }
+
+    /**
+     * must be called from reactor thread. listener is notified in same reactor.
+     * listener is notified immediately, if result is cached
+     */
+    public static void resolve(String host, Consumer<Result<InetAddress[]>> listener){
+        InetAddress addresses[];
+        try{
+            addresses = cached(host);
+        }catch(UnknownHostException ex){
+            listener.accept(new Result<>(ex));
+            return;
+        }
+        if(addresses!=null){
+            listener.accept(new Result<>(addresses));
+            return;
+        }
+
+        if(DEBUG)
+            println("DNSResolver.resolve("+host+")");
+        Reactor reactor = Reactor.current();
+        CompletableFuture<InetAddress[]> lookup = new CompletableFuture<>();
+        CompletableFuture<InetAddress[]> future = pending.putIfAbsent(host, lookup);
+        if(future==null){
+            future = lookup;
+            executor().execute(() -> {
+                try{
+                    lookup.complete(lookup(host));
+                }catch(Throwable thr){
+                    lookup.completeExceptionally(thr);
+                }finally{
+                    pending.remove(host, lookup);
+                }
+            });
+        }
+        future.whenComplete((result, thr) -> reactor.invokeLater(() -> {
+            if(thr==null)
+                listener.accept(new Result<>(result));
+            else
+                listener.accept(new Result<>(thr instanceof CompletionException ? thr.getCause() : thr));
+        }));
+    }
+
+    private static InetAddress[] lookup(String host) throws UnknownHostException{
+        try{
+            InetAddress addresses[] = InetAddress.getAllByName(host);
+            if(TTL>0)
+                cache.put(host, new Entry(addresses, null, TTL));
+            return addresses;
+        }catch(UnknownHostException ex){
+            if(NEGATIVE_TTL>0)
+                cache.put(host, new Entry(null, ex, NEGATIVE_TTL));
+            throw ex;
+        }
+    }
+
+    private static boolean isLiteral(String host){
+        if(host.indexOf(':')!=-1)
+            return true;
+        for(int i=0; i<host.length(); i++){
+            char ch = host.charAt(i);
+            if(ch!='.' && (ch<'0' || ch>'9'))
+                return false;
+        }
+        return true;
+    }
+
+    public static void clearCache(){
+        cache.clear();
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public static long TTL = 60*1000;
+    public static long NEGATIVE_TTL = 10*1000;
+    public static int THREADS = 2;
+}
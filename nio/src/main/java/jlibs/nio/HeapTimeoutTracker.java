@@ -0,0 +1,81 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import jlibs.core.util.Heap;
+
+/**
+ * TimeoutTracker backed by binary heap ordered by timeoutAt.
+ * startTimer and stopTimer are O(log n).
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+final class HeapTimeoutTracker extends TimeoutTracker{
+    private final Heap<NBChannel> heap = new Heap<NBChannel>(1000){
+        @Override
+        protected void setIndex(NBChannel channel, int index){
+            channel.timerIndex = index;
+        }
+
+        @Override
+        protected int compare(NBChannel channel1, NBChannel channel2){
+            return channel1.timeoutAt<channel2.timeoutAt ? -1 : (channel1.timeoutAt==channel2.timeoutAt?0:+1);
+        }
+    };
+
+    @Override
+    public boolean isTracking(){
+        return heap.size()>0;
+    }
+
+    @Override
+    public void startTimer(NBChannel channel, long timeout){
+        if(channel.timerIndex!=-1)
+            stopTimer(channel);
+        if(timeout>0){
+            channel.timeoutAt = System.currentTimeMillis() + timeout;
+            heap.add(channel);
+        }
+    }
+
+    @Override
+    public void stopTimer(NBChannel channel){
+        assert channel.timerIndex!=-1;
+        NBChannel removed = heap.removeAt(channel.timerIndex);
+        assert removed==channel;
+        assert channel.timerIndex==-1;
+        channel.timeoutAt = Long.MAX_VALUE;
+    }
+
+    @Override
+    public NBChannel next(){
+        NBChannel root = heap.root();
+        if(root!=null && root.timeoutAt<time){
+            assert root.timerIndex==0;
+            heap.removeAt(0);
+            return root;
+        }else
+            return null;
+    }
+
+    // at least 1ms, because select(0) waits forever. sub-second timers such as
+    // TCPConnector.CONNECTION_ATTEMPT_DELAY would otherwise fire up to a second late
+    @Override
+    public long waitTime(){
+        return heap.size()==0 ? 0L : Math.max(1L, heap.root().timeoutAt-System.currentTimeMillis()+1);
+    }
+}
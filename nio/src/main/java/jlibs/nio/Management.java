@@ -15,6 +15,7 @@
 
 package jlibs.nio;
 
+import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanServer;
 import javax.management.MXBean;
 import javax.management.ObjectName;
@@ -38,6 +39,35 @@ public class Management{
         public Map<String, Integer> getPool();
     }
 
+    @MXBean
+    public static interface ConnectionPoolMXBean{
+        public int getIdle();
+        public int getTotal();
+        public int getPending();
+        public long getHits();
+        public long getMisses();
+        public long getEvictions();
+        public long getRejected();
+        public long getWaits();
+        public long getWaitTimeouts();
+        public long getWaitTime();
+        public long getStolen();
+        public long getDonated();
+    }
+
+    @MXBean
+    public static interface BufferAllocatorMXBean{
+        public long getMaxMemory();
+        public long getReserved();
+        public long getUsed();
+        public long getPooledHeap();
+        public long getFallbacks();
+        public int getOutstanding();
+
+        /** allocation sites of buffers not freed for more than a minute */
+        public Map<String, Integer> getLeaks();
+    }
+
     @MXBean
     public static interface ServerMXBean{
         public String getType();
@@ -46,7 +76,49 @@ public class Management{
         public void close() throws IOException;
     }
 
-    static ObjectName register(Object mbean, String name){
+    @MXBean
+    public static interface SSLMXBean{
+        public long getHandshakes();
+
+        /** total time in milliseconds, spent in handshakes */
+        public long getHandshakeTime();
+
+        /** histogram of handshake times */
+        public Map<String, Long> getHandshakeTimes();
+
+        /** number of times delegated tasks are run on SSLSocket.TASK_EXECUTOR */
+        public long getDelegatedTasks();
+
+        /** delegated tasks waiting in SSLSocket.TASK_EXECUTOR */
+        public int getQueuedTasks();
+    }
+
+    @MXBean
+    public static interface RequestExecutorMXBean{
+        /** requests handed to executor, but not yet completed */
+        public int getPending();
+        public long getCompleted();
+
+        /** requests rejected with 503, because too many were pending or executor rejected */
+        public long getRejected();
+
+        /** requests completed by worker, after their exchange was closed */
+        public long getDiscarded();
+
+        /** total time in milliseconds, requests waited for worker thread */
+        public long getQueueTime();
+
+        /** histogram of queue times */
+        public Map<String, Long> getQueueTimes();
+
+        /** total time in milliseconds, spent in running requests */
+        public long getExecutionTime();
+
+        /** histogram of execution times */
+        public Map<String, Long> getExecutionTimes();
+    }
+
+    public static ObjectName register(Object mbean, String name){
         try{
             ObjectName objName = new ObjectName(name);
             if(!MBEAN_SERVER.isRegistered(objName))
@@ -57,9 +129,22 @@ public class Management{
         }
     }
 
-    static void unregister(ObjectName name){
+    /** unlike {@link #register(Object, String)}, fails if name is already registered */
+    public static ObjectName registerUnique(Object mbean, String name){
+        try{
+            ObjectName objName = new ObjectName(name);
+            MBEAN_SERVER.registerMBean(mbean, objName);
+            return objName;
+        }catch(InstanceAlreadyExistsException ex){
+            throw new IllegalArgumentException("mbean "+name+" is already registered", ex);
+        }catch(Exception ex){
+            throw new RuntimeException(ex);
+        }
+    }
+
+    public static void unregister(ObjectName name){
         try{
-            if(name!=null && !MBEAN_SERVER.isRegistered(name))
+            if(name!=null && MBEAN_SERVER.isRegistered(name))
                 MBEAN_SERVER.unregisterMBean(name);
         }catch(Exception ex){
             throw new RuntimeException(ex);
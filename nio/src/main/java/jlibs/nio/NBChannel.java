@@ -26,7 +26,8 @@ import static jlibs.nio.Debugger.IO;
  */
 public abstract class NBChannel<T extends SelectableChannel> implements Channel{
     protected String uniqueID;
-    public final Reactor reactor;
+    // changes only when idle connection is migrated to other reactor, see TCPConnection.attach()
+    Reactor reactor;
     public final T selectable;
     public NBChannel(T selectable) throws IOException{
         this.selectable = selectable;
@@ -40,11 +41,27 @@ public abstract class NBChannel<T extends SelectableChannel> implements Channel{
         makeActive();
     }
 
+    /** channel without selectable, used only to track timeout in reactor's timer */
+    NBChannel(Reactor reactor){
+        selectable = null;
+        this.reactor = reactor;
+        workingFor = reactor.getExecutionOwner();
+        if(workingFor==null)
+            workingFor = this;
+        uniqueID = getClass().getSimpleName()+'@'+Integer.toHexString(hashCode());
+    }
+
+    public Reactor reactor(){
+        return reactor;
+    }
+
     @Trace(condition=IO, args="($1?\"timeout\":\"\")")
     protected abstract void process(boolean timeout);
 
-    int heapIndex = -1;
+    // position in Reactor's TimeoutTracker, -1 if timer is not started
+    int timerIndex = -1;
     long timeoutAt = Long.MAX_VALUE;
+    NBChannel timerPrev, timerNext;
     public long getTimeout(){
         return 0;
     }
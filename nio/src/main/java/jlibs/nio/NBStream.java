@@ -27,7 +27,7 @@ import static jlibs.nio.Debugger.IO;
  * @author Santhosh Kumar Tekuri
  */
 public abstract class NBStream<T extends SelectableChannel> extends NBChannel<T>{
-    protected final SelectionKey selectionKey;
+    protected SelectionKey selectionKey;
     protected final Socket transport;
 
     public NBStream(T selectable, SelectionKey selectionKey) throws IOException{
@@ -16,16 +16,20 @@
 package jlibs.nio;
 
 import jlibs.core.lang.Waiter;
-import jlibs.core.util.Heap;
 import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.MPSCQueue;
 import jlibs.nio.util.PooledBufferAllocator;
+import jlibs.nio.util.SlabBufferAllocator;
 import jlibs.nio.util.UnpooledBufferAllocator;
+import jlibs.nio.util.ZipPool;
 
 import javax.management.ObjectName;
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
@@ -40,10 +44,13 @@ public class Reactor{
     public final Selector selector;
     public final ConnectionPool connectionPool = new ConnectionPool(this);
     public final BufferAllocator allocator;
+    public final ZipPool zipPool = new ZipPool(ZipPool.Defaults.MAX_SIZE);
 
     long lastAcceptID;
     long lastConnectID;
     private final ObjectName objName;
+    private final ObjectName allocatorObjName;
+    private final ObjectName poolObjName;
 
     Reactor(int id) throws IOException{
         this.id = id;
@@ -51,11 +58,20 @@ public class Reactor{
         executionID = "R"+id;
         toString = "Reactor"+id;
 
-        if(BufferAllocator.Defaults.POOL_BUFFERS)
+        if(BufferAllocator.Defaults.POOL_BUFFERS && BufferAllocator.Defaults.USE_SLABS){
+            allocator = new SlabBufferAllocator(BufferAllocator.Defaults.USE_DIRECT_BUFFERS,
+                    BufferAllocator.Defaults.SLAB_SIZE, BufferAllocator.Defaults.MAX_MEMORY_PER_REACTOR,
+                    BufferAllocator.Defaults.TRACK_LEAKS);
+        }else if(BufferAllocator.Defaults.POOL_BUFFERS)
             allocator = new PooledBufferAllocator(BufferAllocator.Defaults.USE_DIRECT_BUFFERS);
         else
             allocator = BufferAllocator.Defaults.USE_DIRECT_BUFFERS ? UnpooledBufferAllocator.DIRECT : UnpooledBufferAllocator.HEAP;
 
+        if(Defaults.USE_TIMING_WHEEL)
+            timeoutTracker = new TimingWheel(Defaults.TIMING_WHEEL_TICK);
+        else
+            timeoutTracker = new HeapTimeoutTracker();
+
         objName = Management.register(new Management.ReactorMXBean(){
             @Override
             public int getServersCount(){
@@ -97,6 +113,127 @@ public class Reactor{
                 return map[0];
             }
         }, "jlibs.nio:type=Reactor,id="+id);
+
+        poolObjName = Management.register(new Management.ConnectionPoolMXBean(){
+            @Override
+            public int getIdle(){
+                return connectionPool.count();
+            }
+
+            @Override
+            public int getTotal(){
+                int total[] = new int[1];
+                try{
+                    invokeAndWait(() -> connectionPool.entries.values().forEach(entry -> total[0] += entry.total));
+                }catch(InterruptedException ex){
+                    throw new RuntimeException(ex);
+                }
+                return total[0];
+            }
+
+            @Override
+            public int getPending(){
+                int pending[] = new int[1];
+                try{
+                    invokeAndWait(() -> pending[0] = connectionPool.getPending());
+                }catch(InterruptedException ex){
+                    throw new RuntimeException(ex);
+                }
+                return pending[0];
+            }
+
+            @Override
+            public long getHits(){
+                return connectionPool.getHits();
+            }
+
+            @Override
+            public long getMisses(){
+                return connectionPool.getMisses();
+            }
+
+            @Override
+            public long getEvictions(){
+                return connectionPool.getEvictions();
+            }
+
+            @Override
+            public long getRejected(){
+                return connectionPool.getRejected();
+            }
+
+            @Override
+            public long getWaits(){
+                return connectionPool.getWaits();
+            }
+
+            @Override
+            public long getWaitTimeouts(){
+                return connectionPool.getWaitTimeouts();
+            }
+
+            @Override
+            public long getWaitTime(){
+                return connectionPool.getWaitTime();
+            }
+
+            @Override
+            public long getStolen(){
+                return connectionPool.getStolen();
+            }
+
+            @Override
+            public long getDonated(){
+                return connectionPool.getDonated();
+            }
+        }, "jlibs.nio:type=ConnectionPool,id="+id);
+
+        if(allocator instanceof SlabBufferAllocator){
+            SlabBufferAllocator slabAllocator = (SlabBufferAllocator)allocator;
+            allocatorObjName = Management.register(new Management.BufferAllocatorMXBean(){
+                @Override
+                public long getMaxMemory(){
+                    return slabAllocator.getMaxMemory();
+                }
+
+                @Override
+                public long getReserved(){
+                    return slabAllocator.getReserved();
+                }
+
+                @Override
+                public long getUsed(){
+                    return slabAllocator.getUsed();
+                }
+
+                @Override
+                public long getPooledHeap(){
+                    return slabAllocator.getPooledHeap();
+                }
+
+                @Override
+                public long getFallbacks(){
+                    return slabAllocator.getFallbacks();
+                }
+
+                @Override
+                public int getOutstanding(){
+                    return slabAllocator.getOutstanding();
+                }
+
+                @Override
+                public Map<String, Integer> getLeaks(){
+                    Map<String, Integer> map[] = new Map[1];
+                    try{
+                        invokeAndWait(() -> map[0] = slabAllocator.leaks(60*1000));
+                    }catch(InterruptedException ex){
+                        throw new RuntimeException(ex);
+                    }
+                    return map[0];
+                }
+            }, "jlibs.nio:type=BufferAllocator,id="+id);
+        }else
+            allocatorObjName = null;
     }
 
     private final String toString;
@@ -135,8 +272,9 @@ public class Reactor{
     }
 
     void register(TCPServer server) throws IOException{
-        if(server.selectable.keyFor(selector)==null){
-            server.selectable.register(selector, OP_ACCEPT, server);
+        ServerSocketChannel selectable = server.selectable(this);
+        if(selectable.keyFor(selector)==null){
+            selectable.register(selector, OP_ACCEPT, server);
             servers.add(server);
             if(DEBUG)
                 println(server+".register");
@@ -147,7 +285,7 @@ public class Reactor{
         if(DEBUG)
             println(server+".unregister");
         servers.remove(server);
-        SelectionKey key = server.selectable.keyFor(selector);
+        SelectionKey key = server.selectable(this).keyFor(selector);
         if(key!=null && key.isValid())
             key.cancel();
     }
@@ -164,11 +302,36 @@ public class Reactor{
 
     /*-------------------------------------------------[ Tasks ]---------------------------------------------------*/
 
-    private volatile Deque<Runnable> tasks = new ArrayDeque<>();
+    private final MPSCQueue<Runnable> tasks = new MPSCQueue<>();
+
+    // true only while reactor thread is blocked in select
+    private final AtomicBoolean selecting = new AtomicBoolean();
 
-    public synchronized void invokeLater(Runnable task){
-        tasks.push(task);
-        selector.wakeup();
+    /**
+     * tasks are run in the order they are submitted.
+     * selector is woken up only if reactor thread is blocked in select
+     */
+    public void invokeLater(Runnable task){
+        tasks.offer(task);
+        if(selecting.compareAndSet(true, false))
+            selector.wakeup();
+    }
+
+    // set before final drain of tasks, under stopLock
+    private boolean stopped;
+    private final Object stopLock = new Object();
+
+    /**
+     * like invokeLater, but returns false if this reactor has stopped,
+     * in which case task would never run. returns true, if task is guaranteed to run
+     */
+    boolean handOff(Runnable task){
+        synchronized(stopLock){
+            if(stopped)
+                return false;
+            invokeLater(task);
+            return true;
+        }
     }
 
     public void invokeAndWait(Runnable task) throws InterruptedException{
@@ -183,6 +346,44 @@ public class Reactor{
         }
     }
 
+    /*-------------------------------------------------[ Scheduled Tasks ]---------------------------------------------------*/
+
+    /** timer entry, which runs task when it times out */
+    private static final class ScheduledTask extends NBChannel{
+        private final Runnable task;
+
+        ScheduledTask(Reactor reactor, Runnable task){
+            super(reactor);
+            this.task = task;
+        }
+
+        @Override
+        protected void process(boolean timeout){
+            task.run();
+        }
+
+        @Override
+        public boolean isOpen(){
+            return timerIndex!=-1;
+        }
+
+        @Override
+        public void shutdown(){}
+    }
+
+    /**
+     * runs given task in reactor thread, after given delay in milliseconds.
+     * it is tracked by the same timer as io timeouts, so it shares their precision
+     */
+    public void schedule(Runnable task, long delay){
+        if(Reactor.current()!=this)
+            invokeLater(() -> schedule(task, delay));
+        else if(delay<=0)
+            invokeLater(task);
+        else
+            startTimer(new ScheduledTask(this, task), delay);
+    }
+
     /*-------------------------------------------------[ wakeupList ]---------------------------------------------------*/
 
     private NBStream wakeupHead;
@@ -225,7 +426,7 @@ public class Reactor{
         public void run(){
             final Selector selector = reactor.selector;
             final TimeoutTracker timeoutTracker = reactor.timeoutTracker;
-            Deque<Runnable> tempTasks = new ArrayDeque<>();
+            final int taskBatchSize = Defaults.TASK_BATCH_SIZE;
             NBChannel nbChannel;
             NBStream nbStream;
 
@@ -234,7 +435,7 @@ public class Reactor{
                     nbStream = wakeupHead;
                     wakeupHead = null;
                     while(nbStream!=null){
-                        if(nbStream.heapIndex!=-1)
+                        if(nbStream.timerIndex!=-1)
                             timeoutTracker.stopTimer(nbStream);
                         activeChannel = nbStream;
                         try{
@@ -248,34 +449,42 @@ public class Reactor{
                     }
                 }
 
-                // run tasks
-                while(!tasks.isEmpty()){
-                    synchronized(this){
-                        Deque<Runnable> temp = tasks;
-                        tasks = tempTasks;
-                        tempTasks = temp;
-                    }
-                    while(!tempTasks.isEmpty()){
-                        activeChannel = null;
-                        if(DEBUG)
-                            enter("runTask");
-                        try{
-                            tempTasks.pop().run();
-                        }catch(Throwable thr){
-                            handleException(thr);
-                        }
-                        if(DEBUG)
-                            exit();
+                // run tasks, at most taskBatchSize so that io is not starved
+                Runnable task;
+                for(int i=0; i<taskBatchSize && (task=tasks.poll())!=null; i++){
+                    activeChannel = null;
+                    if(DEBUG)
+                        enter("runTask");
+                    try{
+                        task.run();
+                    }catch(Throwable thr){
+                        handleException(thr);
                     }
+                    if(DEBUG)
+                        exit();
                 }
 
                 if(shutdown && servers.size()==0 && connected==0 && connectionPending==0 && accepted==0){
                     try{
                         selector.close();
                         Management.unregister(objName);
+                        Management.unregister(allocatorObjName);
+                        Management.unregister(poolObjName);
                     }catch(Throwable thr){
                         handleException(thr);
                     }
+                    // tasks submitted meanwhile, for example connections handed off by other reactors.
+                    // hand-offs after this are refused
+                    synchronized(stopLock){
+                        stopped = true;
+                    }
+                    while((task=tasks.poll())!=null){
+                        try{
+                            task.run();
+                        }catch(Throwable thr){
+                            handleException(thr);
+                        }
+                    }
                     return;
                 }
 
@@ -286,9 +495,15 @@ public class Reactor{
                 try{
                     if(IO)
                         enter("select("+selectTimeout+")");
-                    selected = selector.select(selectTimeout);
+                    selecting.set(true);
+                    if(tasks.isEmpty() && wakeupHead==null)
+                        selected = selector.select(selectTimeout);
+                    else
+                        selected = selector.selectNow();
                 }catch(IOException ex){
                     handleException(ex);
+                }finally{
+                    selecting.set(false);
                 }
                 if(tracking)
                     timeoutTracker.time = System.currentTimeMillis();
@@ -297,7 +512,7 @@ public class Reactor{
                     for(SelectionKey key: selectedKeys){
                         if(key.isValid()){
                             nbChannel = (NBChannel)key.attachment();
-                            if(nbChannel.heapIndex!=-1)
+                            if(nbChannel.timerIndex!=-1)
                                 timeoutTracker.stopTimer(nbChannel);
                             activeChannel = nbChannel;
                             try{
@@ -317,8 +532,7 @@ public class Reactor{
                         if(nbChannel instanceof Connection && ((Connection)nbChannel).poolNext!=null){
                             if(IO)
                                 println(nbChannel+".poolTimeout");
-                            connectionPool.remove((Connection)nbChannel);
-                            nbChannel.close();
+                            connectionPool.evict((Connection)nbChannel);
                         }else{
                             try{
                                 nbChannel.process(true);
@@ -341,7 +555,7 @@ public class Reactor{
 
     /*-------------------------------------------------[ Timeout ]---------------------------------------------------*/
 
-    private TimeoutTracker timeoutTracker = new TimeoutTracker();
+    private final TimeoutTracker timeoutTracker;
     void startTimer(NBChannel channel, long timeout){
         if(timeout>0)
             timeoutTracker.startTimer(channel, timeout);
@@ -351,59 +565,13 @@ public class Reactor{
         timeoutTracker.stopTimer(channel);
     }
 
-    private final class TimeoutTracker{
-        private final Heap<NBChannel> heap = new Heap<NBChannel>(1000){
-            @Override
-            protected void setIndex(NBChannel channel, int index){
-                channel.heapIndex = index;
-            }
-
-            @Override
-            protected int compare(NBChannel channel1, NBChannel channel2){
-                return channel1.timeoutAt<channel2.timeoutAt ? -1 : (channel1.timeoutAt==channel2.timeoutAt?0:+1);
-            }
-        };
-
-        public boolean isTracking(){
-            return heap.size()>0;
-        }
-
-        public void startTimer(NBChannel channel, long timeout){
-            if(channel.heapIndex!=-1)
-                stopTimer(channel);
-            if(timeout>0){
-                channel.timeoutAt = System.currentTimeMillis() + timeout;
-                heap.add(channel);
-            }
-        }
-
-        public void stopTimer(NBChannel channel){
-            assert channel.heapIndex!=-1;
-            NBChannel removed = heap.removeAt(channel.heapIndex);
-            assert removed==channel;
-            assert channel.heapIndex==-1;
-            channel.timeoutAt = Long.MAX_VALUE;
-        }
-
-        long time;
-        public NBChannel next(){
-            NBChannel root = heap.root();
-            if(root!=null && root.timeoutAt<time){
-                assert root.heapIndex==0;
-                heap.removeAt(0);
-                return root;
-            }else
-                return null;
-        }
+    /*-------------------------------------------------[ Shutdown ]---------------------------------------------------*/
 
-        public long waitTime(){
-            return heap.size()==0 ? 0L : Math.max(1000L, heap.root().timeoutAt-System.currentTimeMillis());
-        }
+    private volatile boolean shutdown;
+    boolean isShutdown(){
+        return shutdown;
     }
 
-    /*-------------------------------------------------[ Shutdown ]---------------------------------------------------*/
-
-    private boolean shutdown;
     void shutdown(boolean force){
         if(!shutdown){
             shutdown = true;
@@ -427,6 +595,21 @@ public class Reactor{
         }
     }
 
+    /*-------------------------------------------------[ Defaults ]---------------------------------------------------*/
+
+    public static class Defaults{
+        /**
+         * when true, timeouts are tracked using hierarchical hashed timing wheel
+         * giving O(1) start/stop at the cost of expiring with TIMING_WHEEL_TICK
+         * granularity. otherwise binary heap is used
+         */
+        public static boolean USE_TIMING_WHEEL = false;
+        public static long TIMING_WHEEL_TICK = 100;
+
+        /** maximum number of tasks run before checking for io again */
+        public static int TASK_BATCH_SIZE = 1024;
+    }
+
     /*-------------------------------------------------[ Misc ]---------------------------------------------------*/
 
     private StringBuilder builder = new StringBuilder(500);
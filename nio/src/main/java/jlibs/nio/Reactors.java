@@ -97,30 +97,67 @@ public class Reactors{
             reactor.invokeLater(() -> reactor.shutdown(force));
     }
 
+    /**
+     * pool with separate deque for each reactor, so that no synchronization
+     * is needed. items allocated/freed outside reactor threads are not pooled
+     */
     public static class Pool<T>{
-        private Deque<T> dqs[];
+        private volatile Deque<T> dqs[];
         private Supplier<T> supplier;
 
-        @SuppressWarnings("unchecked")
-        public Pool(Supplier<T> supplier){
-            dqs = new Deque[reactors.size()];
-            for(int i=0; i<dqs.length; i++)
-                dqs[i] = new ArrayDeque<>();
+        /** maximum number of items pooled per reactor */
+        public int maxSize;
+
+        public Pool(Supplier<T> supplier, int maxSize){
             this.supplier = supplier;
+            this.maxSize = maxSize;
+        }
+
+        public Pool(Supplier<T> supplier){
+            this(supplier, Integer.MAX_VALUE);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Deque<T> deque(){
+            Reactor reactor = Reactor.current();
+            if(reactor==null)
+                return null;
+            Deque<T> dqs[] = this.dqs;
+            if(dqs==null){
+                synchronized(this){
+                    dqs = this.dqs;
+                    if(dqs==null){
+                        dqs = new Deque[reactors.size()];
+                        for(int i=0; i<dqs.length; i++)
+                            dqs[i] = new ArrayDeque<>();
+                        this.dqs = dqs;
+                    }
+                }
+            }
+            return dqs[reactor.id];
         }
 
         public T allocate(){
-            Deque<T> dq = dqs[Reactor.current().id];
-            if(dq.isEmpty())
+            Deque<T> dq = deque();
+            if(dq==null || dq.isEmpty())
                 return supplier.get();
             else
                 return dq.pop();
         }
 
-        public void free(T item){
-
-            Deque<T> dq = dqs[Reactor.current().id];
+        /** returns false if item is not pooled */
+        public boolean free(T item){
+            Deque<T> dq = deque();
+            if(dq==null || dq.size()>=maxSize)
+                return false;
             dq.push(item);
+            return true;
+        }
+
+        /** returns number of items pooled for current reactor */
+        public int size(){
+            Deque<T> dq = deque();
+            return dq==null ? 0 : dq.size();
         }
     }
 }
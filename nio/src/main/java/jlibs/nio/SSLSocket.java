@@ -18,7 +18,9 @@ package jlibs.nio;
 import jlibs.nio.http.expr.Bean;
 import jlibs.nio.http.expr.UnresolvedException;
 import jlibs.nio.http.expr.ValueMap;
+import jlibs.nio.util.BufferAllocator;
 import jlibs.nio.util.Buffers;
+import jlibs.nio.util.Histogram;
 import jlibs.nio.util.NIOUtil;
 
 import javax.net.ssl.*;
@@ -27,6 +29,12 @@ import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import static java.nio.channels.SelectionKey.OP_READ;
 import static java.nio.channels.SelectionKey.OP_WRITE;
@@ -45,7 +53,10 @@ public final class SSLSocket implements Transport, Bean{
     private final Output peerOut;
     private final SSLEngine engine;
 
+    // buffers are borrowed from reactor's allocator only while they hold data,
+    // so that idle connections do not pin any buffers
     private final int packetBufferSize;
+    private final int appBufferSize;
     private ByteBuffer peerReadBuffer;
     private ByteBuffer peerWriteBuffer;
 
@@ -68,12 +79,8 @@ public final class SSLSocket implements Transport, Bean{
         SSLSession session = engine.getSession();
 
         packetBufferSize = session.getPacketBufferSize();
-        peerWriteBuffer = Reactor.current().allocator.allocate(2*packetBufferSize);
-        peerWriteBuffer.position(peerWriteBuffer.limit());
-
-        ByteBuffer appReadBuffer =  Reactor.current().allocator.allocate(session.getApplicationBufferSize());
-        appReadBuffer.position(appReadBuffer.limit());
-        appReadBuffers = new ByteBuffer[]{ null, appReadBuffer };
+        appBufferSize = session.getApplicationBufferSize();
+        appReadBuffers = new ByteBuffer[]{ null, EMPTY_BUFFER };
         appReadBuffersOffset = 1;
 
         if(IO){
@@ -82,6 +89,7 @@ public final class SSLSocket implements Transport, Bean{
                     " packetBufferSize: "+session.getPacketBufferSize() +
                     " handshakeStatus: "+engine.getHandshakeStatus());
         }
+        handshakeStart = System.nanoTime();
         engine.beginHandshake();
         selfInterests = engine.getHandshakeStatus()==NEED_UNWRAP ? OP_READ : OP_WRITE;
     }
@@ -95,12 +103,16 @@ public final class SSLSocket implements Transport, Bean{
     private boolean unwrapUnderflow;
     @Trace(condition=IO, args="$1")
     private void run(SSLEngineResult.HandshakeStatus handshakeStatus) throws IOException{
+        if(tasksRunning)
+            return;
         assert handshakeStatus==engine.getHandshakeStatus() || engine.getHandshakeStatus()==NOT_HANDSHAKING;
         selfInterests = 0;
         appRead = appWrote = 0;
         while(!engine.isOutboundDone()){
             switch(handshakeStatus){
                 case NEED_TASK:
+                    if(TASK_EXECUTOR!=null && runTasks(TASK_EXECUTOR))
+                        return;
                     Runnable task;
                     while((task=engine.getDelegatedTask())!=null)
                         task.run();
@@ -108,10 +120,9 @@ public final class SSLSocket implements Transport, Bean{
                     break;
                 case NEED_WRAP:
                     if(peerWriteBuffer==null){
-                        if(peerReadBuffer.hasRemaining()){
-                            peerWriteBuffer = Reactor.current().allocator.allocate(2*packetBufferSize);
-                            peerWriteBuffer.position(peerWriteBuffer.limit());
-                        }else{
+                        if(peerReadBuffer==null || peerReadBuffer.hasRemaining())
+                            peerWriteBuffer = allocatePeerBuffer();
+                        else{
                             peerWriteBuffer = peerReadBuffer;
                             peerReadBuffer = null;
                         }
@@ -133,6 +144,8 @@ public final class SSLSocket implements Transport, Bean{
                     try{
                         SSLEngineResult result = engine.wrap(appWriteBuffers.array, appWriteBuffers.offset, appWriteBuffers.length, peerWriteBuffer);
                         if(IO) println(result);
+                        if(result.getHandshakeStatus()==FINISHED)
+                            handshakeFinished();
                         assert result.getStatus()!=BUFFER_UNDERFLOW;
                         assert result.getStatus()==OK || (result.getStatus()==CLOSED && engine.isOutboundDone());
                         appWrote += result.bytesConsumed();
@@ -145,8 +158,12 @@ public final class SSLSocket implements Transport, Bean{
                     if(!writePendingToPeer())
                         return;
                     if(peerReadBuffer==null){
-                        peerReadBuffer = peerWriteBuffer;
-                        peerWriteBuffer = null;
+                        if(peerWriteBuffer==null)
+                            peerReadBuffer = allocatePeerBuffer();
+                        else{
+                            peerReadBuffer = peerWriteBuffer;
+                            peerWriteBuffer = null;
+                        }
                     }
                     while(true){
                         if(!peerReadBuffer.hasRemaining() || unwrapUnderflow){
@@ -173,10 +190,14 @@ public final class SSLSocket implements Transport, Bean{
                         ByteBuffer appReadBuffer = appReadBuffers[appReadBuffers.length-1];
                         if(appReadBuffer.hasRemaining())
                             return;
+                        if(appReadBuffer==EMPTY_BUFFER)
+                            appReadBuffers[appReadBuffers.length-1] = appReadBuffer = Reactor.current().allocator.allocate(appBufferSize);
                         appReadBuffer.clear();
                         try{
                             SSLEngineResult result = engine.unwrap(peerReadBuffer, appReadBuffers, appReadBuffersOffset, appReadBuffers.length-appReadBuffersOffset);
                             if(IO) println(result);
+                            if(result.getHandshakeStatus()==FINISHED)
+                                handshakeFinished();
                             if(result.getStatus()==BUFFER_UNDERFLOW)
                                 unwrapUnderflow = true;
                             else{
@@ -200,7 +221,9 @@ public final class SSLSocket implements Transport, Bean{
                 case FINISHED:
                 case NOT_HANDSHAKING:
                     if(open){
-                        if(appRead==0 && appReadBuffersOffset!=appReadBuffers.length-1)
+                        // once inbound is done, unwrap produces nothing. when peer closed without
+                        // close_notify outbound is still open (tls 1.3), so unwrapping again would spin
+                        if(appRead==0 && appReadBuffersOffset!=appReadBuffers.length-1 && !engine.isInboundDone())
                             handshakeStatus = NEED_UNWRAP;
                         else if(appWrote==0 && appWriteBuffers.peekLast()!=EMPTY_BUFFER)
                             handshakeStatus = NEED_WRAP;
@@ -216,6 +239,150 @@ public final class SSLSocket implements Transport, Bean{
         }
     }
 
+    /*-------------------------------------------------[ Delegated-Tasks ]---------------------------------------------------*/
+
+    /**
+     * executor on which SSLEngine's delegated tasks are run, so that cpu heavy
+     * handshake work does not stall other connections of the reactor.
+     * null runs them on reactor thread. see {@link #newTaskExecutor(int, int)}
+     */
+    public static Executor TASK_EXECUTOR;
+
+    /**
+     * creates thread pool with given number of daemon threads, which can queue
+     * at most queueSize handshakes. when queue is full, delegated tasks are run
+     * on reactor thread
+     */
+    public static ExecutorService newTaskExecutor(int threads, int queueSize){
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+            Thread thread = new Thread(runnable, "SSLTask"+count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static final int TASKS_RUNNING = 0x100;
+    private boolean tasksRunning;
+
+    // returns false, if tasks are not submitted to executor
+    private boolean runTasks(Executor executor){
+        List<Runnable> tasks = new ArrayList<>(2);
+        Runnable task;
+        while((task=engine.getDelegatedTask())!=null)
+            tasks.add(task);
+        if(tasks.isEmpty())
+            return false;
+
+        Reactor reactor = Reactor.current();
+        QUEUED_TASKS.incrementAndGet();
+        try{
+            executor.execute(() -> {
+                QUEUED_TASKS.decrementAndGet();
+                try{
+                    for(Runnable t: tasks)
+                        t.run();
+                }finally{
+                    reactor.invokeLater(this::tasksFinished);
+                }
+            });
+        }catch(RejectedExecutionException ex){
+            QUEUED_TASKS.decrementAndGet();
+            for(Runnable t: tasks)
+                t.run();
+            return false;
+        }
+        DELEGATED_TASKS.increment();
+        tasksRunning = true;
+        selfInterests = TASKS_RUNNING;
+        return true;
+    }
+
+    private void tasksFinished(){
+        tasksRunning = false;
+        if(IO)
+            println(this+".tasksFinished()");
+        // interests registered while tasks were running are waiting for us
+        boolean readInterested = transportIn.peekInInterested;
+        boolean writeInterested = transportOut.peekOutInterested;
+        if(readInterested || !writeInterested)
+            transportIn.wakeupReader();
+        if(writeInterested)
+            transportOut.wakeupWriter();
+    }
+
+    /*-------------------------------------------------[ Metrics ]---------------------------------------------------*/
+
+    private static final LongAdder DELEGATED_TASKS = new LongAdder();
+    private static final AtomicInteger QUEUED_TASKS = new AtomicInteger();
+    private static final Histogram HANDSHAKE_TIMES = new Histogram(1, 2, 5, 10, 20, 50, 100, 200, 500, 1000);
+
+    private long handshakeStart;
+    private void handshakeFinished(){
+        if(handshakeStart!=0){
+            HANDSHAKE_TIMES.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-handshakeStart));
+            handshakeStart = 0;
+        }
+    }
+
+    static{
+        Management.register(new Management.SSLMXBean(){
+            @Override
+            public long getHandshakes(){
+                return HANDSHAKE_TIMES.getCount();
+            }
+
+            @Override
+            public long getHandshakeTime(){
+                return HANDSHAKE_TIMES.getTotal();
+            }
+
+            @Override
+            public Map<String, Long> getHandshakeTimes(){
+                return HANDSHAKE_TIMES.toMap();
+            }
+
+            @Override
+            public long getDelegatedTasks(){
+                return DELEGATED_TASKS.sum();
+            }
+
+            @Override
+            public int getQueuedTasks(){
+                return QUEUED_TASKS.get();
+            }
+        }, "jlibs.nio:type=SSL");
+    }
+
+    /*-------------------------------------------------[ Buffers ]---------------------------------------------------*/
+
+    private ByteBuffer allocatePeerBuffer(){
+        ByteBuffer buffer = Reactor.current().allocator.allocate(2*packetBufferSize);
+        buffer.position(buffer.limit());
+        return buffer;
+    }
+
+    /** returns buffers which hold no data, to reactor's allocator */
+    private void releaseBuffers(){
+        if(!open)
+            return;
+        BufferAllocator allocator = Reactor.current().allocator;
+        if(peerReadBuffer!=null && !peerReadBuffer.hasRemaining()){
+            allocator.free(peerReadBuffer);
+            peerReadBuffer = null;
+            unwrapUnderflow = false;
+        }
+        if(peerWriteBuffer!=null && !peerWriteBuffer.hasRemaining()){
+            allocator.free(peerWriteBuffer);
+            peerWriteBuffer = null;
+        }
+        ByteBuffer appReadBuffer = appReadBuffers[appReadBuffers.length-1];
+        if(appReadBuffer!=EMPTY_BUFFER && !appReadBuffer.hasRemaining()){
+            allocator.free(appReadBuffer);
+            appReadBuffers[appReadBuffers.length-1] = EMPTY_BUFFER;
+        }
+    }
+
     private boolean writePendingToPeer() throws IOException{
         if(peerWriteBuffer!=null && peerWriteBuffer.hasRemaining()){
             do{
@@ -234,6 +401,8 @@ public final class SSLSocket implements Transport, Bean{
     public void addReadInterest(){
         if(transportIn.peekIn==this)
             transportIn.peekInInterested = true;
+        if(tasksRunning)
+            return;
         if(appReadBuffers[appReadBuffers.length-1].hasRemaining()
                 || engine.isInboundDone()
                 || (peerReadBuffer!=null && peerReadBuffer.hasRemaining() && !unwrapUnderflow))
@@ -252,6 +421,14 @@ public final class SSLSocket implements Transport, Bean{
 
     @Override
     public int read(ByteBuffer dst) throws IOException{
+        try{
+            return doRead(dst);
+        }finally{
+            releaseBuffers();
+        }
+    }
+
+    private int doRead(ByteBuffer dst) throws IOException{
         if(!isOpen())
             throw new ClosedChannelException();
         if(selfInterests!=0){
@@ -277,8 +454,10 @@ public final class SSLSocket implements Transport, Bean{
             if(appRead==0 && engine.isInboundDone()){
                 eof = true;
                 return -1;
-            }else
-                return (int)appRead;
+            }else{
+                // exclude bytes unwrapped into appReadBuffer, which are not yet given to caller
+                return (int)(appRead-appReadBuffers[appReadBuffers.length-1].remaining());
+            }
         }finally{
             appReadBuffers[appReadBuffersOffset++] = null;
         }
@@ -291,6 +470,14 @@ public final class SSLSocket implements Transport, Bean{
 
     @Override
     public long read(ByteBuffer[] dsts, int offset, int length) throws IOException{
+        try{
+            return doRead(dsts, offset, length);
+        }finally{
+            releaseBuffers();
+        }
+    }
+
+    private long doRead(ByteBuffer[] dsts, int offset, int length) throws IOException{
         if(!isOpen())
             throw new ClosedChannelException();
         if(selfInterests!=0){
@@ -329,8 +516,10 @@ public final class SSLSocket implements Transport, Bean{
             if(appRead==0 && engine.isInboundDone()){
                 eof = true;
                 return -1;
-            }else
-                return appRead;
+            }else{
+                // exclude bytes unwrapped into appReadBuffer, which are not yet given to caller
+                return appRead-appReadBuffers[appReadBuffers.length-1].remaining();
+            }
         }finally{
             for(int i=0; i<length; i++)
                 appReadBuffers[appReadBuffersOffset++] = null;
@@ -363,6 +552,8 @@ public final class SSLSocket implements Transport, Bean{
     public void addWriteInterest(){
         if(transportOut.peekOut==this)
             transportOut.peekOutInterested = true;
+        if(tasksRunning)
+            return;
         if(engine.isOutboundDone())
             transportOut.wakeupWriter();
         else{
@@ -379,6 +570,14 @@ public final class SSLSocket implements Transport, Bean{
 
     @Override
     public int write(ByteBuffer src) throws IOException{
+        try{
+            return doWrite(src);
+        }finally{
+            releaseBuffers();
+        }
+    }
+
+    private int doWrite(ByteBuffer src) throws IOException{
         if(!isOpen())
             throw new ClosedChannelException();
         if(selfInterests!=0){
@@ -408,6 +607,14 @@ public final class SSLSocket implements Transport, Bean{
 
     @Override
     public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+        try{
+            return doWrite(srcs, offset, length);
+        }finally{
+            releaseBuffers();
+        }
+    }
+
+    private long doWrite(ByteBuffer[] srcs, int offset, int length) throws IOException{
         if(!isOpen())
             throw new ClosedChannelException();
         if(selfInterests!=0){
@@ -442,6 +649,14 @@ public final class SSLSocket implements Transport, Bean{
 
     @Override
     public boolean flush() throws IOException{
+        try{
+            return doFlush();
+        }finally{
+            releaseBuffers();
+        }
+    }
+
+    private boolean doFlush() throws IOException{
         if(peerIn.isOpen() && peerOut.isOpen()){
             if(selfInterests!=0){
                 run(engine.getHandshakeStatus());
@@ -459,7 +674,8 @@ public final class SSLSocket implements Transport, Bean{
                     Reactor.current().allocator.free(peerWriteBuffer);
                     peerWriteBuffer = null;
                 }
-                Reactor.current().allocator.free(appReadBuffers[appReadBuffers.length-1]);
+                if(appReadBuffers[appReadBuffers.length-1]!=EMPTY_BUFFER)
+                    Reactor.current().allocator.free(appReadBuffers[appReadBuffers.length-1]);
                 appReadBuffers[appReadBuffers.length-1] = null;
                 try{
                     peerIn.close();
@@ -38,7 +38,7 @@ public final class Socket implements Transport{
     }
 
     private final NBStream channel;
-    protected final SelectionKey selectionKey;
+    SelectionKey selectionKey;
 
     public Socket(NBStream channel, SelectionKey selectionKey){
         this.channel = channel;
@@ -245,7 +245,8 @@ public final class Socket implements Transport{
                     }catch(Throwable thr){
                         channel.reactor.handleException(thr);
                     }
-                }
+                }else // still registered, for reader other than writer
+                    peekInInterested = true;
             }
 
             if(channel.isOpen() && peekSinkInterested){
@@ -263,7 +264,8 @@ public final class Socket implements Transport{
                     }catch(Throwable thr){
                         channel.reactor.handleException(thr);
                     }
-                }
+                }else // still registered, for writer other than reader
+                    peekOutInterested = true;
             }
         }finally{
             if(channel.isOpen()){
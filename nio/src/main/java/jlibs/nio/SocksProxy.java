@@ -20,7 +20,7 @@ import jlibs.nio.listeners.Socks4Tunnel;
 import jlibs.nio.listeners.Socks5Tunnel;
 import jlibs.nio.listeners.Task;
 
-import javax.net.ssl.SSLEngine;
+import java.net.InetSocketAddress;
 import java.util.function.Consumer;
 
 /**
@@ -57,12 +57,25 @@ public class SocksProxy extends Proxy{
                 listener.accept(result);
                 return;
             }
+            DNSResolver.resolve(endpoint.host, addresses -> {
+                InetSocketAddress address;
+                try{
+                    address = new InetSocketAddress(addresses.get()[0], endpoint.port);
+                }catch(Throwable thr){
+                    // socks5 lets proxy resolve it
+                    address = InetSocketAddress.createUnresolved(endpoint.host, endpoint.port);
+                }
+                startTunnel(con, address);
+            });
+        }
+
+        private void startTunnel(Connection con, InetSocketAddress address){
             try{
                 Task task;
                 if(version==4)
-                    task = new Socks4Tunnel(user, endpoint.socketAddress());
+                    task = new Socks4Tunnel(user, address);
                 else
-                    task = new Socks5Tunnel(user, password, endpoint.socketAddress());
+                    task = new Socks5Tunnel(user, password, address);
                 new IOListener().setCallback(this, con).start(task, con);
             }catch(Throwable thr){
                 con.close();
@@ -75,9 +88,7 @@ public class SocksProxy extends Proxy{
             if(thr==null){
                 try{
                     if(endpoint.sslContext!=null){
-                        SSLEngine engine = endpoint.sslContext.createSSLEngine();
-                        engine.setUseClientMode(true);
-                        new SSLSocket(con.in(), con.out(), engine);
+                        new SSLSocket(con.in(), con.out(), endpoint.createSSLEngine(true));
                     }
                 }catch(Throwable thr1){
                     con.close();
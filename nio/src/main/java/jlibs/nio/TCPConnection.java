@@ -82,14 +82,39 @@ public class TCPConnection extends Connection<SocketChannel>{
 
     @Override
     void closing(){
-        if(server==null)
+        if(server==null){
             --reactor.connected;
-        else{
+            if(poolKey!=null)
+                reactor.connectionPool.closed(this);
+        }else{
             --reactor.accepted;
-            server.accepted.decrementAndGet();
+            server.closed(this);
         }
     }
 
+    /** called in current reactor, before moving this idle connection to other reactor */
+    void detach(){
+        selectionKey.cancel();
+        --reactor.connected;
+    }
+
+    /**
+     * called in new reactor, after {@link #detach()}. if registration fails,
+     * this connection is neither counted nor moved to new reactor
+     */
+    void attach() throws IOException{
+        Reactor current = Reactor.current();
+        selectionKey = selectable.register(current.selector, 0, this);
+        reactor = current;
+        transport.selectionKey = selectionKey;
+        ++reactor.connected;
+        workingFor = reactor.getExecutionOwner();
+        if(workingFor==null)
+            workingFor = this;
+        executionID = null;
+        makeActive();
+    }
+
     @Override
     public void shutdown(){
         try{
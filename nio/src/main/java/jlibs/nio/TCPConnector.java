@@ -16,11 +16,11 @@
 package jlibs.nio;
 
 import java.io.IOException;
-import java.net.ConnectException;
-import java.net.InetSocketAddress;
-import java.net.SocketAddress;
+import java.net.*;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 import static java.nio.channels.SelectionKey.OP_CONNECT;
 import static jlibs.nio.Debugger.DEBUG;
@@ -79,11 +79,17 @@ public class TCPConnector extends NBChannel<SocketChannel>{
     public TCPConnection getTCPConnection() throws IOException{
         if(connectError!=null)
             throw connectError;
+        pending = false;
         return new TCPConnection(id, selectable, selectionKey);
     }
 
     @Override
     protected void process(boolean timeout){
+        if(timeout && race!=null && race.attemptDelay(this)){
+            if(SO_TIMEOUT>0)
+                reactor.startTimer(this, SO_TIMEOUT);
+            return;
+        }
         boolean notify;
         try{
             if(timeout)
@@ -108,12 +114,19 @@ public class TCPConnector extends NBChannel<SocketChannel>{
         }
     }
 
+    // channel is closed by jdk when connect fails, so isOpen can't be used
+    private boolean pending = true;
+
     @Override
     public void shutdown(){
-        if(isOpen()){
+        if(timerIndex!=-1)
+            reactor.stopTimer(this);
+        if(pending){
+            pending = false;
             --reactor.connectionPending;
-            super.shutdown();
         }
+        if(isOpen())
+            super.shutdown();
     }
 
     @Override
@@ -133,7 +146,126 @@ public class TCPConnector extends NBChannel<SocketChannel>{
         return buf.toString();
     }
 
+    /*-------------------------------------------------[ Happy Eyeballs ]---------------------------------------------------*/
+
+    /**
+     * connects to one of the given addresses, racing IPv4 and IPv6 addresses
+     * happy eyeballs style (RFC 6555).
+     * <p>
+     * addresses are tried alternating address families. if an attempt does not
+     * complete within {@link #CONNECTION_ATTEMPT_DELAY}, next attempt is started
+     * without cancelling the earlier. the first attempt that succeeds wins and others
+     * are closed. if all attempts fail, listener is notified with last failed connector.
+     */
+    public static void connect(InetAddress addresses[], int port, Listener listener) throws IOException{
+        if(addresses.length==1)
+            new TCPConnector().connect(new InetSocketAddress(addresses[0], port), listener);
+        else
+            new Race(addresses, port, listener).attempt();
+    }
+
+    private Race race;
+    private static class Race implements Listener{
+        private final InetAddress addresses[];
+        private final int port;
+        private final Listener listener;
+        private int next;
+        private final List<TCPConnector> attempts = new ArrayList<>();
+        private final List<TCPConnector> delayed = new ArrayList<>();
+        private boolean done;
+
+        Race(InetAddress addresses[], int port, Listener listener){
+            this.addresses = interleave(addresses);
+            this.port = port;
+            this.listener = listener;
+        }
+
+        private static InetAddress[] interleave(InetAddress addresses[]){
+            List<InetAddress> first = new ArrayList<>();
+            List<InetAddress> second = new ArrayList<>();
+            Class<?> family = addresses[0].getClass();
+            for(InetAddress address: addresses)
+                (address.getClass()==family ? first : second).add(address);
+            InetAddress result[] = new InetAddress[addresses.length];
+            int i = 0;
+            for(int f=0, s=0; f<first.size() || s<second.size();){
+                if(f<first.size())
+                    result[i++] = first.get(f++);
+                if(s<second.size())
+                    result[i++] = second.get(s++);
+            }
+            return result;
+        }
+
+        void attempt() throws IOException{
+            TCPConnector connector = new TCPConnector();
+            connector.race = this;
+            attempts.add(connector);
+            InetAddress address = addresses[next++];
+            connector.connect(new InetSocketAddress(address, port), this);
+            if(!done && attempts.contains(connector) && next<addresses.length){
+                delayed.add(connector);
+                connector.reactor.startTimer(connector, CONNECTION_ATTEMPT_DELAY);
+            }
+        }
+
+        /** returns true if the timeout is attempt delay, rather than connect timeout */
+        boolean attemptDelay(TCPConnector connector){
+            if(!delayed.remove(connector))
+                return false;
+            if(DEBUG)
+                println(connector+".attemptDelayElapsed");
+            attemptNext(connector);
+            return true;
+        }
+
+        private void attemptNext(TCPConnector failed){
+            while(next<addresses.length){
+                try{
+                    attempt();
+                    return;
+                }catch(Throwable thr){
+                    failed.reactor.handleException(thr);
+                }
+            }
+            if(attempts.isEmpty() && failed.connectError!=null)
+                listener.process(failed);
+        }
+
+        @Override
+        public void process(TCPConnector connector){
+            attempts.remove(connector);
+            delayed.remove(connector);
+            if(done){
+                connector.close();
+                return;
+            }
+            if(connector.connectError==null){
+                done = true;
+                for(TCPConnector attempt: attempts)
+                    attempt.close();
+                attempts.clear();
+                delayed.clear();
+                listener.process(connector);
+            }else if(next<addresses.length || !attempts.isEmpty()){
+                if(DEBUG)
+                    println(connector+".attemptFailed: "+connector.connectError);
+                connector.close();
+                if(next<addresses.length)
+                    attemptNext(connector);
+            }else
+                listener.process(connector);
+        }
+    }
+
     /*-------------------------------------------------[ Options ]---------------------------------------------------*/
 
     public static long SO_TIMEOUT;
+
+    /**
+     * delay in millis before next address is attempted in {@link #connect(InetAddress[], int, Listener)}.
+     * when {@link Reactor.Defaults#USE_TIMING_WHEEL} is true, it is rounded up to
+     * {@link Reactor.Defaults#TIMING_WHEEL_TICK}
+     */
+    public static long CONNECTION_ATTEMPT_DELAY = 250;
 }
@@ -21,15 +21,15 @@ import jlibs.core.net.SSLUtil;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
+import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.util.function.Consumer;
 
 import static java.util.Objects.requireNonNull;
-import static jlibs.nio.Debugger.DEBUG;
-import static jlibs.nio.Debugger.println;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -76,12 +76,54 @@ public class TCPEndpoint{
             sslContext = SSLUtil.defaultContext();
     }
 
+    /**
+     * note that this may block for dns lookup, if host is
+     * not yet resolved. see {@link DNSResolver}
+     */
     public InetSocketAddress socketAddress(){
-        return new InetSocketAddress(host, port);
+        try{
+            return new InetSocketAddress(DNSResolver.resolve(host)[0], port);
+        }catch(UnknownHostException ex){
+            return InetSocketAddress.createUnresolved(host, port);
+        }
     }
 
     public SSLContext sslContext;
 
+    /** protocols offered/accepted through TLS ALPN extension, in preference order. requires java 9+ */
+    public String applicationProtocols[];
+
+    private static final Method SET_APPLICATION_PROTOCOLS;
+    static{
+        Method method = null;
+        try{
+            method = SSLParameters.class.getMethod("setApplicationProtocols", String[].class);
+        }catch(NoSuchMethodException ignore){
+            // ALPN is not supported
+        }
+        SET_APPLICATION_PROTOCOLS = method;
+    }
+
+    /**
+     * client engines are created with host and port of this endpoint as hint,
+     * so that sslContext resumes cached session for this endpoint instead of
+     * full handshake. it also sends host through SNI extension
+     */
+    public SSLEngine createSSLEngine(boolean clientMode) throws GeneralSecurityException{
+        SSLEngine engine = clientMode ? sslContext.createSSLEngine(host, port) : sslContext.createSSLEngine();
+        engine.setUseClientMode(clientMode);
+        if(applicationProtocols!=null && SET_APPLICATION_PROTOCOLS!=null){
+            SSLParameters params = engine.getSSLParameters();
+            try{
+                SET_APPLICATION_PROTOCOLS.invoke(params, (Object)applicationProtocols);
+            }catch(ReflectiveOperationException ex){
+                throw new GeneralSecurityException(ex);
+            }
+            engine.setSSLParameters(params);
+        }
+        return engine;
+    }
+
     @Override
     public final String toString(){
         return toString;
@@ -93,9 +135,7 @@ public class TCPEndpoint{
             public void accept(TCPConnection con){
                 try{
                     if(sslContext!=null){
-                        SSLEngine engine = sslContext.createSSLEngine();
-                        engine.setUseClientMode(false);
-                        new SSLSocket(con.in(), con.out(), engine);
+                        new SSLSocket(con.in(), con.out(), createSSLEngine(false));
                     }
                 }catch(Throwable thr){
                     Reactor.current().handleException(thr);
@@ -120,30 +160,7 @@ public class TCPEndpoint{
     }
 
     public void getConnection(Consumer<Result<Connection>> listener, Proxy proxy){
-        Reactor reactor = Reactor.current();
-        while(true){
-            Connection con = reactor.connectionPool.remove(toString());
-            if(con==null)
-                break;
-            ByteBuffer buffer = reactor.allocator.allocate(1);
-            int read = -1;
-            try{
-                read = con.in().read(buffer);
-            }catch(Throwable ignore){
-                // ignore.printStackTrace();
-            }
-            reactor.allocator.free(buffer);
-            assert read<=0;
-            if(read==-1){
-                if(DEBUG)
-                    println(con+".isBroken=true");
-                con.close();
-            }else{
-                listener.accept(new Result<>(con));
-                return;
-            }
-        }
-        newConnection(listener, proxy);
+        Reactor.current().connectionPool.getConnection(this, proxy, listener);
     }
 
     public void newConnection(Consumer<Result<Connection>> listener, Proxy proxy){
@@ -160,15 +177,13 @@ public class TCPEndpoint{
         }
 
         public void start(){
-            TCPConnector connector = null;
-            try{
-                connector = new TCPConnector();
-                connector.connect(socketAddress(), this);
-            }catch(Throwable thr){
-                if(connector!=null)
-                    connector.close();
-                listener.accept(new Result<>(thr));
-            }
+            DNSResolver.resolve(host, result -> {
+                try{
+                    TCPConnector.connect(result.get(), port, this);
+                }catch(Throwable thr){
+                    listener.accept(new Result<>(thr));
+                }
+            });
         }
 
         @Override
@@ -183,9 +198,7 @@ public class TCPEndpoint{
             }
             try{
                 if(sslContext!=null){
-                    SSLEngine engine = sslContext.createSSLEngine();
-                    engine.setUseClientMode(true);
-                    new SSLSocket(con.in(), con.out(), engine);
+                    new SSLSocket(con.in(), con.out(), createSSLEngine(true));
                 }
             }catch(Throwable thr){
                 con.shutdown();
@@ -19,11 +19,14 @@ import javax.management.ObjectName;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static jlibs.nio.Debugger.DEBUG;
 import static jlibs.nio.Debugger.println;
@@ -35,26 +38,87 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
     private static final AtomicInteger COUNTER = new AtomicInteger();
 
     public final long id = COUNTER.incrementAndGet();
+    public final AcceptMode acceptMode;
+
+    // used in REUSE_PORT mode: socket per reactor indexed by reactor.id
+    private final ServerSocketChannel sockets[];
+
+    // used in ROUND_ROBIN and LEAST_CONNECTIONS mode
+    private final Reactor acceptor;
+    private int nextReactor;
+    private final AtomicIntegerArray connections;
+
     public TCPServer(Listener listener) throws IOException{
+        this(listener, ACCEPT_MODE);
+    }
+
+    public TCPServer(Listener listener, AcceptMode acceptMode) throws IOException{
         super(ServerSocketChannel.open());
+        this.listener = listener;
+        uniqueID = "S"+id;
 
-        for(Reactor reactor: Reactors.get()){
-            reactor.invokeLater(() -> {
-                try{
-                    reactor.register(this);
-                }catch(IOException ex){
-                    reactor.handleException(ex);
+        List<Reactor> reactors = Reactors.get();
+        if(acceptMode==AcceptMode.REUSE_PORT && !supportsReusePort(selectable))
+            acceptMode = AcceptMode.ROUND_ROBIN;
+        this.acceptMode = acceptMode;
+
+        if(acceptMode==AcceptMode.REUSE_PORT){
+            sockets = new ServerSocketChannel[reactors.size()];
+            try{
+                for(int i=0; i<sockets.length; i++){
+                    sockets[i] = i==0 ? selectable : ServerSocketChannel.open();
+                    sockets[i].configureBlocking(false);
+                    sockets[i].setOption(SO_REUSEPORT, true);
                 }
-            });
+            }catch(IOException ex){
+                closeSockets();
+                throw ex;
+            }
+        }else
+            sockets = null;
+
+        if(acceptMode==AcceptMode.ROUND_ROBIN || acceptMode==AcceptMode.LEAST_CONNECTIONS){
+            acceptor = reactors.get(0);
+            connections = new AtomicIntegerArray(reactors.size());
+        }else{
+            acceptor = null;
+            connections = null;
         }
-        this.listener = listener;
-        uniqueID = "S"+id;
+    }
+
+    private void register(Reactor reactor){
+        reactor.invokeLater(() -> {
+            try{
+                reactor.register(this);
+            }catch(IOException ex){
+                reactor.handleException(ex);
+            }
+        });
+    }
+
+    /** returns the socket accepting connections in given reactor */
+    ServerSocketChannel selectable(Reactor reactor){
+        return sockets==null ? selectable : sockets[reactor.id];
     }
 
     private ObjectName objName;
     @Trace(condition=Debugger.DEBUG, args="$1")
     public TCPServer bind(SocketAddress local) throws IOException{
         selectable.bind(local, BACKLOG);
+        if(sockets!=null){
+            // use actual address, in case ephemeral port is requested
+            SocketAddress boundTo = selectable.getLocalAddress();
+            for(int i=1; i<sockets.length; i++)
+                sockets[i].bind(boundTo, BACKLOG);
+        }
+
+        // registered only after binding, as unbound sockets are reported acceptable
+        if(acceptor!=null)
+            register(acceptor);
+        else{
+            for(Reactor reactor: Reactors.get())
+                register(reactor);
+        }
         String boundToStr = ((InetSocketAddress)local).getHostString();
         int port = ((InetSocketAddress)local).getPort();
         objName = Management.register(new Management.ServerMXBean(){
@@ -100,26 +164,89 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
 
     @Override
     protected void process(boolean timeout){
+        Reactor reactor = Reactor.current();
         try{
-            SocketChannel socket = selectable.accept();
+            SocketChannel socket = selectable(reactor).accept();
             if(socket==null)
                 return;
-            TCPConnection connection;
-            try{
-                connection = new TCPConnection(this, socket);
-                connection.workingFor = connection;
-                if(DEBUG)
-                    println("accepted = "+connection);
-            }catch(IOException ex){
-                socket.close();
-                throw ex;
+            if(acceptor==null)
+                accepted(socket);
+            else{
+                Reactor target = nextReactor();
+                connections.incrementAndGet(target.id);
+                if(target==reactor)
+                    accepted(socket);
+                else{
+                    boolean handedOff = target.handOff(() -> {
+                        try{
+                            if(target.isShutdown())
+                                rejected(target, socket);
+                            else
+                                accepted(socket);
+                        }catch(IOException ex){
+                            target.handleException(ex);
+                        }
+                    });
+                    if(!handedOff)
+                        rejected(target, socket);
+                }
             }
-            listener.accept(connection);
         }catch(IOException ex){
-            Reactor.current().handleException(ex);
+            reactor.handleException(ex);
         }
     }
 
+    // reactors shutting down are skipped. if all are, connection is kept by acceptor
+    private Reactor nextReactor(){
+        List<Reactor> reactors = Reactors.get();
+        if(acceptMode==AcceptMode.ROUND_ROBIN){
+            for(int i=0; i<reactors.size(); i++){
+                Reactor reactor = reactors.get(nextReactor);
+                if(++nextReactor==reactors.size())
+                    nextReactor = 0;
+                if(!reactor.isShutdown())
+                    return reactor;
+            }
+        }else{
+            int min = -1;
+            for(int i=0; i<reactors.size(); i++){
+                if(!reactors.get(i).isShutdown() && (min==-1 || connections.get(i)<connections.get(min)))
+                    min = i;
+            }
+            if(min!=-1)
+                return reactors.get(min);
+        }
+        return Reactor.current();
+    }
+
+    // socket handed off to target, which started shutting down meanwhile
+    private void rejected(Reactor target, SocketChannel socket) throws IOException{
+        connections.decrementAndGet(target.id);
+        socket.close();
+    }
+
+    private void accepted(SocketChannel socket) throws IOException{
+        TCPConnection connection;
+        try{
+            connection = new TCPConnection(this, socket);
+            connection.workingFor = connection;
+            if(DEBUG)
+                println("accepted = "+connection);
+        }catch(IOException ex){
+            if(connections!=null)
+                connections.decrementAndGet(Reactor.current().id);
+            socket.close();
+            throw ex;
+        }
+        listener.accept(connection);
+    }
+
+    void closed(TCPConnection connection){
+        accepted.decrementAndGet();
+        if(connections!=null)
+            connections.decrementAndGet(connection.reactor.id);
+    }
+
     @Override
     public void close(){
         List<Reactor> reactors = Reactors.get();
@@ -139,9 +266,23 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
             // ignore
         }
         super.close();
+        closeSockets();
         Management.unregister(objName);
     }
 
+    private void closeSockets(){
+        if(sockets!=null){
+            for(int i=1; i<sockets.length; i++){
+                try{
+                    if(sockets[i]!=null)
+                        sockets[i].close();
+                }catch(IOException ex){
+                    Reactors.get().get(i).handleException(ex);
+                }
+            }
+        }
+    }
+
     @Override
     public String getExecutionID(){
         return Reactor.current().executionID+'/'+uniqueID;
@@ -159,4 +300,41 @@ public class TCPServer extends NBChannel<ServerSocketChannel>{
     /*-------------------------------------------------[ Options ]---------------------------------------------------*/
 
     public static int BACKLOG = 0;
+    public static AcceptMode ACCEPT_MODE = AcceptMode.SHARED;
+
+    public enum AcceptMode{
+        /** single listening socket registered with all reactors */
+        SHARED,
+
+        /**
+         * each reactor binds its own listening socket with SO_REUSEPORT,
+         * so that kernel balances incoming connections among reactors.
+         * falls back to ROUND_ROBIN if SO_REUSEPORT is not supported
+         */
+        REUSE_PORT,
+
+        /** first reactor accepts and hands off connections to reactors in turn */
+        ROUND_ROBIN,
+
+        /** first reactor accepts and hands off connection to reactor with least connections */
+        LEAST_CONNECTIONS
+    }
+
+    // SO_REUSEPORT is available only from java 9
+    private static final SocketOption<Boolean> SO_REUSEPORT;
+    static{
+        SocketOption<Boolean> option = null;
+        try{
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> reusePort = (SocketOption<Boolean>)StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            option = reusePort;
+        }catch(Exception ex){
+            // ignore
+        }
+        SO_REUSEPORT = option;
+    }
+
+    private static boolean supportsReusePort(ServerSocketChannel channel){
+        return SO_REUSEPORT!=null && channel.supportedOptions().contains(SO_REUSEPORT);
+    }
 }
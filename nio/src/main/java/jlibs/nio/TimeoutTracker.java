@@ -0,0 +1,39 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+/**
+ * Tracks timeouts of NBChannels registered with a Reactor.
+ * <p>
+ * All methods are called only from reactor thread.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+abstract class TimeoutTracker{
+    /** current time, updated by reactor after each select */
+    long time;
+
+    public abstract boolean isTracking();
+    public abstract void startTimer(NBChannel channel, long timeout);
+    public abstract void stopTimer(NBChannel channel);
+
+    /** returns next channel whose timeout is before {@link #time}, or null */
+    public abstract NBChannel next();
+
+    /** returns how long the reactor can block in select */
+    public abstract long waitTime();
+}
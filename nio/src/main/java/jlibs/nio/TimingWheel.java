@@ -0,0 +1,166 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+/**
+ * TimeoutTracker implemented as hierarchical hashed timing wheel.
+ * <p>
+ * Time is divided into ticks of fixed duration. There are {@link #LEVELS} wheels
+ * of {@link #SLOTS} slots each; wheel at level {@code n} covers
+ * {@code SLOTS^(n+1)} ticks. A channel is linked into the slot of the lowest
+ * wheel that can hold its deadline, and is cascaded down to lower wheels as
+ * the current tick reaches its slot. Each slot is a doubly linked list through
+ * {@link NBChannel#timerPrev}/{@link NBChannel#timerNext}, so that startTimer
+ * and stopTimer are O(1).
+ * <p>
+ * Timeouts are expired with tick granularity, i.e a channel may be
+ * reported expired up to one tick after its timeoutAt.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+final class TimingWheel extends TimeoutTracker{
+    static final int BITS = 6;
+    static final int SLOTS = 1<<BITS;
+    static final int MASK = SLOTS-1;
+    static final int LEVELS = 4;
+    static final long MAX_DELTA = (1L<<(BITS*LEVELS))-1;
+
+    private final long tickDuration;
+    private final NBChannel slots[] = new NBChannel[LEVELS*SLOTS];
+    private long tick;
+    private int size;
+
+    TimingWheel(long tickDuration){
+        if(tickDuration<=0)
+            throw new IllegalArgumentException("tickDuration: "+tickDuration);
+        this.tickDuration = tickDuration;
+    }
+
+    @Override
+    public boolean isTracking(){
+        return size>0;
+    }
+
+    @Override
+    public void startTimer(NBChannel channel, long timeout){
+        if(channel.timerIndex!=-1)
+            stopTimer(channel);
+        if(timeout>0){
+            long now = System.currentTimeMillis();
+            if(size==0)
+                tick = now/tickDuration;
+            channel.timeoutAt = now + timeout;
+            long deadline = (channel.timeoutAt+tickDuration-1)/tickDuration;
+            // slot of current tick is already expired
+            if(deadline<=tick)
+                deadline = tick+1;
+            else if(deadline-tick>MAX_DELTA)
+                deadline = tick+MAX_DELTA;
+            link(channel, deadline);
+            ++size;
+        }
+    }
+
+    @Override
+    public void stopTimer(NBChannel channel){
+        assert channel.timerIndex!=-1;
+        unlink(channel);
+        --size;
+        channel.timeoutAt = Long.MAX_VALUE;
+    }
+
+    @Override
+    public NBChannel next(){
+        while(size>0){
+            NBChannel head = slots[(int)(tick&MASK)];
+            if(head!=null){
+                unlink(head);
+                --size;
+                return head;
+            }
+            if((tick+1)*tickDuration>time)
+                return null;
+            ++tick;
+            cascade();
+        }
+        return null;
+    }
+
+    @Override
+    public long waitTime(){
+        if(size==0)
+            return 0L;
+
+        // look for non-empty slot in level 0, till next cascade
+        long next = (tick|MASK)+1;
+        for(long t=tick+1; t<next; t++){
+            if(slots[(int)(t&MASK)]!=null){
+                next = t;
+                break;
+            }
+        }
+        return Math.max(1L, next*tickDuration-System.currentTimeMillis());
+    }
+
+    private void cascade(){
+        long t = tick;
+        for(int level=1; level<LEVELS; level++){
+            if((t&MASK)!=0)
+                return;
+            t >>>= BITS;
+            int index = level*SLOTS + (int)(t&MASK);
+            NBChannel channel = slots[index];
+            slots[index] = null;
+            while(channel!=null){
+                NBChannel next = channel.timerNext;
+                long deadline = (channel.timeoutAt+tickDuration-1)/tickDuration;
+                link(channel, Math.max(deadline, tick));
+                channel = next;
+            }
+        }
+    }
+
+    private void link(NBChannel channel, long deadline){
+        long delta = deadline-tick;
+        int level = 0;
+        while(level<LEVELS-1 && delta>=(1L<<(BITS*(level+1))))
+            ++level;
+        int index = level*SLOTS + (int)((deadline>>>(BITS*level))&MASK);
+
+        NBChannel head = slots[index];
+        channel.timerPrev = null;
+        channel.timerNext = head;
+        if(head!=null)
+            head.timerPrev = channel;
+        slots[index] = channel;
+        channel.timerIndex = index;
+    }
+
+    private void unlink(NBChannel channel){
+        NBChannel prev = channel.timerPrev;
+        NBChannel next = channel.timerNext;
+        if(prev==null)
+            slots[channel.timerIndex] = next;
+        else
+            prev.timerNext = next;
+        if(next!=null)
+            next.timerPrev = prev;
+        channel.timerPrev = null;
+        channel.timerNext = null;
+        channel.timerIndex = -1;
+    }
+}
@@ -59,7 +59,7 @@ public class BufferInput extends InputFilter{
         if(src!=null){
             int read = NIOUtil.copy(src, dsts, offset, length);
             if(!src.hasRemaining()){
-                channel().reactor.allocator.free(src);
+                channel().reactor().allocator.free(src);
                 src = null;
             }
             return read;
@@ -74,7 +74,7 @@ public class BufferInput extends InputFilter{
         if(src!=null){
             int read = NIOUtil.copy(src, dst);
             if(!src.hasRemaining()){
-                channel().reactor.allocator.free(src);
+                channel().reactor().allocator.free(src);
                 src = null;
             }
             return read;
@@ -89,7 +89,7 @@ public class BufferInput extends InputFilter{
         if(src!=null){
             int wrote = NIOUtil.transfer(src, target, position, count);
             if(!src.hasRemaining()){
-                channel().reactor.allocator.free(src);
+                channel().reactor().allocator.free(src);
                 src = null;
             }
             return wrote;
@@ -99,7 +99,7 @@ public class BufferInput extends InputFilter{
 
     public void drainBuffer(){
         if(src!=null){
-            channel().reactor.allocator.free(src);
+            channel().reactor().allocator.free(src);
             src = null;
         }
     }
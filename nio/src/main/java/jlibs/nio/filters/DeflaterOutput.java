@@ -19,6 +19,7 @@ import jlibs.nio.Output;
 import jlibs.nio.OutputFilter;
 import jlibs.nio.Reactor;
 import jlibs.nio.util.NIOUtil;
+import jlibs.nio.util.ZipPool;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -32,8 +33,23 @@ public class DeflaterOutput extends OutputFilter{
     private ByteBuffer buffer;
     private ByteBuffer tmpBuffer;
 
+    // non-null, if deflater is borrowed from pool
+    private ZipPool pool;
+    private boolean nowrap;
+
     public DeflaterOutput(Output peer){
-        this(new Deflater(), peer);
+        this(peer, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public DeflaterOutput(Output peer, int level){
+        this(peer, level, false);
+    }
+
+    /** uses deflater from {@link ZipPool#current() current} pool */
+    protected DeflaterOutput(Output peer, int level, boolean nowrap){
+        this(ZipPool.current().deflater(level, nowrap), peer);
+        pool = ZipPool.current();
+        this.nowrap = nowrap;
     }
 
     public DeflaterOutput(Deflater deflater, Output peer){
@@ -117,8 +133,7 @@ public class DeflaterOutput extends OutputFilter{
                 buffer.limit(buffer.position());
                 buffer.position(0);
                 trailerAdded = true;
-                deflater.end();
-                deflater = null;
+                endDeflater();
             }
         }
 
@@ -137,11 +152,18 @@ public class DeflaterOutput extends OutputFilter{
         deflater.finish();
     }
 
+    private void endDeflater(){
+        if(pool==null)
+            deflater.end();
+        else
+            pool.free(deflater, nowrap);
+        deflater = null;
+    }
+
     @Override
     protected void detached(){
-        if(deflater!=null){
-            deflater.end();
-        }
+        if(deflater!=null)
+            endDeflater();
         if(buffer!=null){
             Reactor.current().allocator.free(buffer);
             buffer = null;
@@ -28,7 +28,7 @@ import java.util.zip.*;
  */
 public class GZIPInput extends InflaterInput{
     public GZIPInput(Input peer){
-        super(new Inflater(true), peer);
+        super(peer, true);
     }
 
     private static final int STATE_GZIP_MAGIC = 0;
@@ -187,8 +187,7 @@ public class GZIPInput extends InflaterInput{
             buffer.clear();
             readPos = 0;
         }
-        inflater.end();
-        inflater = null;
+        freeInflater();
     }
 
     private void readTrailer() throws IOException{
@@ -209,6 +208,8 @@ public class GZIPInput extends InflaterInput{
 
     @Override
     protected ByteBuffer detached(){
+        if(inflater!=null)
+            freeInflater();
         if(state!=STATE_FINISHED){
             Reactor.current().allocator.free(buffer);
             buffer = null;
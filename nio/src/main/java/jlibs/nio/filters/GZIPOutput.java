@@ -27,7 +27,11 @@ import java.util.zip.GZIPInputStream;
  */
 public class GZIPOutput extends DeflaterOutput{
     public GZIPOutput(Output peer){
-        super(new Deflater(Deflater.DEFAULT_COMPRESSION, true), peer);
+        this(peer, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public GZIPOutput(Output peer, int level){
+        super(peer, level, true);
     }
 
     private static final byte[] HEADER_BYTES = {
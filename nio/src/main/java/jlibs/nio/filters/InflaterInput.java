@@ -18,6 +18,7 @@ package jlibs.nio.filters;
 import jlibs.nio.Input;
 import jlibs.nio.InputFilter;
 import jlibs.nio.Reactor;
+import jlibs.nio.util.ZipPool;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -34,8 +35,19 @@ public class InflaterInput extends InputFilter{
     protected ByteBuffer buffer;
     private ByteBuffer tmpBuffer;
 
+    // non-null, if inflater is borrowed from pool
+    private ZipPool pool;
+    private boolean nowrap;
+
     public InflaterInput(Input peer){
-        this(new Inflater(false), peer);
+        this(peer, false);
+    }
+
+    /** uses inflater from {@link ZipPool#current() current} pool */
+    protected InflaterInput(Input peer, boolean nowrap){
+        this(ZipPool.current().inflater(nowrap), peer);
+        pool = ZipPool.current();
+        this.nowrap = nowrap;
     }
 
     protected InflaterInput(Inflater inflater, Input in){
@@ -110,7 +122,14 @@ public class InflaterInput extends InputFilter{
             Reactor.current().allocator.free(buffer);
             buffer = null;
         }
-        inflater.end();
+        freeInflater();
+    }
+
+    protected void freeInflater(){
+        if(pool==null)
+            inflater.end();
+        else
+            pool.free(inflater, nowrap);
         inflater = null;
     }
 
@@ -121,8 +140,7 @@ public class InflaterInput extends InputFilter{
             tmpBuffer = null;
         }
         if(inflater!=null){
-            inflater.end();
-            inflater = null;
+            freeInflater();
             if(buffer!=null){
                 Reactor.current().allocator.free(buffer);
                 buffer = null;
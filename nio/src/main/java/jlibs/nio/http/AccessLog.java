@@ -16,13 +16,11 @@
 package jlibs.nio.http;
 
 import jlibs.core.io.FileUtil;
+import jlibs.core.io.IOUtil;
 import jlibs.nio.Reactors;
-import jlibs.nio.http.expr.Expression;
-import jlibs.nio.http.expr.Literal;
-import jlibs.nio.http.expr.TypeConversion;
-import jlibs.nio.http.msg.Message;
-import jlibs.nio.http.msg.Request;
-import jlibs.nio.http.msg.Response;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.expr.*;
+import jlibs.nio.http.msg.*;
 import jlibs.nio.log.LogHandler;
 import jlibs.nio.log.LogRecord;
 
@@ -35,6 +33,11 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
+ * Format is compiled once into accessors, which append attribute values
+ * directly into reusable byte buffers of pooled {@link Record}s.
+ * Attributes whose expression is not recognized by compiler are evaluated
+ * using {@link Expression}.
+ *
  * @author Santhosh Kumar Tekuri
  */
 public class AccessLog{
@@ -89,7 +92,15 @@ public class AccessLog{
     public class Record implements LogRecord{
         private Class<? extends Exchange> owner;
         private int exchanges = 0;
-        private String values[] = new String[attributes.size()];
+        private Value values[] = new Value[attributes.size()];
+        {
+            for(int i=0; i<values.length; i++){
+                values[i] = new Value();
+                Attribute attr = attributes.get(i);
+                if(attr.constant)
+                    attr.capture(null, values[i]);
+            }
+        }
 
         private LogHandler logHandler;
         public void setLogHandler(LogHandler logHandler){
@@ -101,7 +112,10 @@ public class AccessLog{
         }
 
         public String[] getValues(){
-            return values;
+            String strings[] = new String[values.length];
+            for(int i=0; i<values.length; i++)
+                strings[i] = values[i].toString();
+            return strings;
         }
 
         public void process(Exchange exchange, Message msg){
@@ -111,8 +125,8 @@ public class AccessLog{
                 ++exchanges;
             for(int i=0; i<values.length; i++){
                 Attribute attr = attributes.get(i);
-                if(!attr.captureOnFinish && attr.isApplicable(exchange, msg))
-                    values[i] = attr.getValue(exchange);
+                if(!attr.constant && !attr.captureOnFinish && attr.isApplicable(exchange, msg))
+                    attr.capture(exchange, values[i]);
             }
         }
 
@@ -120,14 +134,8 @@ public class AccessLog{
             --exchanges;
             for(int i=0; i<values.length; i++){
                 Attribute attr = attributes.get(i);
-                if(attr.captureOnFinish && attr.isApplicable(exchange)){
-                    String value = attr.getValue(exchange);
-                    if(value!=null){
-                        if(values[i]!=null)
-                            value = Long.toString(Long.parseLong(values[i]) + Long.parseLong(value));
-                    }
-                    values[i] = value;
-                }
+                if(attr.captureOnFinish && attr.isApplicable(exchange))
+                    attr.captureOnFinish(exchange, values[i]);
             }
             if(exchanges==0){
                 logHandler.publish(this);
@@ -140,14 +148,18 @@ public class AccessLog{
             owner = null;
             exchanges = 0;
             logHandler = null;
-            Arrays.fill(values, null);
+            for(int i=0; i<values.length; i++){
+                if(!attributes.get(i).constant)
+                    values[i].clear();
+            }
         }
 
         @Override
         public void publishTo(Appendable writer) throws IOException{
             for(int i=0; i<values.length; i++){
-                writer.append(values[i]==null ? "-" : values[i]);
-                values[i] = null;
+                values[i].publishTo(writer);
+                if(!attributes.get(i).constant)
+                    values[i].clear();
             }
             writer.append(FileUtil.LINE_SEPARATOR);
         }
@@ -159,20 +171,46 @@ public class AccessLog{
         public final Class exchangeType;
         public final Class messageType;
         public final boolean captureOnFinish;
+        /** literal text between expressions, captured once per record */
+        public final boolean constant;
         private Expression expr;
+        private Accessor accessor;
         protected Attribute(Expression expr, Class exchangeType, Class messageType, boolean captureOnFinish){
             this.expr = expr;
             this.exchangeType = exchangeType;
             this.messageType = messageType;
             this.captureOnFinish = captureOnFinish;
+            constant = false;
+            accessor = Accessor.compile(expr);
         }
 
         protected Attribute(String literal){
-            this(new Literal(literal), null, Request.class, false);
+            expr = new Literal(literal);
+            exchangeType = null;
+            messageType = Request.class;
+            captureOnFinish = false;
+            constant = true;
+            accessor = Accessor.compile(expr);
+        }
+
+        public void capture(Exchange exchange, Value value){
+            value.clear();
+            value.set = accessor.append(exchange, value);
+            if(!value.set)
+                value.clear();
         }
 
-        public String getValue(Exchange exchange){
-            return TypeConversion.toString(expr.evaluate(exchange));
+        public void captureOnFinish(Exchange exchange, Value value){
+            if(value.set && value.numeric && accessor instanceof NumberAccessor){
+                long number = ((NumberAccessor)accessor).number(exchange);
+                if(number!=NumberAccessor.NULL){
+                    number += value.number;
+                    value.clear();
+                    value.put(number);
+                    value.set = true;
+                }
+            }else
+                capture(exchange, value);
         }
 
         public boolean isApplicable(Exchange exchange){
@@ -193,4 +231,359 @@ public class AccessLog{
                 return "#{"+expr+'}';
         }
     }
+
+    /**
+     * reusable buffer holding encoded value of an attribute.
+     * CharSequence view is valid only when value is ascii
+     */
+    private static final class Value implements CharSequence{
+        private byte bytes[] = new byte[32];
+        private int length;
+        private boolean ascii = true;
+        private boolean set;
+        private boolean numeric;
+        private long number;
+
+        void clear(){
+            length = 0;
+            ascii = true;
+            set = false;
+            numeric = false;
+        }
+
+        private void ensureCapacity(int capacity){
+            if(capacity>bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, 2*bytes.length));
+        }
+
+        void put(byte b){
+            ensureCapacity(length+1);
+            bytes[length++] = b;
+        }
+
+        void put(byte b[]){
+            ensureCapacity(length+b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        void put(long number){
+            numeric = length==0;
+            this.number = number;
+            if(number==Long.MIN_VALUE){
+                put(Long.toString(number));
+                return;
+            }
+            ensureCapacity(length+20);
+            if(number<0){
+                bytes[length++] = '-';
+                number = -number;
+            }
+            int end = length+digits(number);
+            int pos = end;
+            do{
+                bytes[--pos] = (byte)('0'+number%10);
+                number /= 10;
+            }while(number!=0);
+            length = end;
+        }
+
+        private static int digits(long number){
+            int digits = 1;
+            while(number>=10){
+                number /= 10;
+                ++digits;
+            }
+            return digits;
+        }
+
+        void put(CharSequence seq){
+            int len = seq.length();
+            ensureCapacity(length+len);
+            for(int i=0; i<len; i++){
+                char ch = seq.charAt(i);
+                if(ch<0x80)
+                    bytes[length++] = (byte)ch;
+                else{
+                    // rare: fallback to utf-8 encoding of the remaining
+                    put(seq.subSequence(i, len).toString().getBytes(IOUtil.UTF_8));
+                    ascii = false;
+                    return;
+                }
+            }
+        }
+
+        void publishTo(Appendable writer) throws IOException{
+            if(!set)
+                writer.append('-');
+            else if(ascii)
+                writer.append(this, 0, length);
+            else
+                writer.append(new String(bytes, 0, length, IOUtil.UTF_8));
+        }
+
+        @Override
+        public int length(){
+            return length;
+        }
+
+        @Override
+        public char charAt(int index){
+            return (char)bytes[index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end){
+            return new String(bytes, start, end-start, IOUtil.US_ASCII);
+        }
+
+        @Override
+        public String toString(){
+            if(!set)
+                return null;
+            return new String(bytes, 0, length, ascii ? IOUtil.US_ASCII : IOUtil.UTF_8);
+        }
+    }
+
+    /*-------------------------------------------------[ Accessors ]---------------------------------------------------*/
+
+    /**
+     * Attribute expressions compiled to direct field accesses.
+     * Expressions not recognized here are evaluated using Expression.
+     */
+    private static abstract class Accessor{
+        /** appends value to given buffer, returns false if value is null */
+        public abstract boolean append(Exchange exchange, Value value);
+
+        @SuppressWarnings("StringEquality")
+        static Accessor compile(Expression expr){
+            if(expr instanceof Literal){
+                Object literal = ((Literal)expr).value;
+                if(literal==null)
+                    return new ExpressionAccessor(expr);
+                byte bytes[] = literal.toString().getBytes(IOUtil.UTF_8);
+                boolean ascii = bytes.length==literal.toString().length();
+                return new Accessor(){
+                    @Override
+                    public boolean append(Exchange exchange, Value value){
+                        value.put(bytes);
+                        value.ascii &= ascii;
+                        return true;
+                    }
+                };
+            }
+            if(!(expr instanceof Variable))
+                return new ExpressionAccessor(expr);
+
+            List<Expression> path = ((Variable)expr).children;
+            String names[] = new String[path.size()];
+            for(int i=0; i<names.length; i++){
+                if(path.get(i) instanceof GetField)
+                    names[i] = ((GetField)path.get(i)).name;
+                else if(i==2 && names[1]=="headers" && path.get(i) instanceof Lookup
+                        && ((Lookup)path.get(i)).child instanceof Literal){
+                    AsciiString header = AsciiString.valueOf(TypeConversion.toString(((Literal)((Lookup)path.get(i)).child).value));
+                    boolean request = names[0]=="request";
+                    if(names.length==3 && (request || names[0]=="response")){
+                        return new Accessor(){
+                            @Override
+                            public boolean append(Exchange exchange, Value value){
+                                Message msg = request ? exchange.getRequest() : exchange.getResponse();
+                                String str = msg==null ? null : msg.headers.value(header);
+                                if(str==null)
+                                    return false;
+                                value.put(str);
+                                return true;
+                            }
+                        };
+                    }
+                    return new ExpressionAccessor(expr);
+                }else
+                    return new ExpressionAccessor(expr);
+            }
+
+            Accessor accessor = null;
+            if(names.length==1){
+                switch(names[0]){
+                    case "request_count":
+                        accessor = new NumberAccessor(){
+                            @Override
+                            public long number(Exchange exchange){
+                                return exchange.getRequestCount();
+                            }
+                        };
+                        break;
+                    case "port":
+                        accessor = new NumberAccessor(){
+                            @Override
+                            public long number(Exchange exchange){
+                                TCPEndpoint endpoint = exchange.getEndpoint();
+                                return endpoint==null ? NULL : endpoint.port;
+                            }
+                        };
+                        break;
+                    case "host":
+                        accessor = new Accessor(){
+                            @Override
+                            public boolean append(Exchange exchange, Value value){
+                                TCPEndpoint endpoint = exchange.getEndpoint();
+                                if(endpoint==null)
+                                    return false;
+                                value.put(endpoint.host);
+                                return true;
+                            }
+                        };
+                        break;
+                    case "connection_status":
+                        accessor = new Accessor(){
+                            @Override
+                            public boolean append(Exchange exchange, Value value){
+                                ConnectionStatus status = exchange.getConnectionStatus();
+                                if(status==null)
+                                    return false;
+                                value.put(status.toString());
+                                return true;
+                            }
+                        };
+                        break;
+                }
+            }else if(names.length==2 && (names[0]=="request" || names[0]=="response")){
+                boolean request = names[0]=="request";
+                switch(names[1]){
+                    case "version":
+                        accessor = new MessageAccessor(request){
+                            @Override
+                            protected boolean append(Message msg, Value value){
+                                if(msg.version==null)
+                                    return false;
+                                value.put(msg.version.text);
+                                return true;
+                            }
+                        };
+                        break;
+                    case "content_length":
+                        accessor = new NumberAccessor(){
+                            @Override
+                            public long number(Exchange exchange){
+                                Message msg = request ? exchange.getRequest() : exchange.getResponse();
+                                return msg==null ? NULL : msg.getContentLength();
+                            }
+                        };
+                        break;
+                    case "keep_alive":
+                        accessor = new MessageAccessor(request){
+                            @Override
+                            protected boolean append(Message msg, Value value){
+                                value.put(msg.isKeepAlive() ? "true" : "false");
+                                return true;
+                            }
+                        };
+                        break;
+                }
+                if(accessor==null && request){
+                    switch(names[1]){
+                        case "method":
+                            accessor = new MessageAccessor(true){
+                                @Override
+                                protected boolean append(Message msg, Value value){
+                                    Method method = ((Request)msg).method;
+                                    if(method==null)
+                                        return false;
+                                    value.put(method.name);
+                                    return true;
+                                }
+                            };
+                            break;
+                        case "uri":
+                            accessor = new MessageAccessor(true){
+                                @Override
+                                protected boolean append(Message msg, Value value){
+                                    String uri = ((Request)msg).uri;
+                                    if(uri==null)
+                                        return false;
+                                    value.put(uri);
+                                    return true;
+                                }
+                            };
+                            break;
+                        case "line":
+                            accessor = new MessageAccessor(true){
+                                @Override
+                                protected boolean append(Message msg, Value value){
+                                    Request request = (Request)msg;
+                                    value.put(String.valueOf(request.method));
+                                    value.put((byte)' ');
+                                    value.put(String.valueOf(request.uri));
+                                    value.put((byte)' ');
+                                    value.put(String.valueOf(request.version));
+                                    return true;
+                                }
+                            };
+                            break;
+                    }
+                }else if(accessor==null && names[1]=="status"){
+                    accessor = new MessageAccessor(false){
+                        @Override
+                        protected boolean append(Message msg, Value value){
+                            Status status = ((Response)msg).status;
+                            if(status==null)
+                                return false;
+                            value.put(status.code);
+                            value.put((byte)' ');
+                            value.put(status.reason);
+                            return true;
+                        }
+                    };
+                }
+            }
+            return accessor==null ? new ExpressionAccessor(expr) : accessor;
+        }
+    }
+
+    private static abstract class NumberAccessor extends Accessor{
+        public static final long NULL = Long.MIN_VALUE;
+
+        /** returns NULL if value is null */
+        public abstract long number(Exchange exchange);
+
+        @Override
+        public boolean append(Exchange exchange, Value value){
+            long number = number(exchange);
+            if(number==NULL)
+                return false;
+            value.put(number);
+            return true;
+        }
+    }
+
+    private static abstract class MessageAccessor extends Accessor{
+        private final boolean request;
+        protected MessageAccessor(boolean request){
+            this.request = request;
+        }
+
+        @Override
+        public boolean append(Exchange exchange, Value value){
+            Message msg = request ? exchange.getRequest() : exchange.getResponse();
+            return msg!=null && append(msg, value);
+        }
+
+        protected abstract boolean append(Message msg, Value value);
+    }
+
+    private static class ExpressionAccessor extends Accessor{
+        private final Expression expr;
+        ExpressionAccessor(Expression expr){
+            this.expr = expr;
+        }
+
+        @Override
+        public boolean append(Exchange exchange, Value value){
+            String str = TypeConversion.toString(expr.evaluate(exchange));
+            if(str==null)
+                return false;
+            value.put(str);
+            return true;
+        }
+    }
 }
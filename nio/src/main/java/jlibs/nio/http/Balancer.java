@@ -0,0 +1,147 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.http.msg.Request;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * selects upstream for request, from members of {@link UpstreamGroup}.
+ * balancers may keep state, so an instance must not be shared across groups
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public interface Balancer{
+    /** returns one of given upstreams that satisfies filter, or null if there is none */
+    public Upstream select(List<Upstream> upstreams, Request request, Predicate<Upstream> filter);
+
+    /** weighted round robin */
+    public static Balancer roundRobin(){
+        AtomicLong counter = new AtomicLong();
+        return (upstreams, request, filter) -> {
+            int totalWeight = 0;
+            for(Upstream upstream: upstreams)
+                totalWeight += upstream.weight;
+            long position = Math.floorMod(counter.getAndIncrement(), (long)totalWeight);
+            int i = 0;
+            while(position>=upstreams.get(i).weight)
+                position -= upstreams.get(i++).weight;
+            for(int j=0; j<upstreams.size(); j++){
+                Upstream upstream = upstreams.get((i+j)%upstreams.size());
+                if(filter.test(upstream))
+                    return upstream;
+            }
+            return null;
+        };
+    }
+
+    /**
+     * upstream with least outstanding requests relative to its weight.
+     * ties are broken in round robin order
+     */
+    public static Balancer leastOutstanding(){
+        AtomicLong counter = new AtomicLong();
+        return (upstreams, request, filter) -> {
+            int start = (int)Math.floorMod(counter.getAndIncrement(), (long)upstreams.size());
+            Upstream selected = null;
+            long selectedOutstanding = 0;
+            for(int i=0; i<upstreams.size(); i++){
+                Upstream upstream = upstreams.get((start+i)%upstreams.size());
+                if(!filter.test(upstream))
+                    continue;
+                long outstanding = upstream.outstanding.get();
+                if(selected==null || outstanding*selected.weight<selectedOutstanding*upstream.weight){
+                    selected = upstream;
+                    selectedOutstanding = outstanding;
+                }
+            }
+            return selected;
+        };
+    }
+
+    /**
+     * consistent hashing on given key of request, so that requests with same key
+     * go to same upstream. when upstream is not available, its requests are spread
+     * to next upstreams on hash ring, without affecting other keys
+     */
+    public static Balancer consistentHash(Function<Request, String> key){
+        return new Balancer(){
+            private volatile Object ring[]; // {upstreams, TreeMap}
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public Upstream select(List<Upstream> upstreams, Request request, Predicate<Upstream> filter){
+                Object ring[] = this.ring;
+                if(ring==null || ring[0]!=upstreams)
+                    this.ring = ring = new Object[]{ upstreams, createRing(upstreams) };
+                TreeMap<Long, Upstream> points = (TreeMap<Long, Upstream>)ring[1];
+                String value = key.apply(request);
+                long hash = hash(value==null ? "" : value);
+                Map.Entry<Long, Upstream> entry = points.ceilingEntry(hash);
+                for(int i=0; i<points.size(); i++){
+                    if(entry==null)
+                        entry = points.firstEntry();
+                    if(filter.test(entry.getValue()))
+                        return entry.getValue();
+                    entry = points.higherEntry(entry.getKey());
+                }
+                return null;
+            }
+        };
+    }
+
+    /** consistent hashing on request uri */
+    public static Balancer consistentHash(){
+        return consistentHash(request -> request.uri);
+    }
+
+    static TreeMap<Long, Upstream> createRing(List<Upstream> upstreams){
+        TreeMap<Long, Upstream> points = new TreeMap<>();
+        for(Upstream upstream: upstreams){
+            int count = Defaults.HASH_POINTS*upstream.weight;
+            for(int i=0; i<count; i++)
+                points.putIfAbsent(hash(upstream.endpoint+"#"+i), upstream);
+        }
+        return points;
+    }
+
+    /** 64-bit FNV-1a followed by murmur3 finalizer, for better spread */
+    static long hash(String str){
+        long hash = 0xcbf29ce484222325L;
+        for(byte b: str.getBytes(StandardCharsets.UTF_8)){
+            hash ^= b&0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash>>>33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash>>>33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash>>>33;
+        return hash;
+    }
+
+    public static class Defaults{
+        /** number of points on hash ring, per unit weight of upstream */
+        public static int HASH_POINTS = 160;
+    }
+}
@@ -41,6 +41,7 @@ import static jlibs.nio.http.msg.Method.HEAD;
 public class ClientExchange extends Exchange{
     private Collection<ClientFilter> requestFilters;
     private Collection<ClientFilter> responseFilters;
+    private Collection<ClientFilter> errorFilters;
 
     private final HTTPClient client;
     private TCPEndpoint endpoint;
@@ -51,11 +52,12 @@ public class ClientExchange extends Exchange{
     private AccessLog.Record accessLogRecord;
 
     protected ClientExchange(HTTPClient client, TCPEndpoint endpoint){
-        super(client.maxResponseHeadSize, new ResponseParser(), OP_WRITE);
+        super(client.maxResponseHeadSize, new ResponseParser(client.lazyHeaderValues), OP_WRITE);
         this.client = client;
         this.endpoint = endpoint;
         requestFilters=  client.requestFilters;
         responseFilters = client.responseFilters;
+        errorFilters = client.errorFilters;
 
         accessLog = client.accessLog;
         if(accessLog!=null){
@@ -67,7 +69,7 @@ public class ClientExchange extends Exchange{
     enum State{
         PREPARE_REQUEST_FILTERS, FILTER_REQUEST, WRITE_REQUEST,
         READ_RESPONSE, SEND_REQUEST_PAYLOAD, PREPARE_RESPONSE_FILTERS, FILTER_RESPONSE,
-        DELIVER_RESPONSE, DRAIN_RESPONSE, PREPARE_COMPLETE, COMPLETE,
+        FILTER_ERROR, DELIVER_RESPONSE, DRAIN_RESPONSE, PREPARE_COMPLETE, COMPLETE,
         COMPLETED, CLOSED
     }
 
@@ -91,12 +93,27 @@ public class ClientExchange extends Exchange{
                         if(HTTP)
                             println("state = "+state);
                     case FILTER_REQUEST:
-                        while(filters.hasNext()){
+                        while(response==null && filters.hasNext()){
                             if(!filters.next().filter(this, FilterType.REQUEST))
                                 return false;
                         }
+                        if(response!=null){
+                            // response is supplied by request filter, request is not sent
+                            if(accessLog!=null){
+                                accessLogRecord.process(this, request);
+                                accessLogRecord.process(this, response);
+                            }
+                            responseHasPayload = false;
+                            state = PREPARE_RESPONSE_FILTERS;
+                            if(HTTP)
+                                println("state = "+state);
+                            continue;
+                        }
                         if(in==null){
-                            endpoint.getConnection(this::connectCompleted, client.proxy);
+                            if(client.http2 && client.proxy==null)
+                                HTTP2Connection.getStream(endpoint, this::connectCompleted);
+                            else
+                                endpoint.getConnection(this::connectCompleted, client.proxy);
                             return false;
                         }
                         state = WRITE_REQUEST;
@@ -108,6 +125,8 @@ public class ClientExchange extends Exchange{
                             keepAlive = request.isKeepAlive();
                         else
                             request.setKeepAlive(keepAlive=client.keepAliveTimeout!=0);
+                        if(in.channel() instanceof HTTP2Stream)
+                            keepAlive = false; // stream is not reusable
                         requestMethod = request.method;
                         String hostPort = endpoint.port==80 || endpoint.port==443 ? endpoint.host : endpoint.toString();
                         request.headers.set(Request.HOST, hostPort);
@@ -129,7 +148,8 @@ public class ClientExchange extends Exchange{
                         setChild(readMessage);
                         return true;
                     case PREPARE_RESPONSE_FILTERS:
-                        in.setInputListener(null);
+                        if(in!=null)
+                            in.setInputListener(null);
                         filters = responseFilters.iterator();
                         state = FILTER_RESPONSE;
                         if(HTTP)
@@ -144,6 +164,15 @@ public class ClientExchange extends Exchange{
                         state = DELIVER_RESPONSE;
                         if(HTTP)
                             println("state = "+state);
+                        break;
+                    case FILTER_ERROR:
+                        while(filters.hasNext()){
+                            if(!filters.next().filter(this, FilterType.ERROR))
+                                return false;
+                        }
+                        state = DELIVER_RESPONSE;
+                        if(HTTP)
+                            println("state = "+state);
                     case DELIVER_RESPONSE:
                         if(retry==null)
                             user.process(this, error);
@@ -302,13 +331,24 @@ public class ClientExchange extends Exchange{
         this.request = request;
     }
 
+    /**
+     * request filters can use this to complete exchange without
+     * sending the request. the response goes through response filters
+     */
+    public void setResponse(Response response){
+        this.response = response;
+    }
+
     protected void setError(Throwable thr){
         error = thr;
         if(HTTP)
             println("error = "+error);
         keepAlive = false;
         retry = null;
-        if(state.ordinal()<DELIVER_RESPONSE.ordinal())
+        if(state.ordinal()<FILTER_ERROR.ordinal()){
+            filters = errorFilters.iterator();
+            state = FILTER_ERROR;
+        }else if(state==FILTER_ERROR)
             state = DELIVER_RESPONSE;
         else
             state = COMPLETED ;
@@ -0,0 +1,76 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * decides compression level of response payloads, based on
+ * their content type and size. see {@link HTTPServer#compression}
+ * <p>
+ * small payloads are not worth compressing, and large payloads
+ * are compressed with faster level to save cpu
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class CompressionPolicy{
+    /** payloads smaller than this are sent uncompressed */
+    public long minSize = Defaults.MIN_SIZE;
+
+    /** payloads of this size or larger are compressed with fastLevel */
+    public long fastSize = Defaults.FAST_SIZE;
+
+    public int level = Defaults.LEVEL;
+    public int fastLevel = Defaults.FAST_LEVEL;
+
+    /** media types to be compressed, in addition to text/*, *+xml and *+json */
+    public Collection<String> mediaTypes = new HashSet<>(Arrays.asList(Defaults.MEDIA_TYPES));
+
+    public boolean isCompressible(String contentType){
+        if(contentType==null)
+            return false;
+        int semicolon = contentType.indexOf(';');
+        String mt = (semicolon==-1 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ENGLISH);
+        return mt.startsWith("text/") || mt.endsWith("+xml") || mt.endsWith("+json") || mediaTypes.contains(mt);
+    }
+
+    /**
+     * returns compression level to be used for payload of given content type and length.
+     * contentLength is -1 if not known. returns {@link Deflater#NO_COMPRESSION}
+     * if payload should not be compressed
+     */
+    public int level(String contentType, long contentLength){
+        if(!isCompressible(contentType) || (contentLength>=0 && contentLength<minSize))
+            return Deflater.NO_COMPRESSION;
+        return fastSize>0 && contentLength>=fastSize ? fastLevel : level;
+    }
+
+    public static class Defaults{
+        public static long MIN_SIZE = 1024;
+        public static long FAST_SIZE = 1024*1024;
+        public static int LEVEL = Deflater.DEFAULT_COMPRESSION;
+        public static int FAST_LEVEL = Deflater.BEST_SPEED;
+        public static String MEDIA_TYPES[] = {
+            "application/json", "application/javascript", "application/x-javascript",
+            "application/xml", "application/xhtml+xml", "image/svg+xml"
+        };
+    }
+}
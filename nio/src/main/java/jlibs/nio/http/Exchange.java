@@ -89,6 +89,15 @@ public abstract class Exchange extends Task implements Bean, Closeable{
     public final void resume(Throwable thr){
         if(thr!=null)
             setError(thr);
+        if(in==null){
+            // not connected yet, for example ClientExchange waiting in request filter
+            try{
+                process(0);
+            }catch(Throwable thr1){
+                Reactor.current().handleException(thr1);
+            }
+            return;
+        }
         in.channel().makeActive();
         listener.process(in);
     }
@@ -0,0 +1,196 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.Management;
+import jlibs.nio.Reactor;
+import jlibs.nio.http.msg.Status;
+import jlibs.nio.util.Histogram;
+
+import javax.management.ObjectName;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * runs given listener on executor, so that blocking work like jdbc or file io
+ * does not stall other connections of the reactor. exchange is resumed on its
+ * reactor thread, once listener returns.
+ *
+ * when too many requests are pending, or executor rejects, request is rejected
+ * with 503. executor can be a thread pool (see {@link #newExecutor(int)}) or, on
+ * java 21 and later, Executors.newVirtualThreadPerTaskExecutor().
+ *
+ * listener runs outside reactor thread, so it must not use Reactor.current()
+ * or read socket payload. use a filter like {@link jlibs.nio.http.filters.ReadSocketPayload}
+ * to read payload beforehand.
+ *
+ * listener may only set response. it must not commit it, i.e. write to socket,
+ * close exchange or steal its connection. exchange is parked while listener runs,
+ * so that reactor defers closing it (ex: writing pipelined responses fails) till
+ * listener returns. response is sent by reactor thread after listener returns, and
+ * is discarded if exchange is no longer {@link ServerExchange#isOpen() open}.
+ * if listener returns false, it must resume exchange on its reactor thread,
+ * after checking that it is still open
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ExecutorRequestListener implements RequestListener{
+    public final RequestListener listener;
+    public final Executor executor;
+
+    /** requests handed to executor and not yet completed, beyond which requests are rejected with 503 */
+    public int maxPending = Defaults.MAX_PENDING;
+
+    private final ObjectName objName;
+
+    /**
+     * metrics are registered as mbean "jlibs.nio:type=RequestExecutor,name=&lt;name&gt;".
+     * throws IllegalArgumentException if another listener with same name is registered
+     */
+    public ExecutorRequestListener(String name, Executor executor, RequestListener listener){
+        this.listener = listener;
+        this.executor = executor;
+        objName = registerMBean(name);
+    }
+
+    /** unregisters mbean, so that its name can be reused */
+    public void unregisterMBean(){
+        Management.unregister(objName);
+    }
+
+    /**
+     * creates thread pool with given number of daemon threads. its queue is not bounded,
+     * as {@link #maxPending} bounds it
+     */
+    public static ExecutorService newExecutor(int threads){
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "RequestWorker"+count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public boolean process(ServerExchange exchange) throws Exception{
+        if(pending.incrementAndGet()>maxPending){
+            pending.decrementAndGet();
+            rejected.increment();
+            throw Status.SERVICE_UNAVAILABLE;
+        }
+
+        Reactor reactor = Reactor.current();
+        long submitted = System.nanoTime();
+        int park = exchange.park();
+        try{
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                queueTime.record(TimeUnit.NANOSECONDS.toMillis(started-submitted));
+                boolean resume;
+                Throwable error = null;
+                try{
+                    resume = listener.process(exchange);
+                }catch(Throwable thr){
+                    resume = true;
+                    error = thr;
+                }
+                executionTime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-started));
+                pending.decrementAndGet();
+                completed.increment();
+                boolean resumeNow = resume;
+                Throwable thr = error;
+                reactor.invokeLater(() -> {
+                    boolean open = exchange.unpark(park);
+                    if(resumeNow){
+                        if(open)
+                            exchange.resume(thr);
+                        else
+                            discarded.increment();
+                    }
+                });
+            });
+        }catch(RejectedExecutionException ex){
+            exchange.unpark(park);
+            pending.decrementAndGet();
+            rejected.increment();
+            throw Status.SERVICE_UNAVAILABLE.with(ex);
+        }
+        return false;
+    }
+
+    /*-------------------------------------------------[ Metrics ]---------------------------------------------------*/
+
+    private final AtomicInteger pending = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+    private final Histogram queueTime = new Histogram(BUCKETS);
+    private final Histogram executionTime = new Histogram(BUCKETS);
+
+    // upper bounds of histogram in milliseconds
+    private static final long BUCKETS[] = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
+
+    private ObjectName registerMBean(String name){
+        return Management.registerUnique(new Management.RequestExecutorMXBean(){
+            @Override
+            public int getPending(){
+                return pending.get();
+            }
+
+            @Override
+            public long getCompleted(){
+                return completed.sum();
+            }
+
+            @Override
+            public long getRejected(){
+                return rejected.sum();
+            }
+
+            @Override
+            public long getDiscarded(){
+                return discarded.sum();
+            }
+
+            @Override
+            public long getQueueTime(){
+                return queueTime.getTotal();
+            }
+
+            @Override
+            public Map<String, Long> getQueueTimes(){
+                return queueTime.toMap();
+            }
+
+            @Override
+            public long getExecutionTime(){
+                return executionTime.getTotal();
+            }
+
+            @Override
+            public Map<String, Long> getExecutionTimes(){
+                return executionTime.toMap();
+            }
+        }, "jlibs.nio:type=RequestExecutor,name="+name);
+    }
+
+    public static class Defaults{
+        public static int MAX_PENDING = 1000;
+    }
+}
@@ -0,0 +1,986 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.*;
+import jlibs.nio.filters.BufferInput;
+import jlibs.nio.http.util.HPACK;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.Buffers;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.function.Consumer;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static jlibs.nio.Debugger.HTTP;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * HTTP/2 connection (rfc7540). each stream is served by {@link ServerExchange}
+ * or {@link ClientExchange}, through {@link HTTP2Stream}.
+ * <p>
+ * server push and stream priorities are not supported
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class HTTP2Connection extends Task implements HPACK.Listener{
+    static final byte PREFACE[] = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+    // frame types
+    private static final int DATA          = 0x0;
+    private static final int HEADERS       = 0x1;
+    private static final int PRIORITY      = 0x2;
+    private static final int RST_STREAM    = 0x3;
+    private static final int SETTINGS      = 0x4;
+    private static final int PUSH_PROMISE  = 0x5;
+    private static final int PING          = 0x6;
+    private static final int GOAWAY        = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+    private static final int CONTINUATION  = 0x9;
+
+    // frame flags
+    private static final int FLAG_END_STREAM  = 0x1;
+    private static final int FLAG_ACK         = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED      = 0x8;
+    private static final int FLAG_PRIORITY    = 0x20;
+
+    // settings
+    private static final int SETTINGS_HEADER_TABLE_SIZE      = 0x1;
+    private static final int SETTINGS_ENABLE_PUSH            = 0x2;
+    private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+    private static final int SETTINGS_INITIAL_WINDOW_SIZE    = 0x4;
+    private static final int SETTINGS_MAX_FRAME_SIZE         = 0x5;
+    private static final int SETTINGS_MAX_HEADER_LIST_SIZE   = 0x6;
+
+    // error codes
+    public static final int NO_ERROR           = 0x0;
+    public static final int PROTOCOL_ERROR     = 0x1;
+    public static final int INTERNAL_ERROR     = 0x2;
+    public static final int FLOW_CONTROL_ERROR = 0x3;
+    public static final int STREAM_CLOSED      = 0x5;
+    public static final int FRAME_SIZE_ERROR   = 0x6;
+    public static final int REFUSED_STREAM     = 0x7;
+    public static final int CANCEL             = 0x8;
+    public static final int COMPRESSION_ERROR  = 0x9;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final int MAX_FRAME_SIZE = 16384;
+
+    /** null if this is client side of connection */
+    final HTTPServer server;
+    private final TCPEndpoint endpoint;
+
+    HTTP2Connection(HTTPServer server){
+        super(OP_READ);
+        this.server = server;
+        endpoint = server.endpoint;
+        nextStreamID = 2;
+    }
+
+    private HTTP2Connection(TCPEndpoint endpoint){
+        super(OP_WRITE);
+        server = null;
+        this.endpoint = endpoint;
+        nextStreamID = 1;
+        prefaceReceived = true;
+    }
+
+    /** returns underlying transport connection */
+    public Connection getConnection(){
+        return (Connection)in.channel();
+    }
+
+    String scheme(){
+        return endpoint.sslContext==null ? "http" : "https";
+    }
+
+    /*-------------------------------------------------[ Process ]---------------------------------------------------*/
+
+    private BufferAllocator allocator;
+    private ByteBuffer readBuffer;
+    private boolean finishing;
+    private boolean closed;
+
+    @Override
+    protected boolean process(int readyOp) throws IOException{
+        if(closed)
+            return true;
+        if(readBuffer==null)
+            start();
+        // read even when woken up for write: SSLSocket can wait for write, to make progress on read
+        if(!finishing){
+            try{
+                if(!readFrames())
+                    abort(new EOFException("connection closed by peer"));
+            }catch(SocketTimeoutException ex){
+                if(activeStreams==0)
+                    goAway(NO_ERROR, "idle timeout");
+                else
+                    in.addReadInterest();
+            }catch(HTTP2Exception ex){
+                if(HTTP)
+                    println(this+": "+ex.getMessage());
+                goAway(ex.errorCode, ex.getMessage());
+            }catch(IOException ex){
+                abort(ex);
+            }
+        }
+        if(!closed)
+            flushFrames();
+        if(finishing && !closed && outQueue.length==0){
+            release(new EOFException("connection closed"));
+            in.channel().close();
+        }
+        return closed;
+    }
+
+    private void start() throws IOException{
+        allocator = in.channel().reactor().allocator;
+        readBuffer = allocator.allocate(9+MAX_FRAME_SIZE);
+        headerBlock = ByteBuffer.allocate(1024);
+        headersOut = ByteBuffer.allocate(1024);
+
+        if(server==null)
+            queue(ByteBuffer.wrap(PREFACE), PREFACE.length);
+        ByteBuffer settings = ByteBuffer.allocate(18);
+        if(server==null)
+            settings.putShort((short)SETTINGS_ENABLE_PUSH).putInt(0);
+        else
+            settings.putShort((short)SETTINGS_MAX_CONCURRENT_STREAMS).putInt(MAX_CONCURRENT_STREAMS);
+        settings.putShort((short)SETTINGS_INITIAL_WINDOW_SIZE).putInt(INITIAL_WINDOW_SIZE);
+        settings.putShort((short)SETTINGS_MAX_HEADER_LIST_SIZE).putInt(MAX_HEADER_LIST_SIZE);
+        settings.flip();
+        queueFrame(SETTINGS, 0, 0, settings);
+        if(CONNECTION_WINDOW_SIZE>DEFAULT_WINDOW_SIZE)
+            queueWindowUpdate(0, CONNECTION_WINDOW_SIZE-DEFAULT_WINDOW_SIZE);
+    }
+
+    /** closes all streams with given error, and frees resources */
+    private void release(IOException ex){
+        closed = true;
+        if(HTTP)
+            println(this+".release("+ex.getMessage()+")");
+        for(HTTP2Stream stream: new ArrayList<>(streams.values()))
+            stream.reset(ex);
+        streams.clear();
+        allocator.free(readBuffer);
+        allocator.free(outQueue);
+        queued = 0;
+        if(server==null)
+            clientClosed(ex);
+    }
+
+    /** transport failed */
+    private void abort(IOException ex){
+        if(!closed){
+            release(ex);
+            in.channel().close();
+        }
+    }
+
+    private boolean wakeupScheduled;
+
+    /** makes sure that process() is called soon, to flush output or close connection */
+    private void wakeup(){
+        if(!wakeupScheduled && !closed){
+            wakeupScheduled = true;
+            in.channel().reactor().invokeLater(() -> {
+                wakeupScheduled = false;
+                if(!closed){
+                    in.channel().makeActive();
+                    listener.process(out);
+                }
+            });
+        }
+    }
+
+    /*-------------------------------------------------[ Read Frames ]---------------------------------------------------*/
+
+    private boolean prefaceReceived;
+    private boolean settingsReceived;
+
+    /** returns false on end of input */
+    private boolean readFrames() throws IOException{
+        while(true){
+            int read = in.read(readBuffer);
+            if(read==0){
+                in.addReadInterest();
+                return true;
+            }else if(read==-1)
+                return false;
+            readBuffer.flip();
+            try{
+                while(!finishing && parseFrame());
+            }finally{
+                readBuffer.compact();
+            }
+            if(finishing)
+                return true;
+        }
+    }
+
+    private boolean parseFrame() throws IOException{
+        ByteBuffer buffer = readBuffer;
+        if(!prefaceReceived){
+            if(buffer.remaining()<PREFACE.length)
+                return false;
+            for(byte b: PREFACE){
+                if(buffer.get()!=b)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "invalid connection preface");
+            }
+            prefaceReceived = true;
+        }
+        if(buffer.remaining()<9)
+            return false;
+        int pos = buffer.position();
+        int length = (buffer.get(pos)&0xFF)<<16 | (buffer.get(pos+1)&0xFF)<<8 | (buffer.get(pos+2)&0xFF);
+        if(length>MAX_FRAME_SIZE)
+            throw new HTTP2Exception(FRAME_SIZE_ERROR, "frame length "+length);
+        if(buffer.remaining()<9+length)
+            return false;
+        int type = buffer.get(pos+3)&0xFF;
+        int flags = buffer.get(pos+4)&0xFF;
+        int streamID = buffer.getInt(pos+5)&0x7FFFFFFF;
+        int limit = buffer.limit();
+        buffer.position(pos+9);
+        buffer.limit(pos+9+length);
+        try{
+            if(HTTP)
+                println(this+".frame(type="+type+", flags="+flags+", stream="+streamID+", length="+length+")");
+            frame(type, flags, streamID, buffer);
+        }finally{
+            buffer.limit(limit);
+            buffer.position(pos+9+length);
+        }
+        return true;
+    }
+
+    private void frame(int type, int flags, int streamID, ByteBuffer payload) throws IOException{
+        if(continuationStream!=0 && type!=CONTINUATION)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "expected CONTINUATION");
+        if(!settingsReceived && type!=SETTINGS)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "expected SETTINGS");
+        switch(type){
+            case DATA:
+                data(flags, streamID, payload);
+                break;
+            case HEADERS:
+                if(streamID==0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+                int padLength = 0;
+                if((flags&FLAG_PADDED)!=0 && payload.hasRemaining())
+                    padLength = payload.get()&0xFF;
+                if((flags&FLAG_PRIORITY)!=0){
+                    if(payload.remaining()<5)
+                        throw new HTTP2Exception(FRAME_SIZE_ERROR, "HEADERS too short");
+                    payload.position(payload.position()+5);
+                }
+                if(padLength>payload.remaining())
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "invalid padding");
+                payload.limit(payload.limit()-padLength);
+                headerBlock.clear();
+                appendHeaderBlock(payload);
+                headersStream = streamID;
+                headersEndStream = (flags&FLAG_END_STREAM)!=0;
+                if((flags&FLAG_END_HEADERS)!=0)
+                    headersReceived();
+                else
+                    continuationStream = streamID;
+                break;
+            case CONTINUATION:
+                if(continuationStream==0 || streamID!=continuationStream)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "unexpected CONTINUATION");
+                appendHeaderBlock(payload);
+                if((flags&FLAG_END_HEADERS)!=0){
+                    continuationStream = 0;
+                    headersReceived();
+                }
+                break;
+            case PRIORITY:
+                if(streamID==0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                break;
+            case RST_STREAM:
+                if(streamID==0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "RST_STREAM on stream 0");
+                if(payload.remaining()!=4)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "RST_STREAM length");
+                if(isIdle(streamID))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+                HTTP2Stream stream = streams.remove(streamID);
+                if(stream!=null)
+                    stream.reset(new HTTP2Exception(payload.getInt(), "stream reset by peer"));
+                break;
+            case SETTINGS:
+                if(streamID!=0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "SETTINGS on stream "+streamID);
+                if((flags&FLAG_ACK)!=0){
+                    if(payload.hasRemaining())
+                        throw new HTTP2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+                }else
+                    settings(payload);
+                break;
+            case PUSH_PROMISE:
+                throw new HTTP2Exception(PROTOCOL_ERROR, "PUSH_PROMISE is not enabled");
+            case PING:
+                if(streamID!=0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "PING on stream "+streamID);
+                if(payload.remaining()!=8)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "PING length");
+                if((flags&FLAG_ACK)==0)
+                    queueFrame(PING, FLAG_ACK, 0, payload);
+                break;
+            case GOAWAY:
+                if(streamID!=0)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "GOAWAY on stream "+streamID);
+                if(payload.remaining()<8)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "GOAWAY length");
+                goAwayReceived(payload.getInt()&0x7FFFFFFF, payload.getInt());
+                break;
+            case WINDOW_UPDATE:
+                if(payload.remaining()!=4)
+                    throw new HTTP2Exception(FRAME_SIZE_ERROR, "WINDOW_UPDATE length");
+                windowUpdate(streamID, payload.getInt()&0x7FFFFFFF);
+                break;
+            default:
+                // unknown frames are ignored
+        }
+    }
+
+    /** tells whether given stream is not yet opened */
+    private boolean isIdle(int streamID){
+        if((streamID&1)==(server==null ? 1 : 0))
+            return streamID>=nextStreamID; // initiated by us
+        else
+            return streamID>lastPeerStreamID;
+    }
+
+    /*-------------------------------------------------[ Settings ]---------------------------------------------------*/
+
+    int peerInitialWindowSize = DEFAULT_WINDOW_SIZE;
+    int peerMaxFrameSize = MAX_FRAME_SIZE;
+    private int peerMaxConcurrentStreams = Integer.MAX_VALUE;
+
+    private void settings(ByteBuffer payload) throws IOException{
+        if(payload.remaining()%6!=0)
+            throw new HTTP2Exception(FRAME_SIZE_ERROR, "SETTINGS length");
+        while(payload.hasRemaining()){
+            int id = payload.getShort()&0xFFFF;
+            int value = payload.getInt();
+            switch(id){
+                case SETTINGS_HEADER_TABLE_SIZE:
+                    encoder.setMaxTableSize(value<0 ? Integer.MAX_VALUE : value);
+                    break;
+                case SETTINGS_ENABLE_PUSH:
+                    if(value!=0 && value!=1)
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH "+value);
+                    break;
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    peerMaxConcurrentStreams = value<0 ? Integer.MAX_VALUE : value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    if(value<0)
+                        throw new HTTP2Exception(FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE "+value);
+                    int delta = value-peerInitialWindowSize;
+                    peerInitialWindowSize = value;
+                    for(HTTP2Stream stream: streams.values()){
+                        if((long)stream.sendWindow+delta>Integer.MAX_VALUE)
+                            throw new HTTP2Exception(FLOW_CONTROL_ERROR, "window overflow");
+                        stream.sendWindow += delta;
+                        if(delta>0)
+                            stream.ready();
+                    }
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    if(value<MAX_FRAME_SIZE || value>0xFFFFFF)
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE "+value);
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // unknown settings are ignored
+            }
+        }
+        queueFrame(SETTINGS, FLAG_ACK, 0, null);
+        if(!settingsReceived){
+            settingsReceived = true;
+            if(server==null)
+                serveWaiters();
+        }
+    }
+
+    /*-------------------------------------------------[ Streams ]---------------------------------------------------*/
+
+    private final Map<Integer, HTTP2Stream> streams = new HashMap<>();
+    private int activeStreams; // streams not yet closed by user
+    private int lastPeerStreamID;
+    private int nextStreamID;
+
+    private final HPACK.Decoder decoder = new HPACK.Decoder();
+    private final HPACK.Encoder encoder = new HPACK.Encoder();
+    private ByteBuffer headerBlock;
+    private int headersStream;
+    private boolean headersEndStream;
+    private int continuationStream;
+    private final List<String> headerList = new ArrayList<>();
+    private int headerListSize;
+
+    private void appendHeaderBlock(ByteBuffer payload) throws HTTP2Exception{
+        if(headerBlock.remaining()<payload.remaining()){
+            int size = headerBlock.position()+payload.remaining();
+            if(size>MAX_HEADER_LIST_SIZE+MAX_FRAME_SIZE)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "header block too large");
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(size, 2*headerBlock.capacity()));
+            headerBlock.flip();
+            headerBlock = buffer.put(headerBlock);
+        }
+        headerBlock.put(payload);
+    }
+
+    @Override
+    public void header(String name, String value){
+        headerListSize += name.length()+value.length()+32;
+        headerList.add(name);
+        headerList.add(value);
+    }
+
+    private void headersReceived() throws IOException{
+        headerList.clear();
+        headerListSize = 0;
+        headerBlock.flip();
+        try{
+            decoder.decode(headerBlock, this);
+        }catch(IOException ex){
+            throw new HTTP2Exception(COMPRESSION_ERROR, ex.getMessage());
+        }
+
+        int streamID = headersStream;
+        HTTP2Stream stream = streams.get(streamID);
+        if(stream==null){
+            if(server==null || (streamID&1)==0 || streamID<=lastPeerStreamID){
+                if(isIdle(streamID))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "HEADERS on idle stream "+streamID);
+                return; // stream is closed
+            }
+            lastPeerStreamID = streamID;
+            if(goAwaySent)
+                return;
+            if(streams.size()>=MAX_CONCURRENT_STREAMS || headerListSize>MAX_HEADER_LIST_SIZE){
+                queueRstStream(streamID, REFUSED_STREAM);
+                return;
+            }
+            stream = new HTTP2Stream(this, streamID);
+            streams.put(streamID, stream);
+            ++activeStreams;
+            try{
+                stream.headersReceived(headerList, headersEndStream);
+            }catch(HTTP2Exception ex){
+                resetStream(stream, ex);
+                stream.close();
+                return;
+            }
+            server.serve(stream);
+        }else{
+            try{
+                if(headerListSize>MAX_HEADER_LIST_SIZE)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "header list too large");
+                stream.headersReceived(headerList, headersEndStream);
+            }catch(HTTP2Exception ex){
+                resetStream(stream, ex);
+            }
+        }
+    }
+
+    private void data(int flags, int streamID, ByteBuffer payload) throws IOException{
+        if(streamID==0)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        int length = payload.remaining();
+        recvWindow -= length;
+        if(recvWindow<0)
+            throw new HTTP2Exception(FLOW_CONTROL_ERROR, "connection window exceeded");
+
+        int padLength = 0;
+        if((flags&FLAG_PADDED)!=0 && payload.hasRemaining())
+            padLength = payload.get()&0xFF;
+        if(padLength>payload.remaining())
+            throw new HTTP2Exception(PROTOCOL_ERROR, "invalid padding");
+        payload.limit(payload.limit()-padLength);
+
+        HTTP2Stream stream = streams.get(streamID);
+        if(stream==null){
+            if(isIdle(streamID))
+                throw new HTTP2Exception(PROTOCOL_ERROR, "DATA on idle stream "+streamID);
+            consumed(null, length);
+            return;
+        }
+        stream.recvWindow -= length;
+        if(stream.recvWindow<0){
+            resetStream(stream, new HTTP2Exception(FLOW_CONTROL_ERROR, "stream window exceeded"));
+            consumed(null, length);
+            return;
+        }
+        // data is credited by reader as it consumes. padding is credited now
+        int dataLength = payload.remaining();
+        int uncredited = stream.uncredited;
+        try{
+            stream.dataReceived(payload, (flags&FLAG_END_STREAM)!=0);
+        }catch(HTTP2Exception ex){
+            resetStream(stream, ex);
+            // data rejected before stream took it, so reader never credits it
+            if(stream.uncredited==uncredited)
+                consumed(null, dataLength);
+        }
+        if(length>dataLength)
+            consumed(stream, length-dataLength);
+    }
+
+    private void resetStream(HTTP2Stream stream, HTTP2Exception ex){
+        if(HTTP)
+            println(stream+": "+ex.getMessage());
+        queueRstStream(stream.id, ex.errorCode);
+        streams.remove(stream.id);
+        stream.reset(ex);
+    }
+
+    /** called when stream is closed by its user */
+    void streamClosed(HTTP2Stream stream){
+        --activeStreams;
+        int discarded = stream.discardInput();
+        if(closed)
+            return;
+        if(stream.id!=0 && !stream.isReset()){
+            if(!stream.endStreamSent){
+                if(stream.outputPending())
+                    queueData(stream, null, 0, true);
+                else
+                    queueRstStream(stream.id, CANCEL);
+            }else if(!stream.endStreamReceived)
+                queueRstStream(stream.id, server==null ? CANCEL : NO_ERROR);
+        }
+        if(streams.get(stream.id)==stream)
+            streams.remove(stream.id);
+        if(discarded>0)
+            consumed(null, discarded);
+        if(server==null)
+            serveWaiters();
+        if((goAwaySent || goAwayReceived) && activeStreams==0)
+            finishing = true;
+        wakeup();
+    }
+
+    /*-------------------------------------------------[ Flow Control ]---------------------------------------------------*/
+
+    int sendWindow = DEFAULT_WINDOW_SIZE;
+    private int recvWindow = CONNECTION_WINDOW_SIZE;
+    private int unacked;
+
+    /** called when reader consumed data from stream. stream is null if data is discarded */
+    void consumed(HTTP2Stream stream, int length){
+        if(closed)
+            return;
+        unacked += length;
+        if(unacked>=CONNECTION_WINDOW_SIZE/2){
+            queueWindowUpdate(0, unacked);
+            recvWindow += unacked;
+            unacked = 0;
+        }
+        if(stream!=null && !stream.endStreamReceived && !stream.isReset()){
+            stream.unacked += length;
+            if(stream.unacked>=INITIAL_WINDOW_SIZE/2){
+                queueWindowUpdate(stream.id, stream.unacked);
+                stream.recvWindow += stream.unacked;
+                stream.unacked = 0;
+            }
+        }
+    }
+
+    private void windowUpdate(int streamID, int increment) throws HTTP2Exception{
+        if(streamID==0){
+            if(increment==0)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE with zero increment");
+            if((long)sendWindow+increment>Integer.MAX_VALUE)
+                throw new HTTP2Exception(FLOW_CONTROL_ERROR, "connection window overflow");
+            boolean blocked = sendWindow<=0;
+            sendWindow += increment;
+            if(blocked && sendWindow>0){
+                for(HTTP2Stream stream: streams.values())
+                    stream.ready();
+            }
+        }else{
+            if(isIdle(streamID))
+                throw new HTTP2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream "+streamID);
+            HTTP2Stream stream = streams.get(streamID);
+            if(stream==null)
+                return;
+            if(increment==0)
+                resetStream(stream, new HTTP2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE with zero increment"));
+            else if((long)stream.sendWindow+increment>Integer.MAX_VALUE)
+                resetStream(stream, new HTTP2Exception(FLOW_CONTROL_ERROR, "stream window overflow"));
+            else{
+                stream.sendWindow += increment;
+                stream.ready();
+            }
+        }
+    }
+
+    /*-------------------------------------------------[ GoAway ]---------------------------------------------------*/
+
+    private boolean goAwaySent;
+    private boolean goAwayReceived;
+
+    private void goAway(int errorCode, String debug){
+        if(!goAwaySent){
+            goAwaySent = true;
+            byte debugData[] = debug==null ? new byte[0] : debug.getBytes();
+            ByteBuffer payload = ByteBuffer.allocate(8+debugData.length);
+            payload.putInt(lastPeerStreamID).putInt(errorCode).put(debugData).flip();
+            queueFrame(GOAWAY, 0, 0, payload);
+        }
+        if(errorCode!=NO_ERROR){
+            release(new HTTP2Exception(errorCode, debug));
+            closed = false; // output is yet to be flushed
+            finishing = true;
+        }else if(activeStreams==0)
+            finishing = true;
+        if(server==null)
+            clientClosed(null);
+    }
+
+    private void goAwayReceived(int lastStreamID, int errorCode){
+        goAwayReceived = true;
+        HTTP2Exception ex = new HTTP2Exception(errorCode, "connection closed by peer");
+        for(HTTP2Stream stream: new ArrayList<>(streams.values())){
+            if(errorCode!=NO_ERROR || stream.id>lastStreamID){
+                streams.remove(stream.id);
+                stream.reset(ex);
+            }
+        }
+        if(server==null)
+            clientClosed(null);
+        if(activeStreams==0)
+            finishing = true;
+    }
+
+    /*-------------------------------------------------[ Write Frames ]---------------------------------------------------*/
+
+    private final Buffers outQueue = new Buffers();
+    private long queued;
+    private boolean outputBlocked;
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(9);
+    private ByteBuffer headersOut;
+
+    /** tells whether more frames can be queued, without exceeding OUTPUT_QUEUE_SIZE */
+    boolean canQueue(){
+        if(queued<OUTPUT_QUEUE_SIZE)
+            return true;
+        outputBlocked = true;
+        return false;
+    }
+
+    private void queue(ByteBuffer src, int length){
+        queued += length;
+        while(length>0){
+            ByteBuffer last = outQueue.length==0 ? null : outQueue.peekLast();
+            if(last==null || last.limit()==last.capacity()){
+                last = allocator.allocate();
+                last.limit(0);
+                outQueue.append(last);
+            }
+            int pos = last.position();
+            last.position(last.limit());
+            last.limit(last.capacity());
+            int min = Math.min(length, last.remaining());
+            int srcLimit = src.limit();
+            src.limit(src.position()+min);
+            last.put(src);
+            src.limit(srcLimit);
+            last.limit(last.position());
+            last.position(pos);
+            length -= min;
+        }
+    }
+
+    private void queueFrameHeader(int length, int type, int flags, int streamID){
+        frameHeader.clear();
+        frameHeader.put((byte)(length>>>16)).put((byte)(length>>>8)).put((byte)length);
+        frameHeader.put((byte)type).put((byte)flags).putInt(streamID);
+        frameHeader.flip();
+        queue(frameHeader, 9);
+    }
+
+    private void queueFrame(int type, int flags, int streamID, ByteBuffer payload){
+        int length = payload==null ? 0 : payload.remaining();
+        queueFrameHeader(length, type, flags, streamID);
+        if(length>0)
+            queue(payload, length);
+        wakeup();
+    }
+
+    private void queueRstStream(int streamID, int errorCode){
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(errorCode).flip();
+        queueFrame(RST_STREAM, 0, streamID, payload);
+    }
+
+    private void queueWindowUpdate(int streamID, int increment){
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(increment).flip();
+        queueFrame(WINDOW_UPDATE, 0, streamID, payload);
+    }
+
+    void queueHeaders(HTTP2Stream stream, List<String> headers, boolean endStream) throws IOException{
+        if(closed)
+            throw new IOException("connection closed");
+        if(stream.id==0){
+            if(goAwayReceived || goAwaySent)
+                throw new HTTP2Exception(REFUSED_STREAM, "connection is closing");
+            stream.id = nextStreamID;
+            nextStreamID += 2;
+            streams.put(stream.id, stream);
+        }
+
+        int max = 5;
+        for(int i=0; i<headers.size(); i+=2)
+            max += HPACK.Encoder.maxLength(headers.get(i), headers.get(i+1));
+        if(headersOut.capacity()<max)
+            headersOut = ByteBuffer.allocate(Math.max(max, 2*headersOut.capacity()));
+        headersOut.clear();
+        encoder.startBlock(headersOut);
+        for(int i=0; i<headers.size(); i+=2)
+            encoder.encode(headers.get(i), headers.get(i+1), headersOut);
+        headersOut.flip();
+
+        if(HTTP)
+            println(stream+".headers("+headers+", endStream="+endStream+")");
+        int type = HEADERS;
+        int flags = endStream ? FLAG_END_STREAM : 0;
+        do{
+            int length = Math.min(headersOut.remaining(), peerMaxFrameSize);
+            if(length==headersOut.remaining())
+                flags |= FLAG_END_HEADERS;
+            queueFrameHeader(length, type, flags, stream.id);
+            queue(headersOut, length);
+            type = CONTINUATION;
+            flags = 0;
+        }while(headersOut.hasRemaining());
+        if(endStream)
+            stream.endStreamSent = true;
+        wakeup();
+    }
+
+    /** caller must ensure that length does not exceed flow control windows and peer's max frame size */
+    void queueData(HTTP2Stream stream, ByteBuffer src, int length, boolean endStream){
+        queueFrameHeader(length, DATA, endStream ? FLAG_END_STREAM : 0, stream.id);
+        if(length>0)
+            queue(src, length);
+        stream.sendWindow -= length;
+        sendWindow -= length;
+        if(endStream)
+            stream.endStreamSent = true;
+        wakeup();
+    }
+
+    private void flushFrames(){
+        try{
+            while(outQueue.length>0){
+                long wrote = out.write(outQueue.array, outQueue.offset, outQueue.length);
+                outQueue.removeEmpty(allocator);
+                if(wrote==0)
+                    break;
+                queued -= wrote;
+            }
+            if(outQueue.length>0 || !out.flush())
+                out.addWriteInterest();
+        }catch(IOException ex){
+            abort(ex);
+            return;
+        }
+        if(outputBlocked && queued<OUTPUT_QUEUE_SIZE){
+            outputBlocked = false;
+            for(HTTP2Stream stream: new ArrayList<>(streams.values()))
+                stream.ready();
+        }
+    }
+
+    @Override
+    public String toString(){
+        return "HTTP2Connection["+(in==null ? endpoint : in.channel())+"]";
+    }
+
+    /*-------------------------------------------------[ Client ]---------------------------------------------------*/
+
+    private static final String H2[] = { "h2" };
+    private static final ThreadLocal<Map<String, HTTP2Connection>> CLIENT_CONNECTIONS = ThreadLocal.withInitial(HashMap::new);
+
+    private String poolKey;
+    private final Deque<Consumer<Result<Connection>>> waiters = new ArrayDeque<>();
+
+    /**
+     * gives new stream to given endpoint. streams of same endpoint are multiplexed
+     * on single connection per reactor. server must support HTTP/2 with prior knowledge
+     * or over TLS with ALPN
+     */
+    static void getStream(TCPEndpoint endpoint, Consumer<Result<Connection>> listener){
+        Map<String, HTTP2Connection> connections = CLIENT_CONNECTIONS.get();
+        String key = (endpoint.sslContext==null ? "http://" : "https://")+endpoint;
+        HTTP2Connection connection = connections.get(key);
+        if(connection==null){
+            connection = new HTTP2Connection(endpoint);
+            connection.poolKey = key;
+            connections.put(key, connection);
+            connection.waiters.add(listener);
+            connection.connect();
+        }else{
+            connection.waiters.add(listener);
+            connection.serveWaiters();
+        }
+    }
+
+    private void connect(){
+        TCPEndpoint h2Endpoint = new TCPEndpoint(endpoint.host, endpoint.port);
+        h2Endpoint.sslContext = endpoint.sslContext;
+        h2Endpoint.applicationProtocols = H2;
+        h2Endpoint.newConnection(result -> {
+            try{
+                new IOListener().start(this, result.get());
+            }catch(Throwable thr){
+                clientClosed(thr);
+            }
+        }, null);
+    }
+
+    private void serveWaiters(){
+        // streams are created only after server's SETTINGS, to respect its MAX_CONCURRENT_STREAMS
+        while(!waiters.isEmpty() && settingsReceived && !finishing && !closed && !goAwaySent && !goAwayReceived
+                && activeStreams<peerMaxConcurrentStreams){
+            Consumer<Result<Connection>> waiter = waiters.poll();
+            HTTP2Stream stream;
+            try{
+                stream = new HTTP2Stream(this, 0);
+            }catch(Throwable thr){
+                waiter.accept(new Result<>(thr));
+                continue;
+            }
+            ++activeStreams;
+            waiter.accept(new Result<>(stream));
+        }
+    }
+
+    /** no more streams can be created on this connection */
+    private void clientClosed(Throwable thr){
+        Map<String, HTTP2Connection> connections = CLIENT_CONNECTIONS.get();
+        if(poolKey!=null && connections.get(poolKey)==this)
+            connections.remove(poolKey);
+        while(!waiters.isEmpty()){
+            Consumer<Result<Connection>> waiter = waiters.poll();
+            if(thr==null)
+                getStream(endpoint, waiter); // on new connection
+            else
+                waiter.accept(new Result<>(thr));
+        }
+    }
+
+    /*-------------------------------------------------[ Server ]---------------------------------------------------*/
+
+    /**
+     * detects whether client speaks HTTP/2, by looking for connection preface.
+     * this allows both HTTP/1.1 and prior-knowledge HTTP/2 on same port
+     */
+    static final class Detect extends Task{
+        private final HTTPServer server;
+        private ByteBuffer buffer;
+        private boolean done;
+
+        Detect(HTTPServer server){
+            super(OP_READ);
+            this.server = server;
+        }
+
+        @Override
+        protected boolean process(int readyOp) throws IOException{
+            if(done)
+                return true;
+            if(buffer==null){
+                buffer = in.channel().reactor().allocator.allocate();
+                buffer.limit(PREFACE.length);
+            }
+            try{
+                while(true){
+                    int read = in.read(buffer);
+                    if(read==-1){
+                        done = true;
+                        in.channel().reactor().allocator.free(buffer);
+                        in.channel().close();
+                        return true;
+                    }
+                    boolean http2 = true;
+                    for(int i=0; i<buffer.position(); i++){
+                        if(buffer.get(i)!=PREFACE[i]){
+                            http2 = false;
+                            break;
+                        }
+                    }
+                    if(http2 && buffer.hasRemaining()){
+                        if(read==0){
+                            in.addReadInterest();
+                            return false;
+                        }
+                        continue;
+                    }
+                    done = true;
+                    buffer.flip();
+                    in = new BufferInput(in, buffer);
+                    buffer = null;
+                    setChild(http2 ? new HTTP2Connection(server) : new ServerExchange(server));
+                    return true;
+                }
+            }catch(IOException ex){
+                done = true;
+                if(buffer!=null)
+                    in.channel().reactor().allocator.free(buffer);
+                in.channel().close();
+                return true;
+            }
+        }
+
+        @Override
+        public String toString(){
+            return "HTTP2Detect";
+        }
+    }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    public static int MAX_CONCURRENT_STREAMS = 100;
+
+    /** receive window of each stream. must not be less than 65535 */
+    public static int INITIAL_WINDOW_SIZE = 256*1024;
+
+    /** receive window of connection. must not be less than 65535 */
+    public static int CONNECTION_WINDOW_SIZE = 1024*1024;
+
+    public static int MAX_HEADER_LIST_SIZE = 64*1024;
+
+    /** frames queued beyond this size, make streams unwritable until queue is flushed */
+    public static int OUTPUT_QUEUE_SIZE = 64*1024;
+}
@@ -0,0 +1,43 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import java.io.IOException;
+
+/**
+ * error defined by HTTP/2, either on connection or on single stream
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class HTTP2Exception extends IOException{
+    public final int errorCode;
+
+    public HTTP2Exception(int errorCode, String message){
+        super(errorName(errorCode)+": "+message);
+        this.errorCode = errorCode;
+    }
+
+    private static final String NAMES[] = {
+        "NO_ERROR", "PROTOCOL_ERROR", "INTERNAL_ERROR", "FLOW_CONTROL_ERROR",
+        "SETTINGS_TIMEOUT", "STREAM_CLOSED", "FRAME_SIZE_ERROR", "REFUSED_STREAM",
+        "CANCEL", "COMPRESSION_ERROR", "CONNECT_ERROR", "ENHANCE_YOUR_CALM",
+        "INADEQUATE_SECURITY", "HTTP_1_1_REQUIRED"
+    };
+
+    public static String errorName(int errorCode){
+        return errorCode>=0 && errorCode<NAMES.length ? NAMES[errorCode] : "0x"+Integer.toHexString(errorCode);
+    }
+}
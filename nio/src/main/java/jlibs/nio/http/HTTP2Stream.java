@@ -0,0 +1,658 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Connection;
+import jlibs.nio.http.msg.*;
+import jlibs.nio.http.msg.parser.MessageParser;
+import jlibs.nio.http.msg.parser.RequestParser;
+import jlibs.nio.http.msg.parser.ResponseParser;
+import jlibs.nio.http.util.HPACK;
+import jlibs.nio.util.Buffers;
+import jlibs.nio.util.NIOUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.channels.spi.AbstractSelectableChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
+import static jlibs.nio.Debugger.HTTP;
+import static jlibs.nio.Debugger.println;
+import static jlibs.nio.http.HTTP2Connection.*;
+
+/**
+ * HTTP/2 stream, presented as connection carrying single HTTP/1.1 exchange.
+ * <p>
+ * frames received are translated to HTTP/1.1 message for the reader, and
+ * HTTP/1.1 message written is translated to frames. Thus {@link ServerExchange},
+ * {@link ClientExchange} and their filters work on HTTP/2 without changes.
+ * <p>
+ * request has Content-Length, or is chunked if its length is not known.
+ * trailers are forwarded only for chunked messages.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class HTTP2Stream extends Connection<HTTP2Stream.Pipe>{
+    public final HTTP2Connection connection;
+    int id;
+
+    HTTP2Stream(HTTP2Connection connection, int id) throws IOException{
+        super(new Pipe(), new Key());
+        selectable.stream = this;
+        this.connection = connection;
+        this.id = id;
+        uniqueID = "S"+id;
+        sendWindow = connection.peerInitialWindowSize;
+        recvWindow = INITIAL_WINDOW_SIZE;
+    }
+
+    public int getID(){
+        return id;
+    }
+
+    @Override
+    public long getTimeout(){
+        // peer liveness is tracked by connection
+        return 0;
+    }
+
+    /*-------------------------------------------------[ Readiness ]---------------------------------------------------*/
+
+    private boolean dispatchScheduled;
+    private final Runnable dispatcher = () -> {
+        dispatchScheduled = false;
+        if(selectable.isOpen() && (selectionKey.interestOps()&readyOps())!=0){
+            makeActive();
+            process(false);
+        }
+    };
+
+    /** called when stream's readiness might have changed */
+    void ready(){
+        if(!dispatchScheduled && (selectionKey.interestOps()&readyOps())!=0){
+            dispatchScheduled = true;
+            reactor().invokeLater(dispatcher);
+        }
+    }
+
+    private int readyOps(){
+        int ops = 0;
+        if(error!=null || inBuffers.length>0 || endStreamReceived)
+            ops |= OP_READ;
+        if(error!=null || outState==OUT_DONE || connection.canQueue() && (outState==OUT_HEAD || Math.min(sendWindow, connection.sendWindow)>0))
+            ops |= OP_WRITE;
+        return ops;
+    }
+
+    private IOException error;
+
+    /** stream is reset or connection failed */
+    void reset(IOException error){
+        if(this.error==null){
+            if(HTTP)
+                println(this+".reset("+error.getMessage()+")");
+            this.error = error;
+            ready();
+        }
+    }
+
+    boolean isReset(){
+        return error!=null;
+    }
+
+    /*-------------------------------------------------[ Inbound ]---------------------------------------------------*/
+
+    private final Buffers inBuffers = new Buffers();
+    private boolean headReceived;
+    private boolean inChunked;
+    private long inRemaining = -1;
+    private Method requestMethod;
+    boolean endStreamReceived;
+
+    int recvWindow;
+    int uncredited; // DATA bytes received, but not yet consumed by reader
+    int unacked;    // DATA bytes consumed, but not yet announced with WINDOW_UPDATE
+
+    void headersReceived(List<String> headers, boolean endStream) throws HTTP2Exception{
+        if(endStreamReceived)
+            throw new HTTP2Exception(STREAM_CLOSED, "headers after end of stream");
+        StringBuilder buf = new StringBuilder();
+        if(headReceived){
+            // trailers
+            if(!endStream)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "trailers without end of stream");
+            if(inChunked){
+                buf.append("0\r\n");
+                appendHeaders(buf, headers, false);
+                buf.append("\r\n");
+                inBuffers.write(buf.toString());
+                inChunked = false;
+            }
+            endOfInput();
+            return;
+        }
+
+        String contentLength = null;
+        if(connection.server!=null){
+            String method = null, scheme = null, authority = null, path = null;
+            for(int i=0; i<headers.size(); i+=2){
+                String name = headers.get(i);
+                if(name.startsWith(":")){
+                    String value = headers.get(i+1);
+                    if(name.equals(":method"))
+                        method = value;
+                    else if(name.equals(":scheme"))
+                        scheme = value;
+                    else if(name.equals(":authority"))
+                        authority = value;
+                    else if(name.equals(":path"))
+                        path = value;
+                    else
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "invalid pseudo header "+name);
+                }else if(name.equals("content-length"))
+                    contentLength = headers.get(i+1);
+                else if(name.equals("host") && authority==null)
+                    authority = headers.get(i+1);
+            }
+            if(method==null || scheme==null || path==null || path.isEmpty())
+                throw new HTTP2Exception(PROTOCOL_ERROR, "missing pseudo headers");
+            requestMethod = Method.valueOf(method);
+            if(requestMethod==Method.CONNECT)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "CONNECT is not supported");
+            buf.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            if(authority!=null)
+                buf.append("Host: ").append(authority).append("\r\n");
+            appendHeaders(buf, headers, true);
+            headReceived = true;
+        }else{
+            int code = -1;
+            for(int i=0; i<headers.size(); i+=2){
+                String name = headers.get(i);
+                if(name.equals(":status")){
+                    try{
+                        code = Integer.parseInt(headers.get(i+1));
+                    }catch(NumberFormatException ex){
+                        throw new HTTP2Exception(PROTOCOL_ERROR, "invalid :status");
+                    }
+                }else if(name.startsWith(":"))
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "invalid pseudo header "+name);
+                else if(name.equals("content-length"))
+                    contentLength = headers.get(i+1);
+            }
+            if(code<100 || code>999)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "missing :status");
+            Status status = Status.valueOf(code);
+            buf.append("HTTP/1.1 ").append(code).append(' ').append(status.reason).append("\r\n");
+            appendHeaders(buf, headers, false);
+            if(status.isInformational()){
+                if(endStream)
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "informational response with end of stream");
+                buf.append("\r\n");
+                inBuffers.write(buf.toString());
+                ready();
+                return;
+            }
+            headReceived = true;
+            if(endStream && contentLength==null && !status.payloadNotAllowed && requestMethod!=Method.HEAD)
+                buf.append("Content-Length: 0\r\n");
+            else if(requestMethod==Method.HEAD || status.payloadNotAllowed)
+                contentLength = null;
+        }
+
+        if(contentLength!=null){
+            try{
+                inRemaining = Long.parseLong(contentLength);
+            }catch(NumberFormatException ex){
+                throw new HTTP2Exception(PROTOCOL_ERROR, "invalid content-length");
+            }
+        }else if(!endStream && (connection.server!=null || requestMethod!=Method.HEAD)){
+            buf.append("Transfer-Encoding: chunked\r\n");
+            inChunked = true;
+        }
+        buf.append("\r\n");
+        inBuffers.write(buf.toString());
+        if(endStream)
+            endOfInput();
+        ready();
+    }
+
+    private static void appendHeaders(StringBuilder buf, List<String> headers, boolean request) throws HTTP2Exception{
+        String cookie = null;
+        for(int i=0; i<headers.size(); i+=2){
+            String name = headers.get(i);
+            if(name.startsWith(":") || name.equals("host"))
+                continue;
+            for(int j=0; j<name.length(); j++){
+                char ch = name.charAt(j);
+                if(ch>='A' && ch<='Z')
+                    throw new HTTP2Exception(PROTOCOL_ERROR, "uppercase header name "+name);
+            }
+            if(isConnectionSpecific(name))
+                throw new HTTP2Exception(PROTOCOL_ERROR, "connection-specific header "+name);
+            String value = headers.get(i+1);
+            if(request && name.equals("cookie")){
+                // rfc7540, section 8.1.2.5
+                cookie = cookie==null ? value : cookie+"; "+value;
+                continue;
+            }
+            buf.append(name).append(": ").append(value).append("\r\n");
+        }
+        if(cookie!=null)
+            buf.append("cookie: ").append(cookie).append("\r\n");
+    }
+
+    private static boolean isConnectionSpecific(String name){
+        switch(name){
+            case "connection":
+            case "keep-alive":
+            case "proxy-connection":
+            case "transfer-encoding":
+            case "upgrade":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    void dataReceived(ByteBuffer data, boolean endStream) throws HTTP2Exception{
+        if(!headReceived)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "data before headers");
+        if(endStreamReceived)
+            throw new HTTP2Exception(STREAM_CLOSED, "data after end of stream");
+        int length = data.remaining();
+        if(inRemaining!=-1){
+            if(length>inRemaining)
+                throw new HTTP2Exception(PROTOCOL_ERROR, "data exceeds content-length");
+            inRemaining -= length;
+        }
+        uncredited += length;
+        if(length>0){
+            if(inChunked)
+                inBuffers.write(Integer.toHexString(length)+"\r\n");
+            inBuffers.write(data);
+            if(inChunked)
+                inBuffers.write("\r\n");
+        }
+        if(endStream)
+            endOfInput();
+        ready();
+    }
+
+    private void endOfInput() throws HTTP2Exception{
+        endStreamReceived = true;
+        if(inRemaining>0)
+            throw new HTTP2Exception(PROTOCOL_ERROR, "data less than content-length");
+        if(inChunked)
+            inBuffers.write("0\r\n\r\n");
+        ready();
+    }
+
+    private int read(ByteBuffer dst) throws IOException{
+        if(error!=null)
+            throw error;
+        if(inBuffers.length==0)
+            return endStreamReceived ? -1 : 0;
+        int read = 0;
+        while(inBuffers.length>0){
+            ByteBuffer src = inBuffers.peek();
+            read += NIOUtil.copy(src, dst);
+            if(src.hasRemaining())
+                break;
+            reactor().allocator.free(inBuffers.remove());
+        }
+        if(uncredited>0){
+            int credit = Math.min(read, uncredited);
+            uncredited -= credit;
+            connection.consumed(this, credit);
+        }
+        return read;
+    }
+
+    /*-------------------------------------------------[ Outbound ]---------------------------------------------------*/
+
+    private static final int OUT_HEAD        = 0;
+    private static final int OUT_LENGTH      = 1;
+    private static final int OUT_CHUNK_SIZE  = 2;
+    private static final int OUT_CHUNK_DATA  = 3;
+    private static final int OUT_CHUNK_CRLF  = 4;
+    private static final int OUT_TRAILERS    = 5;
+    private static final int OUT_UNTIL_CLOSE = 6;
+    private static final int OUT_DONE        = 7;
+
+    private int outState = OUT_HEAD;
+    private MessageParser parser;
+    private Message outMessage;
+    private boolean pendingCR;
+    private long outRemaining;
+    private boolean chunkExtension;
+    private int lineLength;
+    int sendWindow;
+    boolean endStreamSent;
+
+    private int write(ByteBuffer src) throws IOException{
+        if(error!=null)
+            throw error;
+        int pos = src.position();
+        loop:
+        while(src.hasRemaining()){
+            switch(outState){
+                case OUT_HEAD:
+                    if(parseHead(src))
+                        headWritten();
+                    break;
+                case OUT_LENGTH:
+                    outRemaining -= sendData(src, outRemaining, true);
+                    if(outRemaining==0)
+                        outState = OUT_DONE;
+                    else if(src.hasRemaining())
+                        break loop;
+                    break;
+                case OUT_CHUNK_SIZE:
+                    byte b = src.get();
+                    if(b=='\n'){
+                        chunkExtension = false;
+                        if(outRemaining==0){
+                            lineLength = 0;
+                            outState = OUT_TRAILERS;
+                        }else
+                            outState = OUT_CHUNK_DATA;
+                    }else if(b==';')
+                        chunkExtension = true;
+                    else if(!chunkExtension && b!='\r' && b!=' ' && b!='\t'){
+                        int digit = Character.digit(b, 16);
+                        if(digit==-1 || outRemaining>=(1L<<58))
+                            throw new IOException("invalid chunk size");
+                        outRemaining = (outRemaining<<4)|digit;
+                    }
+                    break;
+                case OUT_CHUNK_DATA:
+                    outRemaining -= sendData(src, outRemaining, false);
+                    if(outRemaining==0)
+                        outState = OUT_CHUNK_CRLF;
+                    else if(src.hasRemaining())
+                        break loop;
+                    break;
+                case OUT_CHUNK_CRLF:
+                    if(src.get()=='\n')
+                        outState = OUT_CHUNK_SIZE;
+                    break;
+                case OUT_TRAILERS:
+                    // trailers of outgoing messages are dropped
+                    b = src.get();
+                    if(b=='\n'){
+                        if(lineLength==0){
+                            connection.queueData(this, src, 0, true);
+                            outState = OUT_DONE;
+                        }
+                        lineLength = 0;
+                    }else if(b!='\r')
+                        ++lineLength;
+                    break;
+                case OUT_UNTIL_CLOSE:
+                    sendData(src, Long.MAX_VALUE, false);
+                    if(src.hasRemaining())
+                        break loop;
+                    break;
+                case OUT_DONE:
+                    throw new IOException("message already written");
+            }
+        }
+        return src.position()-pos;
+    }
+
+    /** returns number of bytes sent, which is limited by flow control */
+    private int sendData(ByteBuffer src, long max, boolean endStream){
+        int sent = 0;
+        while(src.hasRemaining() && max>0 && connection.canQueue()){
+            int length = (int)Math.min(Math.min(src.remaining(), max), Math.min(Math.min(sendWindow, connection.sendWindow), connection.peerMaxFrameSize));
+            if(length<=0)
+                break;
+            connection.queueData(this, src, length, endStream && length==max);
+            max -= length;
+            sent += length;
+        }
+        return sent;
+    }
+
+    private boolean parseHead(ByteBuffer src){
+        if(outMessage==null){
+            if(parser==null)
+                parser = connection.server==null ? new RequestParser(0) : new ResponseParser();
+            outMessage = connection.server==null ? new Request() : new Response();
+            parser.reset(outMessage);
+        }
+        if(pendingCR){
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            buffer.put((byte)'\r').put(src.get()).flip();
+            pendingCR = false;
+            if(parser.parse(buffer, false))
+                return true;
+            if(!src.hasRemaining())
+                return false;
+        }
+        if(parser.parse(src, false))
+            return true;
+        if(src.hasRemaining()){
+            // parser needs the byte following CR
+            src.get();
+            pendingCR = true;
+        }
+        return false;
+    }
+
+    private void headWritten() throws IOException{
+        Message message = outMessage;
+        outMessage = null;
+        List<String> headers = new ArrayList<>();
+        boolean hasPayload;
+        if(message instanceof Request){
+            Request request = (Request)message;
+            requestMethod = request.method;
+            headers.add(":method");
+            headers.add(request.method.name);
+            headers.add(":scheme");
+            headers.add(connection.scheme());
+            String host = request.headers.value(Request.HOST);
+            if(host!=null){
+                headers.add(":authority");
+                headers.add(host);
+            }
+            headers.add(":path");
+            headers.add(request.uri);
+            hasPayload = request.isChunked() || request.getContentLength()>0;
+        }else{
+            Response response = (Response)message;
+            if(response.status.isInformational()){
+                if(response.status.code==101)
+                    throw new IOException("protocol switching is not supported by HTTP/2");
+                headers.add(":status");
+                headers.add(String.valueOf(response.status.code));
+                addHeaders(headers, message);
+                connection.queueHeaders(this, headers, false);
+                return;
+            }
+            headers.add(":status");
+            headers.add(String.valueOf(response.status.code));
+            hasPayload = requestMethod!=Method.HEAD && !response.status.payloadNotAllowed
+                    && (response.isChunked() || response.getContentLength()!=0);
+        }
+        addHeaders(headers, message);
+
+        if(!hasPayload)
+            outState = OUT_DONE;
+        else if(message.isChunked()){
+            outState = OUT_CHUNK_SIZE;
+            outRemaining = 0;
+        }else if(message.getContentLength()>0){
+            outState = OUT_LENGTH;
+            outRemaining = message.getContentLength();
+        }else
+            outState = OUT_UNTIL_CLOSE;
+        connection.queueHeaders(this, headers, outState==OUT_DONE);
+    }
+
+    private static void addHeaders(List<String> headers, Message message){
+        for(Header header=message.headers.getFirst(); header!=null; header=header.next()){
+            String name = HPACK.toLowerCase(header.getName().toString());
+            if(isConnectionSpecific(name) || name.equals("host"))
+                continue;
+            headers.add(name);
+            headers.add(header.getValue());
+        }
+    }
+
+    /*-------------------------------------------------[ Close ]---------------------------------------------------*/
+
+    boolean outputPending(){
+        return outState==OUT_UNTIL_CLOSE;
+    }
+
+    /** frees received data that is not consumed by reader, and returns its length */
+    int discardInput(){
+        while(inBuffers.length>0)
+            reactor().allocator.free(inBuffers.remove());
+        int discarded = uncredited;
+        uncredited = 0;
+        return discarded;
+    }
+
+    @Override
+    public String toString(){
+        return "HTTP2Stream"+id+"["+connection+"]";
+    }
+
+    /*-------------------------------------------------[ Pipe ]---------------------------------------------------*/
+
+    /** channel used by {@link jlibs.nio.Socket} to read from and write to stream */
+    public static final class Pipe extends AbstractSelectableChannel implements ScatteringByteChannel, GatheringByteChannel{
+        private HTTP2Stream stream;
+
+        private Pipe(){
+            super(SelectorProvider.provider());
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException{
+            return stream.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException{
+            long read = 0;
+            for(int i=0; i<length; i++){
+                ByteBuffer dst = dsts[offset+i];
+                if(!dst.hasRemaining())
+                    continue;
+                int r = stream.read(dst);
+                if(r==-1)
+                    return read==0 ? -1 : read;
+                read += r;
+                if(dst.hasRemaining())
+                    break;
+            }
+            return read;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) throws IOException{
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException{
+            return stream.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException{
+            long wrote = 0;
+            for(int i=0; i<length; i++){
+                ByteBuffer src = srcs[offset+i];
+                wrote += stream.write(src);
+                if(src.hasRemaining())
+                    break;
+            }
+            return wrote;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException{
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int validOps(){
+            return OP_READ|OP_WRITE;
+        }
+
+        @Override
+        protected void implConfigureBlocking(boolean block){}
+
+        @Override
+        protected void implCloseSelectableChannel(){
+            stream.connection.streamClosed(stream);
+        }
+    }
+
+    /** interest and readiness of stream */
+    private static final class Key extends SelectionKey{
+        private int interestOps;
+
+        private HTTP2Stream stream(){
+            return (HTTP2Stream)attachment();
+        }
+
+        @Override
+        public SelectableChannel channel(){
+            return stream().selectable;
+        }
+
+        @Override
+        public Selector selector(){
+            return null;
+        }
+
+        @Override
+        public boolean isValid(){
+            return stream().selectable.isOpen();
+        }
+
+        @Override
+        public void cancel(){}
+
+        @Override
+        public int interestOps(){
+            return interestOps;
+        }
+
+        @Override
+        public SelectionKey interestOps(int ops){
+            interestOps = ops;
+            stream().ready();
+            return this;
+        }
+
+        @Override
+        public int readyOps(){
+            return stream().readyOps();
+        }
+    }
+}
@@ -33,6 +33,7 @@ import java.util.Collections;
 public class HTTPClient{
     public Collection<ClientFilter> requestFilters = Collections.emptyList();
     public Collection<ClientFilter> responseFilters = Collections.emptyList();
+    public Collection<ClientFilter> errorFilters = Collections.emptyList();
 
     public ClientExchange newExchange(TCPEndpoint endpoint){
         return new ClientExchange(this, endpoint);
@@ -49,6 +50,8 @@ public class HTTPClient{
     public long maxResponseHeadSize = Defaults.MAX_RESPONSE_HEAD_SIZE;
     public String userAgent = Defaults.USER_AGENT;
     public long keepAliveTimeout = Defaults.KEEP_ALIVE_TIMEOUT;
+    public boolean http2 = Defaults.HTTP2;
+    public boolean lazyHeaderValues = Defaults.LAZY_HEADER_VALUES;
 
     public AccessLog accessLog;
     public LogHandler logHandler = ConsoleLogHandler.INSTANCE;
@@ -65,5 +68,14 @@ public class HTTPClient{
 
         // 0=turn off, +ve=turn on, -ve=respect what is there in request
         public static long KEEP_ALIVE_TIMEOUT = -60000L;
+
+        /**
+         * send requests over HTTP/2 (prior knowledge, or ALPN with TLS),
+         * multiplexed on single connection per reactor. ignored when proxy is used
+         */
+        public static boolean HTTP2 = false;
+
+        /** decode response header values into String only when they are accessed */
+        public static boolean LAZY_HEADER_VALUES = true;
     }
 }
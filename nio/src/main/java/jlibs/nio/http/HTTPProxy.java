@@ -23,7 +23,6 @@ import jlibs.nio.http.msg.Response;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.listeners.WriteToOutputStream;
 
-import javax.net.ssl.SSLEngine;
 import java.util.function.Consumer;
 
 /**
@@ -82,9 +81,7 @@ public class HTTPProxy extends Proxy{
                 Connection con = exchange.stealConnection();
                 try{
                     if(endpoint.sslContext!=null){
-                        SSLEngine engine = endpoint.sslContext.createSSLEngine();
-                        engine.setUseClientMode(true);
-                        new SSLSocket(con.in(), con.out(), engine);
+                        new SSLSocket(con.in(), con.out(), endpoint.createSSLEngine(true));
                     }
                 }catch(Throwable thr1){
                     con.close();
@@ -16,6 +16,9 @@
 package jlibs.nio.http;
 
 import jlibs.nio.*;
+import jlibs.nio.http.filters.CacheResponses;
+import jlibs.nio.http.filters.CoalesceRequests;
+import jlibs.nio.http.filters.ResponseCache;
 import jlibs.nio.http.msg.Method;
 import jlibs.nio.http.msg.Request;
 import jlibs.nio.http.msg.Response;
@@ -32,7 +35,10 @@ import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.nio.BufferOverflowException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.function.Consumer;
 
 /**
@@ -53,19 +59,79 @@ public class HTTPProxyServer{
         server.start();
     }
 
+    /** serves responses from given cache, storing cacheable responses from upstream in it */
+    public void setCache(ResponseCache cache){
+        CacheResponses filter = new CacheResponses(cache);
+        server.requestFilters = prepend(filter, server.requestFilters);
+        server.responseFilters = prepend(filter, server.responseFilters);
+        server.errorFilters = prepend(filter, server.errorFilters);
+        client.requestFilters = append(client.requestFilters, filter);
+        client.responseFilters = prepend(filter, client.responseFilters);
+    }
+
+    /** sends only one of identical concurrent GET requests upstream, sharing its response with others */
+    public void setCoalescing(CoalesceRequests filter){
+        client.requestFilters = append(client.requestFilters, filter);
+        client.responseFilters = append(client.responseFilters, filter);
+        client.errorFilters = append(client.errorFilters, filter);
+    }
+
+    private static <T> Collection<T> prepend(T item, Collection<T> list){
+        List<T> result = new ArrayList<>(list.size()+1);
+        result.add(item);
+        result.addAll(list);
+        return result;
+    }
+
+    private static <T> Collection<T> append(Collection<T> list, T item){
+        List<T> result = new ArrayList<>(list);
+        result.add(item);
+        return result;
+    }
+
     public void stop(){
         server.stop();
     }
 
+    /**
+     * if not null, requests are forwarded to upstreams in this group,
+     * rather than the host in request uri, i.e, acts as reverse proxy
+     */
+    public UpstreamGroup upstreams;
+
+    /**
+     * returns group of upstreams, given request is to be forwarded to.
+     * null means request uri is used to find upstream. by default returns {@link #upstreams}.
+     * can be overridden to route on request content, for example on xpath values
+     * attached by {@link jlibs.nio.http.filters.SniffXPaths SniffXPaths} filter
+     */
+    protected UpstreamGroup route(ServerExchange exchange){
+        return upstreams;
+    }
+
     private static Key<ServerExchange> SERVER_EXCHANGE = new Key<>("ServerExchange");
+    private static Key<UpstreamGroup> UPSTREAM_GROUP = new Key<>("UpstreamGroup");
+    private static Key<Upstream> UPSTREAM = new Key<>("Upstream");
+    private static Key<Long> UPSTREAM_START = new Key<>("UpstreamStart");
+    private static Key<Integer> UPSTREAM_RETRIES = new Key<>("UpstreamRetries");
 
     private class Listener implements RequestListener, ResponseListener{
         @Override
         public boolean process(ServerExchange exchange) throws Exception{
             Request request = exchange.getRequest();
+            UpstreamGroup upstreams;
             if(request.method==Method.CONNECT)
                 new ConnectHandler(exchange).start(client.proxy);
-            else{
+            else if((upstreams=route(exchange))!=null){
+                if(!request.uri.startsWith("/")){
+                    try{
+                        request.uri = new HTTPURL(request.uri).path;
+                    }catch(Throwable thr){
+                        throw Status.BAD_REQUEST.with("Bad URL", thr);
+                    }
+                }
+                forward(exchange, upstreams, upstreams.select(request, null), 0);
+            }else{
                 HTTPURL url;
                 try{
                     url = new HTTPURL(request.uri);
@@ -82,9 +148,35 @@ public class HTTPProxyServer{
             return false;
         }
 
+        private void forward(ServerExchange exchange, UpstreamGroup upstreams, Upstream upstream, int retries){
+            ClientExchange clientExchange = client.newExchange(upstream.endpoint);
+            clientExchange.setAccessLog(exchange);
+            clientExchange.attach(SERVER_EXCHANGE, exchange);
+            clientExchange.attach(UPSTREAM_GROUP, upstreams);
+            clientExchange.attach(UPSTREAM, upstream);
+            clientExchange.attach(UPSTREAM_START, System.currentTimeMillis());
+            clientExchange.attach(UPSTREAM_RETRIES, retries);
+            clientExchange.setRequest(exchange.getRequest());
+            upstream.started();
+            clientExchange.execute(this);
+        }
+
         @Override
         public void process(ClientExchange exchange, Throwable thr) throws Exception{
             ServerExchange serverExchange = exchange.attachment(SERVER_EXCHANGE);
+            Upstream upstream = exchange.detach(UPSTREAM);
+            if(upstream!=null){
+                UpstreamGroup upstreams = exchange.detach(UPSTREAM_GROUP);
+                long latency = System.currentTimeMillis()-exchange.attachment(UPSTREAM_START);
+                upstream.completed(upstreams, latency, thr!=null || upstreams.isFailure(exchange.getResponse()));
+                int retries = exchange.attachment(UPSTREAM_RETRIES);
+                if(thr!=null && exchange.getConnectionStatus()==null && retries<upstreams.maxRetries
+                        && exchange.getRequest().getPayload().getContentLength()==0){
+                    // connection failed, so request is not sent. try other upstream
+                    forward(serverExchange, upstreams, upstreams.select(exchange.getRequest(), upstream), retries+1);
+                    return;
+                }
+            }
             if(thr==null){
                 serverExchange.setResponse(exchange.getResponse());
                 serverExchange.resume();
@@ -15,9 +15,11 @@
 
 package jlibs.nio.http;
 
+import jlibs.nio.Connection;
 import jlibs.nio.TCPConnection;
 import jlibs.nio.TCPEndpoint;
 import jlibs.nio.TCPServer;
+import jlibs.nio.http.msg.AsciiString;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.log.ConsoleLogHandler;
 import jlibs.nio.log.LogHandler;
@@ -41,6 +43,8 @@ public class HTTPServer implements TCPServer.Listener{
 
     private TCPServer server;
     public void start() throws IOException{
+        if(http2 && endpoint.sslContext!=null && endpoint.applicationProtocols==null)
+            endpoint.applicationProtocols = new String[]{ "h2", "http/1.1" };
         server = endpoint.startServer(this);
     }
 
@@ -50,6 +54,14 @@ public class HTTPServer implements TCPServer.Listener{
 
     @Override
     public void accept(TCPConnection con){
+        if(http2)
+            new IOListener().start(new HTTP2Connection.Detect(this), con);
+        else
+            serve(con);
+    }
+
+    /** serves HTTP/1.1 requests arriving on given connection */
+    public void serve(Connection con){
         new IOListener().start(new ServerExchange(this), con);
     }
 
@@ -59,7 +71,31 @@ public class HTTPServer implements TCPServer.Listener{
     public long maxURISize = Defaults.MAX_URI_SIZE;
     public long maxRequestHeadSize = Defaults.MAX_REQUEST_HEAD_SIZE;
     public String serverName = Defaults.SERVER_NAME;
+    private AsciiString serverNameValue;
     public boolean supportsProxyConnectionHeader = Defaults.SUPPORTS_PROXY_CONNECTION_HEADER;
+    public boolean acceptRanges = Defaults.ACCEPT_RANGES;
+    public int maxRanges = Defaults.MAX_RANGES;
+    public int maxPipelinedRequests = Defaults.MAX_PIPELINED_REQUESTS;
+    public long maxPipelinedBytes = Defaults.MAX_PIPELINED_BYTES;
+    public boolean http2 = Defaults.HTTP2;
+    public boolean lazyHeaderValues = Defaults.LAZY_HEADER_VALUES;
+
+    /**
+     * if not null, response payloads are compressed with gzip or deflate
+     * as accepted by client, unless response already has Content-Encoding
+     */
+    public CompressionPolicy compression;
+
+    /** returns serverName along with its US-ASCII bytes */
+    AsciiString serverNameValue(){
+        String serverName = this.serverName;
+        if(serverName==null)
+            return null;
+        AsciiString value = serverNameValue;
+        if(value==null || value.text!=serverName)
+            serverNameValue = value = new AsciiString(serverName);
+        return value;
+    }
 
     public AccessLog accessLog;
     public LogHandler logHandler = ConsoleLogHandler.INSTANCE;
@@ -70,5 +106,27 @@ public class HTTPServer implements TCPServer.Listener{
         public static long MAX_REQUEST_HEAD_SIZE = 0;
         public static String SERVER_NAME = null;
         public static boolean SUPPORTS_PROXY_CONNECTION_HEADER = false;
+
+        /** serve Range requests for FilePayload responses */
+        public static boolean ACCEPT_RANGES = true;
+        public static int MAX_RANGES = 16;
+
+        /**
+         * maximum number of responses held back while reading pipelined requests,
+         * which are then written in single gathering write. zero disables this
+         */
+        public static int MAX_PIPELINED_REQUESTS = 16;
+
+        /** maximum number of bytes held back while reading pipelined requests */
+        public static long MAX_PIPELINED_BYTES = 64*1024;
+
+        /**
+         * accept HTTP/2 connections along with HTTP/1.1, either with prior knowledge
+         * or negotiated through TLS ALPN. see {@link HTTP2Connection} for its options
+         */
+        public static boolean HTTP2 = false;
+
+        /** decode request header values into String only when they are accessed */
+        public static boolean LAZY_HEADER_VALUES = true;
     }
 }
@@ -15,7 +15,6 @@
 
 package jlibs.nio.http;
 
-import jlibs.core.lang.Util;
 import jlibs.nio.Debugger;
 import jlibs.nio.Reactor;
 import jlibs.nio.filters.BufferInput;
@@ -60,6 +59,10 @@ public class ReadMessage extends Task{
                 throw ex;
             }
             if(read==0){
+                // no more pipelined messages buffered, so send the responses held so far.
+                // if socket is full, we are called again once it is writable
+                if(heldResponses!=null && !heldResponses.writeHeld(out))
+                    out.addWriteInterest();
                 in.addReadInterest();
                 return false;
             }
@@ -118,11 +121,9 @@ public class ReadMessage extends Task{
             }else{
                 Header clHeader = message.headers.get(Message.CONTENT_LENGTH);
                 if(clHeader!=null){
-                    if(clHeader.getValue().length()==0)
-                        throw message.badMessage("Empty Content-Length");
-                    if(clHeader.getValue().charAt(0)=='-')
-                        throw message.badMessage("Negative Content-Length");
-                    contentLength = Util.parseLong(clHeader.getValue());
+                    contentLength = clHeader.longValue();
+                    if(contentLength<0)
+                        throw message.badMessage("Bad Content-Length");
                     if(contentLength==0)
                         emptyPayload = true;
                     else
@@ -158,6 +159,7 @@ public class ReadMessage extends Task{
         return true;
     }
 
+    WriteMessage heldResponses;
     private Message message;
     private ByteBuffer buffer;
     private long consumed = 0;
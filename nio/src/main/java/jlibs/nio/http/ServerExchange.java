@@ -23,7 +23,9 @@ import jlibs.nio.filters.TrackingInput;
 import jlibs.nio.http.expr.UnresolvedException;
 import jlibs.nio.http.msg.*;
 import jlibs.nio.http.msg.parser.RequestParser;
+import jlibs.nio.http.util.Encoding;
 import jlibs.nio.http.util.Expect;
+import jlibs.nio.http.util.QualityItem;
 import jlibs.nio.http.util.USAscii;
 
 import java.io.IOException;
@@ -32,6 +34,7 @@ import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
@@ -67,7 +70,7 @@ public final class ServerExchange extends Exchange{
     AccessLog.Record accessLogRecord;
 
     protected ServerExchange(HTTPServer server){
-        super(server.maxRequestHeadSize, new RequestParser(server.maxURISize), OP_READ);
+        super(server.maxRequestHeadSize, new RequestParser(server.maxURISize, server.lazyHeaderValues), OP_READ);
         this.server = server;
         user = server.listener;
         requestFilters = server.requestFilters;
@@ -80,6 +83,7 @@ public final class ServerExchange extends Exchange{
             accessLogRecord.setLogHandler(server.logHandler);
         }
         connectionStatus = ConnectionStatus.OPEN;
+        readMessage.heldResponses = writeMessage;
     }
 
     enum State{
@@ -98,18 +102,10 @@ public final class ServerExchange extends Exchange{
 
     @Override
     protected boolean process(int readyOp) throws IOException{
+        if(parked)
+            unpark(parks); // resumed by listener
         if(state==CLOSED)
             return true;
-        if(continue100Buffer!=null){
-            try{
-                if(send(continue100Buffer)){
-                    continue100Buffer = null;
-                    return false;
-                }
-            }catch(Throwable thr){
-                setError(thr);
-            }
-        }
 
         while(true){
             try{
@@ -122,13 +118,13 @@ public final class ServerExchange extends Exchange{
                     case FILTER_REQUEST:
                         while(response==null && filters.hasNext()){
                             if(!filters.next().filter(this, FilterType.REQUEST))
-                                return false;
+                                return waiting();
                         }
                         state = RESPONSE_READY;
                         if(HTTP)
                             println("state = "+state);
                         if(response==null && !user.process(this))
-                            return false;
+                            return waiting();
                     case RESPONSE_READY:
                         filters = responseFilters.iterator();
                         state = FILTER_RESPONSE;
@@ -137,7 +133,7 @@ public final class ServerExchange extends Exchange{
                     case FILTER_RESPONSE:
                         while(filters.hasNext()){
                             if(!filters.next().filter(this, FilterType.RESPONSE))
-                                return false;
+                                return waiting();
                         }
                         state = DELIVER_RESPONSE;
                         if(HTTP)
@@ -145,7 +141,7 @@ public final class ServerExchange extends Exchange{
                     case FILTER_ERROR:
                         while(filters.hasNext()){
                             if(!filters.next().filter(this, FilterType.ERROR))
-                                return false;
+                                return waiting();
                         }
                         state = DELIVER_RESPONSE;
                         if(HTTP)
@@ -166,7 +162,7 @@ public final class ServerExchange extends Exchange{
                         break;
                     case DRAIN_REQUEST:
                         if(!drainInputs())
-                            return false;
+                            return waiting();
                         state = WRITE_RESPONSE;
                         if(HTTP)
                             println("state = "+state);
@@ -197,11 +193,22 @@ public final class ServerExchange extends Exchange{
                         if(server.setDateHeader)
                             response.setDate(false);
                         if(server.serverName !=null)
-                            response.setServer(server.serverName);
+                            response.setServer(server.serverNameValue());
+                        if(server.acceptRanges && response.getPayload() instanceof FilePayload)
+                            applyRanges();
+                        writeMessage.compression = server.compression==null ? null : applyCompression();
                         writeMessage.reset(response, continue100Buffer, true);
                         if(accessLog!=null)
                             accessLogRecord.process(this, response);
                         continue100Buffer = null;
+                        if(writeMessage.canHold()){
+                            if(pipelined()){
+                                writeMessage.hold();
+                                writeMessageFinished(null);
+                                break;
+                            }else if(writeMessage.heldCount()>0)
+                                writeMessage.hold(); // to be written along with held responses
+                        }
                         setChild(writeMessage);
                         return true;
                     case CLOSED:
@@ -213,6 +220,67 @@ public final class ServerExchange extends Exchange{
         }
     }
 
+    /**
+     * tells whether the response can be held back, so that it is written along with
+     * responses of the pipelined requests that follow, which are already read from socket
+     */
+    private boolean pipelined(){
+        return keepAlive && writeMessage.heldCount()<server.maxPipelinedRequests
+                && writeMessage.heldBytes()<server.maxPipelinedBytes && in.available()>0;
+    }
+
+    /** exchange has to wait for user or peer, so send the responses held so far */
+    private boolean waiting() throws IOException{
+        if(!writeMessage.writeHeld(out)){
+            if(out.getOutputListener()==listener)
+                out.addWriteInterest(); // DRAIN_REQUEST, which is retried on any io
+            else
+                writePendingLater();
+        }
+        return false;
+    }
+
+    /** writes held responses followed by 100-continue. returns false if socket is full */
+    private boolean writePending() throws IOException{
+        if(!writeMessage.writeHeld(out))
+            return false;
+        if(continue100Buffer!=null){
+            while(continue100Buffer.hasRemaining()){
+                if(out.write(continue100Buffer)==0)
+                    return false;
+            }
+            if(!out.flush())
+                return false;
+            continue100Buffer = null;
+        }
+        return true;
+    }
+
+    /**
+     * output is not used by exchange, while filters, user or payload reader are working.
+     * so pendingWriter writes the rest once socket is writable. anything left by the time
+     * response is written, is sent by WriteMessage before response
+     */
+    private void writePendingLater(){
+        out.setOutputListener(pendingWriter);
+        out.addWriteInterest();
+    }
+
+    private final Output.Listener pendingWriter = output -> {
+        if(out==null || output.getOutputListener()!=this.pendingWriter)
+            return;
+        try{
+            if(writePending())
+                output.setOutputListener(null);
+            else
+                output.addWriteInterest();
+        }catch(Throwable thr){
+            error = thr;
+            close();
+            notifyCallback();
+        }
+    };
+
     @Override
     protected void reset(){
         super.reset();
@@ -243,6 +311,11 @@ public final class ServerExchange extends Exchange{
         }
         if(thr!=null){
             if(thr==ReadMessage.IGNORABLE_EOF_EXCEPTION){
+                try{
+                    writeMessage.writeHeld(out);
+                }catch(Throwable ignore){
+                    // peer is gone
+                }
                 if(accessLog!=null){
                     accessLogRecord.reset();
                     accessLog.records.free(accessLogRecord);
@@ -306,8 +379,9 @@ public final class ServerExchange extends Exchange{
     private void send100Continue(TrackingInput tracker){
         continue100Buffer = CONTINUE_100.duplicate();
         try{
-            if(send(continue100Buffer))
-                continue100Buffer = null;
+            // held responses must go out before 100-continue
+            if(!writePending())
+                writePendingLater();
         }catch(Throwable thr){
             error = thr;
             close();
@@ -315,6 +389,136 @@ public final class ServerExchange extends Exchange{
         }
     }
 
+    /**
+     * If-Range uses strong comparison, so weak etags never match
+     * and the complete file is sent (rfc7233 section 3.2)
+     */
+    static boolean ifRangeMatches(String ifRange, Response response){
+        if(ifRange.startsWith("W/"))
+            return false;
+        if(ifRange.startsWith("\"")){
+            String etag = response.getETag();
+            return etag!=null && !etag.startsWith("W/") && ifRange.equals(etag);
+        }
+        return ifRange.equals(response.headers.value(Response.LAST_MODIFIED));
+    }
+
+    /**
+     * serves Range requests for complete file payloads.
+     * ranges that overlap or exceed maxRanges are ignored,
+     * sending the complete file, as allowed by rfc7233
+     */
+    private void applyRanges() throws IOException{
+        FilePayload payload = (FilePayload)response.getPayload();
+        if(payload.ranges!=null || !Status.OK.equals(response.status)
+                || response.headers.get(Message.CONTENT_ENCODING)!=null)
+            return;
+        response.headers.set(Response.ACCEPT_RANGES, "bytes");
+
+        String range = request==null || request.method!=Method.GET ? null : request.getRange();
+        if(range==null)
+            return;
+        String ifRange = request.getIfRange();
+        if(ifRange!=null && !ifRangeMatches(ifRange, response))
+            return;
+
+        long fileLength = payload.file.length();
+        List<FilePayload.Range> ranges = FilePayload.Range.parse(range, fileLength);
+        if(ranges==null || ranges.size()>server.maxRanges)
+            return;
+        if(ranges.isEmpty()){
+            response.status = Status.REQUESTED_RANGE_NOT_SATISFIABLE;
+            response.headers.set(Response.CONTENT_RANGE, "bytes */"+fileLength);
+            response.setPayload(EmptyPayload.INSTANCE);
+            return;
+        }
+        for(int i=1; i<ranges.size(); i++){
+            for(int j=0; j<i; j++){
+                if(ranges.get(i).first<=ranges.get(j).last && ranges.get(j).first<=ranges.get(i).last)
+                    return;
+            }
+        }
+        response.status = Status.PARTIAL_CONTENT;
+        if(ranges.size()==1)
+            response.headers.set(Response.CONTENT_RANGE, ranges.get(0).contentRange(fileLength));
+        response.setPayload(payload.ranges(ranges));
+    }
+
+    /**
+     * sets Content-Encoding accepted by client, if response can be compressed.
+     * returns the policy to decide compression level, or null. Vary and ETag are
+     * changed only if compression is actually applied, see {@link #compressed(Response, Encoding)}
+     */
+    private CompressionPolicy applyCompression(){
+        if(request==null || request.method==Method.HEAD || !Status.OK.equals(response.status)
+                || response.headers.get(Message.CONTENT_ENCODING)!=null)
+            return null;
+        Payload payload = response.getPayload();
+        if(payload.getContentLength()==0 || !server.compression.isCompressible(payload.contentType))
+            return null;
+        if(payload instanceof SocketPayload){
+            SocketPayload socketPayload = (SocketPayload)payload;
+            if(socketPayload.in==null || !socketPayload.in.isOpen()
+                    || (socketPayload.encodings!=null && !socketPayload.encodings.isEmpty()))
+                return null;
+        }else if(payload instanceof FilePayload){
+            if(((FilePayload)payload).ranges!=null)
+                return null;
+        }else if(!(payload instanceof EncodablePayload))
+            return null;
+
+        List<QualityItem<String>> accepted = request.getAcceptableEncodings();
+        Encoding encoding;
+        if(Request.getEncodingQuality(Encoding.GZIP, accepted)>0)
+            encoding = Encoding.GZIP;
+        else if(Request.getEncodingQuality(Encoding.DEFLATE, accepted)>0)
+            encoding = Encoding.DEFLATE;
+        else
+            return null;
+        response.setContentEncodings(Collections.singletonList(encoding));
+        return server.compression;
+    }
+
+    /**
+     * called by WriteMessage once compression level is decided and content-encoding
+     * set by {@link #applyCompression()} is kept. response now varies by Accept-Encoding
+     * and needs etag of its own
+     */
+    static void compressed(Response response, Encoding encoding){
+        addVary(response, Request.ACCEPT_ENCODING.text);
+        String etag = response.getETag();
+        if(etag!=null)
+            response.setETag(encodedETag(etag, encoding));
+    }
+
+    /** merges fieldName into Vary, unless it is already listed or Vary is "*" */
+    private static void addVary(Response response, String fieldName){
+        StringBuilder vary = new StringBuilder();
+        for(Header header=response.headers.get(Response.VARY); header!=null; header=header.sameNext()){
+            for(String name: header.getValue().split(",")){
+                name = name.trim();
+                if(name.equals("*") || name.equalsIgnoreCase(fieldName))
+                    return;
+                if(!name.isEmpty())
+                    vary.append(name).append(", ");
+            }
+        }
+        response.headers.set(Response.VARY, vary.append(fieldName).toString());
+    }
+
+    /**
+     * entity-tag of compressed representation. it must differ from identity's,
+     * otherwise strong comparisons (ex: If-Range) would mix bytes of both.
+     * ex: "abc" becomes "abc-gzip", W/"abc" becomes W/"abc-gzip".
+     * returns null for malformed etag, so that it is dropped
+     */
+    static String encodedETag(String etag, Encoding encoding){
+        int end = etag.length()-1;
+        if(end>0 && etag.charAt(end)=='"')
+            return etag.substring(0, end)+'-'+encoding.name+'"';
+        return null;
+    }
+
     @Override
     protected void writeMessageFinished(Throwable thr){
         error = thr;
@@ -402,8 +606,43 @@ public final class ServerExchange extends Exchange{
             Reactor.current().handleException(error);
     }
 
+    /** tells whether exchange is still in progress, i.e. not closed and its connection not stolen */
+    public boolean isOpen(){
+        return state!=CLOSED && !closeOnUnpark;
+    }
+
+    // set while exchange is used by thread other than reactor, see ExecutorRequestListener.
+    // close is deferred till unpark, so that exchange is not closed under that thread
+    private boolean parked, closeOnUnpark;
+    private int parks;
+
+    /** returns id to be passed to unpark */
+    int park(){
+        parked = true;
+        return ++parks;
+    }
+
+    /**
+     * must be called on reactor thread. does nothing if exchange is already unparked,
+     * or parked again since. returns false if exchange is closed
+     */
+    boolean unpark(int park){
+        if(!parked || park!=parks)
+            return isOpen();
+        parked = false;
+        if(closeOnUnpark){
+            closeOnUnpark = false;
+            close();
+        }
+        return isOpen();
+    }
+
     @Override
     public void close(){
+        if(parked){
+            closeOnUnpark = true;
+            return;
+        }
         super.close();
         state = CLOSED;
         if(HTTP)
@@ -416,7 +655,10 @@ public final class ServerExchange extends Exchange{
     }
 
     public InetAddress getClientAddress(){
-        TCPConnection con = (TCPConnection)in.channel();
+        Object channel = in.channel();
+        if(channel instanceof HTTP2Stream)
+            channel = ((HTTP2Stream)channel).connection.getConnection();
+        TCPConnection con = (TCPConnection)channel;
         return con.selectable.socket().getInetAddress();
     }
 
@@ -425,6 +667,11 @@ public final class ServerExchange extends Exchange{
         if(HTTP)
             println("stealConnection()");
         Connection con = (Connection)in.channel();
+        try{
+            writeMessage.writeHeld(out);
+        }catch(Throwable thr){
+            Reactor.current().handleException(thr);
+        }
         in = null;
         out = null;
         state = CLOSED;
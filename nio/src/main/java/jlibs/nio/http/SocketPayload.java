@@ -21,6 +21,7 @@ import jlibs.nio.http.msg.Payload;
 import jlibs.nio.http.util.Encoding;
 import jlibs.nio.util.Buffers;
 
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -49,6 +50,17 @@ public class SocketPayload extends Payload{
 
     public boolean retain;
     public Buffers buffers;
+
+    /** returns input of payload, without decoding its Content-Encoding */
+    public Input rawSocket(){
+        return in;
+    }
+
+    /** closes input of payload, if any */
+    public void close() throws IOException{
+        if(in!=null)
+            in.close();
+    }
     public Input socket(){
         if(encodings.isEmpty())
             return in;
@@ -0,0 +1,121 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.TCPEndpoint;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * member of {@link UpstreamGroup}, tracking its outstanding requests,
+ * failures and latency. upstream is not selected while it is ejected
+ * for failures/latency, or marked unhealthy by health checks
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class Upstream{
+    public final TCPEndpoint endpoint;
+    public final int weight;
+
+    public Upstream(TCPEndpoint endpoint, int weight){
+        if(weight<=0)
+            throw new IllegalArgumentException("weight must be positive: "+weight);
+        this.endpoint = endpoint;
+        this.weight = weight;
+    }
+
+    public Upstream(TCPEndpoint endpoint){
+        this(endpoint, 1);
+    }
+
+    final AtomicInteger outstanding = new AtomicInteger();
+    final LongAdder requests = new LongAdder();
+    final LongAdder failures = new LongAdder();
+
+    private volatile boolean healthy = true;
+    private volatile long ejectedUntil;
+
+    // guarded by this
+    private int consecutiveFailures;
+    private int ejections;
+    private long latency;
+    private int probeSuccesses, probeFailures;
+
+    public boolean isAvailable(){
+        return healthy && System.currentTimeMillis()>=ejectedUntil;
+    }
+
+    void started(){
+        outstanding.incrementAndGet();
+        requests.increment();
+    }
+
+    /** records completion of request, ejecting this upstream if it is outlier */
+    synchronized void completed(UpstreamGroup group, long latency, boolean failed){
+        outstanding.decrementAndGet();
+        if(failed){
+            failures.increment();
+            if(++consecutiveFailures>=group.maxFailures && group.maxFailures>0)
+                eject(group);
+            return;
+        }
+        consecutiveFailures = 0;
+        ejections = 0;
+        // exponentially weighted moving average
+        this.latency = this.latency==0 ? latency : this.latency+(latency-this.latency)/5;
+        if(group.maxLatency>0 && this.latency>group.maxLatency)
+            eject(group);
+    }
+
+    private void eject(UpstreamGroup group){
+        ++ejections;
+        long time = Math.min(group.ejectionTime*ejections, Math.max(group.ejectionTime, group.maxEjectionTime));
+        ejectedUntil = System.currentTimeMillis()+time;
+        consecutiveFailures = 0;
+        latency = 0;
+        group.ejections.increment();
+    }
+
+    /** records result of health check probe */
+    synchronized void probed(UpstreamGroup group, boolean success){
+        if(success){
+            probeFailures = 0;
+            if(!healthy && ++probeSuccesses>=group.healthyThreshold){
+                healthy = true;
+                probeSuccesses = 0;
+            }
+        }else{
+            probeSuccesses = 0;
+            if(healthy && ++probeFailures>=group.unhealthyThreshold){
+                healthy = false;
+                probeFailures = 0;
+            }
+        }
+    }
+
+    public int getOutstanding(){ return outstanding.get(); }
+    public long getRequests(){ return requests.sum(); }
+    public long getFailures(){ return failures.sum(); }
+    public boolean isHealthy(){ return healthy; }
+    public boolean isEjected(){ return System.currentTimeMillis()<ejectedUntil; }
+    public synchronized long getLatency(){ return latency; }
+
+    @Override
+    public String toString(){
+        return weight==1 ? endpoint.toString() : endpoint+"*"+weight;
+    }
+}
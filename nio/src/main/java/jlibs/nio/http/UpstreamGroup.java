@@ -0,0 +1,200 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.msg.Method;
+import jlibs.nio.http.msg.Payload;
+import jlibs.nio.http.msg.Request;
+import jlibs.nio.http.msg.Response;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * group of upstreams serving same content, used by {@link HTTPProxyServer}
+ * as reverse proxy.
+ * <p>
+ * upstream is ejected for some time, when {@link #maxFailures} consecutive requests
+ * fail or its average latency exceeds {@link #maxLatency}. ejection time grows with
+ * each successive ejection, upto {@link #maxEjectionTime}. if health checks are started,
+ * each upstream is probed periodically from reactors, and is not selected while unhealthy.
+ * when no upstream is available, requests are balanced among all of them
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class UpstreamGroup{
+    public final List<Upstream> upstreams;
+    public final Balancer balancer;
+
+    public UpstreamGroup(Balancer balancer, List<Upstream> upstreams){
+        if(upstreams.isEmpty())
+            throw new IllegalArgumentException("no upstreams");
+        this.balancer = balancer;
+        this.upstreams = Collections.unmodifiableList(new ArrayList<>(upstreams));
+    }
+
+    public UpstreamGroup(Balancer balancer, TCPEndpoint... endpoints){
+        this(balancer, Arrays.stream(endpoints).map(Upstream::new).collect(java.util.stream.Collectors.toList()));
+    }
+
+    /** consecutive failures to eject upstream. zero disables */
+    public int maxFailures = Defaults.MAX_FAILURES;
+
+    /** average latency in milliseconds, beyond which upstream is ejected. zero disables */
+    public long maxLatency = Defaults.MAX_LATENCY;
+
+    public long ejectionTime = Defaults.EJECTION_TIME;
+    public long maxEjectionTime = Defaults.MAX_EJECTION_TIME;
+
+    /** number of times request is sent to other upstream, when connection could not be made */
+    public int maxRetries = Defaults.MAX_RETRIES;
+
+    final LongAdder ejections = new LongAdder();
+    public long getEjections(){ return ejections.sum(); }
+
+    /** selects upstream for given request, avoiding given upstream if possible */
+    public Upstream select(Request request, Upstream avoid){
+        Upstream upstream = balancer.select(upstreams, request, u -> u!=avoid && u.isAvailable());
+        if(upstream==null)
+            upstream = balancer.select(upstreams, request, u -> u!=avoid);
+        if(upstream==null)
+            upstream = avoid;
+        return upstream;
+    }
+
+    /** response statuses treated as failure of upstream */
+    protected boolean isFailure(Response response){
+        int code = response.status.code;
+        return code==502 || code==503 || code==504;
+    }
+
+    /*-------------------------------------------------[ Health Checks ]---------------------------------------------------*/
+
+    public String healthCheckPath = Defaults.HEALTH_CHECK_PATH;
+    public long healthCheckInterval = Defaults.HEALTH_CHECK_INTERVAL;
+
+    /** consecutive successful probes to mark unhealthy upstream as healthy */
+    public int healthyThreshold = Defaults.HEALTHY_THRESHOLD;
+
+    /** consecutive failed probes to mark healthy upstream as unhealthy */
+    public int unhealthyThreshold = Defaults.UNHEALTHY_THRESHOLD;
+
+    private final HTTPClient probeClient = new HTTPClient();
+    // incremented by start and stop, so that probes of earlier start stop themselves
+    private volatile int probeGeneration;
+    private volatile boolean probing;
+
+    /**
+     * starts probing upstreams with GET {@link #healthCheckPath}, expecting 2xx or 3xx.
+     * probes are spread across reactors. probe still pending at next interval is failure
+     */
+    public synchronized void startHealthChecks(){
+        if(probing)
+            return;
+        probeClient.proxy = null;
+        probeClient.keepAliveTimeout = 0;
+        probing = true;
+        int generation = ++probeGeneration;
+        List<Reactor> reactors = Reactors.get();
+        for(int i=0; i<upstreams.size(); i++)
+            new Probe(upstreams.get(i), reactors.get(i%reactors.size()), generation).schedule();
+    }
+
+    public synchronized void stopHealthChecks(){
+        if(probing){
+            probing = false;
+            ++probeGeneration;
+        }
+    }
+
+    private class Probe implements Runnable, ResponseListener{
+        private final Upstream upstream;
+        private final Reactor reactor;
+        private final int generation;
+        private ClientExchange pending;
+
+        private Probe(Upstream upstream, Reactor reactor, int generation){
+            this.upstream = upstream;
+            this.reactor = reactor;
+            this.generation = generation;
+        }
+
+        private boolean stopped(){
+            return generation!=probeGeneration;
+        }
+
+        void schedule(){
+            reactor.schedule(this, healthCheckInterval);
+        }
+
+        @Override
+        public void run(){
+            boolean stopped = stopped();
+            if(pending!=null){
+                if(!stopped)
+                    upstream.probed(UpstreamGroup.this, false);
+                ClientExchange exchange = pending;
+                pending = null;
+                exchange.close();
+            }
+            if(stopped)
+                return;
+            schedule();
+            ClientExchange exchange = probeClient.newExchange(upstream.endpoint);
+            Request request = new Request();
+            request.method = Method.GET;
+            request.uri = healthCheckPath;
+            exchange.setRequest(request);
+            pending = exchange;
+            exchange.execute(this);
+        }
+
+        @Override
+        public void process(ClientExchange exchange, Throwable thr) throws Exception{
+            Response response = exchange.getResponse();
+            if(thr==null){
+                Payload payload = response.getPayload();
+                if(payload instanceof SocketPayload)
+                    ((SocketPayload)payload).close();
+            }
+            if(exchange!=pending)
+                return; // timed out
+            pending = null;
+            if(stopped())
+                return;
+            upstream.probed(UpstreamGroup.this, thr==null && response.status.code>=200 && response.status.code<400);
+        }
+    }
+
+    public static class Defaults{
+        public static int MAX_FAILURES = 5;
+        public static long MAX_LATENCY = 0;
+        public static long EJECTION_TIME = 30*1000L;
+        public static long MAX_EJECTION_TIME = 5*60*1000L;
+        public static int MAX_RETRIES = 1;
+
+        public static String HEALTH_CHECK_PATH = "/";
+        public static long HEALTH_CHECK_INTERVAL = 5*1000L;
+        public static int HEALTHY_THRESHOLD = 2;
+        public static int UNHEALTHY_THRESHOLD = 3;
+    }
+}
@@ -18,9 +18,11 @@ package jlibs.nio.http;
 import jlibs.nio.http.msg.FilePayload;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
-import static jlibs.nio.http.WriteFilePayload.State.SETUP;
-import static jlibs.nio.http.WriteFilePayload.State.TRANSFER_FILE;
+import static jlibs.nio.http.WriteFilePayload.State.*;
 
 /**
  * @author Santhosh Kumar Tekuri
@@ -32,20 +34,84 @@ public class WriteFilePayload extends WritePayload{
         this.filePayload = filePayload;
     }
 
-    enum State{ SETUP, TRANSFER_FILE }
+    enum State{ SETUP, TRANSFER_FILE, NEXT_RANGE, WRITE_PART_HEAD, TRANSFER_RANGE, WRITE_PARTS_END }
     private State state = SETUP;
 
+    private FileChannel fileChannel;
+    private int rangeIndex;
+    private ByteBuffer partBuffer;
+
     @Override
     protected boolean process(int readyOp) throws IOException{
         while(true){
             switch(state){
                 case SETUP:
                     setup();
-                    prepareTransferFromFile(filePayload.file);
-                    state = TRANSFER_FILE;
+                    if(filePayload.ranges==null){
+                        prepareTransferFromFile(filePayload.file);
+                        state = TRANSFER_FILE;
+                    }else{
+                        fileChannel = FileChannel.open(filePayload.file.toPath(), StandardOpenOption.READ);
+                        state = NEXT_RANGE;
+                        break;
+                    }
                 case TRANSFER_FILE:
                     return transferFromFile();
+                case NEXT_RANGE:
+                    if(rangeIndex==filePayload.ranges.size()){
+                        closeFileChannel();
+                        if(!filePayload.isMultipart())
+                            return true;
+                        partBuffer = ByteBuffer.wrap(filePayload.partsEnd());
+                        state = WRITE_PARTS_END;
+                        break;
+                    }
+                    if(filePayload.isMultipart()){
+                        partBuffer = ByteBuffer.wrap(filePayload.partHead(rangeIndex));
+                        state = WRITE_PART_HEAD;
+                    }else{
+                        prepareTransferRange();
+                        state = TRANSFER_RANGE;
+                        break;
+                    }
+                case WRITE_PART_HEAD:
+                    if(!write(partBuffer))
+                        return false;
+                    partBuffer = null;
+                    prepareTransferRange();
+                    state = TRANSFER_RANGE;
+                case TRANSFER_RANGE:
+                    if(!transferFromFile())
+                        return false;
+                    ++rangeIndex;
+                    state = NEXT_RANGE;
+                    break;
+                case WRITE_PARTS_END:
+                    return write(partBuffer);
             }
         }
     }
+
+    private void prepareTransferRange(){
+        FilePayload.Range range = filePayload.ranges.get(rangeIndex);
+        prepareTransferFromFile(fileChannel, range.first, range.length());
+    }
+
+    private void closeFileChannel() throws IOException{
+        if(fileChannel!=null){
+            FileChannel fileChannel = this.fileChannel;
+            this.fileChannel = null;
+            fileChannel.close();
+        }
+    }
+
+    @Override
+    protected void cleanup(Throwable thr){
+        try{
+            closeFileChannel();
+        }catch(IOException ex){
+            if(thr!=null)
+                thr.addSuppressed(ex);
+        }
+    }
 }
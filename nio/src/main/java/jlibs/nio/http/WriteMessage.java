@@ -16,17 +16,22 @@
 package jlibs.nio.http;
 
 import jlibs.core.lang.NotImplementedException;
+import jlibs.nio.Output;
 import jlibs.nio.Reactor;
 import jlibs.nio.Writable;
 import jlibs.nio.http.msg.*;
 import jlibs.nio.http.util.Encoding;
 import jlibs.nio.listeners.Task;
+import jlibs.nio.util.BufferAllocator;
 import jlibs.nio.util.Buffers;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
 
 import static java.nio.channels.SelectionKey.OP_WRITE;
 import static jlibs.nio.Debugger.HTTP;
@@ -43,6 +48,7 @@ public final class WriteMessage extends Task{
     }
 
     enum State{
+        FLUSH_HELD,
         WRITE_BUFFER, WRITE_HEAD, FLUSH_HEAD, PREPARE_BUFFERS, WRITE_BUFFERS,
         WRITE_PAYLOAD,
         CLOSE_OUTPUTS
@@ -52,8 +58,20 @@ public final class WriteMessage extends Task{
 
     @Override
     protected boolean process(int readyOp) throws IOException{
+        if(held!=null && !holding){
+            prepareFlush(held, true);
+            held = null;
+            heldCount = 0;
+            afterHeld = state;
+            state = FLUSH_HELD;
+        }
         while(true){
             switch(state){
+                case FLUSH_HELD:
+                    if(!flushBuffers())
+                        return false;
+                    state = afterHeld;
+                    break;
                 case FLUSH_HEAD:
                     if(!send(buffer))
                         return false;
@@ -92,10 +110,12 @@ public final class WriteMessage extends Task{
                             index = 0;
                         }
                         String value = header.getValue();
+                        AsciiString asciiValue = header.getAsciiValue();
                         do{
-                            int toIndex = Math.min(value.length(), index+buffer.remaining());
-                            while(index<toIndex)
-                                buffer.put((byte)value.charAt(index++));
+                            if(asciiValue==null)
+                                index = putInto(buffer, value, index);
+                            else
+                                index = asciiValue.putInto(buffer, index);
                             if(buffer.remaining()<4){
                                 buffer.flip();
                                 if(write(buffer))
@@ -122,6 +142,21 @@ public final class WriteMessage extends Task{
                         break;
                     }
                 case PREPARE_BUFFERS:
+                    if(holding){
+                        write(buffer);
+                        if(buffers!=null){
+                            if(retain){
+                                for(int i=0; i<buffers.length; i++)
+                                    held.write(buffers.array[buffers.offset+i].duplicate());
+                            }else{
+                                while(buffers.length>0)
+                                    held.append(buffers.remove());
+                            }
+                            buffers = null;
+                        }
+                        state = WRITE_PAYLOAD;
+                        return true;
+                    }
                     if(buffers==null){
                         if(buffer.hasRemaining()){
                             state = WRITE_BUFFER;
@@ -175,6 +210,15 @@ public final class WriteMessage extends Task{
     private Buffers buffers;
     private boolean sendPayload;
     private WritePayload writePayload;
+    private State afterHeld;
+
+    /**
+     * set when Content-Encoding is chosen by server, rather than by application.
+     * decides compression level once payload size is known, and may
+     * remove Content-Encoding. applies only to next reset
+     */
+    CompressionPolicy compression;
+
     public void reset(Message message, ByteBuffer continue100Buffer, boolean sendPayload){
         if(buffer==null)
             buffer = Reactor.current().allocator.allocate();
@@ -189,7 +233,7 @@ public final class WriteMessage extends Task{
         error = null;
 
         Payload payload = message.getPayload();
-        message.headers.set(Message.CONTENT_TYPE, payload.contentType);
+        message.headers.set(Message.CONTENT_TYPE, contentType(payload.contentType));
         if(payload.getContentLength()==0){
             message.headers.remove(Message.CONTENT_ENCODING);
 
@@ -214,10 +258,32 @@ public final class WriteMessage extends Task{
             OutputStream os = buffers;
             try{
                 List<Encoding> encodings = message.getContentEncodings();
-                while(!encodings.isEmpty())
-                    os = encodings.remove(encodings.size()-1).wrap(os);
-                encodablePayload.writeTo(os);
-                os.close();
+                if(compression!=null && !encodings.isEmpty()){
+                    // encode uncompressed first, to know its size
+                    encodablePayload.writeTo(buffers);
+                    int level = compression.level(payload.contentType, buffers.remaining());
+                    if(level==Deflater.NO_COMPRESSION){
+                        message.setContentEncodings(null);
+                        encodings.clear();
+                    }else{
+                        ServerExchange.compressed((Response)message, encodings.get(0));
+                        Buffers uncompressed = buffers;
+                        buffers = new Buffers();
+                        os = buffers;
+                        while(!encodings.isEmpty())
+                            os = encodings.remove(encodings.size()-1).wrap(os, level);
+                        uncompressed.writeTo(os);
+                        os.close();
+                        BufferAllocator allocator = BufferAllocator.current();
+                        while(uncompressed.length>0)
+                            allocator.free(uncompressed.remove());
+                    }
+                }else{
+                    while(!encodings.isEmpty())
+                        os = encodings.remove(encodings.size()-1).wrap(os);
+                    encodablePayload.writeTo(os);
+                    os.close();
+                }
             }catch(IOException ex){
                 throw Status.INTERNAL_SERVER_ERROR.with(ex);
             }
@@ -236,7 +302,7 @@ public final class WriteMessage extends Task{
                         ((WriteSocketPayload)writePayload).ignoreBuffers = true;
                     }
                 }else{
-                    writePayload.encodings = message.getContentEncodings();
+                    writePayload.encodings = payloadEncodings(message, payload.contentType, contentLength);
                     if(writePayload.encodings.isEmpty()){
                         if(contentLength!=-1){
                             buffers = socketPayload.buffers;
@@ -263,7 +329,7 @@ public final class WriteMessage extends Task{
         }else if(payload instanceof FilePayload){
             FilePayload filePayload = (FilePayload)payload;
             writePayload = new WriteFilePayload(filePayload);
-            writePayload.encodings = message.getContentEncodings();
+            writePayload.encodings = payloadEncodings(message, payload.contentType, filePayload.getContentLength());
             if(writePayload.encodings.isEmpty())
                 message.setContentLength(filePayload.getContentLength());
             else{
@@ -272,6 +338,7 @@ public final class WriteMessage extends Task{
             }
         }else
             throw new NotImplementedException("write"+payload.getClass().getSimpleName());
+        compression = null;
 
         if(HTTP){
             println("writeMessage{");
@@ -292,6 +359,130 @@ public final class WriteMessage extends Task{
             state = WRITE_HEAD;
     }
 
+    /** returns encodings to be applied by writePayload */
+    private List<Encoding> payloadEncodings(Message message, String contentType, long contentLength){
+        List<Encoding> encodings = message.getContentEncodings();
+        if(compression!=null && !encodings.isEmpty()){
+            int level = compression.level(contentType, contentLength);
+            if(level==Deflater.NO_COMPRESSION){
+                message.setContentEncodings(null);
+                encodings.clear();
+            }else{
+                ServerExchange.compressed((Response)message, encodings.get(0));
+                writePayload.compressionLevel = level;
+            }
+        }
+        return encodings;
+    }
+
+    private final byte chars[] = new byte[256];
+
+    /** copies chars from index into buffer as US-ASCII, in bulk. returns index of next char to be copied */
+    @SuppressWarnings("deprecation")
+    private int putInto(ByteBuffer buffer, String value, int index){
+        int toIndex = Math.min(value.length(), index+buffer.remaining());
+        while(index<toIndex){
+            int end = Math.min(toIndex, index+chars.length);
+            value.getBytes(index, end, chars, 0);
+            buffer.put(chars, 0, end-index);
+            index = end;
+        }
+        return index;
+    }
+
+    // content types are mostly constants, so their encoded form is cached per reactor
+    private static final ThreadLocal<Map<String, AsciiString>> CONTENT_TYPES = ThreadLocal.withInitial(HashMap::new);
+    private static final int MAX_CONTENT_TYPES = 64;
+
+    private static AsciiString contentType(String contentType){
+        if(contentType==null)
+            return null;
+        Map<String, AsciiString> map = CONTENT_TYPES.get();
+        AsciiString value = map.get(contentType);
+        if(value==null){
+            if(map.size()==MAX_CONTENT_TYPES)
+                map.clear();
+            map.put(contentType, value=new AsciiString(contentType));
+        }
+        return value;
+    }
+
+    /*-------------------------------------------------[ Pipelining ]---------------------------------------------------*/
+
+    // messages rendered by hold(), but not yet written
+    private Buffers held;
+    private int heldCount;
+    private boolean holding;
+
+    /** tells whether message from last reset is entirely in memory, i.e. can be held */
+    public boolean canHold(){
+        return writePayload==null && sendPayload;
+    }
+
+    /**
+     * renders message from last reset into memory instead of writing it.
+     * held messages are written just before the next message which is not
+     * held, in single gathering write
+     */
+    public void hold() throws IOException{
+        if(held==null)
+            held = new Buffers();
+        holding = true;
+        try{
+            process(0);
+        }finally{
+            holding = false;
+        }
+        ++heldCount;
+    }
+
+    /** number of messages held */
+    public int heldCount(){
+        return heldCount;
+    }
+
+    /** number of bytes held and not yet written */
+    public long heldBytes(){
+        return held==null ? 0 : held.remaining();
+    }
+
+    /**
+     * writes held messages without waiting for socket to be writable.
+     * returns true if nothing is left to be written. otherwise caller
+     * must call this again once socket is writable, or leave the rest
+     * to be sent before next message
+     */
+    public boolean writeHeld(Output out) throws IOException{
+        if(held==null)
+            return true;
+        while(held.length>0 && out.write(held.array, held.offset, held.length)>0)
+            held.removeEmpty(Reactor.current().allocator);
+        if(held.length==0){
+            held = null;
+            heldCount = 0;
+            return out.flush();
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean write(ByteBuffer buffer) throws IOException{
+        if(holding){
+            held.write(buffer);
+            return true;
+        }
+        return super.write(buffer);
+    }
+
+    @Override
+    protected boolean send(ByteBuffer buffer) throws IOException{
+        if(holding){
+            held.write(buffer);
+            return true;
+        }
+        return super.send(buffer);
+    }
+
     private Throwable error;
     @Override
     protected int childTaskFinished(Task childTask, Throwable thr){
@@ -305,6 +496,11 @@ public final class WriteMessage extends Task{
     }
 
     public void dispose(){
+        if(held!=null){
+            Reactor.current().allocator.free(held);
+            held = null;
+            heldCount = 0;
+        }
         if(buffer!=null){
             Reactor.current().allocator.free(buffer);
             buffer = null;
@@ -20,6 +20,7 @@ import jlibs.nio.http.util.Encoding;
 import jlibs.nio.listeners.Task;
 
 import java.util.List;
+import java.util.zip.Deflater;
 
 import static java.nio.channels.SelectionKey.OP_WRITE;
 import static jlibs.nio.Debugger.HTTP;
@@ -35,13 +36,14 @@ public abstract class WritePayload extends Task{
 
     boolean chunked;
     List<Encoding> encodings;
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
 
     protected final void setup(){
         if(chunked)
             out = new ChunkedOutput(out);
         if(encodings!=null){
             for(int i=encodings.size()-1; i>=0; --i)
-                out = encodings.get(i).wrap(out);
+                out = encodings.get(i).wrap(out, compressionLevel);
         }
         if(HTTP)
             println("out = "+out);
@@ -0,0 +1,285 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.filters;
+
+import jlibs.nio.Input;
+import jlibs.nio.Reactor;
+import jlibs.nio.http.*;
+import jlibs.nio.http.filters.ResponseCache.Entry;
+import jlibs.nio.http.filters.ResponseCache.Fetch;
+import jlibs.nio.http.msg.*;
+import jlibs.nio.http.util.CacheControl;
+import jlibs.nio.http.util.HTTPDate;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.ReadBuffers;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * serves GET requests from {@link ResponseCache}, and stores cacheable
+ * responses fetched from upstream, as per rfc7234.
+ * <p>
+ * Server Request/Response/Error Filter and Client Request/Response Filter.
+ * the client filter only handles requests passed on by the server filter,
+ * see {@link HTTPProxyServer#setCache(ResponseCache)}
+ * <p>
+ * concurrent requests which miss same key are coalesced: only the first one
+ * goes upstream, others wait and are served from its response if stored.
+ * stale responses are revalidated using ETag and Last-Modified.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class CacheResponses implements ServerFilter, ClientFilter{
+    private static final Key<String> INVALIDATE = new Key<>("CacheResponses.invalidate");
+
+    public final ResponseCache cache;
+    public CacheResponses(ResponseCache cache){
+        this.cache = cache;
+    }
+
+    @Override
+    public boolean filter(ServerExchange exchange, FilterType type) throws Exception{
+        Request request = exchange.getRequest();
+        if(type==FilterType.REQUEST)
+            return lookup(exchange, request);
+        if(request!=null){
+            cache.completed(request, this::resume);
+            String key = exchange.detach(INVALIDATE);
+            Response response = exchange.getResponse();
+            if(key!=null && type==FilterType.RESPONSE && response!=null && response.status.code<400)
+                cache.remove(key);
+        }
+        return true;
+    }
+
+    private boolean lookup(ServerExchange exchange, Request request) throws IOException{
+        if(request.method!=Method.GET){
+            if(request.method!=Method.HEAD && request.method!=Method.OPTIONS
+                    && request.method!=Method.TRACE && request.method!=Method.CONNECT){
+                // rfc7234 section 4.4: unsafe methods invalidate stored responses
+                String key = key(exchange);
+                if(key!=null)
+                    exchange.attach(INVALIDATE, key);
+            }
+            return true;
+        }
+        if(request.headers.get(Request.RANGE)!=null)
+            return true;
+        String key = key(exchange);
+        if(key==null)
+            return true;
+        CacheControl requested = requestDirectives(request);
+        if(requested.noStore)
+            return true;
+
+        Entry entry = cache.get(key, request);
+        if(serve(exchange, request, requested, entry))
+            return true;
+        if(requested.onlyIfCached){
+            Response response = new Response();
+            response.status = Status.GATEWAY_TIMEOUT;
+            exchange.setResponse(response);
+            return true;
+        }
+        if(cache.fetch(key, exchange, entry!=null && entry.hasValidators() ? entry : null)==null)
+            return false; // resumed when response is fetched
+        cache.misses.increment();
+        return true;
+    }
+
+    private boolean serve(ServerExchange exchange, Request request, CacheControl requested, Entry entry) throws IOException{
+        long now = System.currentTimeMillis();
+        if(entry==null || requested.noCache || !entry.isFresh(now, requested))
+            return false;
+        cache.hits.increment();
+        exchange.setResponse(notModified(request, entry) ? entry.toNotModified(now) : entry.toResponse(now));
+        return true;
+    }
+
+    /** resumes exchange that waited for response being fetched by other request */
+    private void resume(ServerExchange exchange){
+        try{
+            Request request = exchange.getRequest();
+            if(!serve(exchange, request, requestDirectives(request), cache.get(key(exchange), request)))
+                cache.misses.increment();
+        }catch(Throwable thr){
+            exchange.resume(thr);
+            return;
+        }
+        exchange.resume();
+    }
+
+    /** returns effective request uri, or null if it can't be determined */
+    protected String key(ServerExchange exchange){
+        Request request = exchange.getRequest();
+        String uri = request.uri;
+        if(uri.startsWith("/")){
+            String host = request.headers.value(Request.HOST);
+            if(host==null)
+                return null;
+            return (exchange.getEndpoint().sslContext==null ? "http://" : "https://")+host.toLowerCase()+uri;
+        }
+        int colon = uri.indexOf("://");
+        if(colon==-1)
+            return null;
+        int slash = uri.indexOf('/', colon+3);
+        return slash==-1 ? uri.toLowerCase()+'/' : uri.substring(0, slash).toLowerCase()+uri.substring(slash);
+    }
+
+    private static CacheControl requestDirectives(Request request){
+        Header header = request.headers.get(Message.CACHE_CONTROL);
+        CacheControl requested = new CacheControl(header);
+        if(header==null){
+            String pragma = request.headers.value(Message.PRAGMA);
+            if(pragma!=null && pragma.toLowerCase().contains("no-cache"))
+                requested.noCache = true;
+        }
+        return requested;
+    }
+
+    /** tells whether conditional request can be answered with 304 */
+    private static boolean notModified(Request request, Entry entry){
+        if(entry.status.code!=200)
+            return false;
+        String ifNoneMatch = request.getIfNoneMatch();
+        if(ifNoneMatch!=null){
+            if(entry.etag==null)
+                return false;
+            if(ifNoneMatch.trim().equals("*"))
+                return true;
+            String etag = weak(entry.etag);
+            for(String candidate: ifNoneMatch.split(",")){
+                if(weak(candidate.trim()).equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        String ifModifiedSince = request.headers.value(Request.IF_MODIFIED_SINCE);
+        if(ifModifiedSince!=null && entry.lastModified!=null){
+            try{
+                HTTPDate httpDate = HTTPDate.getInstance();
+                return httpDate.parse(entry.lastModified).getTime()<=httpDate.parse(ifModifiedSince).getTime();
+            }catch(RuntimeException ex){
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // rfc7232 section 2.3.2: weak comparison
+    private static String weak(String etag){
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    /*-------------------------------------------------[ Client ]---------------------------------------------------*/
+
+    @Override
+    public boolean filter(ClientExchange exchange, FilterType type) throws Exception{
+        Request request = exchange.getRequest();
+        Fetch fetch = cache.fetchOf(request);
+        if(fetch==null)
+            return true;
+
+        if(type==FilterType.REQUEST){
+            fetch.requestTime = System.currentTimeMillis();
+            Entry stale = fetch.stale;
+            if(stale!=null && request.headers.get(Request.IF_NONE_MATCH)==null
+                    && request.headers.get(Request.IF_MODIFIED_SINCE)==null){
+                if(stale.etag!=null)
+                    request.headers.set(Request.IF_NONE_MATCH, stale.etag);
+                if(stale.lastModified!=null)
+                    request.headers.set(Request.IF_MODIFIED_SINCE, stale.lastModified);
+                fetch.revalidating = true;
+            }
+            return true;
+        }
+
+        Response response = exchange.getResponse();
+        long now = System.currentTimeMillis();
+        if(fetch.revalidating && response.status.code==304){
+            cache.revalidations.increment();
+            Entry entry = fetch.stale.freshen(cache, response, fetch.requestTime, now);
+            cache.put(entry);
+            copy(entry.toResponse(now), response);
+            cache.completed(request, this::resume);
+            return true;
+        }
+
+        Payload payload = response.getPayload();
+        long length = payload.getContentLength();
+        if(!cache.isStorable(request, requestDirectives(request), response, response.getCacheControl())
+                || length<0 || length>cache.maxEntrySize){
+            cache.completed(request, this::resume);
+            return true;
+        }
+        if(length==0){
+            store(fetch, response, ByteBuffer.allocate(0), now);
+            return true;
+        }
+        SocketPayload socketPayload = payload instanceof SocketPayload ? (SocketPayload)payload : null;
+        Input in = socketPayload==null ? null : socketPayload.rawSocket();
+        if(in==null || !in.isOpen() || socketPayload.buffers!=null){
+            cache.completed(request, this::resume);
+            return true;
+        }
+        Buffers buffers = new Buffers();
+        new IOListener()
+            .setCallback((ClientExchange clientExchange, Throwable thr) -> {
+                try{
+                    if(thr==null){
+                        ByteBuffer body = ByteBuffer.allocate((int)buffers.remaining());
+                        for(int i=0; i<buffers.length; i++)
+                            body.put(buffers.array[buffers.offset+i]);
+                        body.flip();
+                        store(fetch, response, body, System.currentTimeMillis());
+                    }else
+                        cache.completed(request, this::resume);
+                }catch(Throwable thr1){
+                    if(thr==null)
+                        thr = thr1;
+                }finally{
+                    BufferAllocator allocator = Reactor.current().allocator;
+                    while(buffers.length>0)
+                        allocator.free(buffers.remove());
+                }
+                clientExchange.resume(thr);
+            }, exchange)
+            .start(new ReadBuffers(buffers), in, null);
+        return false;
+    }
+
+    private void store(Fetch fetch, Response response, ByteBuffer body, long now) throws IOException{
+        try{
+            Entry entry = cache.newEntry(fetch.key, fetch.request, response, body, fetch.requestTime, now);
+            cache.put(entry);
+            copy(entry.toResponse(now), response);
+        }finally{
+            cache.completed(fetch.request, this::resume);
+        }
+    }
+
+    private static void copy(Response from, Response to) throws IOException{
+        to.status = from.status;
+        to.headers.clear();
+        for(Header header=from.headers.getFirst(); header!=null; header=header.next())
+            to.headers.add(header.getName(), header.getValue());
+        to.setPayload(from.getPayload());
+    }
+}
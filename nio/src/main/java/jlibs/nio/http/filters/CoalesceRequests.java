@@ -0,0 +1,279 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.filters;
+
+import jlibs.nio.Input;
+import jlibs.nio.Reactor;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.*;
+import jlibs.nio.http.msg.*;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.ReadBuffers;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.Buffers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * coalesces identical concurrent GET and HEAD requests: only the first one
+ * is sent upstream, others wait and are given copies of its response,
+ * sharing the payload read from upstream.
+ * <p>
+ * Client Request/Response/Error Filter.
+ * requests are identical if they have same method, endpoint, uri and
+ * values of {@link #headers}. requests with payload are never coalesced.
+ * if response payload is of unknown length or larger than {@link #maxPayloadSize},
+ * or the first request fails, the waiting requests are sent upstream on their own
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class CoalesceRequests implements ClientFilter{
+    private static final Key<Flight> FLIGHT = new Key<>("CoalesceRequests.flight");
+
+    /** request headers, whose values must match for requests to be coalesced */
+    public final AsciiString headers[];
+    public long maxPayloadSize = Defaults.MAX_PAYLOAD_SIZE;
+
+    public CoalesceRequests(){
+        this(Defaults.HEADERS);
+    }
+
+    public CoalesceRequests(AsciiString... headers){
+        this.headers = headers;
+    }
+
+    private final Map<String, Flight> flights = new HashMap<>();
+
+    private static final class Flight{
+        final String key;
+        List<ClientExchange> waiters = new ArrayList<>();
+        List<Reactor> waiterReactors = new ArrayList<>();
+
+        Flight(String key){
+            this.key = key;
+        }
+    }
+
+    @Override
+    public boolean filter(ClientExchange exchange, FilterType type) throws Exception{
+        if(type==FilterType.REQUEST)
+            return join(exchange);
+        Flight flight = exchange.detach(FLIGHT);
+        if(flight==null)
+            return true;
+        if(type==FilterType.ERROR){
+            land(flight, null);
+            return true;
+        }
+
+        Request request = exchange.getRequest();
+        Response response = exchange.getResponse();
+        Payload payload = response.getPayload();
+        long length = payload.getContentLength();
+        if(request.method==Method.HEAD || length==0){
+            land(flight, new Shared(response, null));
+            return true;
+        }
+        SocketPayload socketPayload = payload instanceof SocketPayload ? (SocketPayload)payload : null;
+        if(socketPayload==null || length<0 || length>maxPayloadSize){
+            land(flight, null);
+            return true;
+        }
+        Input in = socketPayload.rawSocket();
+        if(in==null){
+            // payload already read, for example by CacheResponses
+            Shared shared = null;
+            if(socketPayload.buffers!=null)
+                shared = new Shared(response, toByteBuffer(socketPayload.buffers));
+            land(flight, shared);
+            return true;
+        }
+        if(!in.isOpen() || socketPayload.buffers!=null){
+            land(flight, null);
+            return true;
+        }
+
+        Buffers buffers = new Buffers();
+        new IOListener()
+            .setCallback((ClientExchange clientExchange, Throwable thr) -> {
+                Shared shared = null;
+                try{
+                    if(thr==null){
+                        shared = new Shared(response, toByteBuffer(buffers));
+                        response.setPayload(shared.payload(response));
+                    }
+                }catch(Throwable thr1){
+                    thr = thr1;
+                    shared = null;
+                }finally{
+                    BufferAllocator allocator = Reactor.current().allocator;
+                    while(buffers.length>0)
+                        allocator.free(buffers.remove());
+                }
+                land(flight, shared);
+                clientExchange.resume(thr);
+            }, exchange)
+            .start(new ReadBuffers(buffers), in, null);
+        return false;
+    }
+
+    private boolean join(ClientExchange exchange){
+        if(exchange.attachment(FLIGHT)!=null)
+            return true; // retried
+        Request request = exchange.getRequest();
+        if(request.method!=Method.GET && request.method!=Method.HEAD)
+            return true;
+        if(request.getPayload().getContentLength()!=0)
+            return true;
+        String key = key(exchange);
+        synchronized(flights){
+            Flight flight = flights.get(key);
+            if(flight==null){
+                flights.put(key, flight=new Flight(key));
+                exchange.attach(FLIGHT, flight);
+                fetches.increment();
+                return true;
+            }
+            flight.waiters.add(exchange);
+            flight.waiterReactors.add(Reactor.current());
+        }
+        coalesced.increment();
+        return false; // resumed when response is available
+    }
+
+    /**
+     * waiters are resumed in their reactors, with copy of given response.
+     * if shared is null, they are resumed to send their requests
+     */
+    private void land(Flight flight, Shared shared){
+        synchronized(flights){
+            flights.remove(flight.key);
+        }
+        if(shared==null)
+            fallbacks.add(flight.waiters.size());
+        for(int i=0; i<flight.waiters.size(); i++){
+            ClientExchange waiter = flight.waiters.get(i);
+            flight.waiterReactors.get(i).invokeLater(() -> {
+                if(shared!=null){
+                    try{
+                        waiter.setResponse(shared.toResponse());
+                    }catch(Throwable thr){
+                        waiter.resume(thr);
+                        return;
+                    }
+                }
+                waiter.resume();
+            });
+        }
+    }
+
+    /** returns the key identifying identical requests */
+    protected String key(ClientExchange exchange){
+        Request request = exchange.getRequest();
+        TCPEndpoint endpoint = exchange.getEndpoint();
+        StringBuilder buffer = new StringBuilder();
+        buffer.append(request.method).append(' ')
+              .append(endpoint.sslContext==null ? "http://" : "https://").append(endpoint)
+              .append(request.uri);
+        for(AsciiString name: headers){
+            buffer.append('\n');
+            for(Header header=request.headers.get(name); header!=null; header=header.sameNext())
+                buffer.append(header.getValue()).append('\n');
+        }
+        return buffer.toString();
+    }
+
+    private static ByteBuffer toByteBuffer(Buffers buffers){
+        ByteBuffer body = ByteBuffer.allocate((int)buffers.remaining());
+        for(int i=0; i<buffers.length; i++)
+            body.put(buffers.array[buffers.offset+i].duplicate());
+        body.flip();
+        return body;
+    }
+
+    /** immutable copy of response, shared by waiters across reactors */
+    private static final class Shared{
+        final Version version;
+        final Status status;
+        final AsciiString names[];
+        final String values[];
+        final ByteBuffer body;
+
+        Shared(Response response, ByteBuffer body){
+            version = response.version;
+            status = response.status;
+            List<AsciiString> names = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+            for(Header header=response.headers.getFirst(); header!=null; header=header.next()){
+                names.add(header.getName());
+                values.add(header.getValue());
+            }
+            this.names = names.toArray(new AsciiString[names.size()]);
+            this.values = values.toArray(new String[values.size()]);
+            this.body = body;
+        }
+
+        Response toResponse() throws IOException{
+            Response response = new Response();
+            response.version = version;
+            response.status = status;
+            for(int i=0; i<names.length; i++)
+                response.headers.add(names[i], values[i]);
+            if(body!=null && body.capacity()>0)
+                response.setPayload(payload(response));
+            return response;
+        }
+
+        SocketPayload payload(Response response){
+            SocketPayload payload = new SocketPayload(body.capacity(), response.headers.value(Message.CONTENT_TYPE), null, response.getContentEncodings());
+            payload.buffers = new Buffers(new ByteBuffer[]{ body.duplicate() }, 0, 1);
+            payload.retain = true;
+            return payload;
+        }
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    final LongAdder fetches = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+    final LongAdder fallbacks = new LongAdder();
+
+    /** number of requests sent upstream, which other requests could join */
+    public long getFetches(){ return fetches.sum(); }
+
+    /** number of requests that waited for other request's response */
+    public long getCoalesced(){ return coalesced.sum(); }
+
+    /** number of waiting requests, which had to be sent upstream on their own */
+    public long getFallbacks(){ return fallbacks.sum(); }
+
+    public static class Defaults{
+        public static AsciiString HEADERS[] = {
+            Request.ACCEPT, Request.ACCEPT_ENCODING, Request.ACCEPT_LANGUAGE,
+            Request.AUTHORIZATION, Request.COOKIE, Request.RANGE,
+            Request.IF_NONE_MATCH, Request.IF_MODIFIED_SINCE
+        };
+
+        /** responses with payload larger than this, are not shared */
+        public static long MAX_PAYLOAD_SIZE = 1024*1024;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.filters;
+
+import jlibs.core.io.IOUtil;
+import jlibs.json.JSONBuilder;
+import jlibs.json.JSONHandler;
+import jlibs.json.parser.JSONParser;
+import jlibs.nbp.Feeder;
+import jlibs.nio.Input;
+import jlibs.nio.http.Exchange;
+import jlibs.nio.http.SocketPayload;
+import jlibs.nio.http.msg.JSONPayload;
+import jlibs.nio.http.msg.Message;
+import jlibs.nio.http.util.MediaType;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
+import jlibs.nio.util.Buffers;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * parses json payload incrementally as it arrives, without buffering it.
+ *
+ * if {@link #createHandler(Exchange, Message)} returns null, json tree is
+ * built and payload is replaced with {@link JSONPayload}. otherwise events
+ * are reported to the handler returned, and payload is left as is
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ParseJSON extends ParseSocketPayload{
+    @Override
+    protected boolean isCompatible(MediaType mt){
+        return mt.isJSON();
+    }
+
+    @Override
+    protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
+        JSONHandler handler = createHandler(exchange, msg);
+        if(handler==null)
+            handler = new JSONBuilder();
+
+        ReadableByteChannel channel;
+        Input socket = payload.socket();
+        if(socket!=null && socket.isOpen()){
+            channel = socket;
+            boolean retain = !(handler instanceof JSONBuilder) && retain(payload);
+            if(retain){
+                if(payload.buffers==null)
+                    payload.buffers = new Buffers();
+            }
+            if(payload.buffers!=null)
+                channel = new PayloadChannel(payload.buffers, retain, channel);
+        }else
+            channel = Channels.newChannel(payload.buffers.new Input());
+
+        JSONParser parser = new JSONParser(handler);
+        Feeder feeder = parser.createFeeder(channel, mt.getCharset(null));
+        new IOListener().start(new JSONFeedTask(exchange, msg, parser, feeder), socket, null);
+        return false;
+    }
+
+    protected boolean retain(SocketPayload payload){
+        return payload.retain;
+    }
+
+    /** returns handler to receive json events, or null to build json tree */
+    protected JSONHandler createHandler(Exchange exchange, Message msg) throws Exception{
+        return null;
+    }
+
+    protected void parsingCompleted(Exchange exchange, Message msg, JSONHandler handler){
+        if(handler instanceof JSONBuilder){
+            Object value = ((JSONBuilder)handler).getResult();
+            MediaType mt = msg.getPayload().getMediaType();
+            String contentType = mt.withCharset(IOUtil.UTF_8.name()).toString();
+            try{
+                msg.setPayload(new JSONPayload(contentType, value));
+            }catch(Throwable thr){
+                exchange.resume(thr);
+                return;
+            }
+        }
+        exchange.resume();
+    }
+
+    private class JSONFeedTask extends Task{
+        private Exchange exchange;
+        private Message msg;
+        private JSONParser parser;
+        private Feeder feeder;
+        private JSONFeedTask(Exchange exchange, Message msg, JSONParser parser, Feeder feeder){
+            super(OP_READ);
+            this.exchange = exchange;
+            this.msg = msg;
+            this.parser = parser;
+            this.feeder = feeder;
+        }
+
+        @Override
+        protected boolean process(int readyOp) throws IOException{
+            feeder = feeder.feed();
+            if(feeder==null)
+                return true;
+            else{
+                in.addReadInterest();
+                return false;
+            }
+        }
+
+        @Override
+        protected void cleanup(Throwable thr){
+            if(thr==null)
+                parsingCompleted(exchange, msg, parser.getHandler());
+            else if(thr instanceof IOException)
+                exchange.resume(msg.badMessage(thr));
+            else
+                exchange.resume(thr);
+        }
+    }
+}
@@ -23,6 +23,7 @@ import jlibs.nio.http.msg.Message;
 import jlibs.nio.http.msg.MultipartPayload;
 import jlibs.nio.http.msg.Part;
 import jlibs.nio.http.msg.parser.MultipartParser;
+import jlibs.nio.http.msg.parser.PartListener;
 import jlibs.nio.http.util.MediaType;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.listeners.Task;
@@ -44,7 +45,7 @@ public class ParseMultipart extends ParseSocketPayload{
 
     @Override
     protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
-        MultipartParser parser = new MultipartParser(new MultipartPayload(mt.toString()), msg.badMessageStatus());
+        MultipartParser parser = new MultipartParser(new MultipartPayload(mt.toString()), msg.badMessageStatus(), createPartListener(exchange, msg));
 
         try{
             if(payload.buffers!=null){
@@ -68,6 +69,14 @@ public class ParseMultipart extends ParseSocketPayload{
         return false;
     }
 
+    /**
+     * returns listener to which parts are streamed as they arrive.
+     * if null is returned, parts are collected into MultipartPayload
+     */
+    protected PartListener createPartListener(Exchange exchange, Message msg){
+        return null;
+    }
+
     private static class ParseTask extends Task{
         private Exchange exchange;
         private Message msg;
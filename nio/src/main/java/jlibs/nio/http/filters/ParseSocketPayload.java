@@ -49,8 +49,7 @@ public abstract class ParseSocketPayload implements ServerFilter, ClientFilter{
         MediaType mt = payload.getMediaType();
         if(mt==null || !isCompatible(mt))
             return true;
-        parse(exchange, msg, payload, mt);
-        return false;
+        return parse(exchange, msg, payload, mt);
     }
 
     protected abstract boolean isCompatible(MediaType mt);
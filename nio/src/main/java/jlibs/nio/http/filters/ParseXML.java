@@ -17,22 +17,19 @@ package jlibs.nio.http.filters;
 
 import jlibs.nbp.Feeder;
 import jlibs.nio.Input;
-import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
 import jlibs.nio.http.Exchange;
 import jlibs.nio.http.SocketPayload;
 import jlibs.nio.http.msg.Message;
 import jlibs.nio.http.util.MediaType;
 import jlibs.nio.listeners.IOListener;
 import jlibs.nio.listeners.Task;
-import jlibs.nio.util.BufferAllocator;
 import jlibs.nio.util.Buffers;
-import jlibs.nio.util.UnpooledBufferAllocator;
 import jlibs.xml.sax.async.AsyncXMLReader;
 import jlibs.xml.sax.async.ChannelInputSource;
 import org.xml.sax.InputSource;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
 
 import static java.nio.channels.SelectionKey.OP_READ;
@@ -41,6 +38,12 @@ import static java.nio.channels.SelectionKey.OP_READ;
  * @author Santhosh Kumar Tekuri
  */
 public class ParseXML extends ParseSocketPayload{
+    /**
+     * AsyncXMLReaders reused across messages, along with their scanners
+     * and buffers. readers are {@link AsyncXMLReader#reset() reset} before pooling
+     */
+    public final Reactors.Pool<AsyncXMLReader> readers = new Reactors.Pool<>(AsyncXMLReader::new, Defaults.MAX_POOLED_READERS);
+
     @Override
     protected boolean isCompatible(MediaType mt){
         return mt.isXML();
@@ -60,7 +63,7 @@ public class ParseXML extends ParseSocketPayload{
                     payload.buffers = new Buffers();
             }
             if(payload.buffers!=null)
-                channel = new Reader(payload.buffers, retain, channel);
+                channel = new PayloadChannel(payload.buffers, retain, channel);
             is = new ChannelInputSource(channel);
         }else
             is = new InputSource(payload.buffers.new Input()); // todo optimize
@@ -76,6 +79,7 @@ public class ParseXML extends ParseSocketPayload{
 
     protected void addHandlers(AsyncXMLReader xmlReader) throws Exception{}
 
+    /** xmlReader is reused once this method returns, so it must not be retained */
     protected void parsingCompleted(Exchange exchange, Message msg, AsyncXMLReader xmlReader){
         exchange.resume();
     }
@@ -89,9 +93,21 @@ public class ParseXML extends ParseSocketPayload{
             super(OP_READ);
             this.exchange = exchange;
             this.msg = msg;
-            xmlReader = new AsyncXMLReader();
-            addHandlers(xmlReader);
-            feeder = xmlReader.createFeeder(is);
+            xmlReader = readers.allocate();
+            try{
+                addHandlers(xmlReader);
+                feeder = xmlReader.createFeeder(is);
+            }catch(Throwable thr){
+                free();
+                throw thr;
+            }
+        }
+
+        private void free(){
+            xmlReader.reset();
+            readers.free(xmlReader);
+            xmlReader = null;
+            feeder = null;
         }
 
         @Override
@@ -107,65 +123,19 @@ public class ParseXML extends ParseSocketPayload{
 
         @Override
         protected void cleanup(Throwable thr){
-            if(thr==null)
-                parsingCompleted(exchange, msg, xmlReader);
-            else
-                exchange.resume(thr);
-        }
-    }
-
-    private static class Reader implements ReadableByteChannel{
-        private Buffers buffers;
-        private BufferAllocator allocator;
-        private ReadableByteChannel channel;
-        private Buffers backup;
-        private Reader(Buffers buffers, boolean retain, ReadableByteChannel channel){
-            this.channel = channel;
-
-            if(buffers.hasRemaining()){
-                if(retain){
-                    this.buffers = buffers.copy();
-                    allocator = UnpooledBufferAllocator.HEAP;
-                }else{
-                    this.buffers = buffers;
-                    allocator = Reactor.current().allocator;
-                }
+            try{
+                if(thr==null)
+                    parsingCompleted(exchange, msg, xmlReader);
+                else
+                    exchange.resume(thr);
+            }finally{
+                free();
             }
-
-            if(retain)
-                backup = buffers;
-        }
-
-        @Override
-        public int read(ByteBuffer dst) throws IOException{
-            if(buffers!=null){
-                int read = buffers.read(dst, allocator);
-                if(buffers.length==0)
-                    buffers = null;
-                return read;
-            }
-
-            int dstPos = dst.position();
-            int read = channel.read(dst);
-            if(read>0 && backup!=null){
-                int dstLimit = dst.limit();
-                dst.position(dstPos);
-                dst.limit(dstPos+read);
-                backup.write(dst);
-                dst.limit(dstLimit);
-            }
-            return read;
-        }
-
-        @Override
-        public boolean isOpen(){
-            return channel.isOpen();
         }
+    }
 
-        @Override
-        public void close() throws IOException{
-            channel.close();
-        }
+    public static class Defaults{
+        /** maximum number of AsyncXMLReaders pooled per reactor, for each ParseXML filter */
+        public static int MAX_POOLED_READERS = 16;
     }
 }
-
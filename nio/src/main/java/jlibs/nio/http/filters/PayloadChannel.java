@@ -0,0 +1,86 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.filters;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.util.BufferAllocator;
+import jlibs.nio.util.Buffers;
+import jlibs.nio.util.UnpooledBufferAllocator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * reads payload bytes already buffered followed by socket.
+ * if retain is true, bytes read are also appended to given buffers
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+class PayloadChannel implements ReadableByteChannel{
+    private Buffers buffers;
+    private BufferAllocator allocator;
+    private ReadableByteChannel channel;
+    private Buffers backup;
+    PayloadChannel(Buffers buffers, boolean retain, ReadableByteChannel channel){
+        this.channel = channel;
+
+        if(buffers.hasRemaining()){
+            if(retain){
+                this.buffers = buffers.copy();
+                allocator = UnpooledBufferAllocator.HEAP;
+            }else{
+                this.buffers = buffers;
+                allocator = Reactor.current().allocator;
+            }
+        }
+
+        if(retain)
+            backup = buffers;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException{
+        if(buffers!=null){
+            int read = buffers.read(dst, allocator);
+            if(buffers.length==0)
+                buffers = null;
+            return read;
+        }
+
+        int dstPos = dst.position();
+        int read = channel.read(dst);
+        if(read>0 && backup!=null){
+            int dstLimit = dst.limit();
+            dst.position(dstPos);
+            dst.limit(dstPos+read);
+            backup.write(dst);
+            dst.limit(dstLimit);
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen(){
+        return channel.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException{
+        channel.close();
+    }
+}
@@ -0,0 +1,629 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.filters;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.http.ServerExchange;
+import jlibs.nio.http.SocketPayload;
+import jlibs.nio.http.msg.*;
+import jlibs.nio.http.util.CacheControl;
+import jlibs.nio.http.util.HTTPDate;
+import jlibs.nio.util.Buffers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * shared cache of responses, as per rfc7234. see {@link CacheResponses}
+ * <p>
+ * responses are held in memory, bounded by maxMemorySize. when diskDir
+ * is specified, responses evicted from memory are written to files in it,
+ * and served from memory-mapped buffers, bounded by maxDiskSize.
+ * <p>
+ * this can be shared by servers running on different reactors.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class ResponseCache{
+    public final long maxMemorySize;
+    public final File diskDir;
+    public final long maxDiskSize;
+
+    /** responses larger than this, or without Content-Length, are not cached */
+    public long maxEntrySize = Defaults.MAX_ENTRY_SIZE;
+
+    /** upper bound in millis, for freshness computed from Last-Modified */
+    public long maxHeuristicFreshness = Defaults.MAX_HEURISTIC_FRESHNESS;
+
+    /**
+     * executor on which entries evicted from memory are written to diskDir,
+     * so that file io does not stall the reactor. null writes them in the
+     * thread calling put, but outside the cache lock
+     */
+    public Executor spillExecutor;
+
+    public ResponseCache(long maxMemorySize){
+        this(maxMemorySize, null, 0);
+    }
+
+    public ResponseCache(long maxMemorySize, File diskDir, long maxDiskSize){
+        this.maxMemorySize = maxMemorySize;
+        this.diskDir = diskDir;
+        this.maxDiskSize = maxDiskSize;
+        if(diskDir!=null && !diskDir.isDirectory() && !diskDir.mkdirs())
+            throw new IllegalArgumentException("can't create "+diskDir);
+    }
+
+    /*-------------------------------------------------[ Storage ]---------------------------------------------------*/
+
+    // variants of each key in access order
+    private final LinkedHashMap<String, List<Entry>> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, List<Entry>> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long memorySize, diskSize;
+    private long lastFileID;
+
+    /** returns stored response for given key, selected by Vary */
+    public synchronized Entry get(String key, Request request){
+        Entry entry = select(memory.get(key), request);
+        return entry==null ? select(disk.get(key), request) : entry;
+    }
+
+    private static Entry select(List<Entry> variants, Request request){
+        if(variants!=null){
+            for(Entry entry: variants){
+                if(entry.matches(request))
+                    return entry;
+            }
+        }
+        return null;
+    }
+
+    // entries evicted from memory, being written to disk
+    private final Set<Entry> spilling = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    public void put(Entry entry){
+        List<Entry> spills = null;
+        synchronized(this){
+            remove(disk, entry);
+            remove(memory, entry);
+            memory.computeIfAbsent(entry.key, key -> new ArrayList<>(1)).add(entry);
+            memorySize += entry.size;
+
+            Iterator<List<Entry>> iter = memory.values().iterator();
+            while(memorySize>maxMemorySize && iter.hasNext()){
+                List<Entry> variants = iter.next();
+                iter.remove();
+                for(Entry evicted: variants){
+                    memorySize -= evicted.size;
+                    if(diskDir!=null && evicted.size<=maxDiskSize){
+                        if(spills==null)
+                            spills = new ArrayList<>();
+                        spills.add(evicted);
+                        spilling.add(evicted);
+                    }
+                }
+            }
+        }
+        if(spills!=null){
+            Reactor reactor = Reactor.current();
+            List<Entry> entries = spills;
+            Executor executor = spillExecutor;
+            if(executor!=null){
+                try{
+                    executor.execute(() -> spill(entries, reactor));
+                    return;
+                }catch(RejectedExecutionException ignore){
+                    // spill in current thread
+                }
+            }
+            spill(entries, null);
+        }
+    }
+
+    /**
+     * writes evicted entries to disk, outside the lock. an entry removed or
+     * replaced meanwhile is not added to disk. reactor is where errors are
+     * reported when called from spillExecutor
+     */
+    private void spill(List<Entry> entries, Reactor reactor){
+        for(Entry evicted: entries){
+            Entry spilled;
+            try{
+                spilled = evicted.spill(new File(diskDir, nextFileID()+".body"));
+            }catch(IOException ex){
+                synchronized(this){
+                    spilling.remove(evicted);
+                }
+                handleException(reactor, ex);
+                continue;
+            }
+            synchronized(this){
+                if(spilling.remove(evicted)){
+                    disk.computeIfAbsent(spilled.key, key -> new ArrayList<>(1)).add(spilled);
+                    diskSize += spilled.size;
+                }else
+                    spilled.delete();
+
+                Iterator<List<Entry>> iter = disk.values().iterator();
+                while(diskSize>maxDiskSize && iter.hasNext()){
+                    List<Entry> variants = iter.next();
+                    iter.remove();
+                    for(Entry entry: variants){
+                        diskSize -= entry.size;
+                        entry.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized long nextFileID(){
+        return ++lastFileID;
+    }
+
+    private static void handleException(Reactor reactor, Throwable thr){
+        if(reactor!=null)
+            reactor.invokeLater(() -> reactor.handleException(thr));
+        else if(Reactor.current()!=null)
+            Reactor.current().handleException(thr);
+        else
+            thr.printStackTrace();
+    }
+
+    // removes variant of given entry
+    private void remove(Map<String, List<Entry>> tier, Entry entry){
+        List<Entry> variants = tier.get(entry.key);
+        if(variants!=null){
+            for(Iterator<Entry> iter=variants.iterator(); iter.hasNext();){
+                Entry variant = iter.next();
+                if(sameVariant(variant, entry)){
+                    iter.remove();
+                    removed(tier, variant);
+                }
+            }
+            if(variants.isEmpty())
+                tier.remove(entry.key);
+        }
+        if(tier==disk)
+            spilling.removeIf(spill -> spill.key.equals(entry.key) && sameVariant(spill, entry));
+    }
+
+    private static boolean sameVariant(Entry entry1, Entry entry2){
+        return Arrays.equals(entry1.varyValues, entry2.varyValues)
+                && Arrays.equals(entry1.varyNames, entry2.varyNames);
+    }
+
+    private void removed(Map<String, List<Entry>> tier, Entry entry){
+        if(tier==memory)
+            memorySize -= entry.size;
+        else{
+            diskSize -= entry.size;
+            entry.delete();
+        }
+    }
+
+    /** removes all variants of given key */
+    public synchronized void remove(String key){
+        for(Map<String, List<Entry>> tier: Arrays.asList(memory, disk)){
+            List<Entry> variants = tier.remove(key);
+            if(variants!=null){
+                for(Entry entry: variants)
+                    removed(tier, entry);
+            }
+        }
+        spilling.removeIf(spill -> spill.key.equals(key));
+    }
+
+    public synchronized void clear(){
+        for(List<Entry> variants: disk.values()){
+            for(Entry entry: variants)
+                entry.delete();
+        }
+        memory.clear();
+        disk.clear();
+        spilling.clear();
+        memorySize = diskSize = 0;
+    }
+
+    public synchronized long getMemorySize(){
+        return memorySize;
+    }
+
+    public synchronized long getDiskSize(){
+        return diskSize;
+    }
+
+    /*-------------------------------------------------[ Coalescing ]---------------------------------------------------*/
+
+    // requests fetching response for a key, from upstream
+    private final Map<String, Fetch> fetches = new HashMap<>();
+    private final Map<Request, Fetch> fetchRequests = new IdentityHashMap<>();
+
+    static final class Fetch{
+        final String key;
+        final Request request;
+        final Entry stale; // to be revalidated, if not null
+        boolean revalidating;
+        long requestTime;
+        private List<ServerExchange> waiters;
+        private List<Reactor> waiterReactors;
+
+        Fetch(String key, Request request, Entry stale){
+            this.key = key;
+            this.request = request;
+            this.stale = stale;
+        }
+    }
+
+    /**
+     * if some request is already fetching given key, adds exchange as waiter
+     * and returns null. otherwise returns new Fetch
+     */
+    synchronized Fetch fetch(String key, ServerExchange exchange, Entry stale){
+        Fetch fetch = fetches.get(key);
+        if(fetch==null){
+            fetch = new Fetch(key, exchange.getRequest(), stale);
+            fetches.put(key, fetch);
+            fetchRequests.put(fetch.request, fetch);
+            return fetch;
+        }else{
+            if(fetch.waiters==null){
+                fetch.waiters = new ArrayList<>();
+                fetch.waiterReactors = new ArrayList<>();
+            }
+            fetch.waiters.add(exchange);
+            fetch.waiterReactors.add(Reactor.current());
+            coalesced.increment();
+            return null;
+        }
+    }
+
+    synchronized Fetch fetchOf(Request request){
+        return fetchRequests.get(request);
+    }
+
+    /**
+     * called when fetch is completed, whether response is stored or not.
+     * the waiters are resumed in their reactors, by given function
+     */
+    void completed(Request request, WaiterTask task){
+        List<ServerExchange> waiters;
+        List<Reactor> reactors;
+        synchronized(this){
+            Fetch fetch = fetchRequests.remove(request);
+            if(fetch==null)
+                return;
+            fetches.remove(fetch.key);
+            waiters = fetch.waiters;
+            reactors = fetch.waiterReactors;
+        }
+        if(waiters!=null){
+            for(int i=0; i<waiters.size(); i++){
+                ServerExchange waiter = waiters.get(i);
+                reactors.get(i).invokeLater(() -> task.resume(waiter));
+            }
+        }
+    }
+
+    interface WaiterTask{
+        void resume(ServerExchange waiter);
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder revalidations = new LongAdder();
+    final LongAdder coalesced = new LongAdder();
+
+    public long getHits(){ return hits.sum(); }
+    public long getMisses(){ return misses.sum(); }
+    public long getRevalidations(){ return revalidations.sum(); }
+    public long getCoalesced(){ return coalesced.sum(); }
+
+    /*-------------------------------------------------[ Entry ]---------------------------------------------------*/
+
+    // hop-by-hop headers, along with those set while writing response
+    private static final Set<String> UNSTORED_HEADERS = new HashSet<>(Arrays.asList(
+        "connection", "keep-alive", "proxy-connection", "proxy-authenticate", "te", "trailer",
+        "transfer-encoding", "upgrade", "content-length", "age"
+    ));
+
+    /** immutable stored response */
+    public static final class Entry{
+        final String key;
+        final Status status;
+        final AsciiString names[];
+        final String values[];
+        final ByteBuffer body;
+        final File file;
+        final long size;
+
+        final String varyNames[];
+        final String varyValues[];
+
+        final long responseTime;
+        final long correctedInitialAge;
+        final long freshnessLifetime;
+        final boolean noCache;
+        final boolean mustRevalidate;
+        final String etag;
+        final String lastModified;
+
+        private Entry(String key, Status status, AsciiString[] names, String[] values, ByteBuffer body, File file,
+                      String[] varyNames, String[] varyValues,
+                      long responseTime, long correctedInitialAge, long freshnessLifetime,
+                      boolean noCache, boolean mustRevalidate, String etag, String lastModified){
+            this.key = key;
+            this.status = status;
+            this.names = names;
+            this.values = values;
+            this.body = body;
+            this.file = file;
+            long size = body.capacity();
+            for(int i=0; i<names.length; i++)
+                size += names[i].text.length()+values[i].length()+4;
+            this.size = size;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            this.responseTime = responseTime;
+            this.correctedInitialAge = correctedInitialAge;
+            this.freshnessLifetime = freshnessLifetime;
+            this.noCache = noCache;
+            this.mustRevalidate = mustRevalidate;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /** rfc7234 section 4.2.3, in millis */
+        public long currentAge(long now){
+            return correctedInitialAge+Math.max(0, now-responseTime);
+        }
+
+        /** tells whether this can be served, without revalidation, for request with given directives */
+        public boolean isFresh(long now, CacheControl requested){
+            if(noCache)
+                return false;
+            long age = currentAge(now);
+            if(requested.maxAge>=0 && age>requested.maxAge*1000)
+                return false;
+            long freshness = freshnessLifetime-age;
+            if(requested.minFresh>=0)
+                freshness -= requested.minFresh*1000;
+            if(freshness>0)
+                return true;
+            return !mustRevalidate && requested.maxStale>=0
+                    && (requested.maxStale==Long.MAX_VALUE || -freshness<=requested.maxStale*1000);
+        }
+
+        public boolean hasValidators(){
+            return etag!=null || lastModified!=null;
+        }
+
+        boolean matches(Request request){
+            if(varyNames==null)
+                return true;
+            for(int i=0; i<varyNames.length; i++){
+                if(!Objects.equals(varyValues[i], varyValue(request, varyNames[i])))
+                    return false;
+            }
+            return true;
+        }
+
+        /** creates response to be served, which shares the body */
+        public Response toResponse(long now) throws IOException{
+            Response response = new Response();
+            response.status = status;
+            for(int i=0; i<names.length; i++)
+                response.headers.add(names[i], values[i]);
+            response.setAge(currentAge(now)/1000);
+            if(body.capacity()>0){
+                SocketPayload payload = new SocketPayload(body.capacity(), response.headers.value(Message.CONTENT_TYPE), null, response.getContentEncodings());
+                payload.buffers = new Buffers(new ByteBuffer[]{ body.duplicate() }, 0, 1);
+                payload.retain = true;
+                response.setPayload(payload);
+            }
+            return response;
+        }
+
+        /** creates 304 response to conditional request */
+        public Response toNotModified(long now){
+            Response response = new Response();
+            response.status = Status.NOT_MODIFIED;
+            for(int i=0; i<names.length; i++){
+                if(!names[i].text.regionMatches(true, 0, "Content-", 0, 8))
+                    response.headers.add(names[i], values[i]);
+            }
+            response.setAge(currentAge(now)/1000);
+            return response;
+        }
+
+        /** rfc7234 section 4.3.4, returns entry with headers updated from 304 response */
+        Entry freshen(ResponseCache cache, Response notModified, long requestTime, long responseTime){
+            Response response = new Response();
+            response.status = status;
+            for(int i=0; i<names.length; i++){
+                if(notModified.headers.get(names[i])==null)
+                    response.headers.add(names[i], values[i]);
+            }
+            for(Header header=notModified.headers.getFirst(); header!=null; header=header.next()){
+                AsciiString name = header.getName();
+                if(!name.text.regionMatches(true, 0, "Content-", 0, 8))
+                    response.headers.add(name, header.getValue());
+            }
+            return create(cache, key, varyNames, varyValues, response, body, requestTime, responseTime);
+        }
+
+        Entry spill(File file) throws IOException{
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+                FileChannel channel = raf.getChannel();
+                ByteBuffer src = body.duplicate();
+                while(src.hasRemaining())
+                    channel.write(src);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, body.capacity());
+                return new Entry(key, status, names, values, mapped, file, varyNames, varyValues,
+                        responseTime, correctedInitialAge, freshnessLifetime, noCache, mustRevalidate, etag, lastModified);
+            }catch(IOException ex){
+                file.delete();
+                throw ex;
+            }
+        }
+
+        void delete(){
+            if(file!=null)
+                file.delete();
+        }
+    }
+
+    static String varyValue(Request request, String name){
+        Header header = request.headers.get(name);
+        if(header==null)
+            return null;
+        if(header.sameNext()==null)
+            return header.getValue();
+        StringBuilder buffer = new StringBuilder();
+        while(header!=null){
+            if(buffer.length()>0)
+                buffer.append(',');
+            buffer.append(header.getValue());
+            header = header.sameNext();
+        }
+        return buffer.toString();
+    }
+
+    private static final Set<Integer> CACHEABLE_BY_DEFAULT = new HashSet<>(Arrays.asList(
+        200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501
+    ));
+    private static final Set<Integer> UNDERSTOOD = new HashSet<>(Arrays.asList(
+        200, 203, 204, 300, 301, 302, 303, 307, 308, 404, 405, 410, 414, 501
+    ));
+
+    /**
+     * rfc7234 section 3. tells whether response to given request can be stored.
+     * it doesn't check size of response
+     */
+    public boolean isStorable(Request request, CacheControl requested, Response response, CacheControl cc){
+        if(request.method!=Method.GET || requested.noStore || cc.noStore || cc.isPrivate)
+            return false;
+        int code = response.status.code;
+        if(!UNDERSTOOD.contains(code))
+            return false;
+        if(request.headers.get(Request.AUTHORIZATION)!=null && !cc.isPublic && !cc.mustRevalidate && cc.sMaxAge<0)
+            return false;
+        if(response.headers.get(Response.SET_COOKIE)!=null)
+            return false;
+        String vary = response.headers.value(Response.VARY);
+        if(vary!=null && vary.trim().equals("*"))
+            return false;
+        return cc.sMaxAge>=0 || cc.maxAge>=0 || response.headers.get(Response.EXPIRES)!=null
+                || cc.isPublic || CACHEABLE_BY_DEFAULT.contains(code);
+    }
+
+    /** creates entry for response received at responseTime, for request sent at requestTime */
+    public Entry newEntry(String key, Request request, Response response, ByteBuffer body, long requestTime, long responseTime){
+        String varyNames[] = null, varyValues[] = null;
+        String vary = response.headers.value(Response.VARY);
+        if(vary!=null){
+            List<String> names = new ArrayList<>();
+            for(Header header=response.headers.get(Response.VARY); header!=null; header=header.sameNext()){
+                for(String name: header.getValue().split(",")){
+                    name = name.trim();
+                    if(!name.isEmpty())
+                        names.add(name);
+                }
+            }
+            if(!names.isEmpty()){
+                varyNames = names.toArray(new String[names.size()]);
+                varyValues = new String[varyNames.length];
+                for(int i=0; i<varyNames.length; i++)
+                    varyValues[i] = varyValue(request, varyNames[i]);
+            }
+        }
+        return create(this, key, varyNames, varyValues, response, body, requestTime, responseTime);
+    }
+
+    private static Entry create(ResponseCache cache, String key, String varyNames[], String varyValues[],
+                                Response response, ByteBuffer body, long requestTime, long responseTime){
+        List<AsciiString> names = new ArrayList<>();
+        List<String> values = new ArrayList<>();
+        Set<String> connectionTokens = null;
+        String connection = response.headers.value(Message.CONNECTION);
+        if(connection!=null){
+            connectionTokens = new HashSet<>();
+            for(String token: connection.split(","))
+                connectionTokens.add(token.trim().toLowerCase());
+        }
+        for(Header header=response.headers.getFirst(); header!=null; header=header.next()){
+            String name = header.getName().text.toLowerCase();
+            if(!UNSTORED_HEADERS.contains(name) && (connectionTokens==null || !connectionTokens.contains(name))){
+                names.add(header.getName());
+                values.add(header.getValue());
+            }
+        }
+
+        HTTPDate httpDate = HTTPDate.getInstance();
+        long date = parseDate(httpDate, response.headers.value(Response.DATE), responseTime);
+        Header age = response.headers.get(Response.AGE);
+        long ageValue = age==null ? 0 : Math.max(0, age.longValue())*1000;
+        long apparentAge = Math.max(0, responseTime-date);
+        long correctedInitialAge = Math.max(apparentAge, ageValue+(responseTime-requestTime));
+
+        CacheControl cc = response.getCacheControl();
+        String lastModified = response.headers.value(Response.LAST_MODIFIED);
+        long freshnessLifetime;
+        if(cc.sMaxAge>=0)
+            freshnessLifetime = cc.sMaxAge*1000;
+        else if(cc.maxAge>=0)
+            freshnessLifetime = cc.maxAge*1000;
+        else if(response.headers.get(Response.EXPIRES)!=null)
+            freshnessLifetime = Math.max(0, parseDate(httpDate, response.headers.value(Response.EXPIRES), date)-date);
+        else if(lastModified!=null && CACHEABLE_BY_DEFAULT.contains(response.status.code)){
+            long modified = parseDate(httpDate, lastModified, date);
+            freshnessLifetime = Math.min(Math.max(0, (date-modified)/10), cache.maxHeuristicFreshness);
+        }else
+            freshnessLifetime = 0;
+
+        return new Entry(key, response.status, names.toArray(new AsciiString[names.size()]), values.toArray(new String[values.size()]),
+                body.asReadOnlyBuffer(), null, varyNames, varyValues,
+                responseTime, correctedInitialAge, freshnessLifetime,
+                cc.noCache, cc.mustRevalidate || cc.proxyRevalidate || cc.sMaxAge>=0,
+                response.getETag(), lastModified);
+    }
+
+    // invalid dates are treated as in the past, i.e expired
+    private static long parseDate(HTTPDate httpDate, String value, long defaultValue){
+        if(value==null)
+            return defaultValue;
+        try{
+            return httpDate.parse(value).getTime();
+        }catch(RuntimeException ex){
+            return 0;
+        }
+    }
+
+    public static class Defaults{
+        public static long MAX_ENTRY_SIZE = 1024*1024;
+        public static long MAX_HEURISTIC_FRESHNESS = 24*60*60*1000L;
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.filters;
+
+import jlibs.nbp.Feeder;
+import jlibs.nio.Input;
+import jlibs.nio.Reactors;
+import jlibs.nio.http.Exchange;
+import jlibs.nio.http.Key;
+import jlibs.nio.http.SocketPayload;
+import jlibs.nio.http.msg.Message;
+import jlibs.nio.http.util.MediaType;
+import jlibs.nio.listeners.IOListener;
+import jlibs.nio.listeners.Task;
+import jlibs.nio.util.Buffers;
+import jlibs.xml.sax.SAXProperties;
+import jlibs.xml.sax.async.AsyncXMLReader;
+import jlibs.xml.sax.async.ChannelInputSource;
+import jlibs.xml.sax.dog.XMLDog;
+import jlibs.xml.sax.dog.XPathResults;
+import jlibs.xml.sax.dog.sniff.Event;
+import jlibs.xml.sax.dog.sniff.SAXHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+import static java.nio.channels.SelectionKey.OP_READ;
+
+/**
+ * evaluates xpaths registered with {@link XMLDog} on xml payload, as it arrives.
+ *
+ * parsing stops as soon as all xpaths are evaluated, and exchange is resumed
+ * with {@link XPathResults} attached as {@link #RESULTS}. bytes read so far are
+ * kept in payload buffers, so that payload is forwarded as is along with its
+ * unread remainder. useful to route requests on xpath values in body.
+ *
+ * xpaths must not be added to dog, once this filter is in use
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class SniffXPaths extends ParseSocketPayload{
+    public static final Key<XPathResults> RESULTS = new Key<>("SniffXPaths.results");
+
+    public final XMLDog dog;
+    public SniffXPaths(XMLDog dog){
+        this.dog = dog;
+    }
+
+    public final Reactors.Pool<AsyncXMLReader> readers = new Reactors.Pool<>(AsyncXMLReader::new, ParseXML.Defaults.MAX_POOLED_READERS);
+
+    @Override
+    protected boolean isCompatible(MediaType mt){
+        return mt.isXML();
+    }
+
+    @Override
+    protected boolean parse(Exchange exchange, Message msg, SocketPayload payload, MediaType mt) throws Exception{
+        Event event = dog.createEvent();
+        XPathResults results = new XPathResults(event);
+        event.setListener(results);
+        Sniffer sniffer = new Sniffer(event.getSAXHandler());
+
+        InputSource is;
+        Input socket = payload.socket();
+        if(socket!=null && socket.isOpen()){
+            if(payload.buffers==null)
+                payload.buffers = new Buffers();
+            sniffer.channel = new PayloadChannel(payload.buffers, true, socket);
+            is = new ChannelInputSource(sniffer);
+        }else
+            is = new InputSource(payload.buffers.new Input());
+
+        is.setEncoding(mt.getCharset(null));
+        new IOListener().start(new SniffTask(exchange, msg, is, sniffer, results), socket, null);
+        return false;
+    }
+
+    /** attaches results to exchange as {@link #RESULTS} and resumes it */
+    protected void sniffingCompleted(Exchange exchange, Message msg, XPathResults results){
+        exchange.attach(RESULTS, results);
+        exchange.resume();
+    }
+
+    /**
+     * delegates sax events to xmldog until it stops parsing. it is also the
+     * channel parser reads from, which reports no more data once stopped
+     */
+    private static class Sniffer extends DefaultHandler2 implements ReadableByteChannel{
+        private final SAXHandler handler;
+        private ReadableByteChannel channel;
+        private boolean stopped;
+
+        private Sniffer(SAXHandler handler){
+            this.handler = handler;
+        }
+
+        private void stop(RuntimeException ex){
+            if(ex!=Event.STOP_PARSING)
+                throw ex;
+            stopped = true;
+        }
+
+        @Override
+        public void startDocument() throws SAXException{
+            try{
+                handler.startDocument();
+            }catch(RuntimeException ex){
+                stop(ex);
+            }
+        }
+
+        @Override
+        public void startPrefixMapping(String prefix, String uri) throws SAXException{
+            if(!stopped)
+                handler.startPrefixMapping(prefix, uri);
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attrs) throws SAXException{
+            if(!stopped){
+                try{
+                    handler.startElement(uri, localName, qName, attrs);
+                }catch(RuntimeException ex){
+                    stop(ex);
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException{
+            if(!stopped)
+                handler.characters(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException{
+            if(!stopped){
+                try{
+                    handler.endElement(uri, localName, qName);
+                }catch(RuntimeException ex){
+                    stop(ex);
+                }
+            }
+        }
+
+        @Override
+        public void endDocument() throws SAXException{
+            if(!stopped)
+                handler.endDocument();
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) throws SAXException{
+            if(!stopped){
+                try{
+                    handler.processingInstruction(target, data);
+                }catch(RuntimeException ex){
+                    stop(ex);
+                }
+            }
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) throws SAXException{
+            if(!stopped){
+                try{
+                    handler.comment(ch, start, length);
+                }catch(RuntimeException ex){
+                    stop(ex);
+                }
+            }
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException{
+            return stopped ? 0 : channel.read(dst);
+        }
+
+        @Override
+        public boolean isOpen(){
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException{
+            channel.close();
+        }
+    }
+
+    private class SniffTask extends Task{
+        private Exchange exchange;
+        private Message msg;
+        private Sniffer sniffer;
+        private XPathResults results;
+        private AsyncXMLReader xmlReader;
+        private Feeder feeder;
+        private SniffTask(Exchange exchange, Message msg, InputSource is, Sniffer sniffer, XPathResults results) throws Exception{
+            super(OP_READ);
+            this.exchange = exchange;
+            this.msg = msg;
+            this.sniffer = sniffer;
+            this.results = results;
+            xmlReader = readers.allocate();
+            try{
+                xmlReader.setContentHandler(sniffer);
+                xmlReader.setProperty(SAXProperties.LEXICAL_HANDLER, sniffer);
+                feeder = xmlReader.createFeeder(is);
+            }catch(Throwable thr){
+                free();
+                throw thr;
+            }
+        }
+
+        private void free(){
+            xmlReader.reset();
+            readers.free(xmlReader);
+            xmlReader = null;
+            feeder = null;
+        }
+
+        @Override
+        protected boolean process(int readyOp) throws IOException{
+            feeder = feeder.feed();
+            if(feeder==null || sniffer.stopped)
+                return true;
+            else{
+                in.addReadInterest();
+                return false;
+            }
+        }
+
+        @Override
+        protected void cleanup(Throwable thr){
+            try{
+                if(thr==null)
+                    sniffingCompleted(exchange, msg, results);
+                else if(thr instanceof IOException)
+                    exchange.resume(msg.badMessage(thr));
+                else
+                    exchange.resume(thr);
+            }finally{
+                free();
+            }
+        }
+    }
+}
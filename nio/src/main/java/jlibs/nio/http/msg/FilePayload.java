@@ -15,20 +15,168 @@
 
 package jlibs.nio.http.msg;
 
+import jlibs.core.io.IOUtil;
+
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * @author Santhosh Kumar Tekuri
  */
 public class FilePayload extends Payload{
     public final File file;
+
+    /** byte ranges of file to be sent, null to send complete file */
+    public final List<Range> ranges;
+
+    // multipart/byteranges: head of each part and closing delimiter
+    private final byte partHeads[][];
+    private final byte partsEnd[];
+
     public FilePayload(String contentType, File file){
         super(contentType);
         this.file = file;
+        ranges = null;
+        partHeads = null;
+        partsEnd = null;
+    }
+
+    private FilePayload(String contentType, File file, List<Range> ranges, long fileLength){
+        super(ranges.size()==1 ? contentType : "multipart/byteranges; boundary="+boundary());
+        this.file = file;
+        this.ranges = Collections.unmodifiableList(new ArrayList<>(ranges));
+        if(ranges.size()==1){
+            partHeads = null;
+            partsEnd = null;
+        }else{
+            String boundary = getMediaType().getBoundary();
+            partHeads = new byte[ranges.size()][];
+            for(int i=0; i<partHeads.length; i++){
+                StringBuilder buff = new StringBuilder();
+                buff.append("\r\n--").append(boundary).append("\r\n");
+                if(contentType!=null)
+                    buff.append(Message.CONTENT_TYPE).append(": ").append(contentType).append("\r\n");
+                buff.append(Response.CONTENT_RANGE).append(": ").append(ranges.get(i).contentRange(fileLength)).append("\r\n");
+                buff.append("\r\n");
+                partHeads[i] = buff.toString().getBytes(IOUtil.US_ASCII);
+            }
+            partsEnd = ("\r\n--"+boundary+"--\r\n").getBytes(IOUtil.US_ASCII);
+        }
+    }
+
+    private static String boundary(){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return Long.toHexString(random.nextLong())+Long.toHexString(random.nextLong());
+    }
+
+    /**
+     * returns payload sending only given ranges of this file.
+     * multiple ranges are sent as multipart/byteranges
+     */
+    public FilePayload ranges(List<Range> ranges){
+        if(ranges.isEmpty())
+            throw new IllegalArgumentException("no ranges specified");
+        return new FilePayload(contentType, file, ranges, file.length());
+    }
+
+    public boolean isMultipart(){
+        return partHeads!=null;
+    }
+
+    public byte[] partHead(int index){
+        return partHeads[index];
+    }
+
+    public byte[] partsEnd(){
+        return partsEnd;
     }
 
     @Override
     public long getContentLength(){
-        return file.length();
+        if(ranges==null)
+            return file.length();
+        long length = 0;
+        for(int i=0; i<ranges.size(); i++){
+            length += ranges.get(i).length();
+            if(partHeads!=null)
+                length += partHeads[i].length;
+        }
+        if(partsEnd!=null)
+            length += partsEnd.length;
+        return length;
+    }
+
+    /** inclusive byte range */
+    public static final class Range{
+        public final long first;
+        public final long last;
+
+        public Range(long first, long last){
+            if(first<0 || last<first)
+                throw new IllegalArgumentException("invalid range "+first+"-"+last);
+            this.first = first;
+            this.last = last;
+        }
+
+        public long length(){
+            return last-first+1;
+        }
+
+        public String contentRange(long fileLength){
+            return "bytes "+first+'-'+last+'/'+fileLength;
+        }
+
+        @Override
+        public String toString(){
+            return first+"-"+last;
+        }
+
+        /**
+         * parses value of Range header, resolving ranges against given length.
+         * unsatisfiable ranges are dropped.
+         *
+         * @return null if value is not a valid bytes range-set
+         */
+        public static List<Range> parse(String value, long length){
+            value = value.trim();
+            if(!value.regionMatches(true, 0, "bytes=", 0, 6))
+                return null;
+            List<Range> ranges = new ArrayList<>();
+            for(String spec: value.substring(6).split(",")){
+                spec = spec.trim();
+                if(spec.isEmpty())
+                    continue;
+                int dash = spec.indexOf('-');
+                if(dash==-1)
+                    return null;
+                try{
+                    String first = spec.substring(0, dash).trim();
+                    String last = spec.substring(dash+1).trim();
+                    if(first.isEmpty()){
+                        // suffix-byte-range-spec
+                        if(last.isEmpty())
+                            return null;
+                        long suffix = Long.parseLong(last);
+                        if(suffix<0)
+                            return null;
+                        if(suffix>0 && length>0)
+                            ranges.add(new Range(Math.max(0, length-suffix), length-1));
+                    }else{
+                        long f = Long.parseLong(first);
+                        long l = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                        if(f<0 || l<f)
+                            return null;
+                        if(f<length)
+                            ranges.add(new Range(f, Math.min(l, length-1)));
+                    }
+                }catch(NumberFormatException ex){
+                    return null;
+                }
+            }
+            return ranges;
+        }
     }
 }
@@ -23,19 +23,82 @@ import java.util.Objects;
 public final class Header{
     AsciiString name;
     String value;
+    AsciiString asciiValue; // value with its US-ASCII bytes, if known
+
+    // value as parsed, decoded into String on first access
+    byte raw[];
+    int rawOffset, rawLength;
 
     Header(AsciiString name){
         this.name = name;
     }
 
     public AsciiString getName(){ return name; }
-    public String getValue(){ return value; }
+    @SuppressWarnings("deprecation")
+    public String getValue(){
+        if(value==null && raw!=null){
+            value = new String(raw, 0, rawOffset, rawLength); // ISO-8859-1
+            raw = null;
+        }
+        return value;
+    }
+
     public void setValue(String value){
         this.value = Objects.requireNonNull(value);
+        asciiValue = null;
+        raw = null;
+    }
+
+    /** returns value with pre-encoded bytes, if it was set that way. otherwise null */
+    public AsciiString getAsciiValue(){ return asciiValue; }
+
+    /** sets value along with its pre-encoded bytes, which are written as is */
+    public void setValue(AsciiString value){
+        this.value = value.text;
+        asciiValue = value;
+        raw = null;
+    }
+
+    boolean hasValue(){
+        return value!=null || raw!=null;
+    }
+
+    /**
+     * returns value as non-negative decimal number, without decoding
+     * it into String. returns -1 if value is not such a number
+     */
+    public long longValue(){
+        if(raw==null)
+            return longValue(value);
+        int len = rawLength;
+        if(len==0 || len>18)
+            return -1;
+        long result = 0;
+        for(int i=rawOffset, end=rawOffset+len; i<end; i++){
+            int digit = raw[i]-'0';
+            if(digit<0 || digit>9)
+                return -1;
+            result = result*10+digit;
+        }
+        return result;
+    }
+
+    private static long longValue(String value){
+        int len = value.length();
+        if(len==0 || len>18)
+            return -1;
+        long result = 0;
+        for(int i=0; i<len; i++){
+            int digit = value.charAt(i)-'0';
+            if(digit<0 || digit>9)
+                return -1;
+            result = result*10+digit;
+        }
+        return result;
     }
 
     @Override
-    public String toString(){ return name+": "+value; }
+    public String toString(){ return name+": "+getValue(); }
 
     Header sameNext;
     Header samePrev = this;
@@ -46,12 +46,12 @@ public final class Headers implements ValueMap{
 
     public String value(AsciiString name){
         Header header = get(name);
-        return header==null ? null : header.value;
+        return header==null ? null : header.getValue();
     }
 
     public String value(CharSequence name){
         Header header = get(name);
-        return header==null ? null : header.value;
+        return header==null ? null : header.getValue();
     }
 
     /*-------------------------------------------------[ Add ]---------------------------------------------------*/
@@ -59,18 +59,34 @@ public final class Headers implements ValueMap{
     public void add(AsciiString name, String value){
         if(name==null || value==null)
             return;
+        append(name).value = value;
+    }
+
+    /**
+     * adds header whose value is decoded from given ISO-8859-1 bytes only
+     * when it is first accessed. given bytes must not be modified later
+     */
+    public void add(AsciiString name, byte value[], int offset, int length){
+        if(name==null || value==null)
+            return;
+        Header header = append(name);
+        header.raw = value;
+        header.rawOffset = offset;
+        header.rawLength = length;
+    }
+
+    private Header append(AsciiString name){
         Header head = entry(name, true);
-        if(head.value==null)
-            head.value = value;
-        else{
+        if(head.hasValue()){
             Header newHeader = newHeader(name);
-            newHeader.value = value;
             Header tail = head.samePrev;
             tail.sameNext = newHeader;
             newHeader.samePrev = tail;
             head.samePrev = newHeader;
+            head = newHeader;
         }
         assert validateLinks();
+        return head;
     }
 
     /*-------------------------------------------------[ Remove ]---------------------------------------------------*/
@@ -143,17 +159,37 @@ public final class Headers implements ValueMap{
             remove(name);
             return;
         }
+        put(name, value).asciiValue = null;
+    }
+
+    /**
+     * sets header value along with its US-ASCII bytes, which are written as is.
+     * use this for values that are repeated across messages
+     */
+    public void set(AsciiString name, AsciiString value){
+        if(name==null)
+            return;
+        if(value==null){
+            remove(name);
+            return;
+        }
+        put(name, value.text).asciiValue = value;
+    }
+
+    private Header put(AsciiString name, String value){
         Header head = entry(name, true);
-        if(head.value==null)
+        if(!head.hasValue())
             head.value = value;
         else{
             head.value = value;
+            head.raw = null;
             Header next = head.sameNext;
             head.sameNext = null;
             head.samePrev = head;
             removeSameNext(next);
         }
         assert validateLinks();
+        return head;
     }
 
     /*-------------------------------------------------[ Internal-Helpers ]---------------------------------------------------*/
@@ -315,7 +351,7 @@ public final class Headers implements ValueMap{
         StringBuilder buffer = Reactor.stringBuilder();
         Header header = first;
         while(header!=null){
-            buffer.append(header.name).append(": ").append(header.value).append("\r\n");
+            buffer.append(header.name).append(": ").append(header.getValue()).append("\r\n");
             header = header.next;
         }
         buffer.append("\r\n");
@@ -15,10 +15,10 @@
 
 package jlibs.nio.http.msg;
 
-import jlibs.core.lang.Util;
 import jlibs.nio.http.SocketPayload;
 import jlibs.nio.http.expr.Bean;
 import jlibs.nio.http.expr.UnresolvedException;
+import jlibs.nio.http.util.CacheControl;
 import jlibs.nio.http.util.ContentDisposition;
 import jlibs.nio.http.util.Encoding;
 import jlibs.nio.http.util.MediaType;
@@ -78,7 +78,7 @@ public abstract class Message implements Bean{
 
     public void setPayload(Payload payload) throws IOException{
         if(this.payload instanceof SocketPayload)
-            ((SocketPayload)this.payload).socket().close();
+            ((SocketPayload)this.payload).close();
         this.payload = payload;
     }
 
@@ -88,6 +88,8 @@ public abstract class Message implements Bean{
     public static final AsciiString PROXY_CONNECTION = new AsciiString("Proxy-Connection");
     public static final String CLOSE = "close";
     public static final String KEEP_ALIVE = "keep-alive";
+    private static final AsciiString CLOSE_VALUE = new AsciiString(CLOSE);
+    private static final AsciiString KEEP_ALIVE_VALUE = new AsciiString(KEEP_ALIVE);
 
     public boolean isKeepAlive(){
         String value = headers.value(CONNECTION);
@@ -98,11 +100,11 @@ public abstract class Message implements Bean{
     }
 
     public void setKeepAlive(boolean keepAlive){
-        String value;
+        AsciiString value;
         if(version.keepAliveDefault)
-            value = keepAlive ? null : CLOSE;
+            value = keepAlive ? null : CLOSE_VALUE;
         else
-            value = keepAlive ? KEEP_ALIVE : null;
+            value = keepAlive ? KEEP_ALIVE_VALUE : null;
         if(value==null)
             headers.remove(CONNECTION);
         else
@@ -114,9 +116,10 @@ public abstract class Message implements Bean{
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.13
     public static final AsciiString CONTENT_LENGTH = new AsciiString("Content-Length");
 
+    /** returns -1, if Content-Length is missing or invalid */
     public long getContentLength(){
-        String value = headers.value(CONTENT_LENGTH);
-        return value==null? -1 : Util.parseLong(value);
+        Header header = headers.get(CONTENT_LENGTH);
+        return header==null ? -1 : header.longValue();
     }
 
     public void setContentLength(long length){
@@ -186,9 +189,24 @@ public abstract class Message implements Bean{
         headers.setSingleValue(CONTENT_DISPOSITION, cd, null);
     }
 
+    /*-------------------------------------------------[ Cache-Control ]---------------------------------------------------*/
+
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.9
     public static final AsciiString CACHE_CONTROL = new AsciiString("Cache-Control");
 
+    public CacheControl getCacheControl(){
+        return new CacheControl(headers.get(CACHE_CONTROL));
+    }
+
+    public void setCacheControl(CacheControl cacheControl){
+        headers.setSingleValue(CACHE_CONTROL, cacheControl, null);
+    }
+
+    // http://tools.ietf.org/html/rfc7234#section-5.4
+    public static final AsciiString PRAGMA = new AsciiString("Pragma");
+
+    /*-------------------------------------------------[ Content-MD5 ]---------------------------------------------------*/
+
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.15
     public static final AsciiString CONTENT_MD5 = new AsciiString("Content-MD5");
 }
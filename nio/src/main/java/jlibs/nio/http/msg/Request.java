@@ -111,6 +111,26 @@ public class Request extends Message{
         headers.setListValue(ACCEPT_ENCODING, encodings, null, true);
     }
 
+    public List<QualityItem<String>> getAcceptableEncodings(){
+        return headers.getListValue(ACCEPT_ENCODING, QUALITY_ITEM_PARSER, true);
+    }
+
+    /**
+     * returns quality of given content-coding, taking "*" into account.
+     * codings that are not listed get 0, so that nothing is compressed
+     * for clients that did not ask for it
+     */
+    public static double getEncodingQuality(Encoding encoding, List<QualityItem<String>> acceptableEncodings){
+        double defaultQuality = 0;
+        for(QualityItem<String> qualityItem: acceptableEncodings){
+            if("*".equals(qualityItem.item))
+                defaultQuality = qualityItem.quality;
+            else if(qualityItem.item.equalsIgnoreCase(encoding.name))
+                return qualityItem.quality;
+        }
+        return defaultQuality;
+    }
+
     /*-------------------------------------------------[ X-Forwarded-For ]---------------------------------------------------*/
 
     // http://en.wikipedia.org/wiki/X-Forwarded-For
@@ -334,6 +354,19 @@ public class Request extends Message{
         headers.setSingleValue(IF_MODIFIED_SINCE, date, HTTPDate.getInstance()::format);
     }
 
+    /*-------------------------------------------------[ If-None-Match ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7232#section-3.2
+    public static final AsciiString IF_NONE_MATCH = new AsciiString("If-None-Match");
+
+    public String getIfNoneMatch(){
+        return headers.value(IF_NONE_MATCH);
+    }
+
+    public void setIfNoneMatch(String etags){
+        headers.setSingleValue(IF_NONE_MATCH, etags, null);
+    }
+
     /*-------------------------------------------------[ If-Unmodified-Since ]---------------------------------------------------*/
 
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.28
@@ -347,6 +380,32 @@ public class Request extends Message{
         headers.setSingleValue(IF_UNMODIFIED_SINCE, date, HTTPDate.getInstance()::format);
     }
 
+    /*-------------------------------------------------[ Range ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7233#section-3.1
+    public static final AsciiString RANGE = new AsciiString("Range");
+
+    public String getRange(){
+        return headers.value(RANGE);
+    }
+
+    public void setRange(String range){
+        headers.setSingleValue(RANGE, range, null);
+    }
+
+    /*-------------------------------------------------[ If-Range ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7233#section-3.2
+    public static final AsciiString IF_RANGE = new AsciiString("If-Range");
+
+    public String getIfRange(){
+        return headers.value(IF_RANGE);
+    }
+
+    public void setIfRange(String ifRange){
+        headers.setSingleValue(IF_RANGE, ifRange, null);
+    }
+
     /*-------------------------------------------------[ SOAPAction ]---------------------------------------------------*/
 
     // http://www.w3.org/TR/2000/NOTE-SOAP-20000508/#_Toc478383528
@@ -83,7 +83,7 @@ public class Response extends Message{
     public void setDate(boolean overwrite){
         if(!overwrite && headers.get(DATE)!=null)
             return;
-        headers.set(DATE, HTTPDate.getInstance().currentDate());
+        headers.set(DATE, HTTPDate.getInstance().currentDateValue());
     }
 
     /*-------------------------------------------------[ Age ]---------------------------------------------------*/
@@ -122,13 +122,41 @@ public class Response extends Message{
     public static final AsciiString LAST_MODIFIED = new AsciiString("Last-Modified");
 
     public Date getLastModified(){
-        return headers.getSingleValue(EXPIRES, HTTPDate.getInstance()::parse);
+        return headers.getSingleValue(LAST_MODIFIED, HTTPDate.getInstance()::parse);
     }
 
     public void setLastModified(Date date){
-        headers.setSingleValue(EXPIRES, date, HTTPDate.getInstance()::format);
+        headers.setSingleValue(LAST_MODIFIED, date, HTTPDate.getInstance()::format);
     }
 
+    /*-------------------------------------------------[ ETag ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7232#section-2.3
+    public static final AsciiString ETAG = new AsciiString("ETag");
+
+    public String getETag(){
+        return headers.value(ETAG);
+    }
+
+    public void setETag(String etag){
+        headers.setSingleValue(ETAG, etag, null);
+    }
+
+    /*-------------------------------------------------[ Accept-Ranges ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7233#section-2.3
+    public static final AsciiString ACCEPT_RANGES = new AsciiString("Accept-Ranges");
+
+    /*-------------------------------------------------[ Content-Range ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7233#section-4.2
+    public static final AsciiString CONTENT_RANGE = new AsciiString("Content-Range");
+
+    /*-------------------------------------------------[ Vary ]---------------------------------------------------*/
+
+    // http://tools.ietf.org/html/rfc7231#section-7.1.4
+    public static final AsciiString VARY = new AsciiString("Vary");
+
     /*-------------------------------------------------[ WWW-Authenticate ]---------------------------------------------------*/
 
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.47
@@ -194,6 +222,10 @@ public class Response extends Message{
         headers.set(SERVER, server);
     }
 
+    public void setServer(AsciiString server){
+        headers.set(SERVER, server);
+    }
+
     /*-------------------------------------------------[ Location ]---------------------------------------------------*/
 
     // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.30
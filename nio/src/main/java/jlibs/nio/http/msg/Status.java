@@ -218,6 +218,14 @@ public final class Status extends RuntimeException implements Bean{
     public static final Status NOT_EXTENDED                    = new Status(510, "Not Extended", true);
     public static final Status NETWORK_AUTHENTICATION_REQUIRED = new Status(511, "Network Authentication Required", true);
 
+    /** returns predefined status with given code, if any. otherwise status with empty reason */
+    public static Status valueOf(int code){
+        if(code<100 || code>999)
+            throw new IllegalArgumentException("bad status code: "+code);
+        Status status = array[code-100];
+        return status==null ? new Status(code, "", false) : status;
+    }
+
     public static Status valueOf(int code, CharSequence seq){
         if(code<100 || code>999)
             throw new IllegalArgumentException("bad status code: "+code);
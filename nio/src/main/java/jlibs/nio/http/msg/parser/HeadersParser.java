@@ -31,6 +31,21 @@ import static jlibs.nio.http.util.USAscii.*;
 public class HeadersParser implements Parser{
     protected final StringBuilder builder = new StringBuilder();
 
+    /**
+     * when true, header values are not decoded into String while parsing.
+     * their bytes are copied into a shared array, and decoded only on first
+     * access through {@link jlibs.nio.http.msg.Header#getValue()}
+     */
+    protected final boolean lazyValues;
+
+    public HeadersParser(boolean lazyValues){
+        this.lazyValues = lazyValues;
+    }
+
+    public HeadersParser(){
+        this(false);
+    }
+
     private static final int LINE_BEGIN  = 0;
     private static final int NAME        = 1;
     private static final int VALUE_BEGIN = 2;
@@ -68,7 +83,10 @@ public class HeadersParser implements Parser{
 
                     if(name!=null){
                         if(WS[ch]){
-                            builder.append(SP);
+                            if(lazyValues)
+                                appendRaw(SP);
+                            else
+                                builder.append(SP);
                             state = VALUE;
                             if(buffer.hasRemaining())
                                 break;
@@ -87,6 +105,7 @@ public class HeadersParser implements Parser{
                         if(ch==COLON){
                             name = AsciiString.valueOf(builder);
                             builder.setLength(0);
+                            valueBegin = rawEnd;
                             state = VALUE_BEGIN;
                             break;
                         }else{
@@ -108,6 +127,8 @@ public class HeadersParser implements Parser{
                     if(!buffer.hasRemaining())
                         return false;
                 case VALUE:
+                    if(lazyValues)
+                        copyValue(buffer);
                     while(buffer.hasRemaining()){
                         ch = (char)buffer.get();
                         if(ch==CR){
@@ -133,12 +154,69 @@ public class HeadersParser implements Parser{
         return false;
     }
 
+    /*-------------------------------------------------[ Lazy-Values ]---------------------------------------------------*/
+
+    private static final int RAW_CHUNK = 4096;
+
+    // values of headers parsed so far, shared across messages.
+    // bytes added are never modified, and a new array is used when full
+    private byte raw[];
+    private int rawEnd;
+    private int valueBegin;
+
+    private void ensureRaw(int length){
+        if(raw==null || rawEnd+length>raw.length){
+            int valueLength = rawEnd-valueBegin;
+            byte newRaw[] = new byte[Math.max(RAW_CHUNK, 2*(valueLength+length))];
+            if(raw!=null)
+                System.arraycopy(raw, valueBegin, newRaw, 0, valueLength);
+            raw = newRaw;
+            valueBegin = 0;
+            rawEnd = valueLength;
+        }
+    }
+
+    private void appendRaw(byte b){
+        ensureRaw(1);
+        raw[rawEnd++] = b;
+    }
+
+    // copies value bytes upto CR/LF
+    private void copyValue(ByteBuffer buffer){
+        int pos = buffer.position();
+        int limit = buffer.limit();
+        int end = pos;
+        while(end<limit){
+            byte b = buffer.get(end);
+            if(b==CR || b==LF)
+                break;
+            ++end;
+        }
+        int length = end-pos;
+        if(length>0){
+            ensureRaw(length);
+            buffer.get(raw, rawEnd, length);
+            rawEnd += length;
+        }
+    }
+
     private void addHeader(){
+        if(headers==null)
+            headers = message.trailers = new Headers();
+        if(lazyValues){
+            if(raw==null)
+                ensureRaw(0);
+            int end = rawEnd;
+            while(end>valueBegin && (raw[end-1]==SP || raw[end-1]==HT))
+                --end;
+            headers.add(name, raw, valueBegin, end-valueBegin);
+            rawEnd = valueBegin = end;
+            name = null;
+            return;
+        }
         int end = builder.length();
         while(end>0 && WS[builder.charAt(end-1)])
             --end;
-        if(headers==null)
-            headers = message.trailers = new Headers();
         headers.add(name, builder.substring(0, end));
         name = null;
         builder.setLength(0);
@@ -152,6 +230,7 @@ public class HeadersParser implements Parser{
         this.errorStatus = errorStatus;
         builder.setLength(0);
         name = null;
+        valueBegin = rawEnd;
         state = LINE_BEGIN;
     }
 
@@ -34,6 +34,14 @@ public abstract class MessageParser extends HeadersParser{
     private static final int STATE_MINOR_BEGIN = 3;
     private static final int STATE_MINOR       = 4;
 
+    protected MessageParser(boolean lazyValues){
+        super(lazyValues);
+    }
+
+    protected MessageParser(){
+        this(false);
+    }
+
     private int vstate = STATE_PREFIX;
     private int vi;
     private int major, minor;
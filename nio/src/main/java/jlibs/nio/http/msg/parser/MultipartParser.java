@@ -17,7 +17,6 @@ package jlibs.nio.http.msg.parser;
 
 import jlibs.nio.http.msg.*;
 import jlibs.nio.http.util.ContentDisposition;
-import jlibs.nio.http.util.USAscii;
 import jlibs.nio.util.Parser;
 
 import java.io.EOFException;
@@ -31,6 +30,13 @@ import static jlibs.nio.http.msg.parser.MultipartParser.State.*;
 import static jlibs.nio.http.util.USAscii.*;
 
 /**
+ * delimiter is searched using Boyer-Moore-Horspool, so that most of
+ * content bytes are skipped rather than compared.
+ * <p>
+ * parts are given to {@link PartListener} as they arrive. by default,
+ * they are collected into {@link #payload}, where file uploads
+ * are spooled into temporary files
+ *
  * @author Santhosh Kumar Tekuri
  *
  * todo: handle Content-Transfer-Encoding
@@ -38,203 +44,286 @@ import static jlibs.nio.http.util.USAscii.*;
 public class MultipartParser implements Parser{
     public final MultipartPayload payload;
     private Status errorStatus;
+    private PartListener listener;
+
     public MultipartParser(MultipartPayload payload, Status errorStatus){
+        this(payload, errorStatus, null);
+    }
+
+    /** if listener is not null, parts are given to it, rather than collected into payload */
+    public MultipartParser(MultipartPayload payload, Status errorStatus, PartListener listener){
         this.payload = payload;
         this.errorStatus = errorStatus;
+        this.listener = listener==null ? new CollectParts() : listener;
 
         String boundary = payload.getMediaType().getBoundary();
-        delimiter = ByteBuffer.allocate(4+boundary.length()+2);
-        delimiter.put(CR);
-        delimiter.put(LF);
-        delimiter.put(DASH);
-        delimiter.put(DASH);
-        USAscii.append(delimiter, boundary);
-        delimiter.put(CR);
-        delimiter.put(LF);
-        delimiter.flip();
-
-        closeDelimiter = ByteBuffer.allocate(4+boundary.length()+4);
-        closeDelimiter.put(CR);
-        closeDelimiter.put(LF);
-        closeDelimiter.put(DASH);
-        closeDelimiter.put(DASH);
-        USAscii.append(closeDelimiter, boundary);
-        closeDelimiter.put(DASH);
-        closeDelimiter.put(DASH);
-        closeDelimiter.put(CR);
-        closeDelimiter.put(LF);
-        closeDelimiter.flip();
-
-        state = DELIMITER;
-        delimiter.get();
-        delimiter.get();
+        delimiter = new byte[4+boundary.length()];
+        delimiter[0] = CR;
+        delimiter[1] = LF;
+        delimiter[2] = DASH;
+        delimiter[3] = DASH;
+        for(int i=0; i<boundary.length(); i++)
+            delimiter[4+i] = (byte)boundary.charAt(i);
+
+        int m = delimiter.length;
+        shift = new int[256];
+        for(int i=0; i<shift.length; i++)
+            shift[i] = m;
+        for(int i=0; i<m-1; i++)
+            shift[delimiter[i]&0xff] = m-1-i;
+
+        // first delimiter is not preceded by CRLF
+        carry = new byte[m];
+        carry[0] = CR;
+        carry[1] = LF;
+        carryLength = 2;
+        state = CONTENT;
     }
 
-    private ByteBuffer delimiter;
-    private ByteBuffer closeDelimiter;
+    // CRLF "--" boundary
+    private final byte delimiter[];
+    private final int shift[];
 
-    enum State { HEADERS, CONTENT, DELIMITER, CLOSE_DELIMITER, DRAIN }
+    // trailing bytes of previous buffer, which are prefix of delimiter
+    private final byte carry[];
+    private int carryLength;
+
+    enum State { HEADERS, CONTENT, DELIMITER_SUFFIX, DELIMITER_LF, CLOSE_DASH, DRAIN }
     private State state;
-    private Part part;
-    private FileChannel fileChannel;
+    private boolean inPart;
+    private boolean finished;
     private HeadersParser headersParser = new HeadersParser();
 
     @Override
     public boolean parse(ByteBuffer buffer, boolean eof) throws IOException{
-        char ch;
-        int pos = buffer.position();
         while(buffer.hasRemaining()){
             switch(state){
                 case HEADERS:
-                    if(!headersParser.parse(buffer, eof)){
+                    if(!parseHeaders(buffer, eof)){
                         if(eof)
                             throw new EOFException();
                         return false;
                     }
+                    listener.startPart(headersParser.getHeaders());
+                    inPart = true;
                     state = CONTENT;
-                    pos = buffer.position();
-                    if(!buffer.hasRemaining())
-                        break;
-
-                    Headers headers = headersParser.getHeaders();
-                    ContentDisposition cd = headers.getSingleValue(Message.CONTENT_DISPOSITION, ContentDisposition::new);
-                    if(cd!=null && cd.getFileName()!=null){
-                        File file = File.createTempFile("jlibs", "upload");
-                        part = new FilePart(file, headers);
-                        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
-                    }
-                    if(part==null)
-                        part = new DefaultPart(headersParser.getHeaders());
-                    payload.parts.add(part);
                 case CONTENT:
-                    while(buffer.hasRemaining()){
-                        ch = (char)buffer.get();
-                        if(ch==CR){
-                            state = DELIMITER;
-                            delimiter.get();
-                            break;
-                        }
-                    }
-                    if(!buffer.hasRemaining())
+                    if(!findDelimiter(buffer))
                         break;
-                case DELIMITER:
-                    while(buffer.hasRemaining()){
-                        if(delimiter.position()==delimiter.capacity()-2){
-                            ch = (char)buffer.get();
-                            if(ch==DASH){
-                                delimiter.clear();
-                                state = CLOSE_DELIMITER;
-                                closeDelimiter.position(closeDelimiter.capacity()-3);
-                                break;
-                            }else
-                                buffer.position(buffer.position()-1);
-                        }
-                        if(delimiter.hasRemaining()){
-                            if(buffer.get()!=delimiter.get()){
-                                buffer.position(buffer.position()-1);
-                                delimiter.position(delimiter.position()-1);
-                                writeMissing(pos, buffer, delimiter);
-                                state = CONTENT;
-                                break;
-                            }
-                        }else{
-                            writeContent(pos, buffer, delimiter);
-                            pos = buffer.position();
-                            if(fileChannel!=null){
-                                fileChannel.close();
-                                fileChannel = null;
-                            }
-                            state = HEADERS;
-                            headersParser.reset(new Headers(), errorStatus);
-                            part = null;
-                            break;
-                        }
+                    if(inPart){
+                        inPart = false;
+                        listener.endPart();
                     }
-                    break;
-                case CLOSE_DELIMITER:
-                    while(buffer.hasRemaining() && closeDelimiter.hasRemaining()){
-                        if(buffer.get()!=closeDelimiter.get()){
-                            buffer.position(buffer.position()-1);
-                            closeDelimiter.position(closeDelimiter.position()-1);
-                            writeMissing(pos, buffer, closeDelimiter);
-                            state = CONTENT;
-                            break;
-                        }
+                    state = DELIMITER_SUFFIX;
+                case DELIMITER_SUFFIX:
+                    while(state==DELIMITER_SUFFIX && buffer.hasRemaining()){
+                        byte b = buffer.get();
+                        if(b==DASH)
+                            state = CLOSE_DASH;
+                        else if(b==CR)
+                            state = DELIMITER_LF;
+                        else if(b!=SP && b!=HT) // transport padding
+                            throw errorStatus.with("Bad Multipart Delimiter");
                     }
-                    if(state==CLOSE_DELIMITER && !closeDelimiter.hasRemaining()){
-                        writeContent(pos, buffer, closeDelimiter);
-                        if(fileChannel!=null){
-                            fileChannel.close();
-                            fileChannel = null;
-                        }
-                        pos = buffer.position();
-                        state = DRAIN;
-                    }else
-                        break;
+                    break;
+                case DELIMITER_LF:
+                    if(buffer.get()!=LF)
+                        throw errorStatus.with("Bad Multipart Delimiter");
+                    headersParser.reset(new Headers(), errorStatus);
+                    state = HEADERS;
+                    break;
+                case CLOSE_DASH:
+                    if(buffer.get()!=DASH)
+                        throw errorStatus.with("Bad Multipart Delimiter");
+                    finished = true;
+                    state = DRAIN;
                 case DRAIN:
                     buffer.position(buffer.limit());
             }
         }
-        if(eof){
-            if(state!=DRAIN)
-                throw new EOFException();
-        }else{
-            if(state==CONTENT){
-                ByteBuffer src = buffer.duplicate();
-                src.position(pos);
-                src.limit(buffer.position());
-                write(src);
-            }else if(state==DELIMITER || state==CLOSE_DELIMITER){
-                ByteBuffer _delimiter = state==DELIMITER ? delimiter : closeDelimiter;
-                if(buffer.position()-pos>_delimiter.position()){
-                    ByteBuffer src = buffer.duplicate();
-                    src.position(pos);
-                    src.limit(buffer.position()-_delimiter.position());
-                    write(src);
+        if(eof && state!=DRAIN)
+            throw new EOFException();
+        return eof;
+    }
+
+    // CR left unconsumed by headersParser at end of previous buffer
+    private boolean pendingCR;
+
+    /** unlike headersParser, consumes all bytes of buffer if headers are not complete */
+    private boolean parseHeaders(ByteBuffer buffer, boolean eof){
+        if(pendingCR){
+            pendingCR = false;
+            ByteBuffer eol = ByteBuffer.allocate(2);
+            eol.put(CR).put(buffer.get()).flip();
+            if(headersParser.parse(eol, eof))
+                return true;
+        }
+        if(headersParser.parse(buffer, eof))
+            return true;
+        if(buffer.hasRemaining()){
+            buffer.get();
+            pendingCR = true;
+        }
+        return false;
+    }
+
+    /**
+     * gives content to listener until delimiter. returns true if delimiter is found,
+     * with buffer positioned after it. otherwise all bytes of buffer are consumed
+     */
+    private boolean findDelimiter(ByteBuffer buffer) throws IOException{
+        final byte delimiter[] = this.delimiter;
+        final int m = delimiter.length;
+        int start = buffer.position();
+        int limit = buffer.limit();
+
+        if(carryLength>0){
+            for(int s=0; s<carryLength; s++){
+                int matched = matchCarry(s, buffer);
+                if(matched==-1)
+                    continue;
+                content(ByteBuffer.wrap(carry, 0, s));
+                if(matched==m){
+                    buffer.position(start+m-(carryLength-s));
+                    carryLength = 0;
+                    return true;
+                }
+                // buffer is prefix of remaining delimiter
+                System.arraycopy(carry, s, carry, 0, carryLength-s);
+                carryLength -= s;
+                buffer.get(carry, carryLength, limit-start);
+                carryLength += limit-start;
+                return false;
+            }
+            content(ByteBuffer.wrap(carry, 0, carryLength));
+            carryLength = 0;
+        }
+
+        final int shift[] = this.shift;
+        int i = start;
+        while(i<=limit-m){
+            int j = m-1;
+            while(buffer.get(i+j)==delimiter[j]){
+                if(j==0){
+                    content(buffer, start, i);
+                    buffer.position(i+m);
+                    return true;
                 }
+                --j;
             }
+            i += shift[buffer.get(i+m-1)&0xff];
         }
-        return eof;
+
+        // check whether buffer ends with prefix of delimiter
+        for(; i<limit; i++){
+            if(buffer.get(i)==CR){
+                int j = 1;
+                while(i+j<limit && buffer.get(i+j)==delimiter[j])
+                    ++j;
+                if(i+j==limit){
+                    content(buffer, start, i);
+                    buffer.position(i);
+                    carryLength = limit-i;
+                    buffer.get(carry, 0, carryLength);
+                    return false;
+                }
+            }
+        }
+        content(buffer, start, limit);
+        buffer.position(limit);
+        return false;
     }
 
-    private void writeMissing(int pos, ByteBuffer buffer, ByteBuffer delimiter) throws IOException{
-        if(buffer.position()-pos<delimiter.position()){
-            delimiter.limit(delimiter.position()-(buffer.position()-pos));
-            delimiter.position(0);
-            write(delimiter);
+    /**
+     * matches delimiter at offset in carry followed by buffer. returns -1 on mismatch,
+     * otherwise number of bytes matched, which is less than delimiter length if buffer is exhausted
+     */
+    private int matchCarry(int offset, ByteBuffer buffer){
+        int start = buffer.position();
+        int limit = buffer.limit();
+        for(int k=0; k<delimiter.length; k++){
+            int v = offset+k;
+            byte b;
+            if(v<carryLength)
+                b = carry[v];
+            else if(start+v-carryLength<limit)
+                b = buffer.get(start+v-carryLength);
+            else
+                return k;
+            if(b!=delimiter[k])
+                return -1;
         }
-        delimiter.clear();
+        return delimiter.length;
     }
 
-    private void writeContent(int pos, ByteBuffer buffer, ByteBuffer delimiter) throws IOException{
-        if(buffer.position()-pos>delimiter.capacity()){
+    private void content(ByteBuffer buffer, int from, int to) throws IOException{
+        if(inPart && to>from){
             ByteBuffer src = buffer.duplicate();
-            src.position(pos);
-            src.limit(buffer.position()-delimiter.capacity());
-            write(src);
+            src.limit(to);
+            src.position(from);
+            listener.content(src);
         }
-        delimiter.clear();
     }
 
-    private void write(ByteBuffer src) throws IOException{
-        if(part==null)
-            src.position(src.limit());
-        else if(part instanceof FilePart){
-            while(src.hasRemaining())
-                fileChannel.write(src);
-        }else
-            ((DefaultPart)part).buffers.write(src);
+    private void content(ByteBuffer src) throws IOException{
+        if(inPart && src.hasRemaining())
+            listener.content(src);
     }
 
     @Override
     public void cleanup(){
-        try{
+        if(!finished){
+            finished = true;
+            inPart = false;
+            listener.aborted();
+        }
+    }
+
+    /** collects parts into payload, spooling file uploads into temporary files */
+    private class CollectParts implements PartListener{
+        private Part part;
+        private FileChannel fileChannel;
+
+        @Override
+        public void startPart(Headers headers) throws IOException{
+            ContentDisposition cd = headers.getSingleValue(Message.CONTENT_DISPOSITION, ContentDisposition::new);
+            if(cd!=null && cd.getFileName()!=null){
+                File file = File.createTempFile("jlibs", "upload");
+                part = new FilePart(file, headers);
+                payload.parts.add(part);
+                fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }else{
+                part = new DefaultPart(headers);
+                payload.parts.add(part);
+            }
+        }
+
+        @Override
+        public void content(ByteBuffer buffer) throws IOException{
             if(fileChannel!=null){
+                while(buffer.hasRemaining())
+                    fileChannel.write(buffer);
+            }else
+                ((DefaultPart)part).buffers.write(buffer);
+        }
+
+        @Override
+        public void endPart() throws IOException{
+            part = null;
+            if(fileChannel!=null){
+                FileChannel fileChannel = this.fileChannel;
+                this.fileChannel = null;
                 fileChannel.close();
-                fileChannel = null;
             }
-        }catch(IOException ex){
-            throw new RuntimeException(ex);
+        }
+
+        @Override
+        public void aborted(){
+            try{
+                endPart();
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
         }
     }
 }
@@ -0,0 +1,44 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.msg.parser;
+
+import jlibs.nio.http.msg.Headers;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * receives parts of multipart payload from {@link MultipartParser},
+ * as they arrive, without being spooled or retained
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public interface PartListener{
+    /** called when headers of next part are parsed */
+    public void startPart(Headers headers) throws IOException;
+
+    /**
+     * called with content of current part, in one or more chunks.
+     * given buffer is valid only during this call, so its bytes
+     * must be consumed or copied before returning
+     */
+    public void content(ByteBuffer buffer) throws IOException;
+
+    public void endPart() throws IOException;
+
+    /** called if parsing is stopped before close delimiter */
+    public default void aborted(){}
+}
@@ -36,10 +36,15 @@ public class RequestParser extends MessageParser{
     private static final int HEADERS = 5;
 
     private final long maxURISize;
-    public RequestParser(long maxURISize){
+    public RequestParser(long maxURISize, boolean lazyValues){
+        super(lazyValues);
         this.maxURISize = maxURISize;
     }
 
+    public RequestParser(long maxURISize){
+        this(maxURISize, false);
+    }
+
     private int state = BEGIN;
 
     @Override
@@ -32,6 +32,14 @@ public class ResponseParser extends MessageParser{
     private static final int REASON  = 2;
     private static final int HEADERS = 3;
 
+    public ResponseParser(boolean lazyValues){
+        super(lazyValues);
+    }
+
+    public ResponseParser(){
+        this(false);
+    }
+
     private int step = VERSION;
     private int statusCode;
     private int digitCount;
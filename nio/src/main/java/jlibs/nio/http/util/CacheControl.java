@@ -0,0 +1,131 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.util;
+
+import jlibs.nio.http.msg.Header;
+
+/**
+ * directives of Cache-Control header
+ *
+ * @see <a href="http://tools.ietf.org/html/rfc7234#section-5.2">rfc7234</a>
+ * @author Santhosh Kumar Tekuri
+ */
+public final class CacheControl{
+    public boolean noCache;
+    public boolean noStore;
+    public boolean noTransform;
+    public boolean onlyIfCached;
+    public boolean mustRevalidate;
+    public boolean proxyRevalidate;
+    public boolean isPublic;
+    public boolean isPrivate;
+
+    /** in seconds, -1 if not specified */
+    public long maxAge = -1;
+    public long sMaxAge = -1;
+    public long maxStale = -1;
+    public long minFresh = -1;
+
+    public CacheControl(){}
+
+    /** parses given header along with its same named headers that follow */
+    public CacheControl(Header header){
+        Parser parser = null;
+        while(header!=null){
+            if(parser==null)
+                parser = new Parser(true, header.getValue());
+            else
+                parser.reset(header.getValue());
+            while(!parser.isEmpty()){
+                String name = parser.lvalue();
+                String value = parser.rvalue();
+                if(name!=null)
+                    set(name, value);
+                parser.skipPairs();
+                if(!parser.isEmpty())
+                    parser.skip();
+            }
+            header = header.sameNext();
+        }
+    }
+
+    private void set(String name, String value){
+        if("no-cache".equalsIgnoreCase(name))
+            noCache = true;
+        else if("no-store".equalsIgnoreCase(name))
+            noStore = true;
+        else if("no-transform".equalsIgnoreCase(name))
+            noTransform = true;
+        else if("only-if-cached".equalsIgnoreCase(name))
+            onlyIfCached = true;
+        else if("must-revalidate".equalsIgnoreCase(name))
+            mustRevalidate = true;
+        else if("proxy-revalidate".equalsIgnoreCase(name))
+            proxyRevalidate = true;
+        else if("public".equalsIgnoreCase(name))
+            isPublic = true;
+        else if("private".equalsIgnoreCase(name))
+            isPrivate = true;
+        else if("max-age".equalsIgnoreCase(name))
+            maxAge = seconds(value, 0);
+        else if("s-maxage".equalsIgnoreCase(name))
+            sMaxAge = seconds(value, 0);
+        else if("max-stale".equalsIgnoreCase(name))
+            maxStale = seconds(value, Long.MAX_VALUE);
+        else if("min-fresh".equalsIgnoreCase(name))
+            minFresh = seconds(value, 0);
+    }
+
+    // invalid delta-seconds are treated as zero, i.e stale
+    private static long seconds(String value, long defaultValue){
+        if(value==null)
+            return defaultValue;
+        try{
+            long seconds = Long.parseLong(value.trim());
+            return seconds<0 ? 0 : seconds;
+        }catch(NumberFormatException ex){
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder buffer = new StringBuilder();
+        append(buffer, noCache, "no-cache");
+        append(buffer, noStore, "no-store");
+        append(buffer, noTransform, "no-transform");
+        append(buffer, onlyIfCached, "only-if-cached");
+        append(buffer, mustRevalidate, "must-revalidate");
+        append(buffer, proxyRevalidate, "proxy-revalidate");
+        append(buffer, isPublic, "public");
+        append(buffer, isPrivate, "private");
+        append(buffer, maxAge>=0, "max-age="+maxAge);
+        append(buffer, sMaxAge>=0, "s-maxage="+sMaxAge);
+        append(buffer, maxStale==Long.MAX_VALUE, "max-stale");
+        append(buffer, maxStale>=0 && maxStale!=Long.MAX_VALUE, "max-stale="+maxStale);
+        append(buffer, minFresh>=0, "min-fresh="+minFresh);
+        return buffer.toString();
+    }
+
+    private static void append(StringBuilder buffer, boolean condition, String directive){
+        if(condition){
+            if(buffer.length()>0)
+                buffer.append(", ");
+            buffer.append(directive);
+        }
+    }
+}
@@ -22,20 +22,23 @@ import jlibs.nio.filters.DeflaterOutput;
 import jlibs.nio.filters.GZIPInput;
 import jlibs.nio.filters.GZIPOutput;
 import jlibs.nio.filters.InflaterInput;
+import jlibs.nio.util.ZipPool;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.GZIPInputStream;
 
 /**
  * @author Santhosh Kumar Tekuri
  */
 public class Encoding{
-    public static final Encoding DEFLATE = new Encoding("deflate", InflaterInput::new, DeflaterOutput::new, DeflaterOutputStream::new);
-    public static final Encoding GZIP = new Encoding("gzip", GZIPInput::new, GZIPOutput::new, GZIPOutputStream::new);
+    public static final Encoding DEFLATE = new ZipEncoding("deflate", InflaterInput::new, false);
+    public static final Encoding GZIP = new ZipEncoding("gzip", GZIPInput::new, true);
 
     public final String name;
     private final Function<Input, Input> inFunction;
@@ -70,6 +73,16 @@ public class Encoding{
         return osFunction.apply(os);
     }
 
+    /** level is ignored, if this encoding does not support compression levels */
+    public Output wrap(Output out, int level){
+        return wrap(out);
+    }
+
+    /** level is ignored, if this encoding does not support compression levels */
+    public OutputStream wrap(OutputStream os, int level) throws IOException{
+        return wrap(os);
+    }
+
     @Override
     public int hashCode(){
         return name.hashCode();
@@ -93,4 +106,93 @@ public class Encoding{
         else
             return new Encoding(encoding, null, null, null);
     }
+
+    /** deflate or gzip, using deflaters from {@link ZipPool#current() current} pool */
+    private static final class ZipEncoding extends Encoding{
+        private final boolean gzip;
+        private ZipEncoding(String name, Function<Input, Input> inFunction, boolean gzip){
+            super(name, inFunction, null, null);
+            this.gzip = gzip;
+        }
+
+        @Override
+        public Output wrap(Output out){
+            return wrap(out, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream os) throws IOException{
+            return wrap(os, Deflater.DEFAULT_COMPRESSION);
+        }
+
+        @Override
+        public Output wrap(Output out, int level){
+            return gzip ? new GZIPOutput(out, level) : new DeflaterOutput(out, level);
+        }
+
+        @Override
+        public OutputStream wrap(OutputStream os, int level) throws IOException{
+            return new ZipOutputStream(os, level, gzip);
+        }
+    }
+
+    /** returns deflater to pool on close */
+    private static final class ZipOutputStream extends DeflaterOutputStream{
+        private final ZipPool pool = ZipPool.current();
+        private final boolean gzip;
+        private final CRC32 crc;
+
+        private ZipOutputStream(OutputStream out, int level, boolean gzip) throws IOException{
+            super(out, ZipPool.current().deflater(level, gzip));
+            this.gzip = gzip;
+            if(gzip){
+                crc = new CRC32();
+                out.write(GZIP_HEADER);
+            }else
+                crc = null;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            super.write(b, off, len);
+            if(gzip)
+                crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException{
+            if(!def.finished()){
+                super.finish();
+                if(gzip){
+                    writeInt((int)crc.getValue());
+                    writeInt((int)def.getBytesRead());
+                }
+            }
+        }
+
+        private void writeInt(int i) throws IOException{
+            out.write(i&0xFF);
+            out.write((i>>8)&0xFF);
+            out.write((i>>16)&0xFF);
+            out.write((i>>24)&0xFF);
+        }
+
+        private boolean closed;
+        @Override
+        public void close() throws IOException{
+            if(!closed){
+                closed = true;
+                try{
+                    super.close();
+                }finally{
+                    pool.free(def, gzip);
+                }
+            }
+        }
+    }
+
+    private static final byte GZIP_HEADER[] = {
+            (byte)GZIPInputStream.GZIP_MAGIC, (byte)(GZIPInputStream.GZIP_MAGIC>>8),
+            Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
 }
@@ -0,0 +1,413 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+package jlibs.nio.http.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * header compression for HTTP/2 (rfc7541)
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class HPACK{
+    private HPACK(){}
+
+    public static final int DEFAULT_TABLE_SIZE = 4096;
+
+    // rfc7541, section 4.1
+    private static final int ENTRY_OVERHEAD = 32;
+
+    private static final String STATIC_TABLE[][] = {
+        {":authority", ""},
+        {":method", "GET"},
+        {":method", "POST"},
+        {":path", "/"},
+        {":path", "/index.html"},
+        {":scheme", "http"},
+        {":scheme", "https"},
+        {":status", "200"},
+        {":status", "204"},
+        {":status", "206"},
+        {":status", "304"},
+        {":status", "400"},
+        {":status", "404"},
+        {":status", "500"},
+        {"accept-charset", ""},
+        {"accept-encoding", "gzip, deflate"},
+        {"accept-language", ""},
+        {"accept-ranges", ""},
+        {"accept", ""},
+        {"access-control-allow-origin", ""},
+        {"age", ""},
+        {"allow", ""},
+        {"authorization", ""},
+        {"cache-control", ""},
+        {"content-disposition", ""},
+        {"content-encoding", ""},
+        {"content-language", ""},
+        {"content-length", ""},
+        {"content-location", ""},
+        {"content-range", ""},
+        {"content-type", ""},
+        {"cookie", ""},
+        {"date", ""},
+        {"etag", ""},
+        {"expect", ""},
+        {"expires", ""},
+        {"from", ""},
+        {"host", ""},
+        {"if-match", ""},
+        {"if-modified-since", ""},
+        {"if-none-match", ""},
+        {"if-range", ""},
+        {"if-unmodified-since", ""},
+        {"last-modified", ""},
+        {"link", ""},
+        {"location", ""},
+        {"max-forwards", ""},
+        {"proxy-authenticate", ""},
+        {"proxy-authorization", ""},
+        {"range", ""},
+        {"referer", ""},
+        {"refresh", ""},
+        {"retry-after", ""},
+        {"server", ""},
+        {"set-cookie", ""},
+        {"strict-transport-security", ""},
+        {"transfer-encoding", ""},
+        {"user-agent", ""},
+        {"vary", ""},
+        {"via", ""},
+        {"www-authenticate", ""},
+    };
+
+    // name -> indexes of static entries with that name, starting from 1
+    private static final Map<String, int[]> STATIC_INDEX = new HashMap<>();
+    static{
+        for(int i=0; i<STATIC_TABLE.length; i++){
+            int indexes[] = STATIC_INDEX.get(STATIC_TABLE[i][0]);
+            if(indexes==null)
+                indexes = new int[]{ i+1 };
+            else{
+                int array[] = new int[indexes.length+1];
+                System.arraycopy(indexes, 0, array, 0, indexes.length);
+                array[indexes.length] = i+1;
+                indexes = array;
+            }
+            STATIC_INDEX.put(STATIC_TABLE[i][0], indexes);
+        }
+    }
+
+    /*-------------------------------------------------[ Dynamic Table ]---------------------------------------------------*/
+
+    private static class DynamicTable{
+        private String names[] = new String[16];
+        private String values[] = new String[16];
+        private int head; // slot for next entry
+        private int count;
+        private int size;
+        private int maxSize = DEFAULT_TABLE_SIZE;
+
+        // index 0 is the most recently added entry
+        String name(int index){
+            return names[(head-1-index)&(names.length-1)];
+        }
+
+        String value(int index){
+            return values[(head-1-index)&(values.length-1)];
+        }
+
+        void add(String name, String value){
+            int entrySize = name.length()+value.length()+ENTRY_OVERHEAD;
+            if(entrySize>maxSize){
+                clear();
+                return;
+            }
+            evict(maxSize-entrySize);
+            if(count==names.length){
+                String newNames[] = new String[names.length<<1];
+                String newValues[] = new String[values.length<<1];
+                for(int i=0; i<count; i++){
+                    newNames[count-1-i] = name(i);
+                    newValues[count-1-i] = value(i);
+                }
+                names = newNames;
+                values = newValues;
+                head = count;
+            }
+            names[head] = name;
+            values[head] = value;
+            head = (head+1)&(names.length-1);
+            ++count;
+            size += entrySize;
+        }
+
+        void setMaxSize(int maxSize){
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int maxSize){
+            while(size>maxSize){
+                int tail = (head-count)&(names.length-1);
+                size -= names[tail].length()+values[tail].length()+ENTRY_OVERHEAD;
+                names[tail] = values[tail] = null;
+                --count;
+            }
+        }
+
+        private void clear(){
+            while(count>0){
+                int tail = (head-count)&(names.length-1);
+                names[tail] = values[tail] = null;
+                --count;
+            }
+            size = 0;
+        }
+    }
+
+    /*-------------------------------------------------[ Decoder ]---------------------------------------------------*/
+
+    public interface Listener{
+        public void header(String name, String value) throws IOException;
+    }
+
+    public static final class Decoder{
+        private final DynamicTable table = new DynamicTable();
+        private final StringBuilder builder = new StringBuilder();
+        private int maxTableSize = DEFAULT_TABLE_SIZE;
+
+        /** maximum table size, advertised to peer as SETTINGS_HEADER_TABLE_SIZE */
+        public void setMaxTableSize(int maxTableSize){
+            this.maxTableSize = maxTableSize;
+            if(table.maxSize>maxTableSize)
+                table.setMaxSize(maxTableSize);
+        }
+
+        /** decodes complete header block. any error must be treated as COMPRESSION_ERROR */
+        public void decode(ByteBuffer block, Listener listener) throws IOException{
+            try{
+                boolean headerSeen = false;
+                while(block.hasRemaining()){
+                    int b = block.get(block.position())&0xFF;
+                    if((b&0x80)!=0){ // indexed
+                        int index = decodeInt(block, 7);
+                        listener.header(name(index), value(index));
+                        headerSeen = true;
+                    }else if((b&0xC0)==0x40){ // incremental indexing
+                        String name = decodeName(block, 6);
+                        String value = decodeString(block);
+                        table.add(name, value);
+                        listener.header(name, value);
+                        headerSeen = true;
+                    }else if((b&0xE0)==0x20){ // table size update
+                        if(headerSeen)
+                            throw new IOException("table size update after header field");
+                        int size = decodeInt(block, 5);
+                        if(size>maxTableSize)
+                            throw new IOException("table size update exceeds limit: "+size);
+                        table.setMaxSize(size);
+                    }else{ // without indexing, never indexed
+                        String name = decodeName(block, 4);
+                        listener.header(name, decodeString(block));
+                        headerSeen = true;
+                    }
+                }
+            }catch(IndexOutOfBoundsException ex){
+                throw new IOException("truncated header block");
+            }
+        }
+
+        private String name(int index) throws IOException{
+            if(index==0)
+                throw new IOException("invalid index: 0");
+            if(index<=STATIC_TABLE.length)
+                return STATIC_TABLE[index-1][0];
+            index -= STATIC_TABLE.length+1;
+            if(index>=table.count)
+                throw new IOException("invalid index: "+(index+STATIC_TABLE.length+1));
+            return table.name(index);
+        }
+
+        private String value(int index){
+            if(index<=STATIC_TABLE.length)
+                return STATIC_TABLE[index-1][1];
+            return table.value(index-STATIC_TABLE.length-1);
+        }
+
+        private String decodeName(ByteBuffer block, int prefix) throws IOException{
+            int index = decodeInt(block, prefix);
+            return index==0 ? decodeString(block) : name(index);
+        }
+
+        private String decodeString(ByteBuffer block) throws IOException{
+            boolean huffman = (block.get(block.position())&0x80)!=0;
+            int length = decodeInt(block, 7);
+            if(length>block.remaining())
+                throw new IOException("truncated header block");
+            builder.setLength(0);
+            if(huffman)
+                Huffman.decode(block, length, builder);
+            else{
+                while(length-->0)
+                    builder.append((char)(block.get()&0xFF));
+            }
+            return builder.toString();
+        }
+
+        private static int decodeInt(ByteBuffer block, int prefix) throws IOException{
+            int max = (1<<prefix)-1;
+            int value = block.get()&max;
+            if(value<max)
+                return value;
+            for(int shift=0; shift<28; shift+=7){
+                int b = block.get()&0xFF;
+                value += (b&0x7F)<<shift;
+                if((b&0x80)==0){
+                    if(value<0)
+                        break;
+                    return value;
+                }
+            }
+            throw new IOException("integer overflow");
+        }
+    }
+
+    /*-------------------------------------------------[ Encoder ]---------------------------------------------------*/
+
+    public static final class Encoder{
+        private final DynamicTable table = new DynamicTable();
+        private int pendingTableSize = -1;
+
+        /** called with SETTINGS_HEADER_TABLE_SIZE from peer */
+        public void setMaxTableSize(int maxTableSize){
+            maxTableSize = Math.min(maxTableSize, DEFAULT_TABLE_SIZE);
+            if(maxTableSize!=table.maxSize){
+                table.setMaxSize(maxTableSize);
+                pendingTableSize = maxTableSize;
+            }
+        }
+
+        /** maximum number of bytes needed to encode given header */
+        public static int maxLength(String name, String value){
+            return name.length()+value.length()+16;
+        }
+
+        /** must be called before encoding first header of each header block */
+        public void startBlock(ByteBuffer buffer){
+            if(pendingTableSize!=-1){
+                encodeInt(buffer, 0x20, 5, pendingTableSize);
+                pendingTableSize = -1;
+            }
+        }
+
+        /**
+         * encodes given header into buffer. name must be in lowercase.
+         * buffer must have at least {@link #maxLength(String, String)} bytes remaining
+         */
+        public void encode(String name, String value, ByteBuffer buffer){
+            int nameIndex = 0;
+            int staticIndexes[] = STATIC_INDEX.get(name);
+            if(staticIndexes!=null){
+                nameIndex = staticIndexes[0];
+                for(int index: staticIndexes){
+                    if(STATIC_TABLE[index-1][1].equals(value)){
+                        encodeInt(buffer, 0x80, 7, index);
+                        return;
+                    }
+                }
+            }
+            int hash = value.hashCode();
+            for(int i=0; i<table.count; i++){
+                if(table.name(i).equals(name)){
+                    String v = table.value(i);
+                    if(v.hashCode()==hash && v.equals(value)){
+                        encodeInt(buffer, 0x80, 7, STATIC_TABLE.length+1+i);
+                        return;
+                    }
+                    if(nameIndex==0)
+                        nameIndex = STATIC_TABLE.length+1+i;
+                }
+            }
+
+            if(SENSITIVE.contains(name)){
+                encodeInt(buffer, 0x10, 4, nameIndex);
+            }else if(NOT_INDEXED.contains(name) || name.length()+value.length()+ENTRY_OVERHEAD>table.maxSize/2){
+                encodeInt(buffer, 0x00, 4, nameIndex);
+            }else{
+                encodeInt(buffer, 0x40, 6, nameIndex);
+                table.add(name, value);
+            }
+            if(nameIndex==0)
+                encodeString(buffer, name);
+            encodeString(buffer, value);
+        }
+
+        private static void encodeString(ByteBuffer buffer, String str){
+            int huffmanLength = Huffman.encodedLength(str);
+            if(huffmanLength<str.length()){
+                encodeInt(buffer, 0x80, 7, huffmanLength);
+                Huffman.encode(str, buffer);
+            }else{
+                encodeInt(buffer, 0x00, 7, str.length());
+                for(int i=0; i<str.length(); i++)
+                    buffer.put((byte)str.charAt(i));
+            }
+        }
+
+        private static void encodeInt(ByteBuffer buffer, int mask, int prefix, int value){
+            int max = (1<<prefix)-1;
+            if(value<max)
+                buffer.put((byte)(mask|value));
+            else{
+                buffer.put((byte)(mask|max));
+                value -= max;
+                while(value>=0x80){
+                    buffer.put((byte)(value&0x7F|0x80));
+                    value >>>= 7;
+                }
+                buffer.put((byte)value);
+            }
+        }
+    }
+
+    // headers whose values rarely repeat, so indexing them just evicts useful entries
+    private static final Set<String> NOT_INDEXED = new HashSet<>(Arrays.asList(
+        ":path", "content-length", "content-range", "etag", "date", "last-modified", "expires", "age",
+        "if-modified-since", "if-none-match", "if-range", "location", "range"
+    ));
+
+    // rfc7541, section 7.1.3
+    private static final Set<String> SENSITIVE = new HashSet<>(Arrays.asList(
+        "authorization", "proxy-authorization", "cookie", "set-cookie"
+    ));
+
+    public static String toLowerCase(String name){
+        for(int i=0; i<name.length(); i++){
+            char ch = name.charAt(i);
+            if(ch>='A' && ch<='Z')
+                return name.toLowerCase(Locale.ENGLISH);
+        }
+        return name;
+    }
+}
@@ -15,6 +15,8 @@
 
 package jlibs.nio.http.util;
 
+import jlibs.nio.http.msg.AsciiString;
+
 import java.text.FieldPosition;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -78,12 +80,24 @@ public class HTTPDate{
         return formats[0].format(date, buffer, DONT_CARE_FIELD_POSITION).toString();
     }
 
-    private String currentDate;
-    private long currentTime;
-    public String currentDate(){
+    private AsciiString currentDate;
+    private long currentSecond = -1;
+
+    /**
+     * returns current date in RFC 1123 format, along with its US-ASCII bytes.
+     * it is formatted at most once per second per thread, i.e. per reactor
+     */
+    public AsciiString currentDateValue(){
         long time = System.currentTimeMillis();
-        if(currentDate==null || time-currentTime>=1000)
-            currentDate = format(new Date(currentTime=time));
+        long second = time/1000;
+        if(second!=currentSecond){
+            currentSecond = second;
+            currentDate = new AsciiString(format(new Date(time)));
+        }
         return currentDate;
     }
+
+    public String currentDate(){
+        return currentDateValue().text;
+    }
 }
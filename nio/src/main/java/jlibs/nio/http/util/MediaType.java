@@ -171,6 +171,10 @@ public class MediaType implements Bean{
         return "xml".equals(subType) || subType.endsWith("+xml");
     }
 
+    public boolean isJSON(){
+        return "json".equals(subType) || subType.endsWith("+json");
+    }
+
     @Override
     public boolean equals(Object obj){
         if(obj==this)
@@ -213,7 +217,7 @@ public class MediaType implements Bean{
         else if(name=="is_multipart")
             return isMultipart();
         else if(name=="is_json")
-            return isCompatible(APPLICATION_JSON);
+            return isJSON();
         else if(name=="is_soap11")
             return isCompatible(SOAP_1_1);
         else if(name=="is_soap12")
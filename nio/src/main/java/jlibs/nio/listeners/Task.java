@@ -22,6 +22,7 @@ import jlibs.nio.util.BufferAllocator;
 import jlibs.nio.util.Buffers;
 import jlibs.nio.util.UnpooledBufferAllocator;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -158,30 +159,79 @@ public abstract class Task{
     /*-------------------------------------------------[ writeFile ]---------------------------------------------------*/
 
     private FileChannel fileChannel;
+    private boolean closeFileChannel;
     private long fileOffset;
     private long fileLength;
+    private ByteBuffer fileBuffer;
     protected void prepareTransferFromFile(File file) throws IOException{
-        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
-        fileOffset = 0;
-        fileLength = fileChannel.size();
+        prepareTransferFromFile(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    private void prepareTransferFromFile(FileChannel fileChannel) throws IOException{
+        try{
+            prepareTransferFromFile(fileChannel, 0, fileChannel.size());
+        }catch(Throwable thr){
+            fileChannel.close();
+            throw thr;
+        }
+        closeFileChannel = true;
+    }
+
+    /** given fileChannel is not closed after transfer */
+    protected void prepareTransferFromFile(FileChannel fileChannel, long offset, long length){
+        this.fileChannel = fileChannel;
+        closeFileChannel = false;
+        fileOffset = offset;
+        fileLength = length;
         if(out instanceof ChunkedOutput)
             ((ChunkedOutput)out).startChunk(fileLength);
     }
 
     protected boolean transferFromFile() throws IOException{
         try{
-            while(fileLength>0){
-                long wrote = out.transferFrom(fileChannel, fileOffset, fileLength);
-                if(wrote==0){
-                    out.addWriteInterest();
-                    return false;
-                }else{
-                    fileOffset += wrote;
-                    fileLength -= wrote;
+            if(ZERO_COPY && out instanceof Socket){
+                // unfiltered socket: kernel copies file to socket (sendfile)
+                while(fileLength>0){
+                    long wrote = out.transferFrom(fileChannel, fileOffset, fileLength);
+                    if(wrote==0){
+                        out.addWriteInterest();
+                        return false;
+                    }else{
+                        fileOffset += wrote;
+                        fileLength -= wrote;
+                    }
+                }
+            }else{
+                // filters need the bytes. FileChannel.transferTo to such channel copies
+                // through a small temporary buffer per call, so use reactor's buffer instead
+                if(fileBuffer==null){
+                    fileBuffer = Reactor.current().allocator.allocate();
+                    fileBuffer.flip();
+                }
+                while(fileBuffer.hasRemaining() || fileLength>0){
+                    if(!fileBuffer.hasRemaining()){
+                        fileBuffer.clear();
+                        if(fileBuffer.remaining()>fileLength)
+                            fileBuffer.limit((int)fileLength);
+                        int read = fileChannel.read(fileBuffer, fileOffset);
+                        if(read==-1)
+                            throw new EOFException("file truncated");
+                        fileOffset += read;
+                        fileLength -= read;
+                        fileBuffer.flip();
+                    }
+                    if(out.write(fileBuffer)==0){
+                        out.addWriteInterest();
+                        return false;
+                    }
                 }
             }
         }catch(Throwable thr){
-            transferFromFileDone();
+            try{
+                transferFromFileDone();
+            }catch(Throwable suppressed){
+                thr.addSuppressed(suppressed);
+            }
             throw thr;
         }
         transferFromFileDone();
@@ -189,8 +239,14 @@ public abstract class Task{
     }
 
     private void transferFromFileDone() throws IOException{
-        fileChannel.close();
-        fileChannel = null;
+        if(fileBuffer!=null){
+            Reactor.current().allocator.free(fileBuffer);
+            fileBuffer = null;
+        }
+        FileChannel fileChannel = this.fileChannel;
+        this.fileChannel = null;
+        if(closeFileChannel)
+            fileChannel.close();
     }
 
     /*-------------------------------------------------[ readBuffers ]---------------------------------------------------*/
@@ -642,4 +698,12 @@ public abstract class Task{
     protected boolean hasChild(){
         return child!=null;
     }
+
+    /*-------------------------------------------------[ Options ]---------------------------------------------------*/
+
+    /**
+     * when true, files are transferred to unfiltered socket using FileChannel.transferTo,
+     * otherwise files are always copied through buffers
+     */
+    public static boolean ZERO_COPY = true;
 }
@@ -0,0 +1,313 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.log;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.util.RepeatingDuration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * LogHandler which writes to file from a background thread.
+ * <p>
+ * Each reactor has its own bounded lock-free ring buffer, which is
+ * filled by reactor thread and drained by single writer thread. Writer
+ * encodes records in batches into a direct buffer and writes them to
+ * FileChannel, at least once every flushInterval millis.
+ * <p>
+ * Records passed to publish are typically recycled as soon as publish
+ * returns (ex: AccessLog.Record), so text of the record is captured
+ * while publishing.
+ * <p>
+ * When ring buffer is full, the record is either dropped or the
+ * publishing thread waits for the writer, depending on {@link Overflow}.
+ * Records are also dropped while log file can't be opened, in which
+ * case opening is retried every flushInterval millis.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class AsyncFileLogHandler implements LogHandler{
+    public enum Overflow{ DROP, BLOCK }
+
+    private final File dir;
+    private final String prefix;
+    private final String suffix;
+    private final SimpleDateFormat dateFormat;
+    private final RepeatingDuration repeatingDuration;
+
+    private final long flushInterval;
+    private final Overflow overflow;
+
+    private final Ring rings[];
+    private final Ring sharedRing; // used by non-reactor threads
+    private final Thread writer;
+    private volatile boolean closed;
+
+    public AsyncFileLogHandler(File dir, String prefix, String suffix, String format,
+                               int capacity, long flushInterval, Overflow overflow){
+        this.dir = dir;
+        this.prefix = prefix;
+        this.suffix = suffix;
+        dateFormat = new SimpleDateFormat(format);
+        repeatingDuration = RepeatingDuration.forFormat(format);
+        this.flushInterval = flushInterval;
+        this.overflow = overflow;
+
+        int reactors = Reactors.get()==null ? 0 : Reactors.get().size();
+        rings = new Ring[reactors];
+        for(int i=0; i<reactors; i++)
+            rings[i] = new Ring(capacity);
+        sharedRing = new Ring(capacity);
+
+        writer = new Thread(this::write, "AsyncFileLogHandler["+prefix+"]");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public AsyncFileLogHandler(File dir, String prefix, String suffix, String format){
+        this(dir, prefix, suffix, format, 8*1024, 1000, Overflow.DROP);
+    }
+
+    /*-------------------------------------------------[ Publish ]---------------------------------------------------*/
+
+    private final ThreadLocal<StringBuilder> builders = ThreadLocal.withInitial(() -> new StringBuilder(500));
+
+    @Override
+    public void publish(LogRecord record){
+        if(closed)
+            return;
+        Reactor reactor = Reactor.current();
+        Ring ring = reactor==null || reactor.id>=rings.length ? sharedRing : rings[reactor.id];
+
+        StringBuilder builder = builders.get();
+        builder.setLength(0);
+        try{
+            record.publishTo(builder);
+        }catch(IOException ex){
+            ex.printStackTrace();
+            return;
+        }
+        String text = builder.toString();
+
+        if(ring==sharedRing){
+            synchronized(sharedRing){
+                offer(sharedRing, text);
+            }
+        }else
+            offer(ring, text);
+    }
+
+    private void offer(Ring ring, String text){
+        while(!ring.offer(text)){
+            if(overflow==Overflow.DROP || closed){
+                ring.dropped.incrementAndGet();
+                return;
+            }
+            LockSupport.unpark(writer);
+            Thread.yield();
+        }
+        if(ring.size()>ring.capacity()/2)
+            LockSupport.unpark(writer);
+    }
+
+    /*-------------------------------------------------[ Writer ]---------------------------------------------------*/
+
+    private final CharsetEncoder encoder = Charset.defaultCharset().newEncoder();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(64*1024);
+    private FileChannel channel;
+    private long nextRotation;
+    private long written;
+
+    private void write(){
+        long lastFlush = System.currentTimeMillis();
+        while(true){
+            boolean closing = closed;
+            int drained = 0;
+            for(Ring ring: rings)
+                drained += drain(ring);
+            drained += drain(sharedRing);
+
+            long now = System.currentTimeMillis();
+            if(buffer.position()>0 && (closing || now-lastFlush>=flushInterval)){
+                flush();
+                lastFlush = now;
+            }
+            if(closing){
+                closeChannel();
+                return;
+            }
+            if(drained==0)
+                LockSupport.parkNanos(this, Math.max(1, flushInterval)*1000000L);
+        }
+    }
+
+    private int drain(Ring ring){
+        int count = 0, encoded = 0;
+        String text;
+        while((text=ring.poll())!=null){
+            ++count;
+            rotateIfNecessary();
+            if(channel==null){
+                ring.dropped.incrementAndGet();
+                continue;
+            }
+            CharBuffer chars = CharBuffer.wrap(text);
+            while(true){
+                CoderResult result = encoder.encode(chars, buffer, true);
+                if(result.isOverflow())
+                    flush();
+                else
+                    break;
+            }
+            encoder.reset();
+            ++encoded;
+        }
+        written += encoded;
+        return count;
+    }
+
+    private boolean openFailed;
+    private void rotateIfNecessary(){
+        long now = System.currentTimeMillis();
+        if(now>=nextRotation){
+            flush();
+            closeChannel();
+            File file = new File(dir, prefix+dateFormat.format(new Date(now))+suffix);
+            try{
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                openFailed = false;
+            }catch(IOException ex){
+                if(!openFailed)
+                    ex.printStackTrace();
+                openFailed = true;
+                // retry after flushInterval, records till then are dropped
+                nextRotation = now+Math.max(1, flushInterval);
+                return;
+            }
+            nextRotation = repeatingDuration==null ? Long.MAX_VALUE : repeatingDuration.next();
+        }
+    }
+
+    private void flush(){
+        buffer.flip();
+        try{
+            while(channel!=null && buffer.hasRemaining())
+                channel.write(buffer);
+        }catch(IOException ex){
+            ex.printStackTrace();
+        }
+        buffer.clear();
+    }
+
+    private void closeChannel(){
+        if(channel!=null){
+            try{
+                channel.close();
+            }catch(IOException ex){
+                ex.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /** writes pending records and stops the writer thread */
+    public void close() throws InterruptedException{
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join();
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    public long getDropped(){
+        long dropped = sharedRing.dropped.get();
+        for(Ring ring: rings)
+            dropped += ring.dropped.get();
+        return dropped;
+    }
+
+    public long getPending(){
+        long pending = sharedRing.size();
+        for(Ring ring: rings)
+            pending += ring.size();
+        return pending;
+    }
+
+    /** number of records written. this is updated only by writer thread, so value may be stale */
+    public long getWritten(){
+        return written;
+    }
+
+    /*-------------------------------------------------[ Ring ]---------------------------------------------------*/
+
+    /** single-producer/single-consumer bounded ring buffer */
+    private static final class Ring{
+        private final String slots[];
+        private final int mask;
+        private final AtomicLong head = new AtomicLong(); // next slot to poll
+        private final AtomicLong tail = new AtomicLong(); // next slot to offer
+        final AtomicLong dropped = new AtomicLong();
+
+        Ring(int capacity){
+            capacity = Integer.highestOneBit(Math.max(2, capacity-1))<<1;
+            slots = new String[capacity];
+            mask = capacity-1;
+        }
+
+        int capacity(){
+            return slots.length;
+        }
+
+        int size(){
+            return (int)(tail.get()-head.get());
+        }
+
+        boolean offer(String text){
+            long t = tail.get();
+            if(t-head.get()==slots.length)
+                return false;
+            slots[(int)(t&mask)] = text;
+            tail.lazySet(t+1);
+            return true;
+        }
+
+        String poll(){
+            long h = head.get();
+            if(h==tail.get())
+                return null;
+            int index = (int)(h&mask);
+            String text = slots[index];
+            slots[index] = null;
+            head.lazySet(h+1);
+            return text;
+        }
+    }
+}
@@ -31,7 +31,7 @@ public class FileLogHandler implements LogHandler{
     private File dir;
     private String prefix;
     private String suffix;
-    private String format;
+    private SimpleDateFormat dateFormat;
     private RepeatingDuration repeatingDuration;
     private long next = 0;
     private BufferedWriter writer;
@@ -40,7 +40,7 @@ public class FileLogHandler implements LogHandler{
         this.dir = dir;
         this.prefix = prefix;
         this.suffix = suffix;
-        this.format = format;
+        dateFormat = new SimpleDateFormat(format);
         repeatingDuration = RepeatingDuration.forFormat(format);
     }
 
@@ -50,7 +50,7 @@ public class FileLogHandler implements LogHandler{
             if(now>=next){
                 if(writer !=null)
                     writer.close();
-                File file = new File(dir, prefix+new SimpleDateFormat(format).format(new Date(now))+suffix);
+                File file = new File(dir, prefix+dateFormat.format(new Date(now))+suffix);
                 writer = new BufferedWriter(new FileWriter(file));
                 next = repeatingDuration.next();
             }
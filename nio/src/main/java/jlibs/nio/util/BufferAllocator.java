@@ -61,5 +61,11 @@ public interface BufferAllocator{
         public static int CHUNK_SIZE = 16*1024;
         public static boolean USE_DIRECT_BUFFERS = true;
         public static boolean POOL_BUFFERS = true;
+
+        /** when true along with POOL_BUFFERS, each reactor uses SlabBufferAllocator */
+        public static boolean USE_SLABS = false;
+        public static int SLAB_SIZE = 1024*1024;
+        public static long MAX_MEMORY_PER_REACTOR = 64*1024*1024;
+        public static boolean TRACK_LEAKS = false;
     }
 }
@@ -46,7 +46,7 @@ public final class Buffers extends OutputStream{
     public void append(ByteBuffer buffer){
         if(offset+length>=array.length){
             if(offset!=0)
-                System.arraycopy(array, offset, array, 0, length-1);
+                System.arraycopy(array, offset, array, 0, length);
             else
                 array = Arrays.copyOf(array, 2*array.length);
             offset = 0;
@@ -270,7 +270,7 @@ public final class Buffers extends OutputStream{
                     if(i==Buffers.this.length)
                         buffer = null;
                     else
-                        buffer = array[offset+i].duplicate();
+                        buffer = array[Buffers.this.offset+i].duplicate();
                 }
             }
             return length==_length && buffer==null ? -1 : _length-length;
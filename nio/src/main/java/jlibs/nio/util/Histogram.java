@@ -0,0 +1,77 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * thread safe histogram of durations in milliseconds, for reporting in mbeans.
+ * each bucket counts durations up to its upper bound. durations beyond
+ * last bound are counted in an overflow bucket
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class Histogram{
+    private final long bounds[];
+    private final AtomicLongArray counts;
+    private final LongAdder total = new LongAdder();
+
+    /** bounds are upper bounds of buckets in milliseconds, in increasing order */
+    public Histogram(long... bounds){
+        if(bounds.length==0)
+            throw new IllegalArgumentException("no bounds");
+        for(int i=1; i<bounds.length; i++){
+            if(bounds[i]<=bounds[i-1])
+                throw new IllegalArgumentException("bounds must be in increasing order");
+        }
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length+1);
+    }
+
+    public void record(long millis){
+        total.add(millis);
+        int bucket = 0;
+        while(bucket<bounds.length && millis>bounds[bucket])
+            ++bucket;
+        counts.incrementAndGet(bucket);
+    }
+
+    /** number of durations recorded */
+    public long getCount(){
+        long count = 0;
+        for(int i=0; i<counts.length(); i++)
+            count += counts.get(i);
+        return count;
+    }
+
+    /** sum of durations recorded, in milliseconds */
+    public long getTotal(){
+        return total.sum();
+    }
+
+    /** returns counts keyed by bucket, ex: "&lt;=10ms", with overflow bucket as "&gt;1000ms" */
+    public Map<String, Long> toMap(){
+        Map<String, Long> map = new LinkedHashMap<>();
+        for(int i=0; i<bounds.length; i++)
+            map.put("<="+bounds[i]+"ms", counts.get(i));
+        map.put(">"+bounds[bounds.length-1]+"ms", counts.get(bounds.length));
+        return map;
+    }
+}
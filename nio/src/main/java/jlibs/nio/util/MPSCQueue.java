@@ -0,0 +1,84 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Unbounded lock-free multi-producer/single-consumer FIFO queue.
+ * <p>
+ * {@link #offer(Object)} can be called from any thread, while
+ * {@link #poll()} and {@link #isEmpty()} must be called only from
+ * the single consumer thread.
+ * <p>
+ * Producers swap the tail with one atomic getAndSet and then link the
+ * previous tail to new node. Consumer follows next links from a stub
+ * node, so it never contends with producers.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class MPSCQueue<E>{
+    private static final class Node<E>{
+        E item;
+        volatile Node<E> next;
+
+        Node(E item){
+            this.item = item;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+                AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+    }
+
+    private final AtomicReference<Node<E>> tail;
+    private Node<E> head;
+
+    public MPSCQueue(){
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    public void offer(E item){
+        if(item==null)
+            throw new NullPointerException();
+        Node<E> node = new Node<>(item);
+        Node<E> prev = tail.getAndSet(node);
+        Node.NEXT.lazySet(prev, node);
+    }
+
+    /**
+     * returns null if queue is empty.
+     * <p>
+     * note that this may return null while a producer is half-way in
+     * offer, even though {@link #isEmpty()} returns false
+     */
+    public E poll(){
+        Node<E> next = head.next;
+        if(next==null)
+            return null;
+        E item = next.item;
+        next.item = null;
+        head = next;
+        return item;
+    }
+
+    public boolean isEmpty(){
+        return head==tail.get();
+    }
+}
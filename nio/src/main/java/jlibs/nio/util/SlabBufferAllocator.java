@@ -0,0 +1,277 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jlibs.nio.Debugger.DEBUG;
+import static jlibs.nio.Debugger.println;
+
+/**
+ * BufferAllocator which carves direct buffers from large off-heap slabs.
+ * <p>
+ * Requested sizes are rounded up to power-of-two size classes between
+ * {@link #MIN_SIZE} and slabSize, so that a buffer freed with one size
+ * can be reused for any request of same size class. The returned buffer
+ * still has capacity equal to requested size.
+ * <p>
+ * Total slab memory is bounded by maxMemory. Once the limit is reached,
+ * heap buffers are returned instead. Heap buffers of power-of-two sizes
+ * are pooled, and idle heap buffers are bounded by maxMemory too.
+ * <p>
+ * When trackLeaks is true, allocation site of each outstanding buffer
+ * is recorded and can be inspected using {@link #leaks(long)}.
+ * <p>
+ * This class is not thread-safe. Each reactor is expected to use its own
+ * instance. Direct buffer freed in other reactor, is handed back to the
+ * reactor which allocated it, using {@link Reactor#invokeLater(Runnable)}.
+ * Its owner is found by looking up outstanding buffers of each reactor.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class SlabBufferAllocator implements BufferAllocator{
+    public static final int MIN_SHIFT = 6;
+    public static final int MIN_SIZE = 1<<MIN_SHIFT;
+
+    private final boolean directPreferred;
+    private final int slabSize;
+    private final long maxMemory;
+    private final boolean trackLeaks;
+
+    private final Buffers directPool[];
+    private final Buffers heapPool[];
+
+    // outstanding buffer -> size class block it is sliced from.
+    // modified only by owner reactor, but read by others to find owner of buffer
+    private final Map<ByteBuffer, ByteBuffer> outstanding = new IdentityHashMap<>();
+    private final Map<ByteBuffer, AllocationSite> sites;
+
+    private ByteBuffer slab;
+    private long reserved;
+    private long used;
+    private long pooledHeap;
+    private long fallbacks;
+
+    public SlabBufferAllocator(boolean directPreferred, int slabSize, long maxMemory, boolean trackLeaks){
+        if(slabSize<MIN_SIZE || Integer.bitCount(slabSize)!=1)
+            throw new IllegalArgumentException("slabSize must be power of two >="+MIN_SIZE+": "+slabSize);
+        this.directPreferred = directPreferred;
+        this.slabSize = slabSize;
+        this.maxMemory = maxMemory;
+        this.trackLeaks = trackLeaks;
+        sites = trackLeaks ? new IdentityHashMap<>() : null;
+
+        int classes = sizeClass(slabSize)+1;
+        directPool = new Buffers[classes];
+        heapPool = new Buffers[classes];
+        for(int i=0; i<classes; i++){
+            directPool[i] = new Buffers();
+            heapPool[i] = new Buffers();
+        }
+    }
+
+    private static int sizeClass(int size){
+        return size<=MIN_SIZE ? 0 : 32-Integer.numberOfLeadingZeros(size-1)-MIN_SHIFT;
+    }
+
+    @Override
+    public boolean directPreferred(){
+        return directPreferred;
+    }
+
+    @Override
+    public ByteBuffer allocateHeap(int size){
+        if(size>=MIN_SIZE && size<=slabSize && Integer.bitCount(size)==1){
+            Buffers pool = heapPool[sizeClass(size)];
+            if(pool.length>0){
+                pooledHeap -= size;
+                return pool.removeLast();
+            }
+        }
+        if(DEBUG)
+            println("slab.allocate("+size+")");
+        return ByteBuffer.allocate(size);
+    }
+
+    @Override
+    public ByteBuffer allocateDirect(int size){
+        if(size>slabSize){
+            if(DEBUG)
+                println("slab.allocateDirect("+size+")");
+            return ByteBuffer.allocateDirect(size);
+        }
+
+        int sizeClass = sizeClass(size);
+        Buffers pool = directPool[sizeClass];
+        ByteBuffer block = pool.length>0 ? pool.removeLast() : carve(sizeClass);
+        if(block==null){
+            ++fallbacks;
+            return allocateHeap(size);
+        }
+        used += block.capacity();
+
+        ByteBuffer buffer = block;
+        if(size!=block.capacity() || trackLeaks){
+            block.limit(size);
+            buffer = block.slice();
+            block.clear();
+        }
+        synchronized(outstanding){
+            outstanding.put(buffer, block);
+        }
+        if(trackLeaks)
+            sites.put(buffer, new AllocationSite(size));
+        return buffer;
+    }
+
+    private ByteBuffer carve(int sizeClass){
+        int size = MIN_SIZE<<sizeClass;
+        if(slab==null || slab.remaining()<size){
+            if(reserved+slabSize>maxMemory)
+                return null;
+            if(slab!=null){
+                // recycle the tail of current slab into smaller size classes
+                while(slab.remaining()>=MIN_SIZE)
+                    directPool[sizeClass(Integer.highestOneBit(slab.remaining()))].append(slice(Integer.highestOneBit(slab.remaining())));
+            }
+            if(DEBUG)
+                println("slab.allocateSlab("+slabSize+")");
+            slab = ByteBuffer.allocateDirect(slabSize);
+            reserved += slabSize;
+        }
+        return slice(size);
+    }
+
+    private ByteBuffer slice(int size){
+        slab.limit(slab.position()+size);
+        ByteBuffer block = slab.slice();
+        slab.position(slab.limit());
+        slab.limit(slab.capacity());
+        return block;
+    }
+
+    @Override
+    public void free(ByteBuffer buffer){
+        ByteBuffer block;
+        synchronized(outstanding){
+            block = outstanding.remove(buffer);
+        }
+        if(block!=null){
+            if(trackLeaks)
+                sites.remove(buffer);
+            used -= block.capacity();
+            block.clear();
+            directPool[sizeClass(block.capacity())].append(block);
+        }else if(buffer.isDirect()){
+            if(buffer.capacity()<=slabSize){
+                // might be carved by allocator of other reactor
+                Reactor owner = ownerOf(buffer);
+                if(owner!=null)
+                    owner.invokeLater(() -> owner.allocator.free(buffer));
+            }
+        }else{
+            int size = buffer.capacity();
+            if(size>=MIN_SIZE && size<=slabSize && Integer.bitCount(size)==1 && pooledHeap+size<=maxMemory){
+                buffer.clear();
+                heapPool[sizeClass(size)].append(buffer);
+                pooledHeap += size;
+            }
+        }
+    }
+
+    // returns reactor whose allocator handed out given buffer, or null
+    private Reactor ownerOf(ByteBuffer buffer){
+        List<Reactor> reactors = Reactors.get();
+        if(reactors!=null){
+            for(Reactor reactor: reactors){
+                if(reactor.allocator!=this && reactor.allocator instanceof SlabBufferAllocator){
+                    Map<ByteBuffer, ByteBuffer> outstanding = ((SlabBufferAllocator)reactor.allocator).outstanding;
+                    synchronized(outstanding){
+                        if(outstanding.containsKey(buffer))
+                            return reactor;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /*-------------------------------------------------[ Statistics ]---------------------------------------------------*/
+
+    public long getMaxMemory(){ return maxMemory; }
+
+    /** total bytes of slabs allocated */
+    public long getReserved(){ return reserved; }
+
+    /** bytes of slab memory currently handed out */
+    public long getUsed(){ return used; }
+
+    /** bytes of heap buffers currently idle in pool */
+    public long getPooledHeap(){ return pooledHeap; }
+
+    /** number of direct allocations served from heap, because maxMemory is reached */
+    public long getFallbacks(){ return fallbacks; }
+
+    public int getOutstanding(){
+        synchronized(outstanding){
+            return outstanding.size();
+        }
+    }
+
+    public boolean isTrackingLeaks(){ return trackLeaks; }
+
+    /**
+     * returns allocation sites of buffers which are not freed for at least
+     * given duration, along with number of such buffers allocated from that site.
+     * returns empty map if leak tracking is not enabled
+     */
+    public Map<String, Integer> leaks(long minAge){
+        Map<String, Integer> leaks = new HashMap<>();
+        if(trackLeaks){
+            long now = System.currentTimeMillis();
+            for(AllocationSite site: sites.values()){
+                if(now-site.time>=minAge)
+                    leaks.merge(site.toString(), 1, Integer::sum);
+            }
+        }
+        return leaks;
+    }
+
+    private static class AllocationSite extends Throwable{
+        final long time = System.currentTimeMillis();
+        final int size;
+
+        AllocationSite(int size){
+            this.size = size;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder buff = new StringBuilder("allocateDirect(").append(size).append(")");
+            for(StackTraceElement element: getStackTrace())
+                buff.append("\n\tat ").append(element);
+            return buff.toString();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.util;
+
+import jlibs.nio.Reactor;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * pool of Deflaters and Inflaters, so that their native zlib state
+ * is reused across messages. each reactor has its own pool.
+ * <p>
+ * pooled objects are reset when freed, and ended when pool is full
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public final class ZipPool{
+    /** pool which does not pool, used outside reactor threads */
+    public static final ZipPool UNPOOLED = new ZipPool(0);
+
+    private final int maxSize;
+    private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+    private final ArrayDeque<Deflater> nowrapDeflaters = new ArrayDeque<>();
+    private final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+    private final ArrayDeque<Inflater> nowrapInflaters = new ArrayDeque<>();
+
+    public ZipPool(int maxSize){
+        this.maxSize = maxSize;
+    }
+
+    public Deflater deflater(int level, boolean nowrap){
+        Deflater deflater = (nowrap ? nowrapDeflaters : deflaters).pollLast();
+        if(deflater==null)
+            return new Deflater(level, nowrap);
+        deflater.setLevel(level);
+        return deflater;
+    }
+
+    /** nowrap must be same as that used to get given deflater */
+    public void free(Deflater deflater, boolean nowrap){
+        ArrayDeque<Deflater> pool = nowrap ? nowrapDeflaters : deflaters;
+        if(pool.size()<maxSize){
+            deflater.reset();
+            pool.addLast(deflater);
+        }else
+            deflater.end();
+    }
+
+    public Inflater inflater(boolean nowrap){
+        Inflater inflater = (nowrap ? nowrapInflaters : inflaters).pollLast();
+        return inflater==null ? new Inflater(nowrap) : inflater;
+    }
+
+    /** nowrap must be same as that used to get given inflater */
+    public void free(Inflater inflater, boolean nowrap){
+        ArrayDeque<Inflater> pool = nowrap ? nowrapInflaters : inflaters;
+        if(pool.size()<maxSize){
+            inflater.reset();
+            pool.addLast(inflater);
+        }else
+            inflater.end();
+    }
+
+    public int size(){
+        return deflaters.size()+nowrapDeflaters.size()+inflaters.size()+nowrapInflaters.size();
+    }
+
+    public static ZipPool current(){
+        Reactor reactor = Reactor.current();
+        return reactor==null ? UNPOOLED : reactor.zipPool;
+    }
+
+    public static class Defaults{
+        /** maximum number of deflaters/inflaters of each kind, pooled per reactor */
+        public static int MAX_SIZE = 32;
+    }
+}
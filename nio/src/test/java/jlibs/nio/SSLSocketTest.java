@@ -0,0 +1,171 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import jlibs.core.net.SSLUtil;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * reads over TLS with a destination buffer smaller than the records sent by peer,
+ * so that unwrap spills into SSLSocket's own buffer
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class SSLSocketTest{
+    private static final char PASSWORD[] = "secret".toCharArray();
+    private static final long TIMEOUT = 10000;
+
+    private File keyStore;
+    private SSLContext serverContext, clientContext;
+    private Reactor reactor;
+
+    @BeforeClass
+    public void setUp() throws Exception{
+        keyStore = File.createTempFile("SSLSocketTest", ".jks");
+        keyStore.delete();
+        Process keytool = new ProcessBuilder(
+                new File(System.getProperty("java.home"), "bin/keytool").getPath(),
+                "-genkeypair", "-alias", "test", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "1", "-storetype", "JKS",
+                "-keystore", keyStore.getPath(), "-storepass", "secret", "-keypass", "secret"
+        ).redirectErrorStream(true).start();
+        Assert.assertTrue(keytool.waitFor(60, TimeUnit.SECONDS) && keytool.exitValue()==0, "keytool failed");
+
+        serverContext = SSLUtil.newContext(SSLUtil.newKeyStore("JKS", keyStore.getPath(), PASSWORD), PASSWORD, "test", null);
+        clientContext = SSLUtil.newContext(null, null, null, null);
+
+        reactor = new Reactor(0);
+        reactor.start();
+    }
+
+    @AfterClass
+    public void tearDown(){
+        reactor.invokeLater(() -> reactor.shutdown(true));
+        keyStore.delete();
+    }
+
+    @Test(description="read returns only bytes copied into dst, and eof once peer sends close_notify")
+    public void closeNotify() throws Exception{
+        Assert.assertTrue(Arrays.equals(receive(false), DATA));
+    }
+
+    @Test(description="eof without spinning, when peer closes connection without close_notify")
+    public void truncated() throws Exception{
+        Assert.assertTrue(Arrays.equals(receive(true), DATA));
+    }
+
+    private static final byte DATA[] = new byte[10000];
+    static{
+        for(int i=0; i<DATA.length; i++)
+            DATA[i] = (byte)i;
+    }
+
+    /** peer writes DATA as single record, which client reads into small buffer */
+    private byte[] receive(boolean truncate) throws Exception{
+        try(ServerSocket server = new ServerSocket(0)){
+            Thread peer = new Thread(() -> {
+                try(Socket socket = server.accept()){
+                    socket.setSoTimeout((int)TIMEOUT);
+                    javax.net.ssl.SSLSocket sslSocket = (javax.net.ssl.SSLSocket)serverContext.getSocketFactory().createSocket(socket, null, socket.getPort(), false);
+                    sslSocket.setUseClientMode(false);
+                    OutputStream out = sslSocket.getOutputStream();
+                    out.write(DATA);
+                    out.flush();
+                    if(truncate){
+                        socket.shutdownOutput();
+                        InputStream in = socket.getInputStream();
+                        while(in.read()!=-1);
+                    }else
+                        sslSocket.close();
+                }catch(IOException ex){
+                    ex.printStackTrace();
+                }
+            });
+            peer.start();
+
+            CompletableFuture<byte[]> received = new CompletableFuture<>();
+            InetSocketAddress address = new InetSocketAddress("localhost", server.getLocalPort());
+            reactor.invokeLater(() -> {
+                try{
+                    new TCPConnector().connect(address, connector -> {
+                        try{
+                            TCPConnection con = connector.getTCPConnection();
+                            SSLEngine engine = clientContext.createSSLEngine("localhost", address.getPort());
+                            engine.setUseClientMode(true);
+                            new SSLSocket(con.in(), con.out(), engine);
+                            read(con, received);
+                        }catch(Throwable thr){
+                            received.completeExceptionally(thr);
+                        }
+                    });
+                }catch(Throwable thr){
+                    received.completeExceptionally(thr);
+                }
+            });
+            try{
+                return received.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            }finally{
+                peer.join(TIMEOUT);
+            }
+        }
+    }
+
+    private void read(TCPConnection con, CompletableFuture<byte[]> received){
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ByteBuffer dst = ByteBuffer.allocate(100);
+        con.in().setInputListener(input -> {
+            try{
+                while(true){
+                    dst.clear();
+                    int read = input.read(dst);
+                    Assert.assertEquals(read, read==-1 ? -1 : dst.position(), "bytes reported by read");
+                    if(read==-1){
+                        con.close();
+                        received.complete(bout.toByteArray());
+                        return;
+                    }
+                    if(read==0){
+                        input.addReadInterest();
+                        return;
+                    }
+                    bout.write(dst.array(), 0, read);
+                }
+            }catch(Throwable thr){
+                received.completeExceptionally(thr);
+            }
+        });
+        con.in().wakeupReader();
+    }
+}
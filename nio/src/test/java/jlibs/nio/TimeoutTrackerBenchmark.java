@@ -0,0 +1,93 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares HeapTimeoutTracker with TimingWheel.
+ * <p>
+ * each invocation re-arms a random channel out of {@code armed} channels,
+ * and stops timer of another one, which is what reactor does on every
+ * wakeup and selected key.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=5)
+@Fork(1)
+public class TimeoutTrackerBenchmark{
+    @Param({"10000", "100000", "1000000"})
+    public int armed;
+
+    @Param({"heap", "wheel"})
+    public String tracker;
+
+    private TimeoutTracker timeoutTracker;
+    private NBChannel channels[];
+    private Random random = new Random(0);
+
+    @Setup
+    public void setup() throws Exception{
+        timeoutTracker = tracker.equals("heap") ? new HeapTimeoutTracker() : new TimingWheel(100);
+        channels = new NBChannel[armed];
+        for(int i=0; i<armed; i++){
+            channels[i] = new DummyChannel();
+            timeoutTracker.startTimer(channels[i], timeout());
+        }
+    }
+
+    private long timeout(){
+        return 30*1000+random.nextInt(30*1000);
+    }
+
+    @Benchmark
+    public void restartTimer(){
+        NBChannel channel = channels[random.nextInt(armed)];
+        timeoutTracker.stopTimer(channel);
+        timeoutTracker.startTimer(channel, timeout());
+    }
+
+    @Benchmark
+    public long expire(){
+        timeoutTracker.time = System.currentTimeMillis();
+        long count = 0;
+        NBChannel channel;
+        while((channel=timeoutTracker.next())!=null){
+            timeoutTracker.startTimer(channel, timeout());
+            ++count;
+        }
+        return count+timeoutTracker.waitTime();
+    }
+
+    private static class DummyChannel extends NBChannel{
+        DummyChannel() throws IOException{
+            super((SelectableChannel)null);
+        }
+
+        @Override
+        protected void process(boolean timeout){}
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.expr.Expression;
+import jlibs.nio.http.expr.TypeConversion;
+import jlibs.nio.http.msg.Method;
+import jlibs.nio.http.msg.Request;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.Status;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * per-record cost of AccessLog with 20 attribute format.
+ * <p>
+ * {@code expressions} evaluates each attribute using Expression into String,
+ * as AccessLog did before compiling the format. {@code compiled} uses AccessLog.Record.
+ * run with {@code -prof gc} to compare allocation per record.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=5)
+@Fork(1)
+public class AccessLogBenchmark{
+    private static final String FORMAT =
+            "${host}:${port} [${request_count}] \"${request.method} ${request.uri} ${request.version}\" "+
+            "${response.status} ${response.content_length} ${request.content_length} "+
+            "${request.headers['User-Agent']} ${request.headers['Referer']} ${request.headers['Host']} "+
+            "${request.keep_alive} ${response.keep_alive} ${response.headers['Content-Type']} "+
+            "${response.version} ${request.line} ${request.query_string} ${scheme}";
+
+    private ServerExchange exchange;
+    private AccessLog accessLog;
+    private AccessLog.Record record;
+    private List<Expression> expressions = new ArrayList<>();
+    private StringBuilder builder = new StringBuilder(1024);
+
+    @Setup
+    public void setup() throws Exception{
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        accessLog = new AccessLog(FORMAT);
+        record = accessLog.new Record();
+        Matcher matcher = Pattern.compile("\\$\\{(.*?)\\}").matcher(FORMAT);
+        while(matcher.find())
+            expressions.add(Expression.compile(matcher.group(1)));
+
+        // exchange must be created on reactor thread
+        CompletableFuture<ServerExchange> future = new CompletableFuture<>();
+        Reactors.get().get(0).invokeLater(() -> {
+            try{
+                future.complete(new ServerExchange(new HTTPServer(new TCPEndpoint("localhost", 8080))));
+            }catch(Throwable thr){
+                future.completeExceptionally(thr);
+            }
+        });
+        exchange = future.get();
+        exchange.request = new Request();
+        exchange.request.method = Method.GET;
+        exchange.request.uri = "/index.html?lang=en";
+        exchange.request.headers.set(Request.HOST, "localhost:8080");
+        exchange.request.headers.set(Request.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64)");
+        exchange.request.headers.set(Request.REFERER, "http://localhost:8080/");
+        exchange.response = new Response();
+        exchange.response.status = Status.OK;
+        exchange.response.headers.set(Response.CONTENT_LENGTH, "12345");
+        exchange.response.headers.set(Response.CONTENT_TYPE, "text/html");
+    }
+
+    @Benchmark
+    public void expressions(Blackhole blackhole){
+        builder.setLength(0);
+        for(Expression expr: expressions){
+            String value = TypeConversion.toString(expr.evaluate(exchange));
+            builder.append(value==null ? "-" : value).append(' ');
+        }
+        blackhole.consume(builder);
+    }
+
+    @Benchmark
+    public void compiled(Blackhole blackhole) throws Exception{
+        builder.setLength(0);
+        record.process(exchange, exchange.request);
+        record.process(exchange, exchange.response);
+        record.publishTo(builder);
+        blackhole.consume(builder);
+    }
+}
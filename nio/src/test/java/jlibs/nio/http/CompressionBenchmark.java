@@ -0,0 +1,161 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.NBStream;
+import jlibs.nio.Output;
+import jlibs.nio.Reactors;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.StringPayload;
+import jlibs.nio.http.util.Encoding;
+import jlibs.nio.util.ZipPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * responses per second written by single reactor thread, for 64K json
+ * response compressed with gzip at different levels. level 0 sends it
+ * uncompressed. wireBytes reports bytes per second sent to the wire.
+ * <p>
+ * pooled=false disables ZipPool, allocating new Deflater for each response.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=5)
+@Fork(1)
+public class CompressionBenchmark{
+    @Param({"0", "1", "6", "9"})
+    public int level;
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private WriteMessage writeMessage;
+    private Response response;
+    private CompressionPolicy policy;
+    private NullOutput out = new NullOutput();
+
+    @Setup
+    public void setup() throws Exception{
+        if(!pooled)
+            ZipPool.Defaults.MAX_SIZE = 0;
+        if(Reactors.get()==null)
+            Reactors.start(1);
+
+        Random random = new Random(0);
+        StringBuilder json = new StringBuilder("[");
+        while(json.length()<64*1024){
+            if(json.length()>1)
+                json.append(',');
+            json.append("{\"id\":").append(random.nextInt(1000000))
+                .append(",\"name\":\"user").append(random.nextInt(10000))
+                .append("\",\"active\":").append(random.nextBoolean())
+                .append(",\"score\":").append(random.nextDouble())
+                .append(",\"tags\":[\"alpha\",\"beta\"]}");
+        }
+        json.append(']');
+
+        policy = new CompressionPolicy();
+        policy.level = policy.fastLevel = level;
+        Reactors.get().get(0).invokeAndWait(() -> {
+            writeMessage = new WriteMessage();
+            response = new Response();
+            try{
+                response.setPayload(new StringPayload(json.toString(), "application/json; charset=utf-8"));
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters
+    public static class Counters{
+        public long wireBytes;
+    }
+
+    @Benchmark
+    public void write(Counters counters) throws Exception{
+        Reactors.get().get(0).invokeAndWait(() -> {
+            try{
+                response.setContentEncodings(Collections.singletonList(Encoding.GZIP));
+                writeMessage.compression = policy;
+                writeMessage.reset(response, null, true);
+                writeMessage.hold();
+                writeMessage.writeHeld(out);
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+        });
+        counters.wireBytes += out.written;
+        out.written = 0;
+    }
+
+    private static class NullOutput implements Output{
+        long written;
+
+        @Override
+        public int write(ByteBuffer src){
+            int remaining = src.remaining();
+            src.position(src.limit());
+            written += remaining;
+            return remaining;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length){
+            long total = 0;
+            for(int i=0; i<length; i++)
+                total += write(srcs[offset+i]);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs){
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean flush(){
+            return true;
+        }
+
+        @Override
+        public long transferFrom(FileChannel src, long position, long count){
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public NBStream channel(){ return null; }
+        @Override public void addWriteInterest(){}
+        @Override public void wakeupWriter(){}
+        @Override public boolean isOpen(){ return true; }
+        @Override public void close(){}
+        @Override public Listener getOutputListener(){ return null; }
+        @Override public void setOutputListener(Listener listener){}
+        @Override public Output detachOutput(){ return this; }
+    }
+}
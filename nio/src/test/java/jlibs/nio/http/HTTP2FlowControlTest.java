@@ -0,0 +1,271 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.Reactor;
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.filters.ReadSocketPayload;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.StringPayload;
+import jlibs.nio.http.util.HPACK;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+
+/**
+ * uploads padded DATA frames to HTTP2 server over loopback, and checks that
+ * WINDOW_UPDATEs announced by server add up to the bytes its reader consumed
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class HTTP2FlowControlTest{
+    private static final int DATA = 0x0;
+    private static final int HEADERS = 0x1;
+    private static final int RST_STREAM = 0x3;
+    private static final int SETTINGS = 0x4;
+    private static final int GOAWAY = 0x7;
+    private static final int WINDOW_UPDATE = 0x8;
+
+    private static final int FLAG_END_STREAM = 0x1;
+    private static final int FLAG_ACK = 0x1;
+    private static final int FLAG_END_HEADERS = 0x4;
+    private static final int FLAG_PADDED = 0x8;
+
+    private static final int DEFAULT_WINDOW_SIZE = 65535;
+    private static final long TIMEOUT = 10000;
+
+    private int port;
+    private HTTPServer server;
+
+    @BeforeClass
+    public void startServer() throws Exception{
+        try(ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        Reactors.start(1);
+        Reactors.get().get(0).invokeAndWait(() -> {
+            try{
+                server = new HTTPServer(new TCPEndpoint("localhost", port));
+                server.http2 = true;
+                server.requestFilters = Collections.singletonList(new ReadSocketPayload());
+                server.listener = exchange -> {
+                    SocketPayload payload = (SocketPayload)exchange.getRequest().getPayload();
+                    Response response = new Response();
+                    response.setPayload(new StringPayload(String.valueOf(payload.buffers.remaining())));
+                    exchange.setResponse(response);
+                    return true;
+                };
+                server.start();
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    @AfterClass
+    public void stopServer(){
+        Reactors.shutdown(true);
+    }
+
+    @Test(description="padding is credited on receipt, data as reader consumes it, each only once")
+    public void windowUpdates() throws Exception{
+        int dataLength = 8000;
+        int padLength = 255;
+        int frames = 256;
+        try(Client client = new Client()){
+            client.sendHeaders(1);
+            long sent = 0;
+            for(int i=0; i<frames; i++){
+                ByteBuffer payload = ByteBuffer.allocate(1+dataLength+padLength);
+                payload.put((byte)padLength);
+                while(payload.position()<1+dataLength)
+                    payload.put((byte)i);
+                payload.position(0);
+                client.awaitWindow(payload.remaining());
+                client.writeFrame(DATA, FLAG_PADDED|(i==frames-1 ? FLAG_END_STREAM : 0), 1, payload);
+                sent += 1+dataLength+padLength;
+            }
+            String body = client.awaitResponse();
+            Assert.assertEquals(body, String.valueOf(frames*dataLength));
+
+            long connectionCredit = client.connectionIncrements-(HTTP2Connection.CONNECTION_WINDOW_SIZE-DEFAULT_WINDOW_SIZE);
+            Assert.assertTrue(connectionCredit<=sent, "connection credited "+connectionCredit+" for "+sent+" bytes");
+            Assert.assertTrue(connectionCredit>sent-HTTP2Connection.CONNECTION_WINDOW_SIZE/2, "connection credited "+connectionCredit+" for "+sent+" bytes");
+            Assert.assertTrue(client.streamIncrements<=sent, "stream credited "+client.streamIncrements+" for "+sent+" bytes");
+        }
+    }
+
+    /** blocking HTTP2 client, with prior knowledge */
+    private class Client implements AutoCloseable, Runnable{
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final Thread reader;
+
+        private boolean settingsReceived;
+        private long connectionWindow = DEFAULT_WINDOW_SIZE;
+        private long streamWindow = DEFAULT_WINDOW_SIZE;
+        private long connectionIncrements;
+        private long streamIncrements;
+        private final StringBuilder body = new StringBuilder();
+        private boolean done;
+        private String error;
+
+        Client() throws IOException{
+            socket = new Socket("localhost", port);
+            in = new DataInputStream(socket.getInputStream());
+            out = socket.getOutputStream();
+            out.write("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            writeFrame(SETTINGS, 0, 0, ByteBuffer.allocate(0));
+            reader = new Thread(this);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void writeFrame(int type, int flags, int streamID, ByteBuffer payload) throws IOException{
+            byte frame[] = new byte[9+payload.remaining()];
+            ByteBuffer buffer = ByteBuffer.wrap(frame);
+            buffer.put((byte)(payload.remaining()>>>16)).putShort((short)payload.remaining());
+            buffer.put((byte)type).put((byte)flags).putInt(streamID);
+            buffer.put(payload);
+            out.write(frame);
+        }
+
+        void sendHeaders(int streamID) throws IOException{
+            HPACK.Encoder encoder = new HPACK.Encoder();
+            ByteBuffer block = ByteBuffer.allocate(1024);
+            encoder.startBlock(block);
+            encoder.encode(":method", "POST", block);
+            encoder.encode(":scheme", "http", block);
+            encoder.encode(":path", "/upload", block);
+            encoder.encode(":authority", "localhost:"+port, block);
+            block.flip();
+            writeFrame(HEADERS, FLAG_END_HEADERS, streamID, block);
+        }
+
+        synchronized void awaitWindow(int length) throws Exception{
+            long deadline = System.currentTimeMillis()+TIMEOUT;
+            while(error==null && (!settingsReceived || connectionWindow<length || streamWindow<length)){
+                long wait = deadline-System.currentTimeMillis();
+                if(wait<=0)
+                    Assert.fail("no WINDOW_UPDATE: connectionWindow="+connectionWindow+" streamWindow="+streamWindow);
+                wait(wait);
+            }
+            if(error!=null)
+                Assert.fail(error);
+            connectionWindow -= length;
+            streamWindow -= length;
+        }
+
+        synchronized String awaitResponse() throws Exception{
+            long deadline = System.currentTimeMillis()+TIMEOUT;
+            while(!done){
+                long wait = deadline-System.currentTimeMillis();
+                if(wait<=0)
+                    Assert.fail("no response");
+                wait(wait);
+            }
+            if(error!=null)
+                Assert.fail(error);
+            return body.toString();
+        }
+
+        @Override
+        public void run(){
+            try{
+                while(true){
+                    int length = in.readUnsignedByte()<<16 | in.readUnsignedShort();
+                    int type = in.readUnsignedByte();
+                    int flags = in.readUnsignedByte();
+                    int streamID = in.readInt()&0x7FFFFFFF;
+                    byte payload[] = new byte[length];
+                    in.readFully(payload);
+                    ByteBuffer buffer = ByteBuffer.wrap(payload);
+                    synchronized(this){
+                        switch(type){
+                            case SETTINGS:
+                                if((flags&FLAG_ACK)!=0)
+                                    break;
+                                while(buffer.hasRemaining()){
+                                    int id = buffer.getShort();
+                                    int value = buffer.getInt();
+                                    if(id==0x4)
+                                        streamWindow = value;
+                                }
+                                writeFrame(SETTINGS, FLAG_ACK, 0, ByteBuffer.allocate(0));
+                                settingsReceived = true;
+                                break;
+                            case WINDOW_UPDATE:
+                                int increment = buffer.getInt()&0x7FFFFFFF;
+                                if(streamID==0){
+                                    connectionWindow += increment;
+                                    connectionIncrements += increment;
+                                }else{
+                                    streamWindow += increment;
+                                    streamIncrements += increment;
+                                }
+                                break;
+                            case HEADERS:
+                                HPACK.Decoder decoder = new HPACK.Decoder();
+                                decoder.decode(buffer, (name, value) -> {
+                                    if(name.equals(":status") && !value.equals("200"))
+                                        error = "status "+value;
+                                });
+                                break;
+                            case DATA:
+                                body.append(new String(payload, StandardCharsets.US_ASCII));
+                                break;
+                            case RST_STREAM:
+                            case GOAWAY:
+                                error = "frame "+type+" received";
+                                done = true;
+                                break;
+                        }
+                        if(streamID==1 && (flags&FLAG_END_STREAM)!=0 && (type==DATA || type==HEADERS))
+                            done = true;
+                        notifyAll();
+                        if(done)
+                            return;
+                    }
+                }
+            }catch(IOException ex){
+                synchronized(this){
+                    error = ex.toString();
+                    done = true;
+                    notifyAll();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws Exception{
+            socket.close();
+            reader.join(TIMEOUT);
+        }
+    }
+}
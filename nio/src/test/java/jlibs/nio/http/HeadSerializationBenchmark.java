@@ -0,0 +1,167 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.NBStream;
+import jlibs.nio.Output;
+import jlibs.nio.Reactors;
+import jlibs.nio.http.msg.AsciiString;
+import jlibs.nio.http.msg.Message;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.StringPayload;
+import jlibs.nio.http.util.HTTPDate;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time to serialize head of typical response with 12 headers,
+ * with header values as plain strings and as pre-encoded values.
+ * <p>
+ * messages are rendered on reactor thread using WriteMessage.hold()
+ * and drained into an output which discards bytes.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=5)
+@Fork(1)
+public class HeadSerializationBenchmark{
+    private static final int BATCH = 1000;
+
+    private static final AsciiString VARY = new AsciiString("Vary");
+    private static final AsciiString X_REQUEST_ID = new AsciiString("X-Request-Id");
+    private static final AsciiString ACCESS_CONTROL_ALLOW_ORIGIN = new AsciiString("Access-Control-Allow-Origin");
+    private static final AsciiString STRICT_TRANSPORT_SECURITY = new AsciiString("Strict-Transport-Security");
+
+    private static final String SERVER_NAME = "jlibs-nio/2.0";
+    private static final AsciiString SERVER_NAME_VALUE = new AsciiString(SERVER_NAME);
+
+    private WriteMessage writeMessage;
+    private Response response;
+    private NullOutput out = new NullOutput();
+
+    @Setup
+    public void setup() throws Exception{
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        Reactors.get().get(0).invokeAndWait(() -> {
+            writeMessage = new WriteMessage();
+            response = new Response();
+            try{
+                response.setPayload(new StringPayload("{\"status\":\"ok\"}", "application/json; charset=utf-8"));
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+            response.headers.set(Message.CACHE_CONTROL, "no-cache, no-store, must-revalidate");
+            response.headers.set(VARY, "Accept-Encoding");
+            response.headers.set(Response.ETAG, "\"5d8c72a5edda8d6a\"");
+            response.headers.set(Response.LAST_MODIFIED, "Wed, 21 Oct 2015 07:28:00 GMT");
+            response.headers.set(X_REQUEST_ID, "f058ebd6-02f7-4d3f-942e-904344e8cde5");
+            response.headers.set(ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+            response.headers.set(STRICT_TRANSPORT_SECURITY, "max-age=31536000; includeSubDomains");
+        });
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long plain() throws Exception{
+        Reactors.get().get(0).invokeAndWait(() -> {
+            for(int i=0; i<BATCH; i++){
+                response.headers.set(Response.DATE, HTTPDate.getInstance().currentDate());
+                response.headers.set(Response.SERVER, SERVER_NAME);
+                response.headers.set(Message.CONNECTION, "keep-alive");
+                write();
+            }
+        });
+        return out.written;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long preEncoded() throws Exception{
+        Reactors.get().get(0).invokeAndWait(() -> {
+            for(int i=0; i<BATCH; i++){
+                response.setDate(true);
+                response.setServer(SERVER_NAME_VALUE);
+                response.setKeepAlive(true);
+                write();
+            }
+        });
+        return out.written;
+    }
+
+    private void write(){
+        try{
+            writeMessage.reset(response, null, true);
+            writeMessage.hold();
+            writeMessage.writeHeld(out);
+        }catch(IOException ex){
+            throw new RuntimeException(ex);
+        }
+    }
+
+    private static class NullOutput implements Output{
+        long written;
+
+        @Override
+        public int write(ByteBuffer src){
+            int remaining = src.remaining();
+            src.position(src.limit());
+            written += remaining;
+            return remaining;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length){
+            long total = 0;
+            for(int i=0; i<length; i++)
+                total += write(srcs[offset+i]);
+            return total;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs){
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean flush(){
+            return true;
+        }
+
+        @Override
+        public long transferFrom(FileChannel src, long position, long count){
+            throw new UnsupportedOperationException();
+        }
+
+        @Override public NBStream channel(){ return null; }
+        @Override public void addWriteInterest(){}
+        @Override public void wakeupWriter(){}
+        @Override public boolean isOpen(){ return true; }
+        @Override public void close(){}
+        @Override public Listener getOutputListener(){ return null; }
+        @Override public void setOutputListener(Listener listener){}
+        @Override public Output detachOutput(){ return this; }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.filters.ParseXML;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.http.msg.StringPayload;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * requests per second for SOAP like bodies parsed by ParseXML,
+ * with and without pooling of AsyncXMLReaders.
+ * <p>
+ * run with {@code -prof gc} to compare allocation per request.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=5)
+@Fork(1)
+public class ParseXMLBenchmark{
+    @Param({"2048", "204800"})
+    public int bodySize;
+
+    @Param({"true", "false"})
+    public boolean pooled;
+
+    private HTTPServer server;
+    private Socket socket;
+    private OutputStream out;
+    private InputStream in;
+    private byte request[];
+    private byte buffer[] = new byte[8*1024];
+
+    @Setup
+    public void setup() throws Exception{
+        int port;
+        try(ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+
+        StringBuilder body = new StringBuilder("<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\"><soap:Body><order xmlns=\"urn:orders\">");
+        for(int i=0; body.length()<bodySize-50; i++)
+            body.append("<item id=\"").append(i).append("\"><sku>SKU-").append(i).append("</sku><qty>1</qty></item>");
+        body.append("</order></soap:Body></soap:Envelope>");
+        byte bytes[] = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte head[] = ("POST /orders HTTP/1.1\r\nHost: localhost:"+port+"\r\nContent-Type: text/xml; charset=UTF-8\r\nContent-Length: "+bytes.length+"\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        request = new byte[head.length+bytes.length];
+        System.arraycopy(head, 0, request, 0, head.length);
+        System.arraycopy(bytes, 0, request, head.length, bytes.length);
+
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        Reactors.get().get(0).invokeAndWait(() -> {
+            ParseXML parseXML = new ParseXML();
+            parseXML.readers.maxSize = pooled ? ParseXML.Defaults.MAX_POOLED_READERS : 0;
+            server = new HTTPServer(new TCPEndpoint("localhost", port));
+            server.requestFilters = Collections.singletonList(parseXML);
+            server.listener = exchange -> {
+                Response response = new Response();
+                response.setPayload(new StringPayload("ok"));
+                exchange.setResponse(response);
+                return true;
+            };
+            try{
+                server.start();
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+        });
+
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        out = socket.getOutputStream();
+        in = socket.getInputStream();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        socket.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public int post() throws Exception{
+        out.write(request);
+        out.flush();
+
+        // response is small, so head and payload arrive together
+        int read = 0;
+        int contentLength = -1;
+        int bodyStart = -1;
+        while(bodyStart==-1 || read<bodyStart+contentLength){
+            int count = in.read(buffer, read, buffer.length-read);
+            if(count==-1)
+                throw new IOException("connection closed");
+            read += count;
+            if(bodyStart==-1){
+                String head = new String(buffer, 0, read, StandardCharsets.ISO_8859_1);
+                int end = head.indexOf("\r\n\r\n");
+                if(end!=-1){
+                    bodyStart = end+4;
+                    int i = head.indexOf("Content-Length: ")+16;
+                    contentLength = Integer.parseInt(head.substring(i, head.indexOf('\r', i)));
+                }
+            }
+        }
+        return read;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http;
+
+import jlibs.nio.Reactors;
+import jlibs.nio.TCPEndpoint;
+import jlibs.nio.http.msg.FilePayload;
+import jlibs.nio.http.msg.Response;
+import jlibs.nio.listeners.Task;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * time to download 1GB file from HTTPServer over plain tcp,
+ * with and without FileChannel.transferTo.
+ * <p>
+ * file is sparse, so that it is served from page cache and
+ * the benchmark measures copying rather than disk.
+ * throughput in MB/s is 1024/score.
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=2)
+@Measurement(iterations=5)
+@Fork(1)
+public class SendFileBenchmark{
+    private static final long FILE_SIZE = 1L<<30;
+
+    @Param({"true", "false"})
+    public boolean zeroCopy;
+
+    private File file;
+    private int port;
+    private HTTPServer server;
+    private byte request[];
+    private byte buffer[] = new byte[64*1024];
+
+    @Setup
+    public void setup() throws Exception{
+        file = File.createTempFile("sendfile", ".bin");
+        file.deleteOnExit();
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")){
+            raf.setLength(FILE_SIZE);
+        }
+
+        try(ServerSocket socket = new ServerSocket(0)){
+            port = socket.getLocalPort();
+        }
+        request = ("GET /file HTTP/1.1\r\nHost: localhost:"+port+"\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+
+        Task.ZERO_COPY = zeroCopy;
+        if(Reactors.get()==null)
+            Reactors.start(1);
+        Reactors.get().get(0).invokeAndWait(() -> {
+            server = new HTTPServer(new TCPEndpoint("localhost", port));
+            server.listener = exchange -> {
+                Response response = new Response();
+                response.setPayload(new FilePayload("application/octet-stream", file));
+                exchange.setResponse(response);
+                return true;
+            };
+            try{
+                server.start();
+            }catch(IOException ex){
+                throw new RuntimeException(ex);
+            }
+        });
+    }
+
+    @TearDown
+    public void tearDown() throws Exception{
+        server.stop();
+        Task.ZERO_COPY = true;
+        file.delete();
+    }
+
+    @Benchmark
+    public long download() throws Exception{
+        try(Socket socket = new Socket("localhost", port)){
+            socket.setReceiveBufferSize(1024*1024);
+            OutputStream out = socket.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            InputStream in = socket.getInputStream();
+            long total = 0;
+            int read;
+            while((read=in.read(buffer))!=-1)
+                total += read;
+            return total;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.msg.parser;
+
+import jlibs.nio.http.msg.*;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Santhosh Kumar Tekuri
+ */
+public class MultipartParserTest{
+    private static final String CONTENT_TYPE = "multipart/form-data; boundary=AaB03x";
+
+    // second part has delimiter prefixes and trailing CR in its content
+    private static final String BODY =
+        "--AaB03x\r\n"+
+        "Content-Disposition: form-data; name=\"field1\"\r\n"+
+        "\r\n"+
+        "Joe Blow\r\n"+
+        "--AaB03x  \r\n"+
+        "Content-Disposition: form-data; name=\"pics\"; filename=\"file1.txt\"\r\n"+
+        "Content-Type: text/plain\r\n"+
+        "\r\n"+
+        "line1\r\n--AaB03\r\n-\r\r\n--AaB03y\r\r"+
+        "\r\n--AaB03x\r\n"+
+        "Content-Disposition: form-data; name=\"empty\"\r\n"+
+        "\r\n"+
+        "\r\n--AaB03x--\r\n"+
+        "epilogue";
+
+    private static final String PARTS[][] = {
+        { "form-data; name=\"field1\"", null, "Joe Blow" },
+        { "form-data; name=\"pics\"; filename=\"file1.txt\"", "text/plain", "line1\r\n--AaB03\r\n-\r\r\n--AaB03y\r\r" },
+        { "form-data; name=\"empty\"", null, "" },
+    };
+
+    /** records each part as {Content-Disposition, Content-Type, content} */
+    private static class RecordParts implements PartListener{
+        private final List<String[]> parts = new ArrayList<>();
+        private String part[];
+        private StringBuilder content;
+        private boolean aborted;
+
+        @Override
+        public void startPart(Headers headers){
+            Assert.assertNull(part, "startPart before endPart");
+            part = new String[]{ headers.value(Message.CONTENT_DISPOSITION), headers.value(Part.CONTENT_TYPE), null };
+            content = new StringBuilder();
+        }
+
+        @Override
+        public void content(ByteBuffer buffer){
+            Assert.assertNotNull(part, "content outside part");
+            Assert.assertTrue(buffer.hasRemaining(), "empty content");
+            while(buffer.hasRemaining())
+                content.append((char)(buffer.get()&0xff));
+        }
+
+        @Override
+        public void endPart(){
+            Assert.assertNotNull(part, "endPart without startPart");
+            part[2] = content.toString();
+            parts.add(part);
+            part = null;
+        }
+
+        @Override
+        public void aborted(){
+            aborted = true;
+        }
+    }
+
+    private static String[][] parse(String body, int... splits) throws IOException{
+        RecordParts listener = new RecordParts();
+        MultipartParser parser = new MultipartParser(new MultipartPayload(CONTENT_TYPE), Status.BAD_REQUEST, listener);
+        byte bytes[] = body.getBytes(StandardCharsets.ISO_8859_1);
+        try{
+            int from = 0;
+            for(int i=0; i<=splits.length; i++){
+                int to = i==splits.length ? bytes.length : splits[i];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes, from, to-from);
+                boolean eof = i==splits.length;
+                boolean finished = parser.parse(buffer, eof);
+                Assert.assertFalse(buffer.hasRemaining(), "unconsumed bytes at "+buffer.position());
+                Assert.assertEquals(finished, eof);
+                from = to;
+            }
+        }finally{
+            parser.cleanup();
+        }
+        Assert.assertFalse(listener.aborted);
+        return listener.parts.toArray(new String[listener.parts.size()][]);
+    }
+
+    private static void assertParts(String actual[][], String message){
+        Assert.assertEquals(actual.length, PARTS.length, message);
+        for(int i=0; i<PARTS.length; i++)
+            Assert.assertEquals(actual[i], PARTS[i], message+": part "+i+" "+Arrays.toString(actual[i]));
+    }
+
+    @Test(description="body in single buffer")
+    public void singleBuffer() throws IOException{
+        assertParts(parse(BODY), "single buffer");
+    }
+
+    @Test(description="body split into two buffers, at every byte offset")
+    public void splitAtEveryOffset() throws IOException{
+        for(int i=0; i<=BODY.length(); i++)
+            assertParts(parse(BODY, i), "split at "+i);
+    }
+
+    @Test(description="body split into three buffers, at every pair of byte offsets")
+    public void splitAtEveryPairOfOffsets() throws IOException{
+        for(int i=0; i<=BODY.length(); i++){
+            for(int j=i; j<=BODY.length(); j++)
+                assertParts(parse(BODY, i, j), "split at "+i+", "+j);
+        }
+    }
+
+    @Test(description="each byte in its own buffer")
+    public void byteAtATime() throws IOException{
+        int splits[] = new int[BODY.length()];
+        for(int i=0; i<splits.length; i++)
+            splits[i] = i;
+        assertParts(parse(BODY, splits), "byte at a time");
+    }
+
+    @Test(description="delimiter prefix at end of buffer, completed or contradicted by next buffer")
+    public void delimiterPrefixAcrossBuffers() throws IOException{
+        int falsePrefix = BODY.indexOf("\r\n--AaB03\r\n")+"\r\n--AaB0".length();
+        int delimiter = BODY.indexOf("\r\n--AaB03x\r\nContent-Disposition: form-data; name=\"empty\"")+"\r\n--Aa".length();
+        int crBeforeDelimiter = BODY.indexOf("\r\r\n--AaB03x\r\n")+1;
+        assertParts(parse(BODY, falsePrefix), "false prefix");
+        assertParts(parse(BODY, delimiter), "delimiter");
+        assertParts(parse(BODY, crBeforeDelimiter), "CR before delimiter");
+        assertParts(parse(BODY, falsePrefix, delimiter), "false prefix and delimiter");
+    }
+
+    @Test(description="buffer ends with CR of blank line ending headers")
+    public void crAtEndOfHeaders() throws IOException{
+        int from = 0;
+        List<Integer> splits = new ArrayList<>();
+        while((from=BODY.indexOf("\r\n\r\n", from))!=-1){
+            from += 3;
+            splits.add(from);
+        }
+        Assert.assertEquals(splits.size(), PARTS.length);
+        for(int split: splits)
+            assertParts(parse(BODY, split), "split at "+split);
+    }
+
+    @Test(description="preamble before first delimiter is ignored")
+    public void preamble() throws IOException{
+        String body = "preamble --AaB03x\r\n\r\n"+BODY;
+        for(int i=0; i<=body.length(); i++)
+            assertParts(parse(body, i), "split at "+i);
+    }
+
+    @Test(description="parts collected into payload, when there is no listener")
+    public void collectParts() throws IOException{
+        MultipartPayload payload = new MultipartPayload(CONTENT_TYPE);
+        MultipartParser parser = new MultipartParser(payload, Status.BAD_REQUEST);
+        byte bytes[] = BODY.getBytes(StandardCharsets.ISO_8859_1);
+        int split = BODY.indexOf("line1")+3;
+        Assert.assertFalse(parser.parse(ByteBuffer.wrap(bytes, 0, split), false));
+        Assert.assertTrue(parser.parse(ByteBuffer.wrap(bytes, split, bytes.length-split), true));
+        parser.cleanup();
+
+        Assert.assertEquals(payload.parts.size(), PARTS.length);
+        Assert.assertEquals(((DefaultPart)payload.parts.get(0)).buffers.toString(), PARTS[0][2]);
+        FilePart filePart = (FilePart)payload.parts.get(1);
+        try{
+            Assert.assertEquals(new String(Files.readAllBytes(filePart.file.toPath()), StandardCharsets.ISO_8859_1), PARTS[1][2]);
+        }finally{
+            Assert.assertTrue(filePart.file.delete());
+        }
+        Assert.assertEquals(((DefaultPart)payload.parts.get(2)).buffers.toString(), PARTS[2][2]);
+    }
+
+    @Test(description="body without close delimiter")
+    public void truncated() throws IOException{
+        String body = BODY.substring(0, BODY.indexOf("--AaB03x--"));
+        for(String truncated: new String[]{ body, body+"--AaB03x", body+"--AaB03x-", BODY.substring(0, BODY.indexOf("Joe")-1) }){
+            RecordParts listener = new RecordParts();
+            MultipartParser parser = new MultipartParser(new MultipartPayload(CONTENT_TYPE), Status.BAD_REQUEST, listener);
+            try{
+                parser.parse(ByteBuffer.wrap(truncated.getBytes(StandardCharsets.ISO_8859_1)), true);
+                Assert.fail("EOFException expected: "+truncated);
+            }catch(EOFException ex){
+                // expected
+            }finally{
+                parser.cleanup();
+            }
+            Assert.assertTrue(listener.aborted);
+        }
+    }
+
+    @Test(description="bytes after boundary, other than transport padding")
+    public void badDelimiter() throws IOException{
+        for(String body: new String[]{ "--AaB03x!\r\n", "--AaB03x\rX", "--AaB03x-X" }){
+            MultipartParser parser = new MultipartParser(new MultipartPayload(CONTENT_TYPE), Status.BAD_REQUEST, new RecordParts());
+            try{
+                parser.parse(ByteBuffer.wrap(body.getBytes(StandardCharsets.ISO_8859_1)), false);
+                Assert.fail("Status expected: "+body);
+            }catch(Status status){
+                Assert.assertEquals(status.code, 400);
+            }finally{
+                parser.cleanup();
+            }
+        }
+    }
+}
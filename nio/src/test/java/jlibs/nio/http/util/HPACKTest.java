@@ -0,0 +1,238 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * decoder is tested against examples from rfc7541, appendix C
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class HPACKTest{
+    static ByteBuffer hex(String hex){
+        hex = hex.replace(" ", "");
+        ByteBuffer buffer = ByteBuffer.allocate(hex.length()/2);
+        for(int i=0; i<hex.length(); i+=2)
+            buffer.put((byte)Integer.parseInt(hex.substring(i, i+2), 16));
+        buffer.flip();
+        return buffer;
+    }
+
+    static String hex(ByteBuffer buffer){
+        StringBuilder builder = new StringBuilder();
+        while(buffer.hasRemaining())
+            builder.append(String.format("%02x", buffer.get()&0xFF));
+        return builder.toString();
+    }
+
+    private static List<String> decode(HPACK.Decoder decoder, String block) throws IOException{
+        List<String> headers = new ArrayList<>();
+        ByteBuffer buffer = hex(block);
+        decoder.decode(buffer, (name, value) -> headers.add(name+": "+value));
+        Assert.assertFalse(buffer.hasRemaining());
+        return headers;
+    }
+
+    private static void assertHeaders(List<String> actual, String... expected){
+        Assert.assertEquals(actual.toArray(), expected);
+    }
+
+    @Test(description="rfc7541 C.2.1: literal header field with indexing")
+    public void literalWithIndexing() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0d63 7573 746f 6d2d 6865 6164 6572"),
+                "custom-key: custom-header");
+        // added to dynamic table at index 62
+        assertHeaders(decode(decoder, "be"), "custom-key: custom-header");
+    }
+
+    @Test(description="rfc7541 C.2.2: literal header field without indexing")
+    public void literalWithoutIndexing() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "040c 2f73 616d 706c 652f 7061 7468"), ":path: /sample/path");
+        try{
+            decode(decoder, "be");
+            Assert.fail("dynamic table must be empty");
+        }catch(IOException ex){
+            // expected
+        }
+    }
+
+    @Test(description="rfc7541 C.2.3: literal header field never indexed")
+    public void literalNeverIndexed() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "1008 7061 7373 776f 7264 0673 6563 7265 74"), "password: secret");
+    }
+
+    @Test(description="rfc7541 C.2.4: indexed header field")
+    public void indexed() throws IOException{
+        assertHeaders(decode(new HPACK.Decoder(), "82"), ":method: GET");
+    }
+
+    @Test(description="rfc7541 C.3: requests without huffman coding")
+    public void requests() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"),
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com");
+        assertHeaders(decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"),
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                "cache-control: no-cache");
+        assertHeaders(decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"),
+                ":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                "custom-key: custom-value");
+    }
+
+    @Test(description="rfc7541 C.4: requests with huffman coding")
+    public void requestsWithHuffman() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"),
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com");
+        assertHeaders(decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"),
+                ":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com",
+                "cache-control: no-cache");
+        assertHeaders(decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"),
+                ":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com",
+                "custom-key: custom-value");
+    }
+
+    @Test(description="rfc7541 C.5: responses without huffman coding, with evictions")
+    public void responses() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        decoder.setMaxTableSize(256);
+        assertHeaders(decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"),
+                ":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                "location: https://www.example.com");
+        assertHeaders(decode(decoder, "4803 3330 37c1 c0bf"),
+                ":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                "location: https://www.example.com");
+        assertHeaders(decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"),
+                ":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT",
+                "location: https://www.example.com", "content-encoding: gzip",
+                "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    }
+
+    @Test(description="rfc7541 C.6: responses with huffman coding, with evictions")
+    public void responsesWithHuffman() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        decoder.setMaxTableSize(256);
+        assertHeaders(decode(decoder, "4882 6402 5885 aec3 771a 4b61 96d0 7abe 9410 54d4 44a8 2005 9504 0b81 66e0 82a6 2d1b ff6e 919d 29ad 1718 63c7 8f0b 97c8 e9ae 82ae 43d3"),
+                ":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                "location: https://www.example.com");
+        assertHeaders(decode(decoder, "4883 640e ffc1 c0bf"),
+                ":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT",
+                "location: https://www.example.com");
+        assertHeaders(decode(decoder, "88c1 6196 d07a be94 1054 d444 a820 0595 040b 8166 e084 a62d 1bff c05a 839b d9ab 77ad 94e7 821d d7f2 e6c7 b335 dfdf cd5b 3960 d5af 2708 7f36 72c1 ab27 0fb5 291f 9587 3160 65c0 03ed 4ee5 b106 3d50 07"),
+                ":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT",
+                "location: https://www.example.com", "content-encoding: gzip",
+                "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1");
+    }
+
+    @Test(description="rfc7541 C.1: integer representation, through dynamic table size update")
+    public void integers() throws IOException{
+        HPACK.Encoder encoder = new HPACK.Encoder();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+
+        encoder.setMaxTableSize(10);
+        encoder.startBlock(buffer);
+        buffer.flip();
+        Assert.assertEquals(hex(buffer), "2a");
+
+        buffer.clear();
+        encoder.setMaxTableSize(1337);
+        encoder.startBlock(buffer);
+        buffer.flip();
+        Assert.assertEquals(hex(buffer), "3f9a0a");
+
+        // pending update is sent only once
+        buffer.clear();
+        encoder.startBlock(buffer);
+        Assert.assertEquals(buffer.position(), 0);
+
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        assertHeaders(decode(decoder, "3f9a0a 82"), ":method: GET");
+    }
+
+    @Test(description="table size update must be at the start of header block")
+    public void lateTableSizeUpdate() throws IOException{
+        try{
+            decode(new HPACK.Decoder(), "82 3f9a0a");
+            Assert.fail("table size update after header must fail");
+        }catch(IOException ex){
+            // expected
+        }
+    }
+
+    @Test(description="table size update must not exceed advertised size")
+    public void tableSizeUpdateExceedsLimit() throws IOException{
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        decoder.setMaxTableSize(256);
+        try{
+            decode(decoder, "3f9a0a");
+            Assert.fail("table size update beyond limit must fail");
+        }catch(IOException ex){
+            // expected
+        }
+    }
+
+    @Test(description="invalid and truncated header blocks")
+    public void malformed(){
+        for(String block: new String[]{ "80", "ff00", "400a 6375 7374", "8286 84be", "3fffffffff0f" }){
+            try{
+                decode(new HPACK.Decoder(), block);
+                Assert.fail("decoding must fail: "+block);
+            }catch(IOException ex){
+                // expected
+            }
+        }
+    }
+
+    @Test(description="headers encoded across blocks are decoded by peer with same dynamic table")
+    public void roundTrip() throws IOException{
+        HPACK.Encoder encoder = new HPACK.Encoder();
+        HPACK.Decoder decoder = new HPACK.Decoder();
+        String headers[][] = {
+            { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" },
+            { ":authority", "www.example.com" }, { "user-agent", "jlibs" },
+            { "custom-key", "custom-value" }, { "cookie", "secret=1" }
+        };
+        int lengths[] = new int[3];
+        for(int block=0; block<3; block++){
+            ByteBuffer buffer = ByteBuffer.allocate(1024);
+            encoder.startBlock(buffer);
+            List<String> expected = new ArrayList<>();
+            for(String header[]: headers){
+                encoder.encode(header[0], header[1], buffer);
+                expected.add(header[0]+": "+header[1]);
+            }
+            buffer.flip();
+            lengths[block] = buffer.remaining();
+            List<String> actual = new ArrayList<>();
+            decoder.decode(buffer, (name, value) -> actual.add(name+": "+value));
+            Assert.assertEquals(actual, expected);
+        }
+        // indexed headers are sent as single byte from second block
+        Assert.assertTrue(lengths[1]<lengths[0]);
+        Assert.assertEquals(lengths[2], lengths[1]);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * JLibs: Common Utilities for Java
+ * Copyright (C) 2009  Santhosh Kumar T <santhosh.tekuri@gmail.com>
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ */
+
+
+package jlibs.nio.http.util;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static jlibs.nio.http.util.HPACKTest.hex;
+
+/**
+ * huffman coded strings from rfc7541, appendix C
+ *
+ * @author Santhosh Kumar Tekuri
+ */
+public class HuffmanTest{
+    private static final String VECTORS[][] = {
+        { "www.example.com", "f1e3c2e5f23a6ba0ab90f4ff" },
+        { "no-cache", "a8eb10649cbf" },
+        { "custom-key", "25a849e95ba97d7f" },
+        { "custom-value", "25a849e95bb8e8b4bf" },
+        { "302", "6402" },
+        { "307", "640eff" },
+        { "private", "aec3771a4b" },
+        { "Mon, 21 Oct 2013 20:13:21 GMT", "d07abe941054d444a8200595040b8166e082a62d1bff" },
+        { "https://www.example.com", "9d29ad171863c78f0b97c8e9ae82ae43d3" },
+        { "gzip", "9bd9ab" },
+        { "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1",
+                "94e7821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed4ee5b1063d5007" },
+    };
+
+    @Test(description="encoding matches rfc7541 examples")
+    public void encode(){
+        for(String vector[]: VECTORS){
+            Assert.assertEquals(Huffman.encodedLength(vector[0]), vector[1].length()/2, vector[0]);
+            ByteBuffer buffer = ByteBuffer.allocate(vector[1].length()/2);
+            Huffman.encode(vector[0], buffer);
+            Assert.assertFalse(buffer.hasRemaining(), vector[0]);
+            buffer.flip();
+            Assert.assertEquals(hex(buffer), vector[1]);
+        }
+    }
+
+    @Test(description="decoding rfc7541 examples")
+    public void decode() throws IOException{
+        for(String vector[]: VECTORS){
+            ByteBuffer buffer = hex(vector[1]);
+            StringBuilder builder = new StringBuilder();
+            Huffman.decode(buffer, buffer.remaining(), builder);
+            Assert.assertEquals(builder.toString(), vector[0]);
+        }
+    }
+
+    @Test(description="all octets survive encode and decode")
+    public void allOctets() throws IOException{
+        StringBuilder str = new StringBuilder();
+        for(int i=0; i<256; i++)
+            str.append((char)i);
+        ByteBuffer buffer = ByteBuffer.allocate(Huffman.encodedLength(str));
+        Huffman.encode(str, buffer);
+        buffer.flip();
+        StringBuilder builder = new StringBuilder();
+        Huffman.decode(buffer, buffer.remaining(), builder);
+        Assert.assertEquals(builder.toString(), str.toString());
+    }
+
+    @Test(description="padding must be shorter than 8 bits, and be most significant bits of EOS")
+    public void invalidPadding(){
+        String invalid[] = {
+            "00",       // '0' followed by zero bits
+            "f1e3c2e5f23a6ba0ab90f4fe", // www.example.com with last padding bit zero
+            "f1e3c2e5f23a6ba0ab90f4ffff", // padding of 8 bits
+            "ffffffff", // EOS
+        };
+        for(String hex: invalid){
+            ByteBuffer buffer = hex(hex);
+            try{
+                Huffman.decode(buffer, buffer.remaining(), new StringBuilder());
+                Assert.fail("decoding must fail: "+hex);
+            }catch(IOException ex){
+                // expected
+            }
+        }
+    }
+}
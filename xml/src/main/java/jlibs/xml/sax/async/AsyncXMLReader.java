@@ -186,6 +186,40 @@ public final class AsyncXMLReader implements XMLReader, NBHandler<SAXException>,
         return feeder;
     }
 
+    /**
+     * makes this reader ready for reuse with different handlers.
+     * buffers and qnames seen so far are retained, but anything
+     * referring to last document or its handlers is released
+     */
+    public void reset(){
+        contentHandler = null;
+        errorHandler = null;
+        entityResolver = null;
+        dtdHandler = null;
+        lexicalHandler = null;
+        declHandler = null;
+        strict = false;
+
+        if(xmlFeeder!=null)
+            xmlFeeder.release();
+        feeder = xmlFeeder;
+
+        entities.clear();
+        entityStack.clear();
+        paramEntities.clear();
+        paramEntityStack.clear();
+        dtd = null;
+        _dtd.reset();
+
+        if(value.capacity()>MAX_RETAINED_VALUE)
+            value = new StringBuilder();
+        if(qnamePool.size()>MAX_RETAINED_QNAMES)
+            qnamePool.clear();
+    }
+
+    private static final int MAX_RETAINED_VALUE = 8*1024;
+    private static final int MAX_RETAINED_QNAMES = 1024;
+
     @Override
     public void parse(InputSource input) throws IOException, SAXException{
         if(createFeeder(input).feed()!=null)
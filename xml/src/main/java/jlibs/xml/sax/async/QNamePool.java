@@ -15,6 +15,8 @@
 
 package jlibs.xml.sax.async;
 
+import java.util.Arrays;
+
 /**
  * @author Santhosh Kumar T
  */
@@ -40,6 +42,15 @@ final class QNamePool{
         this(101, 0.75f);
     }
 
+    public int size(){
+        return count;
+    }
+
+    public void clear(){
+        Arrays.fill(buckets, null);
+        count = 0;
+    }
+
     public QName add(int prefixLength, char[] buffer, int offset, int length){
         int hash = buffer[offset];
         for(int i=1; i<length; i++)
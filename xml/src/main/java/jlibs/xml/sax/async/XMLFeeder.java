@@ -170,6 +170,15 @@ public class XMLFeeder extends Feeder{
     }
     private NBChannel nbChannel = new NBChannel(null);
 
+    /** releases references to channel and parsers, so that this feeder can be reused */
+    final void release(){
+        setChannel(null);
+        nbChannel.setChannel(null);
+        prologParser = null;
+        postAction = null;
+        publicID = systemID = null;
+    }
+
     // <  6  see if it has prolog
     // ==7   found declared encoding
     private int iProlog = 0;